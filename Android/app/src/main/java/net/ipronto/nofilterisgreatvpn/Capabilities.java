@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * What one end of the tunnel can do and how it wants it done, as advertised in the sealed
+ * handshake. The client sends what it can do along with its hello and the server answers with
+ * what both can, so they agree on every feature within the round trip the handshake takes
+ * anyway. Either end can leave a feature out of what it advertises, which is how a feature is
+ * rolled out one part of the fleet at a time.
+ *
+ * On the wire it is the version, the size of the fields, then each field as its type, the
+ * length of its value and the value, unsigned and big-endian. Fields of unknown types are
+ * skipped, so adding one needs no new version; a new version is only for changes that older
+ * ends cannot skip, and those answer as if there was nothing. The version is below any
+ * printable character, which tells it apart from the tickets and parameters of older peers.
+ *
+ * Decoding fills the fields of an instance, so one can be decoded into over and over again
+ * without allocating.
+ */
+class Capabilities {
+    static final int VERSION = 1;
+
+    /** Bits of {@link #FIELD_FEATURES}. */
+    static final int FEATURE_BATCHING = 1;
+    static final int FEATURE_COMPRESSION = 1 << 1;
+    static final int FEATURE_HEADER_COMPRESSION = 1 << 2;
+    static final int FEATURE_PARITY = 1 << 3;
+    static final int FEATURE_STRIPING = 1 << 4;
+    static final int FEATURE_KEEPALIVE = 1 << 5;
+    /** Stripes on different networks, with a sequence number on every datagram. */
+    static final int FEATURE_BONDING = 1 << 6;
+    /** Small packets go out on every stripe of a bonded tunnel. */
+    static final int FEATURE_REDUNDANCY = 1 << 7;
+
+    /** What an end can do, as {@code FEATURE_} bits. */
+    static final int FIELD_FEATURES = 1;
+    /** The largest packet an end takes. */
+    static final int FIELD_MTU = 2;
+    /** The longest the server holds small packets to batch them. */
+    static final int FIELD_BATCH_DEADLINE_MS = 3;
+    /** The longest the server keeps a session that went silent, in seconds. */
+    static final int FIELD_IDLE_TIMEOUT_S = 4;
+    /** The number of datagrams per parity the server starts protecting with. */
+    static final int FIELD_PARITY_GROUP = 5;
+
+    private static final int FIELD_COUNT = 6;
+
+    /** Size of the largest encoding, with every field there and 4 bytes long. */
+    static final int MAX_SIZE = 2 + (FIELD_COUNT - 1) * 6;
+
+    private final int[] mValues = new int[FIELD_COUNT];
+    /** Fields that are there, a bit for each type. */
+    private int mPresent;
+
+    /** @return this, so an offer can be put together in one go. */
+    Capabilities set(int field, int value) {
+        mValues[field] = value;
+        mPresent |= 1 << field;
+        return this;
+    }
+
+    /** @return the value of a field, or 0 if it is not there. */
+    int get(int field) {
+        return mValues[field];
+    }
+
+    boolean has(int field) {
+        return (mPresent & 1 << field) != 0;
+    }
+
+    /** @return whether all the given {@code FEATURE_} bits are advertised. */
+    boolean supports(int features) {
+        return (mValues[FIELD_FEATURES] & features) == features;
+    }
+
+    void clear() {
+        for (int i = 0; i < FIELD_COUNT; ++i) {
+            mValues[i] = 0;
+        }
+        mPresent = 0;
+    }
+
+    /** Writes the fields that are there, in order of their types. */
+    void encode(ByteBuffer out) {
+        final int start = out.position();
+        out.put((byte) VERSION).put((byte) 0);
+        for (int field = 1; field < FIELD_COUNT; ++field) {
+            if (!has(field)) {
+                continue;
+            }
+            final int value = mValues[field];
+            final int length = (value & 0xFFFFFF00) == 0 ? 1 : (value & 0xFFFF0000) == 0 ? 2 : 4;
+            out.put((byte) field).put((byte) length);
+            for (int shift = 8 * (length - 1); shift >= 0; shift -= 8) {
+                out.put((byte) (value >>> shift));
+            }
+        }
+        out.put(start + 1, (byte) (out.position() - start - 2));
+    }
+
+    /**
+     * Reads the capabilities at the position of {@code in}, if there are any, and moves past
+     * them. Text is left where it is.
+     *
+     * @return whether capabilities of this version were read. If not, the fields are empty.
+     */
+    boolean decode(ByteBuffer in) {
+        clear();
+        final int start = in.position();
+        if (in.remaining() < 2 || (in.get(start) & 0xFF) >= ' ') {
+            return false;
+        }
+        final int end = start + 2 + (in.get(start + 1) & 0xFF);
+        if (end > in.limit()) {
+            return false;
+        }
+        // Whatever follows is past a block of any version.
+        in.position(end);
+        if (in.get(start) != VERSION) {
+            return false;
+        }
+        int offset = start + 2;
+        while (offset + 2 <= end) {
+            final int field = in.get(offset) & 0xFF;
+            final int length = in.get(offset + 1) & 0xFF;
+            offset += 2;
+            if (offset + length > end) {
+                break;
+            }
+            if (field < FIELD_COUNT) {
+                if (length > 4) {
+                    break;
+                }
+                int value = 0;
+                for (int i = 0; i < length; ++i) {
+                    value = value << 8 | in.get(offset + i) & 0xFF;
+                }
+                set(field, value);
+            }
+            offset += length;
+        }
+        if (offset != end) {
+            clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Agrees on what both ends do, the way the server does: the features both advertise, the
+     * smaller MTU, and the settings of the server for the features that have them. This is the
+     * reference for the server, which does the same in C.
+     *
+     * @param offer what the client advertised.
+     * @param own what the server advertises.
+     * @param agreed receives what both ends agreed on, which is what the server answers.
+     */
+    static void agree(Capabilities offer, Capabilities own, Capabilities agreed) {
+        agreed.clear();
+        final int features = offer.get(FIELD_FEATURES) & own.get(FIELD_FEATURES);
+        agreed.set(FIELD_FEATURES, features);
+        if (offer.has(FIELD_MTU) && own.has(FIELD_MTU)) {
+            agreed.set(FIELD_MTU, Math.min(offer.get(FIELD_MTU), own.get(FIELD_MTU)));
+        } else if (offer.has(FIELD_MTU) || own.has(FIELD_MTU)) {
+            agreed.set(FIELD_MTU, offer.get(FIELD_MTU) | own.get(FIELD_MTU));
+        }
+        if ((features & FEATURE_BATCHING) != 0) {
+            agreed.set(FIELD_BATCH_DEADLINE_MS, own.get(FIELD_BATCH_DEADLINE_MS));
+        }
+        if ((features & FEATURE_KEEPALIVE) != 0) {
+            agreed.set(FIELD_IDLE_TIMEOUT_S, own.get(FIELD_IDLE_TIMEOUT_S));
+        }
+        if ((features & FEATURE_PARITY) != 0) {
+            agreed.set(FIELD_PARITY_GROUP, own.get(FIELD_PARITY_GROUP));
+        }
+    }
+}
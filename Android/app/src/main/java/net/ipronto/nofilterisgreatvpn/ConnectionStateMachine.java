@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps track of whether the VPN is wanted and how far it got, and runs the connections that
+ * get it there one at a time.
+ *
+ * Connections run on an executor that should have a single thread. Every connect, disconnect
+ * and failure starts a new generation: the connection of the generation before is interrupted,
+ * and the next one is queued behind it, so it only starts once the old one has let go of the
+ * interface and its sockets. However often the user or the network asks for a reconnect, there
+ * is one thread and at most one connection waiting for it. Events of a generation that is gone
+ * are ignored, so a connection that was replaced cannot report itself connected.
+ *
+ * The state and its generation are one immutable value that is swapped in atomically, so any
+ * thread can read it without locking. Listeners are told about every change on the thread
+ * that made it, and may be told out of order when two threads race, so they should read
+ * {@link #getState()} for the latest instead of keeping what they were told.
+ */
+class ConnectionStateMachine {
+    private static final String TAG = "ConnectionStateMachine";
+
+    enum State {
+        /** Nothing is running and nothing is wanted. */
+        DISCONNECTED,
+        /** A connection is on its way, or waiting to be tried again. */
+        CONNECTING,
+        /** A connection established the interface. */
+        CONNECTED
+    }
+
+    interface Listener {
+        void onStateChanged(State state);
+    }
+
+    /** Creates the connections to run. */
+    interface Connector {
+        /**
+         * @return a connection that reports back with {@link #onEstablished(int)}. It runs
+         *         till it is interrupted, and if it returns before that it failed and another
+         *         one is started. If it throws, the next would most likely throw too, so the
+         *         machine gives up and disconnects.
+         */
+        Runnable newConnection(int generation);
+    }
+
+    /** A state, and the generation that got there. */
+    private static final class Status {
+        final State state;
+        final int generation;
+
+        Status(State state, int generation) {
+            this.state = state;
+            this.generation = generation;
+        }
+    }
+
+    /** A connection that was started, so it can be stopped. */
+    private static final class Attempt {
+        final int generation;
+        final Future<?> future;
+
+        Attempt(int generation, Future<?> future) {
+            this.generation = generation;
+            this.future = future;
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final Connector mConnector;
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicReference<Status> mStatus =
+            new AtomicReference<>(new Status(State.DISCONNECTED, 0));
+    private final AtomicReference<Attempt> mAttempt = new AtomicReference<>();
+
+    ConnectionStateMachine(ExecutorService executor, Connector connector) {
+        mExecutor = executor;
+        mConnector = connector;
+    }
+
+    void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    State getState() {
+        return mStatus.get().state;
+    }
+
+    /** @return the generation of the connection that is wanted now. */
+    int getGeneration() {
+        return mStatus.get().generation;
+    }
+
+    /** Replaces whatever connection there is with a new one. */
+    void connect() {
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+        start(transition(State.CONNECTING));
+    }
+
+    /** Stops the connection there is, if any. */
+    void disconnect() {
+        replace(new Attempt(transition(State.DISCONNECTED), null));
+    }
+
+    /** Marks the connection of a generation as established, unless it was replaced. */
+    void onEstablished(int generation) {
+        final Status status = mStatus.get();
+        if (status.generation == generation && status.state == State.CONNECTING
+                && mStatus.compareAndSet(status, new Status(State.CONNECTED, generation))) {
+            notifyListeners(State.CONNECTED);
+        }
+    }
+
+    /** Disconnects for good; nothing can connect after this. */
+    void shutdown() {
+        disconnect();
+        mExecutor.shutdownNow();
+    }
+
+    /** Moves to a state in a new generation. */
+    private int transition(State state) {
+        while (true) {
+            final Status status = mStatus.get();
+            final Status next = new Status(state, status.generation + 1);
+            if (mStatus.compareAndSet(status, next)) {
+                if (state != status.state) {
+                    notifyListeners(state);
+                }
+                return next.generation;
+            }
+        }
+    }
+
+    /** Starts another connection if the one of {@code generation} is still the one wanted. */
+    private void onFailed(int generation) {
+        final Status status = mStatus.get();
+        if (status.generation == generation && status.state != State.DISCONNECTED) {
+            start(transition(State.CONNECTING));
+        }
+    }
+
+    /** Disconnects if the connection of {@code generation} is still the one wanted. */
+    private void onCrashed(int generation) {
+        final Status status = mStatus.get();
+        if (status.generation == generation && status.state != State.DISCONNECTED
+                && mStatus.compareAndSet(status, new Status(State.DISCONNECTED, generation + 1))) {
+            notifyListeners(State.DISCONNECTED);
+        }
+    }
+
+    private void start(final int generation) {
+        final Runnable connection = mConnector.newConnection(generation);
+        final FutureTask<Void> task = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connection.run();
+                } catch (RuntimeException e) {
+                    // The task would keep it to itself and leave the state as it was.
+                    Log.e(TAG, "Connection crashed", e);
+                    onCrashed(generation);
+                    return;
+                }
+                if (!Thread.currentThread().isInterrupted()) {
+                    onFailed(generation);
+                }
+            }
+        }, null);
+        try {
+            // Queued behind the connection it replaces, which is interrupted right after.
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down, so there is nothing to connect for.
+            return;
+        }
+        replace(new Attempt(generation, task));
+    }
+
+    /**
+     * Makes an attempt the current one and stops the one before, unless a later generation
+     * got there first, in which case the attempt itself is stopped.
+     */
+    private void replace(Attempt attempt) {
+        while (true) {
+            final Attempt current = mAttempt.get();
+            if (current != null && current.generation > attempt.generation) {
+                cancel(attempt);
+                return;
+            }
+            if (mAttempt.compareAndSet(current, attempt)) {
+                cancel(current);
+                return;
+            }
+        }
+    }
+
+    private static void cancel(Attempt attempt) {
+        if (attempt != null && attempt.future != null) {
+            attempt.future.cancel(true);
+        }
+    }
+
+    private void notifyListeners(State state) {
+        for (Listener listener : mListeners) {
+            listener.onStateChanged(state);
+        }
+    }
+}
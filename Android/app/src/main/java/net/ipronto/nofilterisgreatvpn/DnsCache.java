@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers DNS lookups sent to the resolvers the server pushed from the answers they gave
+ * before, so a repeated lookup does not pay a round trip through the tunnel and beyond.
+ *
+ * The cache sits in the forwarder, which hands it every outgoing packet and every incoming
+ * one. Only UDP packets between the interface and port 53 of a pushed resolver are looked at;
+ * anything else costs a few comparisons. A query whose question was answered before gets the
+ * same answer back, with its own ID and the TTLs counted down, wrapped in an IP packet for the
+ * interface, and never enters the tunnel. Answers stay until their smallest TTL runs out, at
+ * most {@link #MAX_TTL_MS}, and only the {@link #MAX_ENTRIES} used most recently are kept.
+ *
+ * A name that keeps being asked for is refreshed before it expires: once less than a tenth of
+ * its lifetime is left, the next query is answered from the cache and also sent on, and the
+ * fresh answer that comes back replaces the old one instead of reaching the app again. This
+ * is what resolvers call prefetching, and it keeps popular names from ever missing.
+ *
+ * The outgoing path and the workers use it at the same time, so everything is synchronized.
+ */
+class DnsCache {
+    static final int MAX_ENTRIES = 256;
+    static final long MAX_TTL_MS = TimeUnit.HOURS.toMillis(1);
+
+    /** Lookups of an entry before it counts as popular enough to refresh. */
+    static final int PREFETCH_MIN_HITS = 2;
+
+    /** Time a refresh may take before another one is sent. */
+    private static final long PREFETCH_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+
+    /** Results of {@link #answer}. */
+    static final int MISS = 0;
+    static final int HIT = 1;
+    static final int HIT_AND_REFRESH = 2;
+
+    private static final int PORT = 53;
+    private static final int HEADER_SIZE = 12;
+    private static final int TYPE_OPT = 41;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    /** An answer as the resolver sent it, and where its TTLs are. */
+    private static final class Entry {
+        final byte[] message;
+        final int[] ttlOffsets;
+        final long storeTime;
+        final long expireTime;
+        int hits;
+        long prefetchTime;
+        int prefetchPort;
+        int prefetchId;
+
+        Entry(byte[] message, int[] ttlOffsets, long storeTime, long ttlMs) {
+            this.message = message;
+            this.ttlOffsets = ttlOffsets;
+            this.storeTime = storeTime;
+            this.expireTime = storeTime + ttlMs;
+        }
+    }
+
+    private final byte[][] mResolvers;
+    private final Map<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DnsCache.Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /**
+     * @param resolvers numeric addresses of the resolvers, as the server pushed them.
+     * @throws IllegalArgumentException if one is not a numeric address.
+     */
+    DnsCache(List<String> resolvers) throws IllegalArgumentException {
+        mResolvers = new byte[resolvers.size()][];
+        for (int i = 0; i < mResolvers.length; ++i) {
+            final String resolver = resolvers.get(i);
+            if (!isNumeric(resolver)) {
+                // Anything else would be looked up, through the tunnel we are setting up.
+                throw new IllegalArgumentException("Bad resolver: " + resolver);
+            }
+            try {
+                mResolvers[i] = InetAddress.getByName(resolver).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Bad resolver: " + resolver);
+            }
+        }
+    }
+
+    private static boolean isNumeric(String address) {
+        for (int i = 0; i < address.length(); ++i) {
+            final char c = address.charAt(i);
+            if (Character.digit(c, 16) < 0 && c != '.' && c != ':') {
+                return false;
+            }
+        }
+        return !address.isEmpty();
+    }
+
+    /**
+     * Answers an outgoing packet if it is a query the cache knows the answer to. The packet is
+     * left as it was.
+     *
+     * @param response receives the answer, ready to be written to the interface, unless the
+     *                 result is {@link #MISS}.
+     * @return {@link #MISS} if the packet has to go through the tunnel, {@link #HIT} if it
+     *         does not, or {@link #HIT_AND_REFRESH} if it should go through anyway to refresh
+     *         the answer.
+     */
+    synchronized int answer(ByteBuffer packet, ByteBuffer response, long now) {
+        final int message = findMessage(packet, true);
+        if (message < 0) {
+            return MISS;
+        }
+        final int flags = packet.getShort(message + 2) & 0xFFFF;
+        // A standard query with one question, and nothing but options besides.
+        if ((flags & 0xF800) != 0 || packet.getShort(message + 4) != 1
+                || packet.getShort(message + 6) != 0 || packet.getShort(message + 8) != 0) {
+            return MISS;
+        }
+        final int end = message + (packet.getShort(message - 4) & 0xFFFF) - 8;
+        final int questionEnd = skipQuestion(packet, message + HEADER_SIZE, end);
+        if (questionEnd < 0) {
+            return MISS;
+        }
+        final String key = getKey(packet, message + HEADER_SIZE, questionEnd);
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return MISS;
+        }
+        if (entry.expireTime <= now) {
+            mEntries.remove(key);
+            return MISS;
+        }
+        if (!respond(packet, message, questionEnd, entry, response, now)) {
+            return MISS;
+        }
+
+        ++entry.hits;
+        final long lifetime = entry.expireTime - entry.storeTime;
+        if (entry.hits >= PREFETCH_MIN_HITS && (entry.expireTime - now) * 10 < lifetime
+                && entry.prefetchTime + PREFETCH_TIMEOUT_MS <= now) {
+            entry.prefetchTime = now;
+            entry.prefetchPort = getSourcePort(packet);
+            entry.prefetchId = packet.getShort(message) & 0xFFFF;
+            return HIT_AND_REFRESH;
+        }
+        return HIT;
+    }
+
+    /**
+     * Learns from an incoming packet if it is an answer of a resolver worth keeping. The packet
+     * is left as it was.
+     *
+     * @return whether the packet should reach the interface, which is all but the answers to
+     *         refreshes.
+     */
+    synchronized boolean onResponse(ByteBuffer packet, long now) {
+        final int message = findMessage(packet, false);
+        if (message < 0) {
+            return true;
+        }
+        final int end = message + (packet.getShort(message - 4) & 0xFFFF) - 8;
+        final int flags = packet.getShort(message + 2) & 0xFFFF;
+        if ((flags & 0xF800) != 0x8000 || packet.getShort(message + 4) != 1) {
+            return true;
+        }
+        final int questionEnd = skipQuestion(packet, message + HEADER_SIZE, end);
+        if (questionEnd < 0) {
+            return true;
+        }
+        final String key = getKey(packet, message + HEADER_SIZE, questionEnd);
+        final Entry old = mEntries.get(key);
+        final boolean refresh = old != null && old.prefetchTime != 0
+                && old.prefetchPort == (packet.getShort(message - 6) & 0xFFFF)
+                && old.prefetchId == (packet.getShort(message) & 0xFFFF);
+
+        // Truncated answers send the app to TCP, and only success and a name that does not
+        // exist are answers at all.
+        final int rcode = flags & 0xF;
+        if ((flags & 0x0200) == 0 && (rcode == 0 || rcode == RCODE_NXDOMAIN)) {
+            final Entry entry = parse(packet, message, questionEnd, end, now);
+            if (entry != null) {
+                entry.hits = refresh ? old.hits : 0;
+                mEntries.put(key, entry);
+            }
+        }
+        return !refresh;
+    }
+
+    /** @return the number of answers kept, expired or not. */
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Finds the DNS message in a UDP packet to a resolver, if {@code query}, or from one.
+     *
+     * @return its offset, or -1 if the packet is anything else.
+     */
+    private int findMessage(ByteBuffer packet, boolean query) {
+        final int start = packet.position();
+        final int length = packet.remaining();
+        if (length < 1) {
+            return -1;
+        }
+        final int version = (packet.get(start) >> 4) & 0xF;
+        final int address;
+        final int addressLength;
+        final int udp;
+        if (version == 4 && length >= 20) {
+            // Only whole datagrams, which is what DNS over UDP fits in anyway.
+            if (packet.get(start + 9) != 17 || (packet.getShort(start + 6) & 0x3FFF) != 0) {
+                return -1;
+            }
+            address = start + (query ? 16 : 12);
+            addressLength = 4;
+            udp = start + (packet.get(start) & 0xF) * 4;
+        } else if (version == 6 && length >= 40) {
+            if (packet.get(start + 6) != 17) {
+                return -1;
+            }
+            address = start + (query ? 24 : 8);
+            addressLength = 16;
+            udp = start + 40;
+        } else {
+            return -1;
+        }
+        if (udp + 8 + HEADER_SIZE > start + length
+                || (packet.getShort(query ? udp + 2 : udp) & 0xFFFF) != PORT
+                || !isResolver(packet, address, addressLength)) {
+            return -1;
+        }
+        final int udpLength = packet.getShort(udp + 4) & 0xFFFF;
+        if (udpLength < 8 + HEADER_SIZE || udp + udpLength > start + length) {
+            return -1;
+        }
+        return udp + 8;
+    }
+
+    private boolean isResolver(ByteBuffer packet, int offset, int length) {
+        for (byte[] resolver : mResolvers) {
+            if (resolver.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && packet.get(offset + i) == resolver[i]) {
+                ++i;
+            }
+            if (i == length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getSourcePort(ByteBuffer packet) {
+        final int start = packet.position();
+        final int udp = (packet.get(start) & 0xF0) == 0x40
+                ? start + (packet.get(start) & 0xF) * 4 : start + 40;
+        return packet.getShort(udp) & 0xFFFF;
+    }
+
+    /** @return the end of the question, which takes no compressed names, or -1. */
+    private static int skipQuestion(ByteBuffer packet, int offset, int end) {
+        int i = offset;
+        while (i < end) {
+            final int label = packet.get(i) & 0xFF;
+            if (label == 0) {
+                return i + 5 <= end && i + 1 - offset <= 255 ? i + 5 : -1;
+            }
+            if (label > 63) {
+                return -1;
+            }
+            i += 1 + label;
+        }
+        return -1;
+    }
+
+    /** @return the end of a name, which may be compressed, or -1. */
+    private static int skipName(ByteBuffer packet, int offset, int end) {
+        int i = offset;
+        while (i < end) {
+            final int label = packet.get(i) & 0xFF;
+            if (label == 0) {
+                return i + 1;
+            }
+            if ((label & 0xC0) == 0xC0) {
+                return i + 2 <= end ? i + 2 : -1;
+            }
+            if (label > 63) {
+                return -1;
+            }
+            i += 1 + label;
+        }
+        return -1;
+    }
+
+    /** Names are case-insensitive, and apps may mix the case on purpose. */
+    private static String getKey(ByteBuffer packet, int offset, int end) {
+        final StringBuilder key = new StringBuilder(end - offset);
+        for (int i = offset; i < end; ++i) {
+            char c = (char) (packet.get(i) & 0xFF);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            key.append(c);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Copies an answer out of the packet, finding its TTLs on the way.
+     *
+     * @return {@code null} if it is malformed or must not be kept.
+     */
+    private static Entry parse(ByteBuffer packet, int message, int questionEnd, int end,
+                               long now) {
+        final int answers = packet.getShort(message + 6) & 0xFFFF;
+        final int authorities = packet.getShort(message + 8) & 0xFFFF;
+        final int records = answers + authorities + (packet.getShort(message + 10) & 0xFFFF);
+        final int[] ttlOffsets = new int[records];
+        int ttlCount = 0;
+        long ttl = MAX_TTL_MS / 1000;
+        boolean limited = false;
+        int i = questionEnd;
+        for (int record = 0; record < records; ++record) {
+            i = skipName(packet, i, end);
+            if (i < 0 || i + 10 > end) {
+                return null;
+            }
+            final int type = packet.getShort(i) & 0xFFFF;
+            final long recordTtl = packet.getInt(i + 4) & 0xFFFFFFFFL;
+            // The TTL of options holds flags instead.
+            if (type != TYPE_OPT) {
+                ttlOffsets[ttlCount++] = i + 4 - message;
+                if (record < answers + authorities) {
+                    // A name that does not exist lives as long as the zone says, in its SOA.
+                    ttl = Math.min(ttl, recordTtl);
+                    limited = true;
+                }
+            }
+            i += 10 + (packet.getShort(i + 8) & 0xFFFF);
+        }
+        if (i > end || !limited || ttl == 0) {
+            return null;
+        }
+
+        final byte[] copy = new byte[end - message];
+        for (int j = 0; j < copy.length; ++j) {
+            copy[j] = packet.get(message + j);
+        }
+        final int[] offsets = new int[ttlCount];
+        System.arraycopy(ttlOffsets, 0, offsets, 0, ttlCount);
+        return new Entry(copy, offsets, now, TimeUnit.SECONDS.toMillis(ttl));
+    }
+
+    /**
+     * Wraps the answer in an IP packet from the resolver to whoever asked.
+     *
+     * @return whether it fits in {@code response}.
+     */
+    private static boolean respond(ByteBuffer query, int message, int questionEnd, Entry entry,
+                                   ByteBuffer response, long now) {
+        final int start = query.position();
+        final boolean ipv4 = (query.get(start) & 0xF0) == 0x40;
+        final int udp = ipv4 ? 20 : 40;
+        final int udpLength = 8 + entry.message.length;
+        final int length = udp + udpLength;
+        if (length > response.capacity()) {
+            return false;
+        }
+        response.clear();
+        final int addressLength;
+        if (ipv4) {
+            addressLength = 4;
+            response.putInt(0, 0x45000000 | length).putInt(4, 0x4000).putInt(8, 0x40110000);
+            copy(query, start + 16, response, 12, 4);
+            copy(query, start + 12, response, 16, 4);
+            response.putShort(10, (short) ~fold(sum(response, 0, 20)));
+        } else {
+            addressLength = 16;
+            response.putInt(0, 0x60000000).putShort(4, (short) udpLength)
+                    .put(6, (byte) 17).put(7, (byte) 64);
+            copy(query, start + 24, response, 8, 16);
+            copy(query, start + 8, response, 24, 16);
+        }
+        response.putShort(udp, (short) PORT).putShort(udp + 2, (short) getSourcePort(query))
+                .putShort(udp + 4, (short) udpLength).putShort(udp + 6, (short) 0);
+
+        final int dns = udp + 8;
+        for (int i = 0; i < entry.message.length; ++i) {
+            response.put(dns + i, entry.message[i]);
+        }
+        // The ID, the wish for recursion and the question, in its case, are those asked.
+        response.putShort(dns, query.getShort(message));
+        response.put(dns + 2, (byte) ((response.get(dns + 2) & ~0x01)
+                | (query.get(message + 2) & 0x01)));
+        copy(query, message + HEADER_SIZE, response, dns + HEADER_SIZE,
+                questionEnd - message - HEADER_SIZE);
+        final long elapsed = (now - entry.storeTime) / 1000;
+        for (int offset : entry.ttlOffsets) {
+            final long ttl = response.getInt(dns + offset) & 0xFFFFFFFFL;
+            response.putInt(dns + offset, (int) Math.max(0, ttl - elapsed));
+        }
+
+        // The checksum covers the addresses, the protocol and the length too.
+        final int pseudo = sum(response, ipv4 ? 12 : 8, addressLength * 2) + 17 + udpLength;
+        int checksum = ~fold(pseudo + sum(response, udp, udpLength)) & 0xFFFF;
+        response.putShort(udp + 6, (short) (checksum == 0 ? 0xFFFF : checksum));
+        response.limit(length);
+        return true;
+    }
+
+    private static void copy(ByteBuffer src, int srcOffset, ByteBuffer dst, int dstOffset,
+                             int length) {
+        for (int i = 0; i < length; ++i) {
+            dst.put(dstOffset + i, src.get(srcOffset + i));
+        }
+    }
+
+    /** Adds up 16-bit words, padding an odd length with zero, without folding. */
+    static int sum(ByteBuffer buffer, int offset, int length) {
+        int sum = 0;
+        int i = 0;
+        for (; i + 1 < length; i += 2) {
+            sum += buffer.getShort(offset + i) & 0xFFFF;
+        }
+        if (i < length) {
+            sum += (buffer.get(offset + i) & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    static int fold(int sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return sum;
+    }
+}
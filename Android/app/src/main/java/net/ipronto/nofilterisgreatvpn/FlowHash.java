@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hashes the flow an IP packet belongs to: its addresses, protocol and, for TCP and UDP, its
+ * ports. The hash is symmetric, so both directions of a flow hash the same, and packets that
+ * cannot be parsed all hash to zero.
+ */
+final class FlowHash {
+    private static final int PROTOCOL_TCP = 6;
+    private static final int PROTOCOL_UDP = 17;
+
+    private FlowHash() {
+    }
+
+    /**
+     * @param packet the packet between its position and limit, which are left untouched.
+     */
+    static int of(ByteBuffer packet) {
+        final int start = packet.position();
+        final int length = packet.remaining();
+        if (length < 1) {
+            return 0;
+        }
+
+        final int protocol;
+        final int addresses;
+        final int addressLength;
+        int transport;
+        switch ((packet.get(start) >> 4) & 0x0F) {
+            case 4:
+                if (length < 20) {
+                    return 0;
+                }
+                protocol = packet.get(start + 9) & 0xFF;
+                addresses = start + 12;
+                addressLength = 4;
+                transport = start + (packet.get(start) & 0x0F) * 4;
+                // Only the first fragment carries the ports.
+                if ((packet.getShort(start + 6) & 0x1FFF) != 0) {
+                    transport = -1;
+                }
+                break;
+            case 6:
+                if (length < 40) {
+                    return 0;
+                }
+                protocol = packet.get(start + 6) & 0xFF;
+                addresses = start + 8;
+                addressLength = 16;
+                transport = start + 40;
+                break;
+            default:
+                return 0;
+        }
+
+        // Adding is what makes the hash symmetric.
+        int hash = protocol;
+        for (int i = 0; i < addressLength; i += 4) {
+            hash += mix(packet.getInt(addresses + i));
+            hash += mix(packet.getInt(addresses + addressLength + i));
+        }
+        if ((protocol == PROTOCOL_TCP || protocol == PROTOCOL_UDP)
+                && transport >= 0 && transport + 4 <= start + length) {
+            hash += mix(packet.getShort(transport) & 0xFFFF);
+            hash += mix(packet.getShort(transport + 2) & 0xFFFF);
+        }
+        return mix(hash);
+    }
+
+    /** Picks one of {@code count} buckets for the packet's flow. */
+    static int bucket(ByteBuffer packet, int count) {
+        return count == 1 ? 0 : (of(packet) & Integer.MAX_VALUE) % count;
+    }
+
+    /** The finalizer of MurmurHash3. */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authenticates with the server over a connected tunnel and gets the parameters and the keys
+ * of the session. It only needs a {@link DatagramChannel}, so it runs against any UDP peer.
+ */
+class Handshake {
+    /**
+     * Time to wait for the server's answer before declaring the handshake a complete and
+     * abject failure.
+     *
+     * TODO: use a higher-level protocol; hand-rolling is a fun but pointless exercise.
+     */
+    static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+
+    /** Size of the key exchange messages up to what is sealed. */
+    private static final int KEY_EXCHANGE_SIZE = 2 + TunnelCipher.RANDOM_SIZE;
+
+    /** What a sealed handshake agrees on. */
+    static final class Result {
+        /** Same as what {@link #perform} returns. */
+        final String parameters;
+
+        final TunnelCipher cipher;
+
+        /** What both ends agreed on, or {@code null} if the server predates capabilities. */
+        final Capabilities agreed;
+
+        Result(String parameters, TunnelCipher cipher, Capabilities agreed) {
+            this.parameters = parameters;
+            this.cipher = cipher;
+            this.agreed = agreed;
+        }
+    }
+
+    private Handshake() {
+    }
+
+    /** @return what this client can do, which is everything the forwarder knows. */
+    static Capabilities newOffer() {
+        return new Capabilities()
+                .set(Capabilities.FIELD_FEATURES, Capabilities.FEATURE_BATCHING
+                        | Capabilities.FEATURE_COMPRESSION
+                        | Capabilities.FEATURE_HEADER_COMPRESSION | Capabilities.FEATURE_PARITY
+                        | Capabilities.FEATURE_STRIPING | Capabilities.FEATURE_KEEPALIVE)
+                .set(Capabilities.FIELD_MTU, PacketForwarder.DEFAULT_MTU);
+    }
+
+    /**
+     * Sends the secret in plaintext, which only servers that cannot seal still need; see
+     * {@link #performSealed}.
+     *
+     * @param tunnel a connected channel in non-blocking mode.
+     * @param ticket the resumption ticket of the last session, or {@code null} if there is none.
+     * @return the parameters of the session pushed by the server, which are only those that
+     *         changed since the last session if it accepted the ticket.
+     */
+    static String perform(DatagramChannel tunnel, byte[] secret, String ticket, long timeoutMs)
+            throws IOException, InterruptedException {
+        // To build a secured tunnel, we should perform mutual authentication
+        // and exchange session keys for encryption. To keep things simple in
+        // this demo, we just send the shared secret in plaintext and wait
+        // for the server to send the parameters.
+
+        // Allocate the buffer for handshaking. We have a hardcoded maximum
+        // handshake size of 1024 bytes, which should be enough for demo
+        // purposes.
+        ByteBuffer packet = ByteBuffer.allocate(1024);
+
+        // Control messages always start with zero. The ticket follows the secret after
+        // another zero, which servers that do not know about tickets never look past.
+        packet.put((byte) 0).put(secret);
+        if (ticket != null) {
+            packet.put((byte) 0).put(ticket.getBytes());
+        }
+        packet.flip();
+
+        // Send the secret several times in case of packet loss.
+        for (int i = 0; i < 3; ++i) {
+            packet.position(0);
+            tunnel.write(packet);
+        }
+
+        // Wait for the parameters within a limited time, reading them as soon as they arrive.
+        try (Selector selector = Selector.open()) {
+            tunnel.register(selector, SelectionKey.OP_READ);
+            final int length = receive(tunnel, selector, packet,
+                    System.currentTimeMillis() + timeoutMs);
+            return new String(packet.array(), 1, length - 1).trim();
+        }
+    }
+
+    /**
+     * Authenticates like {@link #perform} without putting the secret on the wire, and agrees
+     * on the keys that seal the rest of the session.
+     *
+     * The hello carries a random number of the client and the ticket, sealed with a key
+     * derived from the secret; a server that opens it knows the client has the secret too.
+     * The server answers with a random number of its own and the parameters, sealed with the
+     * key it will send with from then on, which proves the same the other way around. The
+     * keys of the session are derived from both random numbers, see {@link TunnelCipher}.
+     *
+     * The capabilities of the client go ahead of the ticket and those both ends agreed on ahead
+     * of the parameters, so everything is agreed on in the one round trip. Servers that predate
+     * capabilities take them for a ticket they do not know, and answer with parameters alone.
+     * Servers that only know the plaintext handshake never answer at all, so it times out.
+     *
+     * @param ticket the resumption ticket of the last session, or {@code null} if there is none.
+     * @param offer what the client can do, or {@code null} to not say.
+     */
+    static Result performSealed(DatagramChannel tunnel, byte[] secret, String ticket,
+                                Capabilities offer, long timeoutMs)
+            throws IOException, InterruptedException {
+        final byte[] masterKey = TunnelCipher.deriveMasterKey(secret);
+        final byte[] clientRandom = new byte[TunnelCipher.RANDOM_SIZE];
+        new SecureRandom().nextBytes(clientRandom);
+        final byte[] ticketBytes = ticket != null ? ticket.getBytes() : new byte[0];
+
+        // [0][key exchange][client random][capabilities][ticket][tag], where the random number
+        // is authenticated along and also makes up the nonce, since the key is the same every
+        // time.
+        final ByteBuffer packet = ByteBuffer.allocate(1024);
+        packet.put((byte) 0).put(TunnelCipher.CONTROL_KEY_EXCHANGE).put(clientRandom);
+        if (offer != null) {
+            offer.encode(packet);
+        }
+        packet.put(ticketBytes);
+        final int sealedLength = packet.position() - KEY_EXCHANGE_SIZE;
+        final ByteBuffer nonce = ByteBuffer.wrap(clientRandom).order(ByteOrder.LITTLE_ENDIAN);
+        new PacketCipher(masterKey).seal(nonce.getInt(0), nonce.getLong(4),
+                ByteBuffer.wrap(clientRandom), packet, KEY_EXCHANGE_SIZE, sealedLength,
+                packet, KEY_EXCHANGE_SIZE);
+        packet.limit(KEY_EXCHANGE_SIZE + sealedLength + PacketCipher.TAG_SIZE);
+
+        // Send the hello several times in case of packet loss.
+        for (int i = 0; i < 3; ++i) {
+            packet.position(0);
+            tunnel.write(packet);
+        }
+
+        try (Selector selector = Selector.open()) {
+            tunnel.register(selector, SelectionKey.OP_READ);
+            final long deadline = System.currentTimeMillis() + timeoutMs;
+            while (true) {
+                final int length = receive(tunnel, selector, packet, deadline);
+                if (length < KEY_EXCHANGE_SIZE + PacketCipher.TAG_SIZE
+                        || packet.get(1) != TunnelCipher.CONTROL_KEY_EXCHANGE) {
+                    continue;
+                }
+
+                // The server sends with counter zero, which no packet will ever use again.
+                final byte[] serverRandom = new byte[TunnelCipher.RANDOM_SIZE];
+                System.arraycopy(packet.array(), 2, serverRandom, 0, serverRandom.length);
+                final PacketCipher cipher = new PacketCipher(TunnelCipher.deriveKey(masterKey,
+                        clientRandom, serverRandom, 's'));
+                if (!cipher.open(0, 0, ByteBuffer.wrap(serverRandom), packet,
+                        KEY_EXCHANGE_SIZE, length - KEY_EXCHANGE_SIZE)) {
+                    // Anyone can send garbage; only the server can seal.
+                    continue;
+                }
+                packet.limit(length - PacketCipher.TAG_SIZE).position(KEY_EXCHANGE_SIZE);
+                Capabilities agreed = null;
+                if (offer != null) {
+                    agreed = new Capabilities();
+                    if (!agreed.decode(packet)) {
+                        agreed = null;
+                    }
+                }
+                final String parameters = new String(packet.array(), packet.position(),
+                        packet.remaining()).trim();
+                return new Result(parameters,
+                        TunnelCipher.forClient(masterKey, clientRandom, serverRandom), agreed);
+            }
+        }
+    }
+
+    /**
+     * Waits till the next control message arrives or the deadline passes, which throws.
+     *
+     * @return the length of the message, which is read into {@code packet} from its start.
+     */
+    private static int receive(DatagramChannel tunnel, Selector selector, ByteBuffer packet,
+                               long deadline) throws IOException, InterruptedException {
+        long timeout;
+        while ((timeout = deadline - System.currentTimeMillis()) > 0) {
+            selector.select(timeout);
+            selector.selectedKeys().clear();
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            // Normally we should not receive random packets. Check that the first
+            // byte is 0 as expected.
+            packet.clear();
+            int length;
+            while ((length = tunnel.read(packet)) > 0) {
+                if (packet.get(0) == 0) {
+                    return length;
+                }
+                packet.clear();
+            }
+        }
+        throw new IOException("Timed out");
+    }
+
+    /**
+     * Joins an extra socket the server offered to the session by sending the shared secret,
+     * just like the handshake does. The server does not answer a join; it starts using the
+     * socket once the first copy arrives.
+     *
+     * @param stripe a channel connected to the offered port.
+     */
+    static void join(DatagramChannel stripe, byte[] secret) throws IOException {
+        final ByteBuffer join = ByteBuffer.allocate(1 + secret.length);
+        join.put((byte) 0).put(secret).flip();
+
+        // Send the secret several times in case of packet loss.
+        for (int i = 0; i < 3; ++i) {
+            join.position(0);
+            stripe.write(join);
+        }
+    }
+
+    /**
+     * Joins an extra socket after a sealed handshake by sending an empty control message
+     * sealed with the keys of the session, which the server takes as proof enough.
+     */
+    static void join(DatagramChannel stripe, TunnelCipher cipher) throws IOException {
+        final TunnelCipher.Sealer sealer = cipher.newSealer();
+        final ByteBuffer join = ByteBuffer.allocate(1);
+        final ByteBuffer sealed = ByteBuffer.allocate(1 + TunnelCipher.OVERHEAD);
+
+        // Each copy has a counter of its own, or the server would take them for replays.
+        for (int i = 0; i < 3; ++i) {
+            join.clear();
+            sealer.seal(join, sealed);
+            stripe.write(sealed);
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses the IPv4 and TCP or UDP headers of small packets, in the spirit of ROHC and Van
+ * Jacobson's compression of TCP/IP headers: most fields are the same from one packet of a flow
+ * to the next, and the rest change by a little.
+ *
+ * Each flow gets a context, which both sides keep a copy of. A refresh is a zero byte,
+ * {@link #CONTROL_HEADER_REFRESH}, the context and its generation, then the whole packet; its
+ * header becomes the reference of the context. Later packets of the flow are a zero byte,
+ * {@link #CONTROL_HEADER_COMPRESSED}, the context, the generation and what changed, then only
+ * what differs from the reference: the IP ID and the TCP sequence and acknowledgment numbers
+ * as deltas, the TCP window and flags if they changed, the checksum and TCP options as they
+ * are, and the payload. A bare TCP ACK of 40 bytes goes in about a dozen.
+ *
+ * Deltas are from the reference rather than from the packet before, so losing a compressed
+ * packet costs nothing more. Losing a refresh would leave the other side with a stale
+ * reference, which the generation gives away, so as in the unidirectional mode of ROHC the
+ * next {@link #REFRESH_REPEATS} packets repeat it optimistically: each is a refresh with
+ * {@link #REPEAT} set in the generation byte, the reference header, then the whole packet,
+ * so whichever of them arrives first sets up the same reference. Only if all of them are lost
+ * are the packets against it dropped, till the next refresh. One goes out every
+ * {@link #REFRESH_INTERVAL} packets of a flow, and whenever a field that should stay the same
+ * changed or a delta grew too large. The checksum of TCP and UDP is carried as it is, so the
+ * receiving host still catches anything restored wrong.
+ *
+ * Only IPv4 without options or fragments is compressed; everything else goes as it is. An
+ * instance keeps the contexts of one sending thread.
+ */
+class HeaderCompressor {
+    /** Control message type of a refresh, following the leading zero byte. */
+    static final byte CONTROL_HEADER_REFRESH = 7;
+
+    /** Control message type of a compressed header, following the leading zero byte. */
+    static final byte CONTROL_HEADER_COMPRESSED = 8;
+
+    /** Scheme named by the "h" parameter of the handshake. */
+    static final int SCHEME_IPV4 = 1;
+
+    /**
+     * Longer packets gain little from a few bytes less, and a refresh, which is longer than the
+     * packet, must not push them over the MTU.
+     */
+    static final int MAX_LENGTH = 512;
+
+    /** Flows compressed at the same time; the one used least recently makes room. */
+    static final int MAX_CONTEXTS = 16;
+
+    /** Packets compressed against a reference before it is refreshed. */
+    static final int REFRESH_INTERVAL = 16;
+
+    /** Packets after a refresh that carry its reference again, in case it was lost. */
+    static final int REFRESH_REPEATS = 2;
+
+    /** Set in the generation byte of a refresh that repeats the reference of another. */
+    static final int REPEAT = 0x80;
+
+    /** Bytes in front of the packet or the compressed header. */
+    private static final int PREFIX_SIZE = 4;
+
+    private static final int IP_HEADER_SIZE = 20;
+    private static final int TCP_HEADER_SIZE = 20;
+    private static final int UDP_HEADER_SIZE = 8;
+    private static final int MAX_HEADER_SIZE = IP_HEADER_SIZE + 60;
+    private static final int PROTOCOL_TCP = 6;
+    private static final int PROTOCOL_UDP = 17;
+
+    /** Deltas that would take more than three bytes call for a refresh instead. */
+    private static final long MAX_DELTA = 1 << 21;
+
+    // What a compressed header carries besides the IP ID and the checksum.
+    private static final int CHANGED_SEQUENCE = 0x1;
+    private static final int CHANGED_ACKNOWLEDGMENT = 0x2;
+    private static final int CHANGED_WINDOW = 0x4;
+    private static final int CHANGED_FLAGS = 0x8;
+
+    // Offsets of what stays the same within a flow, the flow itself included.
+    private static final int[] STATIC_TCP = {0, 1, 6, 7, 8, 9, 12, 13, 14, 15, 16, 17, 18, 19,
+            20, 21, 22, 23, 32, 38, 39};
+    private static final int[] STATIC_UDP = {0, 1, 6, 7, 8, 9, 12, 13, 14, 15, 16, 17, 18, 19,
+            20, 21, 22, 23};
+    private static final int[] FLOW = {9, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23};
+
+    /** What both sides know about a flow: the header of its last refresh. */
+    private static final class Context {
+        final ByteBuffer header = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        int headerLength;
+        int generation;
+        /** Packets compressed since the refresh, or -1 if there was none. */
+        int packets = -1;
+        /** Packets still to repeat the reference. */
+        int repeats;
+        long lastUsed;
+    }
+
+    private final Context[] mContexts = new Context[MAX_CONTEXTS];
+    private final ByteBuffer mCompressed = ByteBuffer.allocateDirect(PREFIX_SIZE + MAX_LENGTH);
+    private long mClock;
+
+    HeaderCompressor() {
+        for (int i = 0; i < MAX_CONTEXTS; ++i) {
+            mContexts[i] = new Context();
+        }
+    }
+
+    /**
+     * @param packet the packet between its position and limit, which are left untouched.
+     * @return the packet as a refresh or with its header compressed, in a buffer that is only
+     *         valid till the next call, or {@code null} if it is better sent as it is.
+     */
+    ByteBuffer compress(ByteBuffer packet) {
+        final int start = packet.position();
+        final int length = packet.remaining();
+        if (length > MAX_LENGTH) {
+            return null;
+        }
+        final int headerLength = getHeaderLength(packet, start, length);
+        if (headerLength < 0) {
+            return null;
+        }
+
+        // Take the context of the flow, or the one used least recently.
+        int index = 0;
+        for (int i = 0; i < MAX_CONTEXTS; ++i) {
+            if (mContexts[i].packets >= 0 && matches(mContexts[i], packet, start, FLOW)) {
+                index = i;
+                break;
+            }
+            if (mContexts[i].lastUsed < mContexts[index].lastUsed) {
+                index = i;
+            }
+        }
+        final Context context = mContexts[index];
+        context.lastUsed = ++mClock;
+
+        final boolean tcp = packet.get(start + 9) == PROTOCOL_TCP;
+        if (context.packets >= 0 && context.packets < REFRESH_INTERVAL
+                && context.headerLength == headerLength
+                && matches(context, packet, start, tcp ? STATIC_TCP : STATIC_UDP)) {
+            // Packets too long to carry the reference as well go compressed all the same.
+            if (context.repeats > 0 && headerLength + length <= MAX_LENGTH) {
+                --context.repeats;
+                ++context.packets;
+                return repeat(context, index, packet, start, length);
+            }
+            if (compress(context, index, packet, start, headerLength, tcp)) {
+                ++context.packets;
+                return mCompressed;
+            }
+        }
+
+        // Refresh the context.
+        context.generation = (context.generation + 1) & 0x0F;
+        context.packets = 0;
+        context.repeats = REFRESH_REPEATS;
+        context.headerLength = headerLength;
+        for (int i = 0; i < headerLength; ++i) {
+            context.header.put(i, packet.get(start + i));
+        }
+        mCompressed.clear();
+        mCompressed.put(0, (byte) 0).put(1, CONTROL_HEADER_REFRESH).put(2, (byte) index)
+                .put(3, (byte) context.generation);
+        copy(packet, start, mCompressed, PREFIX_SIZE, length);
+        mCompressed.limit(PREFIX_SIZE + length);
+        return mCompressed;
+    }
+
+    /** Writes the packet as a refresh that sets up the reference the context has already. */
+    private ByteBuffer repeat(Context context, int index, ByteBuffer packet, int start,
+                              int length) {
+        mCompressed.clear();
+        mCompressed.put(0, (byte) 0).put(1, CONTROL_HEADER_REFRESH).put(2, (byte) index)
+                .put(3, (byte) (REPEAT | context.generation));
+        copy(context.header, 0, mCompressed, PREFIX_SIZE, context.headerLength);
+        copy(packet, start, mCompressed, PREFIX_SIZE + context.headerLength, length);
+        mCompressed.limit(PREFIX_SIZE + context.headerLength + length);
+        return mCompressed;
+    }
+
+    /**
+     * Writes the packet with its header compressed against the context.
+     *
+     * @return whether it could be, which it cannot if a delta is too large.
+     */
+    private boolean compress(Context context, int index, ByteBuffer packet, int start,
+                             int headerLength, boolean tcp) {
+        final ByteBuffer reference = context.header;
+        mCompressed.clear();
+        mCompressed.put(0, (byte) 0).put(1, CONTROL_HEADER_COMPRESSED).put(2, (byte) index);
+        int o = putDelta(mCompressed, PREFIX_SIZE,
+                (packet.getShort(start + 4) - reference.getShort(4)) & 0xFFFF);
+
+        int changes = 0;
+        if (tcp) {
+            final long sequence = (packet.getInt(start + 24) - reference.getInt(24)) & 0xFFFFFFFFL;
+            final long acknowledgment =
+                    (packet.getInt(start + 28) - reference.getInt(28)) & 0xFFFFFFFFL;
+            if (sequence >= MAX_DELTA || acknowledgment >= MAX_DELTA) {
+                return false;
+            }
+            if (sequence != 0) {
+                changes |= CHANGED_SEQUENCE;
+                o = putDelta(mCompressed, o, (int) sequence);
+            }
+            if (acknowledgment != 0) {
+                changes |= CHANGED_ACKNOWLEDGMENT;
+                o = putDelta(mCompressed, o, (int) acknowledgment);
+            }
+            if (packet.getShort(start + 34) != reference.getShort(34)) {
+                changes |= CHANGED_WINDOW;
+                mCompressed.putShort(o, packet.getShort(start + 34));
+                o += 2;
+            }
+            if (packet.get(start + 33) != reference.get(33)) {
+                changes |= CHANGED_FLAGS;
+                mCompressed.put(o++, packet.get(start + 33));
+            }
+            mCompressed.putShort(o, packet.getShort(start + 36));
+            o += 2;
+            // The options, which are mostly timestamps.
+            final int options = IP_HEADER_SIZE + TCP_HEADER_SIZE;
+            copy(packet, start + options, mCompressed, o, headerLength - options);
+            o += headerLength - options;
+        } else {
+            mCompressed.putShort(o, packet.getShort(start + 26));
+            o += 2;
+        }
+        mCompressed.put(3, (byte) (context.generation << 4 | changes));
+
+        final int payload = packet.limit() - start - headerLength;
+        copy(packet, start + headerLength, mCompressed, o, payload);
+        mCompressed.limit(o + payload);
+        return true;
+    }
+
+    /**
+     * @return whether the datagram between position and limit is a refresh or a compressed
+     *         header.
+     */
+    static boolean isCompressed(ByteBuffer datagram) {
+        if (datagram.remaining() < PREFIX_SIZE || datagram.get(datagram.position()) != 0) {
+            return false;
+        }
+        final byte type = datagram.get(datagram.position() + 1);
+        return type == CONTROL_HEADER_REFRESH || type == CONTROL_HEADER_COMPRESSED;
+    }
+
+    /**
+     * Restores the packets of one compressor on the receiving side, which is the server's. It
+     * is here for the tests and the benchmarks.
+     */
+    static final class Decompressor {
+        private final Context[] mContexts = new Context[MAX_CONTEXTS];
+
+        /** Where the next field of the compressed header is read from. */
+        private int mPosition;
+
+        Decompressor() {
+            for (int i = 0; i < MAX_CONTEXTS; ++i) {
+                mContexts[i] = new Context();
+            }
+        }
+
+        /**
+         * Restores a refresh or a compressed header into {@code out}, which is cleared and
+         * then flipped.
+         *
+         * @return whether there is a packet, which there is not if it was compressed against a
+         *         refresh that never arrived.
+         * @throws IOException if the datagram is malformed or the packet does not fit.
+         */
+        boolean decompress(ByteBuffer datagram, ByteBuffer out) throws IOException {
+            final int start = datagram.position();
+            final int end = datagram.limit();
+            if (!isCompressed(datagram)) {
+                throw new IOException("Not a compressed header");
+            }
+            final int index = datagram.get(start + 2) & 0xFF;
+            if (index >= MAX_CONTEXTS) {
+                throw new IOException("Bad header context");
+            }
+            final Context context = mContexts[index];
+            final ByteBuffer reference = context.header;
+            final int info = datagram.get(start + 3) & 0xFF;
+            out.clear();
+
+            if (datagram.get(start + 1) == CONTROL_HEADER_REFRESH) {
+                // A repeat carries the reference ahead of the packet; a refresh is both.
+                final int referenceLength = (info & REPEAT) != 0
+                        ? getReferenceLength(datagram, start + PREFIX_SIZE, end) : 0;
+                final int offset = start + PREFIX_SIZE + referenceLength;
+                final int length = end - offset;
+                final int headerLength = getHeaderLength(datagram, offset, length);
+                if (referenceLength < 0 || headerLength < 0 || length > out.capacity()) {
+                    throw new IOException("Bad header refresh");
+                }
+                context.generation = info & 0x0F;
+                context.packets = 0;
+                if (referenceLength > 0) {
+                    context.headerLength = referenceLength;
+                    copy(datagram, start + PREFIX_SIZE, reference, 0, referenceLength);
+                } else {
+                    context.headerLength = headerLength;
+                    copy(datagram, offset, reference, 0, headerLength);
+                }
+                copy(datagram, offset, out, 0, length);
+                out.limit(length);
+                return true;
+            }
+
+            if (context.packets < 0 || info >>> 4 != context.generation) {
+                return false;
+            }
+            final int headerLength = context.headerLength;
+            if (headerLength > out.capacity()) {
+                throw new IOException("Bad compressed header");
+            }
+            copy(reference, 0, out, 0, headerLength);
+
+            mPosition = start + PREFIX_SIZE;
+            out.putShort(4, (short) (reference.getShort(4) + readDelta(datagram, end)));
+            if (reference.get(9) == PROTOCOL_TCP) {
+                if ((info & CHANGED_SEQUENCE) != 0) {
+                    out.putInt(24, reference.getInt(24) + readDelta(datagram, end));
+                }
+                if ((info & CHANGED_ACKNOWLEDGMENT) != 0) {
+                    out.putInt(28, reference.getInt(28) + readDelta(datagram, end));
+                }
+                if ((info & CHANGED_WINDOW) != 0) {
+                    out.putShort(34, datagram.getShort(take(2, end)));
+                }
+                if ((info & CHANGED_FLAGS) != 0) {
+                    out.put(33, datagram.get(take(1, end)));
+                }
+                out.putShort(36, datagram.getShort(take(2, end)));
+                final int options = IP_HEADER_SIZE + TCP_HEADER_SIZE;
+                copy(datagram, take(headerLength - options, end), out, options,
+                        headerLength - options);
+            } else {
+                out.putShort(26, datagram.getShort(take(2, end)));
+            }
+
+            final int payload = end - mPosition;
+            final int length = headerLength + payload;
+            if (length > out.capacity()) {
+                throw new IOException("Bad compressed header");
+            }
+            copy(datagram, mPosition, out, headerLength, payload);
+            if (reference.get(9) == PROTOCOL_UDP) {
+                out.putShort(24, (short) (length - IP_HEADER_SIZE));
+            }
+            out.putShort(2, (short) length);
+            out.putShort(10, (short) 0);
+            out.putShort(10, (short) getChecksum(out, 0, IP_HEADER_SIZE));
+            out.limit(length);
+            return true;
+        }
+
+        /** @return where the next {@code size} bytes of the compressed header are. */
+        private int take(int size, int end) throws IOException {
+            if (mPosition + size > end) {
+                throw new IOException("Truncated compressed header");
+            }
+            final int position = mPosition;
+            mPosition += size;
+            return position;
+        }
+
+        private int readDelta(ByteBuffer datagram, int end) throws IOException {
+            int delta = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                final int b = datagram.get(take(1, end));
+                delta |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return delta;
+                }
+            }
+            throw new IOException("Bad compressed header");
+        }
+    }
+
+    /**
+     * @return the length of the IP and TCP or UDP headers of a packet that can be compressed,
+     *         or -1 if it cannot.
+     */
+    private static int getHeaderLength(ByteBuffer packet, int start, int length) {
+        if (length < IP_HEADER_SIZE + UDP_HEADER_SIZE || length > MAX_LENGTH
+                || packet.get(start) != 0x45
+                || (packet.getShort(start + 2) & 0xFFFF) != length
+                // More fragments or a fragment offset.
+                || (packet.getShort(start + 6) & 0x3FFF) != 0) {
+            return -1;
+        }
+        switch (packet.get(start + 9)) {
+            case PROTOCOL_TCP:
+                if (length < IP_HEADER_SIZE + TCP_HEADER_SIZE) {
+                    return -1;
+                }
+                final int headerLength = IP_HEADER_SIZE
+                        + ((packet.get(start + 32) >> 4) & 0x0F) * 4;
+                return headerLength >= IP_HEADER_SIZE + TCP_HEADER_SIZE
+                        && headerLength <= length ? headerLength : -1;
+            case PROTOCOL_UDP:
+                return (packet.getShort(start + 24) & 0xFFFF) == length - IP_HEADER_SIZE
+                        ? IP_HEADER_SIZE + UDP_HEADER_SIZE : -1;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return the length of the reference header a repeat starts with, which is no packet of
+     *         its own, or -1 if it is not one that could have been compressed against.
+     */
+    private static int getReferenceLength(ByteBuffer datagram, int start, int end) {
+        if (end - start < IP_HEADER_SIZE + UDP_HEADER_SIZE || datagram.get(start) != 0x45) {
+            return -1;
+        }
+        switch (datagram.get(start + 9)) {
+            case PROTOCOL_TCP:
+                if (end - start < IP_HEADER_SIZE + TCP_HEADER_SIZE) {
+                    return -1;
+                }
+                final int length = IP_HEADER_SIZE
+                        + ((datagram.get(start + 32) >> 4) & 0x0F) * 4;
+                return length >= IP_HEADER_SIZE + TCP_HEADER_SIZE && start + length <= end
+                        ? length : -1;
+            case PROTOCOL_UDP:
+                return IP_HEADER_SIZE + UDP_HEADER_SIZE;
+            default:
+                return -1;
+        }
+    }
+
+    private static boolean matches(Context context, ByteBuffer packet, int start,
+                                   int[] offsets) {
+        for (int offset : offsets) {
+            if (context.header.get(offset) != packet.get(start + offset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int putDelta(ByteBuffer out, int o, int delta) {
+        while ((delta & ~0x7F) != 0) {
+            out.put(o++, (byte) (delta | 0x80));
+            delta >>>= 7;
+        }
+        out.put(o++, (byte) delta);
+        return o;
+    }
+
+    private static void copy(ByteBuffer src, int srcOffset, ByteBuffer dst, int dstOffset,
+                             int length) {
+        for (int i = 0; i < length; ++i) {
+            dst.put(dstOffset + i, src.get(srcOffset + i));
+        }
+    }
+
+    /** The Internet checksum of {@code length} bytes, which is even. */
+    static int getChecksum(ByteBuffer buffer, int start, int length) {
+        int sum = 0;
+        for (int i = 0; i < length; i += 2) {
+            sum += buffer.getShort(start + i) & 0xFFFF;
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return ~sum & 0xFFFF;
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a tunnel socket needs a keepalive and when its server is gone.
+ *
+ * A ping is a control message: a zero byte, {@link #CONTROL_PING} and a 32-bit timestamp. The
+ * server echoes it with the type changed to {@link #CONTROL_PONG}, which also measures the
+ * round trip time. Servers that never answer get the old treatment: three pings every
+ * {@link #LEGACY_INTERVAL_MS}, and a fixed {@link #LEGACY_TIMEOUT_MS}.
+ *
+ * Once the server answers, keepalives only go out after {@link #getInterval()} of silence.
+ * Every idle ping that gets through proves the NAT binding survives that long, so the interval
+ * grows until a ping is lost; then it falls back to the last one known to work and stays
+ * there. Whenever traffic goes out and nothing comes back for a few round trips, or an idle
+ * ping is not answered, the scheduler switches to short probes, and declares the server gone
+ * if {@link #MAX_PROBES} of them are lost. That takes about a second instead of twenty.
+ *
+ * {@link #onSend} is called by the outgoing path; everything else belongs to the worker of
+ * the socket.
+ */
+class KeepaliveScheduler {
+    static final byte CONTROL_PING = 4;
+    static final byte CONTROL_PONG = 5;
+
+    /** Interval to start learning from; the old fixed interval plus some. */
+    static final long MIN_INTERVAL_MS = TimeUnit.SECONDS.toMillis(20);
+
+    /**
+     * Longest interval ever learned. The server gives up on silent sessions after ten, unless
+     * it said otherwise; see {@link #setMaxInterval}.
+     */
+    static final long MAX_INTERVAL_MS = TimeUnit.MINUTES.toMillis(5);
+
+    /** Time between keepalives to servers that do not answer pings. */
+    private static final long LEGACY_INTERVAL_MS = TimeUnit.SECONDS.toMillis(15);
+
+    /** Time to wait without receiving anything from such servers before giving up. */
+    private static final long LEGACY_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(20);
+
+    /** Shortest silence, after sending traffic, that makes us suspect the server is gone. */
+    private static final long MIN_SUSPECT_MS = TimeUnit.MILLISECONDS.toMillis(500);
+
+    /** Shortest time between two probes. */
+    private static final long MIN_PROBE_INTERVAL_MS = TimeUnit.MILLISECONDS.toMillis(200);
+
+    /** Number of probes in a row that must be lost to declare the server gone. */
+    private static final int MAX_PROBES = 4;
+
+    private static final int PING_SIZE = 6;
+
+    private final WritableByteChannel mTunnel;
+    private final ByteBuffer mPing = ByteBuffer.allocateDirect(PING_SIZE);
+
+    /** Written by the outgoing path. Anything sent refreshes the NAT binding. */
+    private volatile long mLastSendTime;
+    /** Written by the outgoing path. Only traffic expects an answer. */
+    private volatile long mLastDataSendTime;
+
+    private long mLastReceiveTime;
+    private boolean mSupported;
+
+    private long mInterval;
+    private long mMaxInterval = MAX_INTERVAL_MS;
+    private long mLastGoodInterval;
+    private boolean mIntervalFound;
+
+    /** Smoothed round trip time, or 0 before the first pong. */
+    private long mSrtt;
+    /** Round trip time of the last pong. */
+    private long mLastRtt;
+
+    /** Unanswered probes so far, or 0 if we are not probing. */
+    private int mProbes;
+    private long mNextProbeTime;
+    /** Silence before the current probes started, if they started as an idle keepalive. */
+    private long mIdleTime;
+
+    /**
+     * @param intervalMs the keepalive interval learned so far, as returned by
+     *                   {@link #getInterval()}, or 0 to start learning from scratch.
+     * @param intervalFound whether that interval is final, as returned by
+     *                      {@link #isIntervalFound()}.
+     */
+    KeepaliveScheduler(WritableByteChannel tunnel, long intervalMs, boolean intervalFound) {
+        mTunnel = tunnel;
+        mInterval = Math.max(intervalMs, MIN_INTERVAL_MS);
+        mLastGoodInterval = intervalFound ? mInterval : MIN_INTERVAL_MS;
+        mIntervalFound = intervalFound;
+    }
+
+    /**
+     * Keeps the interval at most this long, for servers that give up on silent sessions sooner
+     * than usual. It never goes below {@link #MIN_INTERVAL_MS} all the same.
+     */
+    void setMaxInterval(long maxIntervalMs) {
+        mMaxInterval = Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, maxIntervalMs));
+        mInterval = Math.min(mInterval, mMaxInterval);
+        mLastGoodInterval = Math.min(mLastGoodInterval, mMaxInterval);
+    }
+
+    /** Sends the first ping, which finds out whether the server answers them. */
+    void start(long now) throws IOException {
+        mLastReceiveTime = now;
+        mLastDataSendTime = now;
+        sendPing(now);
+    }
+
+    /** The keepalive interval learned so far, worth keeping for the next session. */
+    long getInterval() {
+        return mInterval;
+    }
+
+    /** Whether a keepalive was lost, so the interval stopped growing. */
+    boolean isIntervalFound() {
+        return mIntervalFound;
+    }
+
+    /** Smoothed round trip time to the server, or 0 if not known yet. */
+    long getRtt() {
+        return mSrtt;
+    }
+
+    /** Round trip time measured by the last pong, as {@link #onControl} saw it. */
+    long getLastRtt() {
+        return mLastRtt;
+    }
+
+    /** Sends a ping off schedule, for whoever else measures the path with its pong. */
+    void ping(long now) throws IOException {
+        sendPing(now);
+    }
+
+    /**
+     * Starts over as if the server had just answered, after the owner of the socket decided
+     * to keep it although it timed out.
+     */
+    void restart(long now) throws IOException {
+        mProbes = 0;
+        mIdleTime = 0;
+        start(now);
+    }
+
+    /** Called by the outgoing path whenever traffic goes out. */
+    void onSend(long now) {
+        mLastSendTime = now;
+        mLastDataSendTime = now;
+    }
+
+    /** Called whenever anything at all arrives, pongs included. */
+    void onReceive(long now) {
+        mLastReceiveTime = now;
+        if (mProbes > 0) {
+            // The server is alive after all. If we were probing after a silence, the NAT
+            // binding survived it too.
+            if (mIdleTime > 0) {
+                learnSuccess(mIdleTime);
+            }
+            mProbes = 0;
+            mIdleTime = 0;
+        }
+    }
+
+    /**
+     * Handles a control message.
+     *
+     * @param datagram the message between its position and limit, which are left untouched.
+     * @return whether the message was a pong.
+     */
+    boolean onControl(ByteBuffer datagram, long now) {
+        final int start = datagram.position();
+        if (datagram.remaining() < PING_SIZE || datagram.get(start) != 0
+                || datagram.get(start + 1) != CONTROL_PONG) {
+            return false;
+        }
+        mSupported = true;
+
+        final long rtt = (int) now - datagram.getInt(start + 2) & 0xFFFFFFFFL;
+        if (rtt < LEGACY_TIMEOUT_MS) {
+            mSrtt = mSrtt == 0 ? rtt : (7 * mSrtt + rtt) / 8;
+            mLastRtt = rtt;
+        }
+        return true;
+    }
+
+    /**
+     * @return when {@link #onTimer} has something to do.
+     */
+    long getDeadline() {
+        if (mProbes > 0) {
+            return mNextProbeTime;
+        }
+        if (!mSupported) {
+            return Math.min(mLastSendTime + LEGACY_INTERVAL_MS,
+                    mLastReceiveTime + LEGACY_TIMEOUT_MS);
+        }
+        long deadline = mLastSendTime + mInterval;
+        if (mLastDataSendTime > mLastReceiveTime) {
+            deadline = Math.min(deadline, mLastReceiveTime + getSuspectTime());
+        }
+        return deadline;
+    }
+
+    /**
+     * Sends whatever keepalive or probe is due.
+     *
+     * @return how many pings were sent.
+     * @throws SocketException if the server is gone.
+     */
+    int onTimer(long now) throws IOException {
+        if (!mSupported) {
+            if (mLastReceiveTime + LEGACY_TIMEOUT_MS <= now) {
+                throw new SocketException("Timed out");
+            }
+            if (mLastSendTime + LEGACY_INTERVAL_MS <= now) {
+                for (int i = 0; i < 3; ++i) {
+                    sendPing(now);
+                }
+                return 3;
+            }
+            return 0;
+        }
+
+        if (mProbes > 0) {
+            if (now < mNextProbeTime) {
+                return 0;
+            }
+            if (mProbes > MAX_PROBES) {
+                if (mIdleTime > 0) {
+                    learnFailure();
+                }
+                throw new SocketException("Timed out");
+            }
+            probe(now);
+        } else if (mLastDataSendTime > mLastReceiveTime
+                && mLastReceiveTime + getSuspectTime() <= now) {
+            // Traffic goes out but nothing comes back.
+            mIdleTime = 0;
+            probe(now);
+        } else if (mLastSendTime + mInterval <= now) {
+            // The keepalive doubles as the first probe.
+            mIdleTime = now - mLastSendTime;
+            probe(now);
+        } else {
+            return 0;
+        }
+        return 1;
+    }
+
+    private long getSuspectTime() {
+        return Math.max(MIN_SUSPECT_MS, 4 * mSrtt);
+    }
+
+    private void probe(long now) throws IOException {
+        ++mProbes;
+        mNextProbeTime = now + Math.max(MIN_PROBE_INTERVAL_MS, 2 * mSrtt);
+        sendPing(now);
+    }
+
+    private void learnSuccess(long idleTime) {
+        if (idleTime < mInterval) {
+            return;
+        }
+        mLastGoodInterval = mInterval;
+        if (!mIntervalFound) {
+            mInterval = Math.min(mMaxInterval, mInterval + mInterval / 2);
+        }
+    }
+
+    private void learnFailure() {
+        // Either the binding expired or the server is gone; assume the worst.
+        mInterval = Math.max(MIN_INTERVAL_MS, mLastGoodInterval);
+        mIntervalFound = true;
+    }
+
+    private void sendPing(long now) throws IOException {
+        mPing.clear();
+        mPing.put((byte) 0).put(CONTROL_PING).putInt((int) now).flip();
+        mTunnel.write(mPing);
+        mLastSendTime = now;
+    }
+}
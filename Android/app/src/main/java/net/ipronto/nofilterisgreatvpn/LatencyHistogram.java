@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in logarithmic buckets, like HdrHistogram does, so recording is a couple of
+ * shifts and one atomic increment whatever the range.
+ *
+ * Values below {@link #LINEAR_BUCKETS} get a bucket each. Above that, every power of two is
+ * split into eight buckets, so a bucket is never wider than an eighth of its values and
+ * percentiles are off by at most 12.5%. Values beyond {@link #MAX_VALUE} land in the last
+ * bucket. Any thread can record; snapshots are not atomic, but every count in them is.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+
+    /** Highest power of two with buckets of its own, which puts the last one at 2^40. */
+    private static final int MAX_EXPONENT = 40;
+    static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private static final int BUCKETS = getIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mMax = new AtomicLong();
+
+    /** Records one value, which must not be negative. */
+    void record(long value) {
+        mCounts.incrementAndGet(getIndex(Math.min(Math.max(value, 0), MAX_VALUE)));
+
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    Snapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = mCounts.get(i);
+        }
+        return new Snapshot(counts, mMax.get());
+    }
+
+    /** A copy of the counts at one point in time. */
+    static final class Snapshot {
+        private final long[] mCounts;
+        private final long mMax;
+        private final long mCount;
+
+        private Snapshot(long[] counts, long max) {
+            mCounts = counts;
+            mMax = max;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            mCount = count;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @param percentile between 0 and 100.
+         * @return a value at least as large as {@code percentile} percent of those recorded,
+         *         and at most 12.5% larger than it needs to be, or 0 if nothing was recorded.
+         */
+        long getPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; ++i) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(getHighestValue(i), mMax);
+                }
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return "count " + mCount + ", p50 " + getPercentile(50) + ", p99 "
+                    + getPercentile(99) + ", max " + mMax;
+        }
+    }
+
+    static int getIndex(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        // The top four bits of the value pick the bucket within its power of two.
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /** The largest value that lands in a bucket. */
+    static long getHighestValue(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -3,13 +3,28 @@ package net.ipronto.nofilterisgreatvpn;
 import android.app.Activity;
 import android.app.Application;
 
+import java.io.File;
+
 /**
  * Created by roozbeh on 1/3/18.
  */
 
 public class MyApp extends Application {
+    private static final String SERVERS_URL =
+            "https://s3.eu-central-1.amazonaws.com/nofiltervpn/config.json";
+
+    private ServerDirectory mServerDirectory;
+
     public void onCreate() {
         super.onCreate();
+
+        // Get the server list going before any activity asks for it.
+        mServerDirectory = new ServerDirectory(new File(getFilesDir(), "servers"), SERVERS_URL);
+        mServerDirectory.start();
+    }
+
+    public ServerDirectory getServerDirectory() {
+        return mServerDirectory;
     }
 
     private Activity mCurrentActivity = null;
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The networks a bonded tunnel spreads its sockets across, such as Wi-Fi and cellular at the
+ * same time.
+ *
+ * Android tears cellular down a little after Wi-Fi comes up, unless an app asks for it, so this
+ * asks for it for as long as it is open. Sockets are then bound to a network each, which takes
+ * Lollipop MR1; before that, and with a single network, every socket takes the default one and
+ * bonding comes down to striping.
+ */
+class NetworkPaths {
+    private static final String TAG = "NetworkPaths";
+
+    private final ConnectivityManager mConnectivity;
+    private ConnectivityManager.NetworkCallback mCallback;
+
+    NetworkPaths(Context context) {
+        mConnectivity = (ConnectivityManager) context.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+    }
+
+    /** @return whether sockets can be bound to a network of their own on this device. */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1;
+    }
+
+    /** Keeps cellular up, even while there is Wi-Fi, till {@link #close()}. */
+    void open() {
+        if (!isSupported() || mCallback != null) {
+            return;
+        }
+        mCallback = new ConnectivityManager.NetworkCallback();
+        mConnectivity.requestNetwork(new NetworkRequest.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_CELLULAR)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build(), mCallback);
+    }
+
+    void close() {
+        if (mCallback != null) {
+            mConnectivity.unregisterNetworkCallback(mCallback);
+            mCallback = null;
+        }
+    }
+
+    /**
+     * @return the networks that reach the Internet other than through a VPN, Wi-Fi first since
+     *         it is usually the default one the handshake took. Empty if sockets cannot be
+     *         bound.
+     */
+    List<Network> getNetworks() {
+        final List<Network> networks = new ArrayList<>();
+        if (!isSupported()) {
+            return networks;
+        }
+        for (Network network : mConnectivity.getAllNetworks()) {
+            final NetworkCapabilities capabilities = mConnectivity.getNetworkCapabilities(network);
+            if (capabilities == null
+                    || !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    || !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)) {
+                continue;
+            }
+            if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+                networks.add(0, network);
+            } else {
+                networks.add(network);
+            }
+        }
+        return networks;
+    }
+
+    /**
+     * Sends what goes through {@code channel} over {@code network}, whatever the default one
+     * is. This must be called before it is connected.
+     */
+    static void bind(DatagramChannel channel, Network network) throws IOException {
+        if (isSupported()) {
+            network.bindSocket(channel.socket());
+        } else {
+            Log.w(TAG, "Cannot bind sockets to a network");
+        }
+    }
+}
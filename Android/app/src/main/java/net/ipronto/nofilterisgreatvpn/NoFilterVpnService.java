@@ -21,43 +21,84 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.content.Intent;
 import android.net.VpnService;
+import android.os.Binder;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
-import android.util.Pair;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class NoFilterVpnService extends android.net.VpnService implements Handler.Callback {
     private static final String TAG = "VpnConnection";
 
     public static final String ACTION_CONNECT = "com.example.android.toyvpn.START";
     public static final String ACTION_DISCONNECT = "com.example.android.toyvpn.STOP";
+    /** Writes what was captured to capture.pcap in the cache directory of the app. */
+    public static final String ACTION_EXPORT_CAPTURE = "com.example.android.toyvpn.EXPORT_CAPTURE";
+
+    /** Shows the state the connection is in now, however many changes it went through. */
+    private static final int MSG_UPDATE_STATUS = 1;
 
     private Handler mHandler;
 
-    private static class Connection extends Pair<Thread, ParcelFileDescriptor> {
-        public Connection(Thread thread, ParcelFileDescriptor pfd) {
-            super(thread, pfd);
+    /** Whether an update of the status is posted and not shown yet. */
+    private final AtomicBoolean mStatusUpdatePending = new AtomicBoolean();
+    /** The state the notification and the activity show; only used on the main thread. */
+    private ConnectionStateMachine.State mShownState = ConnectionStateMachine.State.DISCONNECTED;
+    private Toast mToast;
+
+    /** Runs the connections, one after the other on a thread of their own. */
+    private ConnectionStateMachine mStateMachine;
+
+    /** Shared by every connection, so reconnecting to a server is faster the second time. */
+    private final SessionCache mSessionCache = new SessionCache();
+
+    /** Counts what goes through the tunnel, across connections. */
+    private final TunnelMetrics mMetrics = new TunnelMetrics();
+
+    /** Keeps the last packets that went through, across connections, if it is turned on. */
+    private final PacketCapture mCapture = new PacketCapture(PacketCapture.DEFAULT_SLOTS,
+            PacketCapture.DEFAULT_SNAP_LENGTH);
+
+    /** Spaces out reconnects, including those that start a new connection. */
+    private ReconnectScheduler mReconnectScheduler;
+
+    /** A server to connect to, copied so that later changes to the selection do not show. */
+    private static final class Target {
+        final String server;
+        final int port;
+        final byte[] secret;
+
+        Target(String server, int port, byte[] secret) {
+            this.server = server;
+            this.port = port;
+            this.secret = secret;
         }
     }
 
-    private final AtomicReference<Thread> mConnectingThread = new AtomicReference<>();
-    private final AtomicReference<Connection> mConnection = new AtomicReference<>();
-
-    private AtomicInteger mNextConnectionId = new AtomicInteger(1);
+    /**
+     * The server selected when the connection was last asked for, or {@code null} if there is
+     * none. Set on the main thread and read by the connections, which the state machine creates
+     * on its own thread after a failure.
+     */
+    private volatile Target mTarget;
 
     private PendingIntent mConfigureIntent;
 
-    boolean disconnect_requested;
-
     @Override
     public void onCreate() {
-        // The handler is only used to show messages.
+        // The handler is only used to show the status.
         if (mHandler == null) {
             mHandler = new Handler(this);
         }
@@ -66,44 +107,174 @@ public class NoFilterVpnService extends android.net.VpnService implements Handle
         mConfigureIntent = PendingIntent.getActivity(this, 0, new Intent(this, VpnClient.class),
                 PendingIntent.FLAG_UPDATE_CURRENT);
 
+        setUpCapture();
+
+        mReconnectScheduler = new ReconnectScheduler(ReconnectScheduler.SYSTEM_CLOCK,
+                new ReconnectScheduler.SystemConnectivity(this), new Random());
+        mReconnectScheduler.start();
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "ToyVpnThread");
+            }
+        });
+        mStateMachine = new ConnectionStateMachine(executor,
+                new ConnectionStateMachine.Connector() {
+                    @Override
+                    public Runnable newConnection(int generation) {
+                        return createConnection(generation);
+                    }
+                });
+        mStateMachine.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(ConnectionStateMachine.State state) {
+                // However many changes come in before the main thread gets to it, it shows the
+                // last one once.
+                if (mStatusUpdatePending.compareAndSet(false, true)) {
+                    mHandler.sendEmptyMessage(MSG_UPDATE_STATUS);
+                }
+            }
+        });
     }
 
 
+    /** Hands the service to activities of the app that bind to it. */
+    public class LocalBinder extends Binder {
+        public NoFilterVpnService getService() {
+            return NoFilterVpnService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        // The system binds with this action to manage the VPN, and must get what it expects.
+        if (intent != null && SERVICE_INTERFACE.equals(intent.getAction())) {
+            return super.onBind(intent);
+        }
+        return mBinder;
+    }
+
+    /**
+     * @return the counters of the tunnel as of now. This only reads them, so it can be called
+     *         as often as the caller likes, from any thread.
+     */
+    public TunnelMetrics.Snapshot getMetrics() {
+        return mMetrics.snapshot();
+    }
+
+    /**
+     * Writes the packets captured so far as a pcap file, while capturing goes on. This takes
+     * about as long as writing a megabyte, so it should not be called on the main thread.
+     *
+     * @return the number of packets written.
+     */
+    public int exportCapture(OutputStream out) throws IOException {
+        return mCapture.writePcap(out);
+    }
+
+    /** Turns the capture on if a filter is configured, "all" taking every packet. */
+    private void setUpCapture() {
+        final String filter = getString(R.string.capture_filter);
+        if ("off".equals(filter)) {
+            return;
+        }
+        try {
+            mCapture.setFilter("all".equals(filter) ? null : PacketCapture.Filter.parse(filter));
+            mCapture.setSampling(Integer.parseInt(getString(R.string.capture_sampling)));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Bad capture settings, not capturing", e);
+            return;
+        }
+        mCapture.setEnabled(true);
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent != null && ACTION_DISCONNECT.equals(intent.getAction())) {
-            disconnect_requested = true;
-            disconnect();
+            mStateMachine.disconnect();
+            return START_NOT_STICKY;
+        } else if (intent != null && ACTION_EXPORT_CAPTURE.equals(intent.getAction())) {
+            final File file = new File(getCacheDir(), "capture.pcap");
+            new Thread("ToyVpnCaptureThread") {
+                @Override
+                public void run() {
+                    try {
+                        final OutputStream out = new FileOutputStream(file);
+                        try {
+                            Log.i(TAG, "Exported " + exportCapture(out) + " packets to " + file);
+                        } finally {
+                            out.close();
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not export the capture", e);
+                    }
+                }
+            }.start();
             return START_NOT_STICKY;
         } else {
-            disconnect_requested = false;
-            connect();
+            // Whoever asked for it wants it now, not after the backoff.
+            mReconnectScheduler.reset();
+            mTarget = selectTarget();
+            mStateMachine.connect();
             return START_STICKY;
         }
     }
 
     @Override
     public void onDestroy() {
-        disconnect();
+        mReconnectScheduler.stop();
+        mStateMachine.shutdown();
+        mHandler.removeMessages(MSG_UPDATE_STATUS);
+        stopForeground(true);
     }
 
     @Override
     public boolean handleMessage(Message message) {
-        Log.i(TAG, "handleMessage: " + getString(message.what) + ", disconnect_requested: " + disconnect_requested);
-        if (message.what == R.string.disconnected && !disconnect_requested) {
-            Log.i(TAG, "Reconnecting . . .");
-            connect();
+        if (message.what != MSG_UPDATE_STATUS) {
+            return false;
+        }
+        mStatusUpdatePending.set(false);
+        final ConnectionStateMachine.State state = mStateMachine.getState();
+        if (state == mShownState) {
             return true;
         }
+        mShownState = state;
+        Log.i(TAG, "State: " + state);
+
+        final int status;
+        switch (state) {
+            case CONNECTING:
+                status = R.string.connecting;
+                break;
+            case CONNECTED:
+                status = R.string.connected;
+                break;
+            default:
+                status = R.string.disconnected;
+                break;
+        }
+
+        // One toast at a time, so they do not pile up when the state keeps changing.
+        if (mToast != null) {
+            mToast.cancel();
+        }
+        mToast = Toast.makeText(this, status, Toast.LENGTH_SHORT);
+        mToast.show();
 
-        Toast.makeText(this, message.what, Toast.LENGTH_SHORT).show();
-        if (message.what != R.string.disconnected) {
-            updateForegroundNotification(message.what);
+        // Become a foreground service. Background services can be VPN services too, but they
+        // can be killed by background check before getting a chance to receive onRevoke().
+        if (state == ConnectionStateMachine.State.DISCONNECTED) {
+            stopForeground(true);
+        } else {
+            updateForegroundNotification(status);
         }
 
         Activity currentActivity = ((MyApp)this.getApplicationContext()).getCurrentActivity();
         if (currentActivity != null) {
-            ((VpnClient) currentActivity).handleMessage(message);
+            ((VpnClient) currentActivity).showStatus(status);
         } else {
             Log.e(TAG, "Could not find activity object");
         }
@@ -111,88 +282,66 @@ public class NoFilterVpnService extends android.net.VpnService implements Handle
         return true;
     }
 
-    String server;
-    byte[] secret;
-    int port;
-
-    private void connect() {
-        // Become a foreground service. Background services can be VPN services too, but they can
-        // be killed by background check before getting a chance to receive onRevoke().
-        updateForegroundNotification(R.string.connecting);
-        mHandler.sendEmptyMessage(R.string.connecting);
-
-        Activity currentActivity = ((MyApp)this.getApplicationContext()).getCurrentActivity();
-        VpnClient client = ((VpnClient) currentActivity);
-        if (client != null) {
-            server = client.getSelectedServer().address;
-            secret = client.getSelectedServer().secret.getBytes();
-            port = client.getSelectedServer().port;
-
-        } else {
-            server = getString(R.string.connection_address);
-            secret = getString(R.string.connection_secret).getBytes();
-            try {
-                port = Integer.parseInt(getString(R.string.connection_port));
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Bad port: " + getString(R.string.connection_port), e);
-                return;
-            }
+    /**
+     * @return the server selected in the activity, or the configured one if there is no
+     *         activity, or {@code null} if the configured one is no good. This runs on the
+     *         main thread, which is the one the activity changes its selection on.
+     */
+    private Target selectTarget() {
+        final VpnClient client = (VpnClient) ((MyApp) getApplicationContext()).getCurrentActivity();
+        final ServerData selected = client != null ? client.getSelectedServer() : null;
+        if (selected != null) {
+            return new Target(selected.address, selected.port, selected.secret.getBytes());
         }
+        try {
+            return new Target(getString(R.string.connection_address),
+                    Integer.parseInt(getString(R.string.connection_port)),
+                    getString(R.string.connection_secret).getBytes());
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Bad port: " + getString(R.string.connection_port), e);
+            return null;
+        }
+    }
 
+    /** Creates the connection of a generation, to the server selected when it was asked for. */
+    private Runnable createConnection(final int generation) {
+        // Read once, since a connect on the main thread may replace it meanwhile.
+        final Target target = mTarget;
+        if (target == null) {
+            // There is nothing to connect to, so give up instead of trying again.
+            return new Runnable() {
+                @Override
+                public void run() {
+                    mStateMachine.disconnect();
+                }
+            };
+        }
 
         // Extract information from the shared preferences.
 //        final SharedPreferences prefs = getSharedPreferences(VpnClient.Prefs.NAME, MODE_PRIVATE);
 
-        // Kick off a connection.
-        startConnection(new VpnConnection(
-                this, mNextConnectionId.getAndIncrement(), server, port, secret));
-    }
-
-    private void startConnection(final VpnConnection connection) {
-        // Replace any existing connecting thread with the  new one.
-        final Thread thread = new Thread(connection, "ToyVpnThread");
-        setConnectingThread(thread);
-
-        // Handler to mark as connected once onEstablish is called.
+        final VpnConnection connection = new VpnConnection(this, generation, target.server,
+                target.port, target.secret);
         connection.setConfigureIntent(mConfigureIntent);
+        connection.setSessionCache(mSessionCache);
+        connection.setReconnectScheduler(mReconnectScheduler);
+        connection.setMetrics(mMetrics);
+        connection.setCapture(mCapture);
+        final String bonding = getString(R.string.connection_bonding);
+        connection.setBonding(!"off".equals(bonding), "redundant".equals(bonding));
         connection.setOnEstablishListener(new VpnConnection.OnEstablishListener() {
             public void onEstablish(ParcelFileDescriptor tunInterface) {
-                mHandler.sendEmptyMessage(R.string.connected);
-
-                mConnectingThread.compareAndSet(thread, null);
-                setConnection(new Connection(thread, tunInterface));
+                mStateMachine.onEstablished(generation);
             }
             public void onDisconnected() {
-                mHandler.sendEmptyMessage(R.string.disconnected);
+                // The state machine starts the next connection once this one returns, which
+                // waits for the scheduler, so a connection that keeps failing does not turn
+                // into a tight loop.
+                Log.i(TAG, "Reconnecting . . .");
+                mReconnectScheduler.onFailure();
             }
         });
-        thread.start();
-    }
-
-    private void setConnectingThread(final Thread thread) {
-        final Thread oldThread = mConnectingThread.getAndSet(thread);
-        if (oldThread != null) {
-            oldThread.interrupt();
-        }
-    }
-
-    private void setConnection(final Connection connection) {
-        final Connection oldConnection = mConnection.getAndSet(connection);
-        if (oldConnection != null) {
-            try {
-                oldConnection.first.interrupt();
-                oldConnection.second.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Closing VPN interface", e);
-            }
-        }
-    }
-
-    private void disconnect() {
-        mHandler.sendEmptyMessage(R.string.disconnected);
-        setConnectingThread(null);
-        setConnection(null);
-        stopForeground(true);
+        return connection;
     }
 
     private void updateForegroundNotification(final int message) {
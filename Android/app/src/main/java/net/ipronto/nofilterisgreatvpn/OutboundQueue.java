@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads outgoing packets from the VPN interface for as long as it lives, across sessions.
+ *
+ * While a session is up, every packet goes straight to its {@link Sink}. In between, packets
+ * wait in a bounded queue and go out first once the next session attaches, so a reconnect
+ * only stalls the apps instead of tearing their connections down. When the queue is full the
+ * oldest packet is dropped: it is the one most likely to have been sent again already.
+ *
+ * There is a single reader, so blocking reads of the interface never race with one another,
+ * and no packet gets stuck in a thread that belonged to an old session.
+ */
+class OutboundQueue implements Runnable {
+    private static final String TAG = "OutboundQueue";
+
+    /** Where packets go while a session is up. */
+    interface Sink {
+        /** Sends a packet without blocking. The packet is only valid during the call. */
+        void send(ByteBuffer packet);
+
+        /**
+         * Called once the interface can no longer be read, so no packet will come again: on the
+         * reading thread if the sink is attached then, or on attaching if it already happened.
+         */
+        void onFailed(IOException e);
+    }
+
+    /** Packets kept while no session is up; about a second of a modest flow. */
+    static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * Time between polling the VPN interface when it is non-blocking, which only happens on
+     * devices that cannot call {@code Builder.setBlocking()}.
+     */
+    private static final long LEGACY_IDLE_INTERVAL_MS = TimeUnit.MILLISECONDS.toMillis(20);
+
+    private final ReadableByteChannel mIn;
+    private final ByteBuffer mPacket;
+
+    /** A ring of packets, oldest at {@link #mHead}. */
+    private final ByteBuffer[] mQueue;
+    private int mHead;
+    private int mCount;
+    private long mDropped;
+
+    private Sink mSink;
+    /** Why the interface could no longer be read, or {@code null} if it still can. */
+    private IOException mFailure;
+    private volatile boolean mClosed;
+    private TunnelMetrics mMetrics = new TunnelMetrics();
+
+    /**
+     * @param in the interface. It should be blocking.
+     * @param packetSize the largest packet the interface hands out.
+     */
+    OutboundQueue(ReadableByteChannel in, int capacity, int packetSize) {
+        mIn = in;
+        mPacket = ByteBuffer.allocateDirect(packetSize);
+        mQueue = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            mQueue[i] = ByteBuffer.allocateDirect(packetSize);
+        }
+    }
+
+    /**
+     * Optionally, count dropped packets into metrics shared with others. This must be called
+     * before {@link #start}.
+     */
+    void setMetrics(TunnelMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /** Starts reading on a thread of its own. */
+    void start(String name) {
+        final Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops reading. The thread only notices once its current read returns, which happens at
+     * the latest when the interface is closed.
+     */
+    void close() {
+        mClosed = true;
+        detach();
+    }
+
+    /** Sends whatever is queued to {@code sink}, in order, and every packet after it. */
+    synchronized void attach(Sink sink) {
+        if (mDropped > 0) {
+            Log.i(TAG, "Dropped " + mDropped + " packets while reconnecting");
+            mDropped = 0;
+        }
+        while (mCount > 0) {
+            final ByteBuffer packet = mQueue[mHead];
+            mHead = (mHead + 1) % mQueue.length;
+            --mCount;
+            sink.send(packet);
+        }
+        mSink = sink;
+        if (mFailure != null) {
+            sink.onFailed(mFailure);
+        }
+    }
+
+    /** Keeps packets in the queue from now on. */
+    synchronized void detach() {
+        mSink = null;
+    }
+
+    synchronized int size() {
+        return mCount;
+    }
+
+    /** @return whether the interface could no longer be read, so it should be replaced. */
+    synchronized boolean isFailed() {
+        return mFailure != null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!mClosed) {
+                if (!forwardPacket()) {
+                    // Interfaces established before Lollipop cannot be made blocking.
+                    Thread.sleep(LEGACY_IDLE_INTERVAL_MS);
+                }
+            }
+        } catch (InterruptedException e) {
+            // We are being torn down.
+        } catch (IOException e) {
+            if (!mClosed) {
+                Log.e(TAG, "Cannot read the interface", e);
+                onFailed(e);
+            }
+        }
+    }
+
+    /** Lets the session know, now or once one attaches, since nothing goes out any more. */
+    private synchronized void onFailed(IOException e) {
+        mFailure = e;
+        if (mSink != null) {
+            mSink.onFailed(e);
+        }
+    }
+
+    /**
+     * Reads one packet from the interface and sends or queues it. This blocks if the interface
+     * does.
+     *
+     * @return whether a packet was read.
+     */
+    boolean forwardPacket() throws IOException {
+        mPacket.clear();
+        final int length = mIn.read(mPacket);
+        if (length < 0) {
+            throw new IOException("Interface closed");
+        }
+        if (length == 0) {
+            return false;
+        }
+        mPacket.flip();
+        offer(mPacket);
+        return true;
+    }
+
+    private synchronized void offer(ByteBuffer packet) {
+        if (mSink != null) {
+            mSink.send(packet);
+            return;
+        }
+        if (mCount == mQueue.length) {
+            mHead = (mHead + 1) % mQueue.length;
+            --mCount;
+            ++mDropped;
+            mMetrics.onPacketDropped();
+        }
+        final ByteBuffer slot = mQueue[(mHead + mCount) % mQueue.length];
+        slot.clear();
+        slot.put(packet).flip();
+        ++mCount;
+    }
+}
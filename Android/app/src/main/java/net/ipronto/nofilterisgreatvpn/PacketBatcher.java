@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Packs small outgoing packets into a single datagram.
+ *
+ * A batch is a control message: a zero byte, {@link #CONTROL_BATCH}, then each packet
+ * preceded by its length as an unsigned 16-bit big-endian integer. The batch goes out when the
+ * next packet would not fit or when its deadline passes, whichever comes first. Packets too
+ * large to share a datagram are sent on their own, after whatever was batched before them,
+ * so the order of packets is preserved.
+ *
+ * The outgoing path adds packets and the timer thread flushes them, so every method that
+ * touches the pending batch is synchronized.
+ */
+class PacketBatcher {
+    /** Control message type of a batch, following the leading zero byte. */
+    static final byte CONTROL_BATCH = 1;
+
+    /** Bytes in front of the first packet of a batch. */
+    private static final int HEADER_SIZE = 2;
+
+    /** Bytes in front of each packet of a batch. */
+    private static final int LENGTH_SIZE = 2;
+
+    private final WritableByteChannel mTunnel;
+    private final long mDeadlineMs;
+
+    /** Largest packet worth batching; anything larger is better off on its own. */
+    private final int mMaxBatchedPacket;
+
+    private final ByteBuffer mBatch;
+    private int mPackets;
+    private long mFlushTime;
+
+    /**
+     * @param tunnel where datagrams are written to.
+     * @param maxDatagramSize the largest payload that can go out in one datagram.
+     * @param deadlineMs how long the first packet of a batch may wait for company.
+     */
+    PacketBatcher(WritableByteChannel tunnel, int maxDatagramSize, long deadlineMs) {
+        mTunnel = tunnel;
+        mDeadlineMs = deadlineMs;
+        mMaxBatchedPacket = (maxDatagramSize - HEADER_SIZE) / 2 - LENGTH_SIZE;
+        mBatch = ByteBuffer.allocateDirect(maxDatagramSize);
+        reset();
+    }
+
+    /**
+     * Sends a packet, either right away or as part of a batch.
+     *
+     * @param packet the packet between its position and limit. It is consumed either way.
+     * @param now the current time in milliseconds.
+     * @return whether a new batch was started, meaning a flush is now pending.
+     */
+    synchronized boolean send(ByteBuffer packet, long now) throws IOException {
+        final int length = packet.remaining();
+        if (length > mMaxBatchedPacket) {
+            flush();
+            mTunnel.write(packet);
+            return false;
+        }
+        if (mBatch.remaining() < LENGTH_SIZE + length) {
+            flush();
+        }
+        mBatch.putShort((short) length).put(packet);
+        if (++mPackets == 1) {
+            mFlushTime = now + mDeadlineMs;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return when the pending batch must go out, or {@link Long#MAX_VALUE} if there is none.
+     */
+    synchronized long getFlushTime() {
+        return mPackets == 0 ? Long.MAX_VALUE : mFlushTime;
+    }
+
+    /** Sends the pending batch if its deadline has passed. */
+    synchronized void flushIfDue(long now) throws IOException {
+        if (mPackets != 0 && mFlushTime <= now) {
+            flush();
+        }
+    }
+
+    /** Sends the pending batch, if any. */
+    synchronized void flush() throws IOException {
+        if (mPackets == 0) {
+            return;
+        }
+        mBatch.flip();
+        if (mPackets == 1) {
+            // Nothing to share the datagram with, so save the framing.
+            mBatch.position(HEADER_SIZE + LENGTH_SIZE);
+        }
+        mTunnel.write(mBatch);
+        reset();
+    }
+
+    private void reset() {
+        mBatch.clear();
+        mBatch.put((byte) 0).put(CONTROL_BATCH);
+        mPackets = 0;
+    }
+
+    /**
+     * @return whether the datagram between position and limit is a batch.
+     */
+    static boolean isBatch(ByteBuffer datagram) {
+        return datagram.remaining() > HEADER_SIZE && datagram.get(datagram.position()) == 0
+                && datagram.get(datagram.position() + 1) == CONTROL_BATCH;
+    }
+
+    /**
+     * Writes every packet of a batch to the given channel. The datagram's limit is restored
+     * afterwards, but its position is not.
+     *
+     * @throws IOException if a length runs past the end of the datagram.
+     */
+    static void unbatch(ByteBuffer datagram, WritableByteChannel out) throws IOException {
+        final int end = datagram.limit();
+        int offset = datagram.position() + HEADER_SIZE;
+        try {
+            while (offset + LENGTH_SIZE <= end) {
+                final int length = datagram.getShort(offset) & 0xFFFF;
+                offset += LENGTH_SIZE;
+                if (offset + length > end) {
+                    throw new IOException("Truncated batch");
+                }
+                datagram.limit(offset + length).position(offset);
+                out.write(datagram);
+                datagram.limit(end);
+                offset += length;
+            }
+        } finally {
+            datagram.limit(end);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed set of direct buffers, each large enough for one packet.
+ *
+ * Direct buffers let the channels hand memory straight to the kernel; a heap buffer is copied
+ * into a temporary direct buffer on every read and write. All buffers are allocated up front
+ * and recycled, so the forwarding paths do not allocate once they are running.
+ */
+class PacketBufferPool {
+    private final ByteBuffer[] mFree;
+    private final int mBufferSize;
+    private int mFreeCount;
+
+    PacketBufferPool(int count, int bufferSize) {
+        mFree = new ByteBuffer[count];
+        mBufferSize = bufferSize;
+        for (int i = 0; i < count; ++i) {
+            mFree[i] = ByteBuffer.allocateDirect(bufferSize);
+        }
+        mFreeCount = count;
+    }
+
+    int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Takes a cleared buffer out of the pool.
+     *
+     * @throws IllegalStateException if every buffer is in use, which means one was leaked.
+     */
+    synchronized ByteBuffer acquire() {
+        if (mFreeCount == 0) {
+            throw new IllegalStateException("Packet buffer pool exhausted");
+        }
+        final ByteBuffer buffer = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Returns a buffer obtained from {@link #acquire()}. */
+    synchronized void release(ByteBuffer buffer) {
+        if (mFreeCount == mFree.length || buffer.capacity() != mBufferSize) {
+            throw new IllegalArgumentException("Buffer does not belong to this pool");
+        }
+        mFree[mFreeCount++] = buffer;
+    }
+
+    synchronized int available() {
+        return mFreeCount;
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the last packets that went through the tunnel, as the interface saw them, so they can
+ * be looked at in Wireshark when something breaks.
+ *
+ * Each packet is copied, up to the snap length, into the next of a ring of slots allocated up
+ * front, so capturing allocates nothing and the oldest packets make room for the new ones. The
+ * forwarding threads claim a slot by compare-and-set instead of taking a lock; one that finds
+ * its slot busy, because the ring came around to it while it was still being written or read,
+ * gives up on the packet instead of waiting. A {@link Filter} and sampling keep the cost down
+ * to a few comparisons for the packets that are not wanted, so it can stay on.
+ *
+ * {@link #writePcap} exports the ring, oldest first, as a pcap file of raw IP packets, while
+ * capturing goes on.
+ */
+class PacketCapture {
+    /** Enough for the IP and TCP headers with options. */
+    static final int DEFAULT_SNAP_LENGTH = 128;
+
+    /** Packets kept at once. A power of two. */
+    static final int DEFAULT_SLOTS = 4096;
+
+    /** Directions, as the filter tells them apart. */
+    static final int OUTGOING = 1;
+    static final int INCOMING = 2;
+
+    private static final int PCAP_MAGIC = 0xA1B2C3D4;
+    private static final int PCAP_VERSION_MAJOR = 2;
+    private static final int PCAP_VERSION_MINOR = 4;
+    /** Packets start with their IPv4 or IPv6 header, with no link layer. */
+    private static final int LINKTYPE_RAW = 101;
+
+    private static final int SLOT_FREE = 0;
+    private static final int SLOT_BUSY = 1;
+
+    private final int mSnapLength;
+    private final int mMask;
+    private final ByteBuffer[] mSlots;
+    private final AtomicIntegerArray mStates;
+    /** What each slot holds, written while it is claimed. */
+    private final long[] mIndexes;
+    private final long[] mTimesUs;
+    private final int[] mLengths;
+
+    /** The index of the next packet, which picks its slot. */
+    private final AtomicLong mNext = new AtomicLong();
+    /** Packets that passed the filter, which sampling counts. */
+    private final AtomicLong mMatched = new AtomicLong();
+    private final AtomicLong mMissed = new AtomicLong();
+
+    /** Wall clock at {@link #mOriginNanos}, so timestamps cost a nanoTime() each. */
+    private final long mOriginUs = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    private final long mOriginNanos = System.nanoTime();
+
+    private volatile boolean mEnabled;
+    private volatile Filter mFilter;
+    private volatile int mSampling = 1;
+
+    /**
+     * @param slots packets kept at once, a power of two.
+     * @param snapLength the most bytes kept of each packet.
+     */
+    PacketCapture(int slots, int snapLength) {
+        if (Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("Bad slot count: " + slots);
+        }
+        mSnapLength = snapLength;
+        mMask = slots - 1;
+        // One block for the whole ring, cut into slots.
+        final ByteBuffer ring = ByteBuffer.allocateDirect(slots * snapLength);
+        mSlots = new ByteBuffer[slots];
+        for (int i = 0; i < slots; ++i) {
+            ring.limit((i + 1) * snapLength);
+            ring.position(i * snapLength);
+            mSlots[i] = ring.slice();
+        }
+        mStates = new AtomicIntegerArray(slots);
+        mIndexes = new long[slots];
+        // No packet has a negative index, so the export skips slots never written.
+        Arrays.fill(mIndexes, -1);
+        mTimesUs = new long[slots];
+        mLengths = new int[slots];
+    }
+
+    /** Starts or stops capturing. What was captured stays till it is overwritten. */
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** Keeps only the packets that match, or all of them on {@code null}. */
+    void setFilter(Filter filter) {
+        mFilter = filter;
+    }
+
+    /** Keeps one in {@code sampling} of the packets that match. */
+    void setSampling(int sampling) {
+        mSampling = Math.max(1, sampling);
+    }
+
+    /** @return the packets given up on because their slot was busy. */
+    long getMissed() {
+        return mMissed.get();
+    }
+
+    /**
+     * Copies a packet into the ring if it is wanted. Any thread can call this.
+     *
+     * @param packet the packet between its position and limit, which are left untouched.
+     * @param direction {@link #OUTGOING} or {@link #INCOMING}.
+     */
+    void capture(ByteBuffer packet, int direction) {
+        if (!mEnabled) {
+            return;
+        }
+        final Filter filter = mFilter;
+        if (filter != null && !filter.matches(packet, direction)) {
+            return;
+        }
+        final int sampling = mSampling;
+        if (sampling > 1 && mMatched.getAndIncrement() % sampling != 0) {
+            return;
+        }
+
+        final long index = mNext.getAndIncrement();
+        final int slot = (int) index & mMask;
+        if (!mStates.compareAndSet(slot, SLOT_FREE, SLOT_BUSY)) {
+            mMissed.incrementAndGet();
+            return;
+        }
+        final int position = packet.position();
+        final int limit = packet.limit();
+        packet.limit(position + Math.min(limit - position, mSnapLength));
+        mSlots[slot].clear();
+        mSlots[slot].put(packet);
+        packet.limit(limit);
+        packet.position(position);
+        mIndexes[slot] = index;
+        mTimesUs[slot] = mOriginUs + (System.nanoTime() - mOriginNanos) / 1000;
+        mLengths[slot] = limit - position;
+        // Publishes what was written along with the slot.
+        mStates.set(slot, SLOT_FREE);
+    }
+
+    /**
+     * Writes what the ring holds as a pcap file, oldest first. Packets that are being written
+     * while this reads are left out.
+     *
+     * @return the number of packets written.
+     */
+    int writePcap(OutputStream out) throws IOException {
+        final DataOutputStream pcap = new DataOutputStream(new BufferedOutputStream(out));
+        pcap.writeInt(PCAP_MAGIC);
+        pcap.writeShort(PCAP_VERSION_MAJOR);
+        pcap.writeShort(PCAP_VERSION_MINOR);
+        // The time zone and the accuracy of timestamps, which nobody sets.
+        pcap.writeInt(0);
+        pcap.writeInt(0);
+        pcap.writeInt(mSnapLength);
+        pcap.writeInt(LINKTYPE_RAW);
+
+        final byte[] data = new byte[mSnapLength];
+        final long end = mNext.get();
+        int written = 0;
+        for (long index = Math.max(0, end - mSlots.length); index < end; ++index) {
+            final int slot = (int) index & mMask;
+            if (!mStates.compareAndSet(slot, SLOT_FREE, SLOT_BUSY)) {
+                continue;
+            }
+            final long timeUs;
+            final int length;
+            final int captured;
+            try {
+                if (mIndexes[slot] != index) {
+                    // Overwritten since, or not written yet.
+                    continue;
+                }
+                timeUs = mTimesUs[slot];
+                length = mLengths[slot];
+                captured = mSlots[slot].position();
+                for (int i = 0; i < captured; ++i) {
+                    data[i] = mSlots[slot].get(i);
+                }
+            } finally {
+                mStates.set(slot, SLOT_FREE);
+            }
+            pcap.writeInt((int) (timeUs / 1000000));
+            pcap.writeInt((int) (timeUs % 1000000));
+            pcap.writeInt(captured);
+            pcap.writeInt(length);
+            pcap.write(data, 0, captured);
+            ++written;
+        }
+        pcap.flush();
+        return written;
+    }
+
+    /**
+     * Picks packets by a subset of the expressions of tcpdump: terms joined by {@code and},
+     * each optionally preceded by {@code not}. A term is a protocol, {@code tcp}, {@code udp}
+     * or {@code icmp}, a direction, {@code inbound} or {@code outbound}, or an address or port
+     * that can be narrowed to one side:
+     * <pre>
+     *   [src|dst] host &lt;numeric address&gt;
+     *   [src|dst] port &lt;number&gt;
+     * </pre>
+     * An empty expression matches everything. The terms are parsed once into arrays, so
+     * matching allocates nothing.
+     */
+    static final class Filter {
+        private static final int PROTOCOL = 0;
+        private static final int DIRECTION = 1;
+        private static final int HOST = 2;
+        private static final int PORT = 3;
+
+        private static final int PROTOCOL_ICMP = 1;
+        private static final int PROTOCOL_TCP = 6;
+        private static final int PROTOCOL_UDP = 17;
+        private static final int PROTOCOL_ICMPV6 = 58;
+
+        /** Which side an address or port has to be on. */
+        private static final int EITHER = 0;
+        private static final int SOURCE = 1;
+        private static final int DESTINATION = 2;
+
+        private final int[] mKinds;
+        private final int[] mSides;
+        private final int[] mValues;
+        private final byte[][] mAddresses;
+        private final boolean[] mNegated;
+
+        private Filter(int count) {
+            mKinds = new int[count];
+            mSides = new int[count];
+            mValues = new int[count];
+            mAddresses = new byte[count][];
+            mNegated = new boolean[count];
+        }
+
+        /**
+         * @throws IllegalArgumentException if the expression is malformed, or has an address
+         *                                  that is not numeric.
+         */
+        static Filter parse(String expression) throws IllegalArgumentException {
+            final String trimmed = expression.trim();
+            final String[] words = trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+            final List<String[]> terms = new ArrayList<>();
+            List<String> term = new ArrayList<>();
+            for (String word : words) {
+                if (word.equals("and")) {
+                    terms.add(term.toArray(new String[term.size()]));
+                    term = new ArrayList<>();
+                } else {
+                    term.add(word);
+                }
+            }
+            if (words.length > 0) {
+                terms.add(term.toArray(new String[term.size()]));
+            }
+
+            final Filter filter = new Filter(terms.size());
+            for (int i = 0; i < terms.size(); ++i) {
+                filter.parseTerm(i, terms.get(i), expression);
+            }
+            return filter;
+        }
+
+        private void parseTerm(int i, String[] words, String expression) {
+            int next = 0;
+            if (next < words.length && words[next].equals("not")) {
+                mNegated[i] = true;
+                ++next;
+            }
+            if (next < words.length && (words[next].equals("src") || words[next].equals("dst"))) {
+                mSides[i] = words[next].equals("src") ? SOURCE : DESTINATION;
+                ++next;
+            }
+            if (next >= words.length) {
+                throw new IllegalArgumentException("Bad filter: " + expression);
+            }
+            final String keyword = words[next++];
+            final boolean sided = mSides[i] != EITHER;
+            if (keyword.equals("host") && next < words.length) {
+                mKinds[i] = HOST;
+                mAddresses[i] = parseAddress(words[next++], expression);
+            } else if (keyword.equals("port") && next < words.length) {
+                mKinds[i] = PORT;
+                try {
+                    mValues[i] = Integer.parseInt(words[next++]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad filter: " + expression);
+                }
+            } else if (keyword.equals("tcp") && !sided) {
+                mKinds[i] = PROTOCOL;
+                mValues[i] = PROTOCOL_TCP;
+            } else if (keyword.equals("udp") && !sided) {
+                mKinds[i] = PROTOCOL;
+                mValues[i] = PROTOCOL_UDP;
+            } else if (keyword.equals("icmp") && !sided) {
+                mKinds[i] = PROTOCOL;
+                mValues[i] = PROTOCOL_ICMP;
+            } else if ((keyword.equals("inbound") || keyword.equals("outbound")) && !sided) {
+                mKinds[i] = DIRECTION;
+                mValues[i] = keyword.equals("inbound") ? INCOMING : OUTGOING;
+            } else {
+                throw new IllegalArgumentException("Bad filter: " + expression);
+            }
+            if (next != words.length) {
+                throw new IllegalArgumentException("Bad filter: " + expression);
+            }
+        }
+
+        private static byte[] parseAddress(String address, String expression) {
+            // Only literals, which are parsed without a lookup.
+            if (!address.matches("[0-9.]+|[0-9a-fA-F:.]*:[0-9a-fA-F:.]*")) {
+                throw new IllegalArgumentException("Bad filter: " + expression);
+            }
+            try {
+                return InetAddress.getByName(address).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Bad filter: " + expression);
+            }
+        }
+
+        /**
+         * @param packet the packet between its position and limit, which are left untouched.
+         * @return whether the packet matches every term.
+         */
+        boolean matches(ByteBuffer packet, int direction) {
+            final int start = packet.position();
+            final int length = packet.remaining();
+            int protocol = -1;
+            int addresses = -1;
+            int addressLength = 0;
+            int transport = -1;
+            if (length >= 20 && (packet.get(start) & 0xF0) == 0x40) {
+                protocol = packet.get(start + 9) & 0xFF;
+                addresses = start + 12;
+                addressLength = 4;
+                // Only the first fragment carries the ports.
+                if ((packet.getShort(start + 6) & 0x1FFF) == 0) {
+                    transport = start + (packet.get(start) & 0x0F) * 4;
+                }
+            } else if (length >= 40 && (packet.get(start) & 0xF0) == 0x60) {
+                protocol = packet.get(start + 6) & 0xFF;
+                addresses = start + 8;
+                addressLength = 16;
+                transport = start + 40;
+            }
+            final boolean ported = (protocol == PROTOCOL_TCP || protocol == PROTOCOL_UDP)
+                    && transport >= 0 && transport + 4 <= start + length;
+
+            for (int i = 0; i < mKinds.length; ++i) {
+                final boolean match;
+                switch (mKinds[i]) {
+                    case PROTOCOL:
+                        match = protocol == mValues[i] || (mValues[i] == PROTOCOL_ICMP
+                                && protocol == PROTOCOL_ICMPV6 && addressLength == 16);
+                        break;
+                    case DIRECTION:
+                        match = direction == mValues[i];
+                        break;
+                    case HOST:
+                        match = mAddresses[i].length == addressLength
+                                && ((mSides[i] != DESTINATION
+                                        && equals(packet, addresses, mAddresses[i]))
+                                || (mSides[i] != SOURCE
+                                        && equals(packet, addresses + addressLength,
+                                                mAddresses[i])));
+                        break;
+                    default:
+                        match = ported
+                                && ((mSides[i] != DESTINATION
+                                        && (packet.getShort(transport) & 0xFFFF) == mValues[i])
+                                || (mSides[i] != SOURCE
+                                        && (packet.getShort(transport + 2) & 0xFFFF)
+                                                == mValues[i]));
+                        break;
+                }
+                if (match == mNegated[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean equals(ByteBuffer packet, int offset, byte[] address) {
+            for (int i = 0; i < address.length; ++i) {
+                if (packet.get(offset + i) != address[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ChaCha20-Poly1305 as in RFC 8439, working on buffers in place and without allocating.
+ *
+ * ChaCha20 is fast in software, so it does not depend on the AES instructions that many
+ * phones lack, and it runs in constant time everywhere. The {@code javax.crypto} ciphers
+ * allocate for every packet, and the server has no crypto library to share an
+ * implementation with, so this one is as plain as the one in the server.
+ *
+ * Buffers are read and written by absolute index in their default big-endian order, and their
+ * positions and limits are left alone. An instance keeps scratch state, so each thread needs
+ * its own.
+ */
+class PacketCipher {
+    static final int KEY_SIZE = 32;
+    static final int TAG_SIZE = 16;
+
+    private static final long MASK_26 = 0x3FFFFFF;
+
+    private final int[] mKey = new int[8];
+    private final int[] mState = new int[16];
+    private final int[] mBlock = new int[16];
+    private final int[] mTag = new int[4];
+    private final int[] mPartial = new int[4];
+
+    // Poly1305 in 26-bit limbs: the key, its multiples of 5, the final pad and the hash.
+    private long mR0, mR1, mR2, mR3, mR4;
+    private long mS1, mS2, mS3, mS4;
+    private long mPad0, mPad1, mPad2, mPad3;
+    private long mH0, mH1, mH2, mH3, mH4;
+
+    PacketCipher(byte[] key) {
+        if (key.length != KEY_SIZE) {
+            throw new IllegalArgumentException("Bad key size: " + key.length);
+        }
+        for (int i = 0; i < 8; ++i) {
+            mKey[i] = (key[4 * i] & 0xFF) | (key[4 * i + 1] & 0xFF) << 8
+                    | (key[4 * i + 2] & 0xFF) << 16 | (key[4 * i + 3] & 0xFF) << 24;
+        }
+    }
+
+    /**
+     * Encrypts {@code length} bytes of {@code src} at {@code srcOffset} to {@code dst} at
+     * {@code dstOffset} and appends the tag. The two may be the same bytes, which encrypts in
+     * place.
+     *
+     * @param nonceHigh the first four bytes of the nonce, read as little-endian.
+     * @param nonceLow the last eight bytes of the nonce, read as little-endian.
+     * @param aad data to authenticate along between its position and limit, or {@code null}.
+     */
+    void seal(int nonceHigh, long nonceLow, ByteBuffer aad, ByteBuffer src, int srcOffset,
+              int length, ByteBuffer dst, int dstOffset) {
+        start(nonceHigh, nonceLow);
+        xor(src, srcOffset, length, dst, dstOffset);
+        authenticate(aad, dst, dstOffset, length);
+        for (int i = 0; i < 4; ++i) {
+            dst.putInt(dstOffset + length + 4 * i, Integer.reverseBytes(mTag[i]));
+        }
+    }
+
+    /**
+     * Decrypts {@code length} bytes at {@code offset}, the last of which are the tag, in place.
+     *
+     * @return whether they are authentic. If not, they are left as they were.
+     */
+    boolean open(int nonceHigh, long nonceLow, ByteBuffer aad, ByteBuffer buffer, int offset,
+                 int length) {
+        if (length < TAG_SIZE) {
+            return false;
+        }
+        final int size = length - TAG_SIZE;
+        start(nonceHigh, nonceLow);
+        authenticate(aad, buffer, offset, size);
+
+        // Compare in constant time, so the time taken tells nothing about the tag.
+        int difference = 0;
+        for (int i = 0; i < 4; ++i) {
+            difference |= buffer.getInt(offset + size + 4 * i) ^ Integer.reverseBytes(mTag[i]);
+        }
+        if (difference != 0) {
+            return false;
+        }
+        xor(buffer, offset, size, buffer, offset);
+        return true;
+    }
+
+    /** Sets up the nonce and derives the one-time Poly1305 key from the first block. */
+    private void start(int nonceHigh, long nonceLow) {
+        mState[0] = 0x61707865;
+        mState[1] = 0x3320646E;
+        mState[2] = 0x79622D32;
+        mState[3] = 0x6B206574;
+        System.arraycopy(mKey, 0, mState, 4, 8);
+        mState[13] = nonceHigh;
+        mState[14] = (int) nonceLow;
+        mState[15] = (int) (nonceLow >>> 32);
+        block(0);
+
+        final long t0 = mBlock[0] & 0xFFFFFFFFL;
+        final long t1 = mBlock[1] & 0xFFFFFFFFL;
+        final long t2 = mBlock[2] & 0xFFFFFFFFL;
+        final long t3 = mBlock[3] & 0xFFFFFFFFL;
+        // Clamped as the RFC says.
+        mR0 = t0 & 0x3FFFFFF;
+        mR1 = (t0 >>> 26 | t1 << 6) & 0x3FFFF03;
+        mR2 = (t1 >>> 20 | t2 << 12) & 0x3FFC0FF;
+        mR3 = (t2 >>> 14 | t3 << 18) & 0x3F03FFF;
+        mR4 = t3 >>> 8 & 0x00FFFFF;
+        mS1 = mR1 * 5;
+        mS2 = mR2 * 5;
+        mS3 = mR3 * 5;
+        mS4 = mR4 * 5;
+        mPad0 = mBlock[4] & 0xFFFFFFFFL;
+        mPad1 = mBlock[5] & 0xFFFFFFFFL;
+        mPad2 = mBlock[6] & 0xFFFFFFFFL;
+        mPad3 = mBlock[7] & 0xFFFFFFFFL;
+        mH0 = mH1 = mH2 = mH3 = mH4 = 0;
+    }
+
+    /** XORs with the key stream, which starts at block 1. */
+    private void xor(ByteBuffer src, int srcOffset, int length, ByteBuffer dst, int dstOffset) {
+        int counter = 1;
+        for (int done = 0; done < length; done += 64) {
+            block(counter++);
+            final int size = Math.min(64, length - done);
+            final int from = srcOffset + done;
+            final int to = dstOffset + done;
+            int i = 0;
+            for (; i + 4 <= size; i += 4) {
+                dst.putInt(to + i, src.getInt(from + i) ^ Integer.reverseBytes(mBlock[i >> 2]));
+            }
+            for (; i < size; ++i) {
+                dst.put(to + i, (byte) (src.get(from + i) ^ mBlock[i >> 2] >>> ((i & 3) << 3)));
+            }
+        }
+    }
+
+    /** Computes the key stream block of the given counter into {@link #mBlock}. */
+    private void block(int counter) {
+        mState[12] = counter;
+        int x0 = mState[0], x1 = mState[1], x2 = mState[2], x3 = mState[3];
+        int x4 = mState[4], x5 = mState[5], x6 = mState[6], x7 = mState[7];
+        int x8 = mState[8], x9 = mState[9], x10 = mState[10], x11 = mState[11];
+        int x12 = mState[12], x13 = mState[13], x14 = mState[14], x15 = mState[15];
+        for (int i = 0; i < 10; ++i) {
+            // Columns.
+            x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 16);
+            x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 12);
+            x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 8);
+            x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 7);
+            x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 16);
+            x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 12);
+            x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 8);
+            x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 7);
+            x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 16);
+            x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 12);
+            x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 8);
+            x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 7);
+            x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 16);
+            x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 12);
+            x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 8);
+            x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 7);
+            // Diagonals.
+            x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 16);
+            x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 12);
+            x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 8);
+            x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 7);
+            x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 16);
+            x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 12);
+            x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 8);
+            x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 7);
+            x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 16);
+            x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 12);
+            x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 8);
+            x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 7);
+            x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 16);
+            x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 12);
+            x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 8);
+            x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 7);
+        }
+        mBlock[0] = x0 + mState[0];
+        mBlock[1] = x1 + mState[1];
+        mBlock[2] = x2 + mState[2];
+        mBlock[3] = x3 + mState[3];
+        mBlock[4] = x4 + mState[4];
+        mBlock[5] = x5 + mState[5];
+        mBlock[6] = x6 + mState[6];
+        mBlock[7] = x7 + mState[7];
+        mBlock[8] = x8 + mState[8];
+        mBlock[9] = x9 + mState[9];
+        mBlock[10] = x10 + mState[10];
+        mBlock[11] = x11 + mState[11];
+        mBlock[12] = x12 + mState[12];
+        mBlock[13] = x13 + mState[13];
+        mBlock[14] = x14 + mState[14];
+        mBlock[15] = x15 + mState[15];
+    }
+
+    /**
+     * Computes the tag into {@link #mTag}: Poly1305 over the additional data and the
+     * ciphertext, each padded to 16 bytes, then both their lengths.
+     */
+    private void authenticate(ByteBuffer aad, ByteBuffer ciphertext, int offset, int length) {
+        int aadLength = 0;
+        if (aad != null) {
+            aadLength = aad.remaining();
+            absorb(aad, aad.position(), aadLength);
+        }
+        absorb(ciphertext, offset, length);
+        absorb(aadLength, 0, length, 0);
+        finish();
+    }
+
+    private void absorb(ByteBuffer data, int offset, int length) {
+        int i = 0;
+        for (; i + 16 <= length; i += 16) {
+            absorb(Integer.reverseBytes(data.getInt(offset + i)),
+                    Integer.reverseBytes(data.getInt(offset + i + 4)),
+                    Integer.reverseBytes(data.getInt(offset + i + 8)),
+                    Integer.reverseBytes(data.getInt(offset + i + 12)));
+        }
+        if (i < length) {
+            // The last block is padded with zeros.
+            mPartial[0] = mPartial[1] = mPartial[2] = mPartial[3] = 0;
+            for (int k = 0; i + k < length; ++k) {
+                mPartial[k >> 2] |= (data.get(offset + i + k) & 0xFF) << ((k & 3) << 3);
+            }
+            absorb(mPartial[0], mPartial[1], mPartial[2], mPartial[3]);
+        }
+    }
+
+    /** Adds one block of 16 bytes, given as little-endian words, and multiplies by r. */
+    private void absorb(int w0, int w1, int w2, int w3) {
+        final long t0 = w0 & 0xFFFFFFFFL;
+        final long t1 = w1 & 0xFFFFFFFFL;
+        final long t2 = w2 & 0xFFFFFFFFL;
+        final long t3 = w3 & 0xFFFFFFFFL;
+        final long h0 = mH0 + (t0 & MASK_26);
+        final long h1 = mH1 + ((t0 >>> 26 | t1 << 6) & MASK_26);
+        final long h2 = mH2 + ((t1 >>> 20 | t2 << 12) & MASK_26);
+        final long h3 = mH3 + ((t2 >>> 14 | t3 << 18) & MASK_26);
+        final long h4 = mH4 + (t3 >>> 8 | 1 << 24);
+
+        long d0 = h0 * mR0 + h1 * mS4 + h2 * mS3 + h3 * mS2 + h4 * mS1;
+        long d1 = h0 * mR1 + h1 * mR0 + h2 * mS4 + h3 * mS3 + h4 * mS2;
+        long d2 = h0 * mR2 + h1 * mR1 + h2 * mR0 + h3 * mS4 + h4 * mS3;
+        long d3 = h0 * mR3 + h1 * mR2 + h2 * mR1 + h3 * mR0 + h4 * mS4;
+        long d4 = h0 * mR4 + h1 * mR3 + h2 * mR2 + h3 * mR1 + h4 * mR0;
+
+        long c = d0 >>> 26;
+        mH0 = d0 & MASK_26;
+        d1 += c;
+        c = d1 >>> 26;
+        mH1 = d1 & MASK_26;
+        d2 += c;
+        c = d2 >>> 26;
+        mH2 = d2 & MASK_26;
+        d3 += c;
+        c = d3 >>> 26;
+        mH3 = d3 & MASK_26;
+        d4 += c;
+        c = d4 >>> 26;
+        mH4 = d4 & MASK_26;
+        mH0 += c * 5;
+        c = mH0 >>> 26;
+        mH0 &= MASK_26;
+        mH1 += c;
+    }
+
+    /** Reduces the hash modulo 2^130 - 5 and adds the pad. */
+    private void finish() {
+        long h0 = mH0, h1 = mH1, h2 = mH2, h3 = mH3, h4 = mH4;
+        long c = h1 >>> 26;
+        h1 &= MASK_26;
+        h2 += c;
+        c = h2 >>> 26;
+        h2 &= MASK_26;
+        h3 += c;
+        c = h3 >>> 26;
+        h3 &= MASK_26;
+        h4 += c;
+        c = h4 >>> 26;
+        h4 &= MASK_26;
+        h0 += c * 5;
+        c = h0 >>> 26;
+        h0 &= MASK_26;
+        h1 += c;
+
+        // Compute h - p and keep it unless it went negative, without branching.
+        long g0 = h0 + 5;
+        c = g0 >>> 26;
+        g0 &= MASK_26;
+        long g1 = h1 + c;
+        c = g1 >>> 26;
+        g1 &= MASK_26;
+        long g2 = h2 + c;
+        c = g2 >>> 26;
+        g2 &= MASK_26;
+        long g3 = h3 + c;
+        c = g3 >>> 26;
+        g3 &= MASK_26;
+        final long g4 = h4 + c - (1 << 26);
+        final long keep = g4 >> 63;
+        h0 = h0 & keep | g0 & ~keep;
+        h1 = h1 & keep | g1 & ~keep;
+        h2 = h2 & keep | g2 & ~keep;
+        h3 = h3 & keep | g3 & ~keep;
+        h4 = h4 & keep | g4 & ~keep;
+
+        final long w0 = (h0 | h1 << 26) & 0xFFFFFFFFL;
+        final long w1 = (h1 >>> 6 | h2 << 20) & 0xFFFFFFFFL;
+        final long w2 = (h2 >>> 12 | h3 << 14) & 0xFFFFFFFFL;
+        final long w3 = (h3 >>> 18 | h4 << 8) & 0xFFFFFFFFL;
+        long f = w0 + mPad0;
+        mTag[0] = (int) f;
+        f = w1 + mPad1 + (f >>> 32);
+        mTag[1] = (int) f;
+        f = w2 + mPad2 + (f >>> 32);
+        mTag[2] = (int) f;
+        f = w3 + mPad3 + (f >>> 32);
+        mTag[3] = (int) f;
+    }
+}
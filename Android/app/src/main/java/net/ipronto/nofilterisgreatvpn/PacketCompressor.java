@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Compresses packets one at a time with the LZ4 block format, which trades ratio for speed.
+ *
+ * A compressed packet is a control message: a zero byte, {@link #CONTROL_COMPRESSED}, then
+ * the LZ4 block. Every other packet goes out as it is, so each one carries its own flag and
+ * nothing depends on packets that came before it. Packets that do not shrink are sent as they
+ * are, and packets that hardly ever shrink are not even tried: tiny ones and those of TLS and
+ * QUIC on port 443, which are encrypted. That bounds the cost on traffic that gains nothing.
+ *
+ * The server offers compression in the handshake, and the client accepts by sending an empty
+ * compressed message, so neither side compresses unless the other understands it.
+ *
+ * An instance keeps the buffers of one sending thread; decompressing needs no state.
+ */
+class PacketCompressor {
+    /** Control message type of a compressed packet, following the leading zero byte. */
+    static final byte CONTROL_COMPRESSED = 6;
+
+    /** Codec named by the "z" parameter of the handshake. */
+    static final int CODEC_LZ4 = 1;
+
+    /** Bytes in front of the LZ4 block. */
+    private static final int HEADER_SIZE = 2;
+
+    /** Packets shorter than this rarely shrink by enough to pay for the framing. */
+    static final int MIN_LENGTH = 64;
+
+    private static final int PROTOCOL_TCP = 6;
+    private static final int PROTOCOL_UDP = 17;
+    private static final int PORT_TLS = 443;
+
+    // The LZ4 block format: matches are at least 4 bytes long, the last 5 bytes are always
+    // literals, and the last match starts at least 12 bytes before the end.
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FINISH = 12;
+    private static final int MAX_OFFSET = 65535;
+
+    private static final int HASH_BITS = 12;
+
+    private final ByteBuffer mCompressed;
+
+    /**
+     * Positions of recent 4-byte sequences by hash, offset by {@link #mBase}, which moves on
+     * with every packet so the table never needs clearing.
+     */
+    private final int[] mTable = new int[1 << HASH_BITS];
+    private int mBase = 1;
+
+    /**
+     * @param maxPacketSize the largest packet to be compressed.
+     */
+    PacketCompressor(int maxPacketSize) {
+        mCompressed = ByteBuffer.allocateDirect(maxPacketSize);
+    }
+
+    /**
+     * @param packet the packet between its position and limit, which are left untouched.
+     * @return the packet framed as a compressed control message, in a buffer that is only valid
+     *         till the next call, or {@code null} if it is better sent as it is.
+     */
+    ByteBuffer compress(ByteBuffer packet) {
+        final int length = packet.remaining();
+        if (length < MIN_LENGTH || length > mCompressed.capacity() || isEncrypted(packet)) {
+            return null;
+        }
+        if (mBase > Integer.MAX_VALUE - 2 * mCompressed.capacity()) {
+            Arrays.fill(mTable, 0);
+            mBase = 1;
+        }
+
+        mCompressed.clear();
+        mCompressed.put(0, (byte) 0).put(1, CONTROL_COMPRESSED);
+        final int size = compressBlock(packet, packet.position(), length, mCompressed,
+                HEADER_SIZE, length - HEADER_SIZE - 1, mTable, mBase);
+        mBase += length + 1;
+        if (size < 0) {
+            return null;
+        }
+        mCompressed.limit(HEADER_SIZE + size);
+        return mCompressed;
+    }
+
+    /**
+     * @return whether the packet is most likely encrypted already: TCP or UDP on port 443.
+     */
+    static boolean isEncrypted(ByteBuffer packet) {
+        final int start = packet.position();
+        final int length = packet.remaining();
+        final int protocol;
+        final int transport;
+        switch ((packet.get(start) >> 4) & 0x0F) {
+            case 4:
+                if (length < 20 || (packet.getShort(start + 6) & 0x1FFF) != 0) {
+                    return false;
+                }
+                protocol = packet.get(start + 9) & 0xFF;
+                transport = start + (packet.get(start) & 0x0F) * 4;
+                break;
+            case 6:
+                if (length < 40) {
+                    return false;
+                }
+                protocol = packet.get(start + 6) & 0xFF;
+                transport = start + 40;
+                break;
+            default:
+                return false;
+        }
+        if ((protocol != PROTOCOL_TCP && protocol != PROTOCOL_UDP)
+                || transport + 4 > start + length) {
+            return false;
+        }
+        return (packet.getShort(transport) & 0xFFFF) == PORT_TLS
+                || (packet.getShort(transport + 2) & 0xFFFF) == PORT_TLS;
+    }
+
+    /**
+     * @return whether the datagram between position and limit is a compressed packet. An empty
+     *         one only says that its sender understands them.
+     */
+    static boolean isCompressed(ByteBuffer datagram) {
+        return datagram.remaining() >= HEADER_SIZE && datagram.get(datagram.position()) == 0
+                && datagram.get(datagram.position() + 1) == CONTROL_COMPRESSED;
+    }
+
+    /**
+     * Tells the other side that compressed packets are understood here, several times in case
+     * of packet loss.
+     */
+    static void sendHello(WritableByteChannel tunnel) throws IOException {
+        final ByteBuffer hello = ByteBuffer.allocate(HEADER_SIZE);
+        for (int i = 0; i < 3; ++i) {
+            hello.clear();
+            hello.put((byte) 0).put(CONTROL_COMPRESSED).flip();
+            tunnel.write(hello);
+        }
+    }
+
+    /**
+     * Decompresses a compressed packet into {@code out}, which is cleared and then flipped.
+     *
+     * @throws IOException if the packet is malformed or does not fit.
+     */
+    static void decompress(ByteBuffer datagram, ByteBuffer out) throws IOException {
+        out.clear();
+        final int length = decompressBlock(datagram, datagram.position() + HEADER_SIZE,
+                datagram.remaining() - HEADER_SIZE, out, out.capacity());
+        out.limit(length);
+    }
+
+    /**
+     * Compresses {@code length} bytes at {@code srcOffset} into an LZ4 block at
+     * {@code dstOffset}.
+     *
+     * @return the size of the block, or -1 if it would be larger than {@code maxSize}.
+     */
+    static int compressBlock(ByteBuffer src, int srcOffset, int length, ByteBuffer dst,
+                             int dstOffset, int maxSize, int[] table, int base) {
+        final int end = srcOffset + length;
+        final int matchLimit = end - MATCH_FINISH;
+        final int literalLimit = end - LAST_LITERALS;
+        final int dstEnd = dstOffset + maxSize;
+        int anchor = srcOffset;
+        int i = srcOffset;
+        int o = dstOffset;
+
+        while (i < matchLimit) {
+            final int sequence = src.getInt(i);
+            final int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            final int candidate = table[hash] - base + srcOffset;
+            table[hash] = i - srcOffset + base;
+            if (candidate < srcOffset || candidate >= i || i - candidate > MAX_OFFSET
+                    || src.getInt(candidate) != sequence) {
+                ++i;
+                continue;
+            }
+
+            int matchEnd = i + MIN_MATCH;
+            int reference = candidate + MIN_MATCH;
+            while (matchEnd < literalLimit && src.get(matchEnd) == src.get(reference)) {
+                ++matchEnd;
+                ++reference;
+            }
+
+            o = writeSequence(src, anchor, i - anchor, i - candidate,
+                    matchEnd - i - MIN_MATCH, dst, o, dstEnd);
+            if (o < 0) {
+                return -1;
+            }
+            i = matchEnd;
+            anchor = i;
+        }
+
+        o = writeSequence(src, anchor, end - anchor, 0, 0, dst, o, dstEnd);
+        return o < 0 ? -1 : o - dstOffset;
+    }
+
+    /**
+     * Writes one sequence: literals followed by a match, or only literals if {@code offset} is
+     * zero, which ends the block.
+     *
+     * @return where the next sequence goes, or -1 if this one does not fit.
+     */
+    private static int writeSequence(ByteBuffer src, int literals, int literalLength,
+                                     int offset, int matchLength, ByteBuffer dst, int o,
+                                     int dstEnd) {
+        final int size = 1 + literalLength / 255 + 1 + literalLength
+                + (offset == 0 ? 0 : 2 + matchLength / 255 + 1);
+        if (o + size > dstEnd) {
+            return -1;
+        }
+
+        final int token = o++;
+        int value = Math.min(literalLength, 15) << 4;
+        if (literalLength >= 15) {
+            o = writeLength(dst, o, literalLength - 15);
+        }
+        for (int i = 0; i < literalLength; ++i) {
+            dst.put(o++, src.get(literals + i));
+        }
+        if (offset != 0) {
+            dst.put(o++, (byte) offset).put(o++, (byte) (offset >> 8));
+            value |= Math.min(matchLength, 15);
+            if (matchLength >= 15) {
+                o = writeLength(dst, o, matchLength - 15);
+            }
+        }
+        dst.put(token, (byte) value);
+        return o;
+    }
+
+    private static int writeLength(ByteBuffer dst, int o, int length) {
+        while (length >= 255) {
+            dst.put(o++, (byte) 255);
+            length -= 255;
+        }
+        dst.put(o++, (byte) length);
+        return o;
+    }
+
+    /**
+     * Decompresses an LZ4 block of {@code length} bytes at {@code srcOffset} to the start of
+     * {@code dst}.
+     *
+     * @return the size of the decompressed data.
+     * @throws IOException if the block is malformed or decompresses to more than
+     *         {@code capacity} bytes.
+     */
+    static int decompressBlock(ByteBuffer src, int srcOffset, int length, ByteBuffer dst,
+                               int capacity) throws IOException {
+        final int end = srcOffset + length;
+        int i = srcOffset;
+        int o = 0;
+        while (i < end) {
+            final int token = src.get(i++) & 0xFF;
+
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (i >= end) {
+                        throw new IOException("Truncated compressed packet");
+                    }
+                    b = src.get(i++) & 0xFF;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (i + literalLength > end || o + literalLength > capacity) {
+                throw new IOException("Bad compressed packet");
+            }
+            for (int k = 0; k < literalLength; ++k) {
+                dst.put(o++, src.get(i++));
+            }
+            if (i == end) {
+                // The last sequence has no match.
+                return o;
+            }
+
+            if (i + 2 > end) {
+                throw new IOException("Truncated compressed packet");
+            }
+            final int offset = (src.get(i) & 0xFF) | (src.get(i + 1) & 0xFF) << 8;
+            i += 2;
+            if (offset == 0 || offset > o) {
+                throw new IOException("Bad compressed packet");
+            }
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (i >= end) {
+                        throw new IOException("Truncated compressed packet");
+                    }
+                    b = src.get(i++) & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (o + matchLength > capacity) {
+                throw new IOException("Bad compressed packet");
+            }
+            // Byte by byte, since the match may overlap what it produces.
+            for (int k = 0; k < matchLength; ++k, ++o) {
+                dst.put(o, dst.get(o - offset));
+            }
+        }
+        return o;
+    }
+}
@@ -0,0 +1,1154 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Moves packets between the VPN interface and the tunnel once the handshake is done.
+ *
+ * Each direction has its own path, so a packet is forwarded the moment it arrives:
+ *   - a dedicated thread blocks on the interface and writes outgoing packets to the tunnel,
+ *     unless the owner of the interface reads them and hands them over through {@link #send}.
+ *   - a worker per tunnel socket waits on a {@link Selector} for incoming packets and writes
+ *     them to the interface. The selector timeout doubles as the timers of its
+ *     {@link KeepaliveScheduler}, so nothing wakes up while there is no traffic.
+ *
+ * A tunnel can be striped across several sockets, which the server hands out during the
+ * handshake. Outgoing packets are spread across them by {@link FlowHash}, so packets within a
+ * flow stay in order, and each socket has its own worker, so incoming traffic is spread across
+ * cores. The calling thread runs the worker of the first socket.
+ *
+ * When large packets keep going out but nothing comes back, the path may have started to
+ * drop them, so the first worker probes the path MTU again with a {@link PathMtuProber}. If
+ * the path shrank below the MTU of the interface, {@link #run()} returns so the interface can
+ * be configured again.
+ *
+ * Packets live in direct buffers from a {@link PacketBufferPool} sized to the interface MTU,
+ * and the interface is driven through channels, so no packet is copied through the Java heap
+ * and nothing is allocated per packet. Once the handshake agreed on keys, datagrams are sealed
+ * by a {@link TunnelCipher} on their way out and opened in the buffer they were read into, so
+ * that holds for encryption too.
+ *
+ * On lossy links, each socket can also protect what it sends with a {@link ParityEncoder}, so
+ * the other side rebuilds a lost datagram instead of TCP waiting for a timeout to send it again.
+ * DNS lookups the {@link DnsCache} knows the answer to do not enter the tunnel at all.
+ *
+ * When the sockets are on different networks, the tunnel is bonded instead: a
+ * {@link PathScheduler} sends each packet on the socket that does best, whatever its flow, and
+ * every datagram carries a sequence number so a {@link ReorderBuffer} puts what arrives back
+ * in order.
+ */
+class PacketForwarder implements OutboundQueue.Sink {
+    /**
+     * MTU assumed when the server does not push one. The server side of the tunnel uses a
+     * plain TUN interface, so this is also the smallest buffer that can hold whatever it sends.
+     */
+    static final int DEFAULT_MTU = 1500;
+
+    /**
+     * Buffers in the pool besides one per path. Each path holds one while forwarding a packet;
+     * the rest is headroom for anything that needs to keep a packet around for longer.
+     */
+    private static final int POOL_HEADROOM = 6;
+
+    /**
+     * Time between polling the VPN interface when it is non-blocking, which only happens on
+     * devices that cannot call {@code Builder.setBlocking()}.
+     */
+    private static final long LEGACY_IDLE_INTERVAL_MS = TimeUnit.MILLISECONDS.toMillis(20);
+
+    /**
+     * Time without receiving anything, while large packets go out, after which the path is
+     * suspected to be a black hole for them.
+     */
+    private static final long BLACK_HOLE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(3);
+
+    /** Shortest time between two searches for the path MTU. */
+    private static final long REPROBE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Send buffer of each socket. The kernel holds datagrams there till the radio took them,
+     * in order, so a large buffer lets an upload keep everything else waiting for seconds. A
+     * small one leaves the waiting to the {@link UplinkQueue}, which serves interactive packets
+     * first, and still keeps the link busy for a few milliseconds.
+     */
+    private static final int SEND_BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * One socket of the tunnel and everything that goes with it. Packets and batches are written
+     * to the stripe itself, which protects them with parity if that is on.
+     */
+    private static final class Stripe implements WritableByteChannel {
+        final int index;
+        final DatagramChannel tunnel;
+
+        /** Where everything bound for the socket goes, to be sealed on the way. */
+        final Outlet outlet;
+
+        /** Opens what arrives, or {@code null} if the session is not sealed. */
+        TunnelCipher.Opener opener;
+
+        /** Keeps the socket alive and notices when the server is gone. */
+        KeepaliveScheduler keepalive;
+
+        /** Protects outgoing packets and batches, or {@code null} if that is off. */
+        ParityEncoder parity;
+
+        /** Takes apart and repairs what the other side protected. Only the worker uses it. */
+        ParityEncoder.Decoder parityDecoder;
+
+        /** Coalesces small outgoing packets, or {@code null} if batching is off. */
+        PacketBatcher batcher;
+
+        /** Holds outgoing packets while the socket buffer is full. */
+        UplinkQueue queue;
+
+        /** Sends what comes out of the queue. */
+        UplinkQueue.Sender sender;
+
+        /** Woken up by the outgoing path when it starts a batch. */
+        volatile Selector selector;
+
+        /** Where the worker hands incoming packets, compressed or not. */
+        Delivery delivery;
+
+        /** Numbers what goes out if the tunnel is bonded, or {@code null} if it is not. */
+        PathScheduler paths;
+
+        /** Holds the datagram with its sequence number in front. */
+        ByteBuffer sequenced;
+
+        Stripe(int index, DatagramChannel tunnel) {
+            this.index = index;
+            this.tunnel = tunnel;
+            outlet = new Outlet(tunnel);
+        }
+
+        @Override
+        public int write(ByteBuffer datagram) throws IOException {
+            final PathScheduler paths = this.paths;
+            if (paths != null) {
+                return write(paths.nextSequence(), datagram);
+            }
+            final ParityEncoder parity = this.parity;
+            return parity == null ? outlet.write(datagram) : parity.write(datagram);
+        }
+
+        /**
+         * Writes a datagram of a bonded tunnel with the given sequence number, which the
+         * batcher and the outgoing path may do at the same time. A datagram the socket buffer
+         * had no room for leaves a gap in the sequence, just as if the path lost it.
+         */
+        synchronized int write(int sequence, ByteBuffer datagram) throws IOException {
+            final int length = datagram.remaining();
+            ReorderBuffer.sequence(sequence, datagram, sequenced);
+            final ParityEncoder parity = this.parity;
+            if ((parity == null ? outlet.write(sequenced) : parity.write(sequenced)) == 0) {
+                return 0;
+            }
+            datagram.position(datagram.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return tunnel.isOpen();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        void wakeup() {
+            final Selector selector = this.selector;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Seals datagrams on their way to a socket. Keepalives, batches and packets all come
+     * through here from both the outgoing thread and the worker, so they take turns on the
+     * one buffer that holds the sealed datagram.
+     *
+     * Sealing is not done in place, since the datagrams live in buffers of whoever made them
+     * and those have no room for the header in front. Copying while encrypting costs next to
+     * nothing on top of the encryption itself.
+     */
+    private static final class Outlet implements WritableByteChannel {
+        private final DatagramChannel mTunnel;
+        private TunnelCipher.Sealer mSealer;
+        private ByteBuffer mSealed;
+
+        /** Whether the socket buffer was full at the last write. */
+        private volatile boolean mBlocked;
+
+        Outlet(DatagramChannel tunnel) {
+            mTunnel = tunnel;
+        }
+
+        /** Seals what goes out from now on, in datagrams of up to {@code size} bytes. */
+        synchronized void setSealer(TunnelCipher.Sealer sealer, int size) {
+            mSealer = sealer;
+            mSealed = ByteBuffer.allocateDirect(size + TunnelCipher.OVERHEAD);
+        }
+
+        /**
+         * @return the length of the datagram, or 0 if the socket buffer is full, in which case
+         *         it is left as it was.
+         */
+        @Override
+        public synchronized int write(ByteBuffer datagram) throws IOException {
+            if (mSealer == null) {
+                final int length = mTunnel.write(datagram);
+                mBlocked = length == 0;
+                return length;
+            }
+            final int position = datagram.position();
+            final int length = datagram.remaining();
+            mSealer.seal(datagram, mSealed);
+            if (mTunnel.write(mSealed) == 0) {
+                datagram.position(position);
+                mBlocked = true;
+                return 0;
+            }
+            mBlocked = false;
+            return length;
+        }
+
+        /** @return whether the socket buffer was full at the last write. */
+        boolean isBlocked() {
+            return mBlocked;
+        }
+
+        /** Lets writes go on once the socket says there is room. */
+        void unblock() {
+            mBlocked = false;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mTunnel.isOpen();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Writes incoming packets to the interface, taking batches apart and decompressing packets
+     * that need it, and shows them to the DNS cache on the way. Each worker has its own, so
+     * they can decompress at the same time.
+     */
+    private final class Delivery implements WritableByteChannel {
+        private final ByteBuffer mInflated;
+
+        Delivery(int packetSize) {
+            mInflated = ByteBuffer.allocateDirect(packetSize);
+        }
+
+        @Override
+        public int write(ByteBuffer packet) throws IOException {
+            final int length = packet.remaining();
+            if (ReorderBuffer.isSequenced(packet)) {
+                // Comes back here once it is its turn, without the sequence number.
+                if (mReorder != null) {
+                    mReorder.receive(packet, this, System.currentTimeMillis());
+                } else {
+                    packet.position(packet.position() + ReorderBuffer.HEADER_SIZE);
+                    write(packet);
+                }
+                return length;
+            }
+            if (PacketBatcher.isBatch(packet)) {
+                PacketBatcher.unbatch(packet, this);
+                packet.position(packet.limit());
+                return length;
+            }
+            if (!PacketCompressor.isCompressed(packet)) {
+                deliver(packet);
+                return length;
+            }
+            // An empty one only says that the server understands them.
+            if (length > 2) {
+                PacketCompressor.decompress(packet, mInflated);
+                mMetrics.onCompressed(mInflated.remaining() - length);
+                deliver(mInflated);
+            }
+            packet.position(packet.limit());
+            return length;
+        }
+
+        private void deliver(ByteBuffer packet) throws IOException {
+            final PacketCapture capture = mCapture;
+            if (capture != null) {
+                capture.capture(packet, PacketCapture.INCOMING);
+            }
+            final DnsCache dnsCache = mDnsCache;
+            if (dnsCache != null && !dnsCache.onResponse(packet, System.currentTimeMillis())) {
+                // The answer to a refresh, which the app got from the cache already.
+                packet.position(packet.limit());
+                return;
+            }
+            mOut.write(packet);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mOut.isOpen();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final ReadableByteChannel mIn;
+    private final WritableByteChannel mOut;
+    private final Stripe[] mStripes;
+    private final PacketBufferPool mPool;
+    private final String mTag;
+
+    /** Largest packet or batch this side sends or receives. */
+    private final int mPacketSize;
+
+    /** Taken while compressing and sending what comes out of the queues. */
+    private final Object mSendLock = new Object();
+
+    /** How long the server keeps a silent session, or 0 if it did not say. */
+    private long mIdleTimeoutMs;
+
+    /** Counts what goes through, from every thread. */
+    private TunnelMetrics mMetrics = new TunnelMetrics();
+
+    /** Answers DNS lookups it knows, or {@code null} if there is no cache. */
+    private DnsCache mDnsCache;
+
+    /** Holds the answer of the cache, on the outgoing path. */
+    private ByteBuffer mDnsAnswer;
+
+    /** Compresses outgoing packets, or {@code null} if the server did not offer it. */
+    private PacketCompressor mCompressor;
+
+    /**
+     * Compresses the headers of small outgoing packets, or {@code null} if the server did not
+     * offer it.
+     */
+    private HeaderCompressor mHeaderCompressor;
+
+    /**
+     * Written by every worker whenever a packet arrives, read by the timers of the first.
+     * Control messages do not count, so pings cannot hide a black hole.
+     */
+    private volatile long mLastReceiveTime;
+
+    /** First failure seen by any other thread, rethrown on the calling thread. */
+    private final AtomicReference<IOException> mFailure = new AtomicReference<>();
+
+    /**
+     * Tells the other workers to return once {@link #run()} is done. They are not interrupted,
+     * since that would close the interface under one that is writing to it, and the interface
+     * outlives the session.
+     */
+    private volatile boolean mStopping;
+
+    /** Searches the path MTU again on suspicion, or {@code null} if that is off. */
+    private PathMtuProber mProber;
+    private int mPathMtu;
+    private long mLastProbeTime;
+    private boolean mReprobing;
+
+    /** Written by the outgoing path whenever a packet above the minimum MTU goes out. */
+    private volatile long mLastLargeSendTime;
+
+    /** Picks a socket for each packet if the tunnel is bonded, or {@code null} if not. */
+    private PathScheduler mPaths;
+
+    /** Copies what goes through the interface, or {@code null} if nobody asked for it. */
+    private PacketCapture mCapture;
+
+    /** Puts what arrives on a bonded tunnel back in order. Only set if it is bonded. */
+    private ReorderBuffer mReorder;
+
+    /** Packets waiting for each socket, as {@link PathScheduler#pick} sees them. */
+    private int[] mBacklogs;
+
+    /**
+     * @param in packets to be sent are queued in this channel. It should be blocking. If it
+     *           is {@code null}, the caller hands them over through {@link #send} instead.
+     * @param out packets received need to be written to this channel.
+     * @param tunnel a connected channel. It is switched to non-blocking mode.
+     * @param mtu the MTU of the interface, or 0 if the server did not push one.
+     */
+    PacketForwarder(ReadableByteChannel in, WritableByteChannel out, DatagramChannel tunnel,
+                    int mtu, String tag) {
+        this(in, out, new DatagramChannel[] {tunnel}, mtu, tag);
+    }
+
+    /**
+     * @param tunnels connected channels to stripe the tunnel across. They are switched to
+     *                non-blocking mode.
+     */
+    PacketForwarder(ReadableByteChannel in, WritableByteChannel out, DatagramChannel[] tunnels,
+                    int mtu, String tag) {
+        mIn = in;
+        mOut = out;
+        mStripes = new Stripe[tunnels.length];
+        for (int i = 0; i < tunnels.length; ++i) {
+            mStripes[i] = new Stripe(i, tunnels[i]);
+        }
+        setKeepaliveInterval(0, false);
+        mPacketSize = Math.max(mtu, DEFAULT_MTU);
+        // Incoming datagrams are opened in place, so the buffers have room for the seal, and
+        // for the parity header and sequence number in front of the largest datagram.
+        mPool = new PacketBufferPool(tunnels.length + 1 + POOL_HEADROOM, mPacketSize
+                + TunnelCipher.OVERHEAD + ParityEncoder.OVERHEAD + ReorderBuffer.HEADER_SIZE);
+        for (final Stripe stripe : mStripes) {
+            stripe.delivery = new Delivery(mPacketSize);
+            stripe.parityDecoder = new ParityEncoder.Decoder(
+                    mPacketSize + ReorderBuffer.HEADER_SIZE);
+            stripe.queue = new UplinkQueue(UplinkQueue.DEFAULT_CAPACITY, mPacketSize);
+            stripe.sender = new UplinkQueue.Sender() {
+                @Override
+                public boolean hasRoom() {
+                    return !stripe.outlet.isBlocked();
+                }
+
+                @Override
+                public boolean send(ByteBuffer packet) throws IOException {
+                    return sendQueued(stripe, packet);
+                }
+            };
+        }
+        mTag = tag;
+    }
+
+    /**
+     * Optionally, coalesce small outgoing packets into batches of up to {@code mtu} bytes,
+     * each waiting at most {@code deadlineMs}. Incoming batches are always understood. This
+     * must be called before {@link #run()}.
+     */
+    void setBatching(int mtu, long deadlineMs) {
+        for (Stripe stripe : mStripes) {
+            stripe.batcher = new PacketBatcher(stripe, mtu > 0 ? mtu : DEFAULT_MTU,
+                    deadlineMs);
+        }
+    }
+
+    /**
+     * Optionally, start from the keepalive interval learned by an earlier session instead of
+     * learning it from scratch. This must be called before {@link #run()}.
+     */
+    void setKeepaliveInterval(long intervalMs, boolean found) {
+        for (Stripe stripe : mStripes) {
+            stripe.keepalive = new KeepaliveScheduler(stripe.outlet, intervalMs, found);
+            if (mIdleTimeoutMs > 0) {
+                stripe.keepalive.setMaxInterval(mIdleTimeoutMs / 2);
+            }
+        }
+    }
+
+    /**
+     * Optionally, keep keepalives at most half as far apart as the server keeps a silent
+     * session, for servers that said so in the handshake. This must be called before
+     * {@link #run()}.
+     */
+    void setIdleTimeout(long timeoutMs) {
+        mIdleTimeoutMs = timeoutMs;
+        for (Stripe stripe : mStripes) {
+            stripe.keepalive.setMaxInterval(timeoutMs / 2);
+        }
+    }
+
+    /**
+     * @return the keepalive interval learned so far, worth passing on to the next session. This
+     *         is still valid once {@link #run()} threw.
+     */
+    long getKeepaliveInterval() {
+        return mStripes[0].keepalive.getInterval();
+    }
+
+    boolean isKeepaliveIntervalFound() {
+        return mStripes[0].keepalive.isIntervalFound();
+    }
+
+    /**
+     * Optionally, compress outgoing packets that shrink, once the server offered it. Incoming
+     * compressed packets are always understood. This must be called before {@link #run()}.
+     */
+    void setCompression(boolean enabled) {
+        mCompressor = enabled ? new PacketCompressor(mPool.getBufferSize()) : null;
+    }
+
+    /**
+     * Optionally, compress the headers of small outgoing packets, once the server offered it.
+     * Packets that shrink as a whole are not also compressed this way. This must be called
+     * before {@link #run()}.
+     */
+    void setHeaderCompression(boolean enabled) {
+        mHeaderCompressor = enabled ? new HeaderCompressor() : null;
+    }
+
+    /**
+     * Optionally, seal everything that goes out and drop whatever arrives without a valid seal,
+     * once the handshake agreed on keys. Only probes of the path MTU travel in the clear, so
+     * they measure the path as it is. This must be called before {@link #run()}.
+     */
+    void setCipher(TunnelCipher cipher) {
+        for (Stripe stripe : mStripes) {
+            stripe.outlet.setSealer(cipher.newSealer(), mPool.getBufferSize());
+            stripe.opener = cipher.newOpener();
+        }
+    }
+
+    /**
+     * Optionally, protect outgoing packets and batches with one parity per {@code groupSize} of
+     * them to start with, once the server offered it. The other side tells how many it loses,
+     * which shrinks or grows the groups. Incoming parity is always understood. This must be
+     * called before {@link #run()}.
+     */
+    void setErrorCorrection(int groupSize) {
+        for (Stripe stripe : mStripes) {
+            stripe.parity = groupSize > 0 ? new ParityEncoder(stripe.outlet,
+                    mPacketSize + ReorderBuffer.HEADER_SIZE, groupSize) : null;
+        }
+    }
+
+    /**
+     * Optionally, bond the sockets, once the server agreed: each packet goes out on the socket
+     * the {@link PathScheduler} picks, and in redundant mode small ones on all of them. Each
+     * socket should be on a network of its own. This must be called before {@link #run()}.
+     */
+    void setBonding(boolean redundant) {
+        mPaths = new PathScheduler(mStripes.length, redundant);
+        mReorder = new ReorderBuffer(ReorderBuffer.DEFAULT_CAPACITY, mPacketSize);
+        mBacklogs = new int[mStripes.length];
+        for (Stripe stripe : mStripes) {
+            stripe.paths = mPaths;
+            stripe.sequenced = ByteBuffer.allocateDirect(mPacketSize + ReorderBuffer.HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Optionally, answer DNS lookups from a cache, which should outlive the session so the
+     * answers do too. This must be called before {@link #run()}.
+     */
+    void setDnsCache(DnsCache cache) {
+        mDnsCache = cache;
+        mDnsAnswer = ByteBuffer.allocateDirect(mPacketSize);
+    }
+
+    /**
+     * Optionally, copy the packets that go through the interface either way into a capture,
+     * which should outlive the session. This must be called before {@link #run()}.
+     */
+    void setCapture(PacketCapture capture) {
+        mCapture = capture;
+    }
+
+    /**
+     * Optionally, count what goes through into metrics shared with others. Each forwarder
+     * counts into its own by default. This must be called before {@link #run()}.
+     */
+    void setMetrics(TunnelMetrics metrics) {
+        mMetrics = metrics;
+        for (Stripe stripe : mStripes) {
+            stripe.queue.setMetrics(metrics);
+        }
+    }
+
+    /**
+     * Optionally, watch for the path dropping packets of the given size and probe it again
+     * when it looks like it does. This must be called before {@link #run()}.
+     */
+    void setPathMtu(int mtu) {
+        mPathMtu = mtu;
+        mProber = new PathMtuProber(mStripes[0].tunnel, PathMtuProber.ceilingFor(
+                mStripes[0].tunnel));
+    }
+
+    /**
+     * @return the path MTU, which only differs from what was set once {@link #run()} returned.
+     */
+    int getPathMtu() {
+        return mPathMtu;
+    }
+
+    /**
+     * Keeps forwarding packets till something goes wrong, which is reported by throwing. The
+     * only normal return is when the path MTU shrank below that of the interface.
+     */
+    void run() throws IOException, InterruptedException {
+        final long now = System.currentTimeMillis();
+        for (Stripe stripe : mStripes) {
+            stripe.tunnel.configureBlocking(false);
+            stripe.tunnel.socket().setSendBufferSize(SEND_BUFFER_SIZE);
+            stripe.keepalive.start(now);
+        }
+        mLastReceiveTime = now;
+        if (mCompressor != null) {
+            // Let the server know it may compress too.
+            PacketCompressor.sendHello(mStripes[0].outlet);
+        }
+        for (Stripe stripe : mStripes) {
+            if (stripe.parity != null) {
+                // Let the server know it may protect what it sends too, starting from no loss.
+                ParityEncoder.sendReport(stripe.outlet, 0);
+            }
+        }
+
+        final Thread[] threads = new Thread[mStripes.length];
+        if (mIn != null) {
+            threads[0] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    forwardOutgoing();
+                }
+            }, mTag + "-out");
+        }
+        for (int i = 1; i < mStripes.length; ++i) {
+            final Stripe stripe = mStripes[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        forwardIncoming(stripe);
+                    } catch (InterruptedException e) {
+                        // We are being torn down.
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+            }, mTag + "-in" + i);
+        }
+
+        try {
+            for (Thread thread : threads) {
+                if (thread != null) {
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+            forwardIncoming(mStripes[0]);
+        } finally {
+            mStopping = true;
+            if (threads[0] != null) {
+                // Only the interface the caller handed over is read, so only it may close.
+                threads[0].interrupt();
+            }
+            for (int i = 1; i < mStripes.length; ++i) {
+                mStripes[i].wakeup();
+            }
+            for (int i = 1; i < threads.length; ++i) {
+                join(threads[i]);
+            }
+            for (Stripe stripe : mStripes) {
+                stripe.queue.close();
+            }
+        }
+    }
+
+    /** Waits for a thread to end, keeping an interrupt that comes meanwhile for later. */
+    private static void join(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Body of a worker: forwards what arrives on one socket and keeps it alive, which throws
+     * once the server is gone. The first worker also watches the path MTU and the failures of
+     * every other thread, and only returns when the path MTU shrank; the others return once
+     * {@link #mStopping} is set.
+     */
+    private void forwardIncoming(Stripe stripe) throws IOException, InterruptedException {
+        final boolean first = stripe == mStripes[0];
+        try (Selector selector = Selector.open()) {
+            stripe.selector = selector;
+            final SelectionKey key = stripe.tunnel.register(selector, SelectionKey.OP_READ);
+
+            // Checked after the selector is set, so a wakeup cannot come too early to be seen.
+            while (!mStopping) {
+                // Sleep until a packet arrives or the next timer is due.
+                final long now = System.currentTimeMillis();
+                long deadline = stripe.keepalive.getDeadline();
+                if (stripe.batcher != null) {
+                    deadline = Math.min(deadline, stripe.batcher.getFlushTime());
+                }
+                if (stripe.parity != null) {
+                    deadline = Math.min(deadline, stripe.parity.getFlushTime());
+                }
+                if (first && mProber != null) {
+                    deadline = Math.min(deadline, mProber.isProbing() ? mProber.getDeadline()
+                            : getBlackHoleTime());
+                }
+                if (mPaths != null) {
+                    deadline = Math.min(deadline, mPaths.getProbeTime(stripe.index));
+                    if (first) {
+                        deadline = Math.min(deadline, mReorder.getFlushTime());
+                    }
+                }
+                // Wait for room in the socket buffer too, if it was full.
+                key.interestOps(stripe.outlet.isBlocked()
+                        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                final boolean ready = selector.select(Math.max(1, deadline - now)) > 0;
+                selector.selectedKeys().clear();
+                final long loopStart = System.nanoTime();
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (mStopping) {
+                    return;
+                }
+                if (first) {
+                    final IOException failure = mFailure.get();
+                    if (failure != null) {
+                        throw failure;
+                    }
+                }
+
+                if (key.isValid() && key.isReadable()) {
+                    // Drain every datagram that is ready.
+                    while (forwardIncomingPacket(stripe)) {
+                    }
+                }
+                if (ready && key.isValid() && key.isWritable()) {
+                    // Send what waited for room.
+                    stripe.outlet.unblock();
+                    stripe.queue.drain(stripe.sender, System.nanoTime());
+                }
+
+                final long timeNow = System.currentTimeMillis();
+                if (first && mReorder != null) {
+                    // Whatever waited too long for what went missing goes on without it.
+                    mReorder.flushIfDue(stripe.delivery, timeNow);
+                }
+                try {
+                    if (stripe.batcher != null) {
+                        stripe.batcher.flushIfDue(timeNow);
+                    }
+                    if (stripe.parity != null) {
+                        // After the batcher, whose last batch may have joined the group.
+                        stripe.parity.flushIfDue(timeNow);
+                    }
+                    if (first && mProber != null && checkPathMtu(timeNow)) {
+                        return;
+                    }
+                    int keepalives = stripe.keepalive.onTimer(timeNow);
+                    if (mPaths != null && mPaths.probe(stripe.index, timeNow)) {
+                        // Measures the path, and its pong goes to the keepalive as well.
+                        stripe.keepalive.ping(timeNow);
+                        ++keepalives;
+                    }
+                    if (keepalives > 0) {
+                        mMetrics.onKeepalivesSent(keepalives);
+                    }
+                } catch (IOException e) {
+                    onPathFailed(stripe, e);
+                    try {
+                        // Listen for the server again, which brings the socket back.
+                        stripe.keepalive.restart(timeNow);
+                    } catch (IOException again) {
+                        // The probes of the scheduler keep trying.
+                    }
+                }
+                mMetrics.onLoopDone(loopStart);
+            }
+        } finally {
+            stripe.selector = null;
+        }
+    }
+
+    /**
+     * Takes the socket of a bonded tunnel out of use after it failed, while another one is
+     * still up. The socket stays, so it comes back once the server answers on it again.
+     *
+     * @throws IOException {@code e} if the tunnel is not bonded or no other socket is up.
+     */
+    private void onPathFailed(Stripe stripe, IOException e) throws IOException {
+        if (mPaths == null || !mPaths.onLost(stripe.index)) {
+            throw e;
+        }
+        Log.w(mTag, "Socket " + stripe.index + " failed, going on without it: " + e);
+    }
+
+    /**
+     * @return when the path will be suspected to be a black hole, if nothing arrives until then.
+     */
+    private long getBlackHoleTime() {
+        if (mLastLargeSendTime <= mLastReceiveTime) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(mLastReceiveTime + BLACK_HOLE_TIMEOUT_MS,
+                mLastProbeTime + REPROBE_INTERVAL_MS);
+    }
+
+    /**
+     * Drives the search for the path MTU, starting one if the path looks like a black hole.
+     *
+     * @return whether the path MTU shrank below that of the interface.
+     */
+    private boolean checkPathMtu(long now) throws IOException {
+        if (mProber.isProbing()) {
+            mProber.onTimer(now);
+            if (mProber.isProbing()) {
+                return false;
+            }
+        }
+        if (!mReprobing) {
+            if (getBlackHoleTime() <= now) {
+                Log.i(mTag, "Large packets get no answers, probing the path MTU");
+                mLastProbeTime = now;
+                mReprobing = true;
+                mProber.start(now);
+            }
+            return false;
+        }
+
+        // The search is over, whether it ended on a timer or on an echo.
+        mReprobing = false;
+        final int result = mProber.getResult();
+        Log.i(mTag, "Path MTU is " + result);
+        if (result > 0 && result < mPathMtu) {
+            mPathMtu = result;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads one datagram from the first socket, without blocking, and writes it to the
+     * interface.
+     *
+     * @return whether a datagram was read.
+     */
+    boolean forwardIncomingPacket() throws IOException {
+        return forwardIncomingPacket(mStripes[0]);
+    }
+
+    private boolean forwardIncomingPacket(Stripe stripe) throws IOException {
+        final ByteBuffer packet = mPool.acquire();
+        try {
+            if (stripe.tunnel.read(packet) <= 0) {
+                return false;
+            }
+            final long start = System.nanoTime();
+            packet.flip();
+            final long now = System.currentTimeMillis();
+            if (stripe.opener != null && !stripe.opener.open(packet)) {
+                // Only answers to probes may come in the clear; anything else is forged.
+                if (mProber != null && stripe == mStripes[0]) {
+                    mProber.onControl(packet, now);
+                }
+                return true;
+            }
+            stripe.keepalive.onReceive(now);
+
+            // Ignore control messages, which start with zero, unless they carry packets.
+            if (packet.get(packet.position()) != 0 || PacketCompressor.isCompressed(packet)
+                    || ReorderBuffer.isSequenced(packet)) {
+                // Write the incoming packet to the interface.
+                mMetrics.onPacketReceived(packet.remaining());
+                stripe.delivery.write(packet);
+                mLastReceiveTime = now;
+                mMetrics.onForwarded(start);
+            } else if (PacketBatcher.isBatch(packet)) {
+                // Counted as one packet, which is what it was on the wire.
+                mMetrics.onPacketReceived(packet.remaining());
+                PacketBatcher.unbatch(packet, stripe.delivery);
+                mLastReceiveTime = now;
+                mMetrics.onForwarded(start);
+            } else if (ParityEncoder.isReport(packet)) {
+                if (stripe.parity != null) {
+                    stripe.parity.setLoss(ParityEncoder.getReportedLoss(packet));
+                }
+            } else if (ParityEncoder.isFec(packet)) {
+                // Parity counts as a packet too, since it took its share of the link.
+                mMetrics.onPacketReceived(packet.remaining());
+                if (stripe.parityDecoder.decode(packet, stripe.delivery)) {
+                    mMetrics.onRecovered();
+                }
+                if (stripe.parityDecoder.isReportDue()) {
+                    ParityEncoder.sendReport(stripe.outlet, stripe.parityDecoder.getLoss());
+                }
+                mLastReceiveTime = now;
+                mMetrics.onForwarded(start);
+            } else if (stripe.keepalive.onControl(packet, now)) {
+                if (mPaths != null) {
+                    mPaths.onAnswer(stripe.index, stripe.keepalive.getLastRtt());
+                    mReorder.setHoldTime(mPaths.getHoldTime());
+                }
+            } else if (mProber != null && stripe == mStripes[0]) {
+                mProber.onControl(packet, now);
+            }
+            return true;
+        } finally {
+            mPool.release(packet);
+        }
+    }
+
+    /**
+     * Reads one packet from the interface and writes it to the socket its flow maps to. This
+     * blocks if the interface does.
+     *
+     * @return whether a packet was read.
+     */
+    boolean forwardOutgoingPacket() throws IOException {
+        final ByteBuffer packet = mPool.acquire();
+        try {
+            final int length = mIn.read(packet);
+            if (length < 0) {
+                throw new IOException("Interface closed");
+            }
+            if (length == 0) {
+                return false;
+            }
+            packet.flip();
+            writeOutgoingPacket(packet);
+            return true;
+        } finally {
+            mPool.release(packet);
+        }
+    }
+
+    /**
+     * Writes a packet read from the interface by someone else, on their thread. Failures are
+     * reported by {@link #run()}.
+     */
+    @Override
+    public void send(ByteBuffer packet) {
+        try {
+            writeOutgoingPacket(packet);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Ends {@link #run()} with the failure of whoever reads the interface for us. */
+    @Override
+    public void onFailed(IOException e) {
+        fail(e);
+    }
+
+    /**
+     * Queues an outgoing packet for the socket its flow maps to, and sends what is due while
+     * the socket buffer has room.
+     */
+    private void writeOutgoingPacket(ByteBuffer packet) throws IOException {
+        final long start = System.nanoTime();
+        final long now = System.currentTimeMillis();
+        final int length = packet.remaining();
+        if (length > PathMtuProber.MIN_MTU) {
+            mLastLargeSendTime = now;
+        }
+        if (mCapture != null) {
+            mCapture.capture(packet, PacketCapture.OUTGOING);
+        }
+        if (mDnsCache != null) {
+            // A lookup answered here skips the round trip, unless it refreshes the answer too.
+            final int answer = mDnsCache.answer(packet, mDnsAnswer, now);
+            if (answer != DnsCache.MISS) {
+                if (mCapture != null) {
+                    mCapture.capture(mDnsAnswer, PacketCapture.INCOMING);
+                }
+                mOut.write(mDnsAnswer);
+                mMetrics.onLookupAnswered();
+                if (answer == DnsCache.HIT) {
+                    packet.position(packet.limit());
+                    mMetrics.onForwarded(start);
+                    return;
+                }
+            }
+        }
+        final Stripe stripe;
+        if (mPaths == null) {
+            stripe = mStripes[FlowHash.bucket(packet, mStripes.length)];
+        } else if (mPaths.isRedundant(length)) {
+            sendRedundant(packet, now);
+            mMetrics.onForwarded(start);
+            return;
+        } else {
+            for (int i = 0; i < mStripes.length; ++i) {
+                // A full socket buffer counts as a full backlog.
+                mBacklogs[i] = mStripes[i].queue.size()
+                        + (mStripes[i].outlet.isBlocked() ? PathScheduler.MAX_BACKLOG : 0);
+            }
+            stripe = mStripes[mPaths.pick(mBacklogs)];
+        }
+        stripe.queue.offer(packet, start);
+        try {
+            stripe.queue.drain(stripe.sender, System.nanoTime());
+        } catch (IOException e) {
+            onPathFailed(stripe, e);
+        }
+        if (stripe.outlet.isBlocked()) {
+            // Let the worker know to wait for room.
+            stripe.wakeup();
+        }
+        mMetrics.onForwarded(start);
+    }
+
+    /**
+     * Sends a packet that comes out of the queue of a socket, on whichever thread drains it.
+     * The queue only hands it over while the socket has room, so it is only compressed then.
+     * A write that finds the socket full after all leaves the packet for the queue to keep; the
+     * header compressor takes what it sent for it as lost, which its repeated refreshes cover.
+     *
+     * @return whether the packet went out.
+     */
+    private boolean sendQueued(Stripe stripe, ByteBuffer packet) throws IOException {
+        final long now = System.currentTimeMillis();
+        final int length = packet.remaining();
+        final int position = packet.position();
+        boolean sent = true;
+        // The compressors are shared by every socket, so the queues take turns with them.
+        synchronized (mSendLock) {
+            final ByteBuffer datagram = compress(packet);
+            if (stripe.batcher == null) {
+                if (stripe.write(datagram) == 0) {
+                    packet.position(position);
+                    sent = false;
+                } else {
+                    mMetrics.onPacketSent(length);
+                }
+            } else {
+                if (stripe.batcher.send(datagram, now)) {
+                    // Let the worker know when the new batch is due.
+                    stripe.wakeup();
+                }
+                mMetrics.onPacketSent(length);
+            }
+        }
+        if (stripe.parity != null && stripe.parity.takeGroupStarted()) {
+            // Let the worker know when the parity of the new group is due.
+            stripe.wakeup();
+        }
+        if (sent) {
+            stripe.keepalive.onSend(now);
+        }
+        return sent;
+    }
+
+    /**
+     * Sends a small packet of a bonded tunnel on every socket that is up, all with the same
+     * sequence number, so the copy that arrives first counts. It skips the queues and the
+     * batches, since it is sent this way so it does not wait.
+     */
+    private void sendRedundant(ByteBuffer packet, long now) throws IOException {
+        final int length = packet.remaining();
+        boolean sent = false;
+        synchronized (mSendLock) {
+            packet = compress(packet);
+            final int sequence = mPaths.nextSequence();
+            for (Stripe stripe : mStripes) {
+                if (!mPaths.isUp(stripe.index)) {
+                    continue;
+                }
+                try {
+                    if (stripe.batcher != null) {
+                        // What was batched before goes first, so the sequence stays in order.
+                        stripe.batcher.flush();
+                    }
+                    final int position = packet.position();
+                    sent |= stripe.write(sequence, packet) > 0;
+                    packet.position(position);
+                } catch (IOException e) {
+                    onPathFailed(stripe, e);
+                }
+                stripe.keepalive.onSend(now);
+            }
+            packet.position(packet.limit());
+        }
+        if (sent) {
+            mMetrics.onPacketSent(length);
+        } else {
+            mMetrics.onPacketDropped();
+        }
+    }
+
+    /**
+     * Compresses a packet, or its header, if that is on and it shrinks. This must be called
+     * under {@link #mSendLock}.
+     *
+     * @return what to send instead of the packet, which is then consumed, or the packet.
+     */
+    private ByteBuffer compress(ByteBuffer packet) {
+        final int length = packet.remaining();
+        ByteBuffer compressed = null;
+        if (mCompressor != null) {
+            compressed = mCompressor.compress(packet);
+        }
+        if (compressed == null && mHeaderCompressor != null) {
+            compressed = mHeaderCompressor.compress(packet);
+        }
+        if (compressed == null) {
+            return packet;
+        }
+        // A header refresh is a little longer, which counts against the savings.
+        mMetrics.onCompressed(length - compressed.remaining());
+        packet.position(packet.limit());
+        return compressed;
+    }
+
+    /** Records the failure of a thread other than the calling one and wakes the latter up. */
+    private void fail(IOException e) {
+        if (!mStopping && !Thread.currentThread().isInterrupted()) {
+            Log.e(mTag, "Forwarding failed", e);
+            mFailure.compareAndSet(null, e);
+            mStripes[0].wakeup();
+        }
+    }
+
+    /** Body of the outgoing thread: blocks on the interface until it is torn down. */
+    private void forwardOutgoing() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (!forwardOutgoingPacket()) {
+                    // Interfaces established before Lollipop cannot be made blocking.
+                    Thread.sleep(LEGACY_IDLE_INTERVAL_MS);
+                }
+            }
+        } catch (InterruptedException e) {
+            // We are being torn down.
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Protects outgoing datagrams with XOR parity, so the other side can rebuild one that got
+ * lost instead of waiting a round trip for TCP to send it again.
+ *
+ * Datagrams go out in groups, each one framed as
+ * {@code [0][CONTROL_FEC][group, 2 bytes][index]} followed by the datagram. After the last
+ * one of a group comes its parity, {@code [0][CONTROL_FEC][group][INDEX_PARITY][count]
+ * [lengths XORed, 2 bytes]} followed by every datagram of the group XORed together, the
+ * shorter ones padded with zeros. The receiver, see {@link Decoder}, rebuilds any single
+ * datagram of a group it missed. A group that is not full goes out with its parity once it is
+ * {@link #FLUSH_DELAY_MS} old, so the last packets of a burst are protected too.
+ *
+ * Groups shrink when the other side reports losses and grow when it does not, between
+ * {@link #MIN_GROUP_SIZE} and {@link #MAX_GROUP_SIZE}, so the parity costs as little as the
+ * link allows. Reports are {@code [0][CONTROL_FEC][0][0][INDEX_REPORT][loss, 2 bytes]}, the
+ * loss in thousandths. XOR cannot rebuild two losses in one group; that takes Reed-Solomon,
+ * which is left for when the reports show it would pay off.
+ *
+ * Both the outgoing path and the worker write here, so everything is synchronized.
+ */
+class ParityEncoder implements WritableByteChannel {
+    /** Control message type of everything parity adds, following the leading zero byte. */
+    static final byte CONTROL_FEC = 11;
+
+    static final int INDEX_PARITY = 0xFF;
+    static final int INDEX_REPORT = 0xFE;
+
+    static final int MIN_GROUP_SIZE = 2;
+    static final int MAX_GROUP_SIZE = 32;
+
+    /** Time a group that is not full waits for more datagrams before its parity goes out. */
+    static final long FLUSH_DELAY_MS = 20;
+
+    static final int DATA_HEADER_SIZE = 5;
+    static final int PARITY_HEADER_SIZE = 8;
+    private static final int REPORT_SIZE = 7;
+
+    /** What protection adds to the largest datagram, which is the header of its parity. */
+    static final int OVERHEAD = PARITY_HEADER_SIZE;
+
+    private final WritableByteChannel mTunnel;
+    private final int mMaxLength;
+    private final ByteBuffer mFrame;
+    private final ByteBuffer mParity;
+
+    private int mGroupSize;
+    private int mGroup;
+    private int mCount;
+    private int mLongest;
+    private int mLengths;
+    private long mFlushTime;
+    private boolean mStarted;
+
+    /**
+     * @param tunnel where datagrams are written to.
+     * @param maxLength the largest datagram to protect; larger ones go as they are.
+     * @param groupSize datagrams per group to start with, until the other side reports.
+     */
+    ParityEncoder(WritableByteChannel tunnel, int maxLength, int groupSize) {
+        mTunnel = tunnel;
+        mMaxLength = maxLength;
+        mFrame = ByteBuffer.allocateDirect(DATA_HEADER_SIZE + maxLength);
+        mParity = ByteBuffer.allocateDirect(PARITY_HEADER_SIZE + maxLength);
+        mGroupSize = Math.max(MIN_GROUP_SIZE, Math.min(MAX_GROUP_SIZE, groupSize));
+    }
+
+    /**
+     * Sends a datagram as part of the current group.
+     *
+     * @return its length, or 0 if the socket buffer was full. It stays in the group either
+     *         way, so the other side may still rebuild it.
+     */
+    @Override
+    public synchronized int write(ByteBuffer datagram) throws IOException {
+        final int length = datagram.remaining();
+        if (length > mMaxLength) {
+            return mTunnel.write(datagram);
+        }
+        if (mCount == 0) {
+            mFlushTime = System.currentTimeMillis() + FLUSH_DELAY_MS;
+            mStarted = true;
+        }
+        final int start = datagram.position();
+        xor(datagram, start, length, mParity, PARITY_HEADER_SIZE);
+        mLengths ^= length;
+        mLongest = Math.max(mLongest, length);
+
+        mFrame.clear();
+        mFrame.put((byte) 0).put(CONTROL_FEC).putShort((short) mGroup).put((byte) mCount)
+                .put(datagram).flip();
+        final int written = mTunnel.write(mFrame);
+        if (++mCount >= mGroupSize) {
+            flush();
+        }
+        if (written == 0) {
+            datagram.position(start);
+            return 0;
+        }
+        return length;
+    }
+
+    /** Returns whether a group started since the last call, meaning a flush is now pending. */
+    synchronized boolean takeGroupStarted() {
+        final boolean started = mStarted;
+        mStarted = false;
+        return started;
+    }
+
+    /**
+     * @return when the parity of the current group must go out, or {@link Long#MAX_VALUE} if
+     *         there is none.
+     */
+    synchronized long getFlushTime() {
+        return mCount == 0 ? Long.MAX_VALUE : mFlushTime;
+    }
+
+    /** Sends the parity of the current group if its time has come. */
+    synchronized void flushIfDue(long now) throws IOException {
+        if (mCount != 0 && mFlushTime <= now) {
+            flush();
+        }
+    }
+
+    /** Adapts the size of the groups to come to the loss the other side reported. */
+    synchronized void setLoss(int lossPerMille) throws IOException {
+        mGroupSize = getGroupSize(lossPerMille);
+        if (mCount >= mGroupSize) {
+            flush();
+        }
+    }
+
+    synchronized int getGroupSize() {
+        return mGroupSize;
+    }
+
+    /**
+     * Returns the group size for a loss rate: one parity for about every four datagrams the
+     * link loses on average, so two losses in one group stay rare.
+     */
+    static int getGroupSize(int lossPerMille) {
+        if (lossPerMille <= 0) {
+            return MAX_GROUP_SIZE;
+        }
+        return Math.max(MIN_GROUP_SIZE, Math.min(MAX_GROUP_SIZE, 250 / lossPerMille));
+    }
+
+    private void flush() throws IOException {
+        mParity.clear();
+        mParity.put((byte) 0).put(CONTROL_FEC).putShort((short) mGroup).put((byte) INDEX_PARITY)
+                .put((byte) mCount).putShort((short) mLengths);
+        mParity.limit(PARITY_HEADER_SIZE + mLongest).position(0);
+        mTunnel.write(mParity);
+        mParity.clear();
+
+        for (int i = PARITY_HEADER_SIZE; i < PARITY_HEADER_SIZE + mLongest; ++i) {
+            mParity.put(i, (byte) 0);
+        }
+        mGroup = (mGroup + 1) & 0xFFFF;
+        mCount = 0;
+        mLongest = 0;
+        mLengths = 0;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mTunnel.isOpen();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /** XORs {@code length} bytes of {@code src} into {@code dst}, eight at a time. */
+    static void xor(ByteBuffer src, int srcOffset, int length, ByteBuffer dst, int dstOffset) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            dst.putLong(dstOffset + i, dst.getLong(dstOffset + i) ^ src.getLong(srcOffset + i));
+        }
+        for (; i < length; ++i) {
+            dst.put(dstOffset + i, (byte) (dst.get(dstOffset + i) ^ src.get(srcOffset + i)));
+        }
+    }
+
+    /** Tells the other side the loss it causes, which also says we understand parity. */
+    static void sendReport(WritableByteChannel tunnel, int lossPerMille) throws IOException {
+        final ByteBuffer report = ByteBuffer.allocate(REPORT_SIZE);
+        report.put((byte) 0).put(CONTROL_FEC).putShort((short) 0).put((byte) INDEX_REPORT)
+                .putShort((short) lossPerMille).flip();
+        tunnel.write(report);
+    }
+
+    /** @return whether the datagram between position and limit is something parity added. */
+    static boolean isFec(ByteBuffer datagram) {
+        return datagram.remaining() >= DATA_HEADER_SIZE
+                && datagram.get(datagram.position()) == 0
+                && datagram.get(datagram.position() + 1) == CONTROL_FEC;
+    }
+
+    static boolean isReport(ByteBuffer datagram) {
+        return isFec(datagram) && datagram.remaining() >= REPORT_SIZE
+                && (datagram.get(datagram.position() + 4) & 0xFF) == INDEX_REPORT;
+    }
+
+    static int getReportedLoss(ByteBuffer datagram) {
+        return datagram.getShort(datagram.position() + 5) & 0xFFFF;
+    }
+
+    /**
+     * Takes datagrams apart and rebuilds the one missing from a group, if only one is. It also
+     * measures how many go missing, for the reports. It keeps the last few groups, so
+     * datagrams that arrive a little out of order are fine. Each worker has its own.
+     */
+    static final class Decoder {
+        private static final int SLOTS = 4;
+
+        /** Groups whose loss is measured between two reports. */
+        static final int REPORT_INTERVAL = 16;
+
+        private static final class Slot {
+            final ByteBuffer xor;
+            int group = -1;
+            int received;
+            int count = -1;
+            int lengths;
+            int longest;
+            boolean recovered;
+
+            Slot(int maxLength) {
+                xor = ByteBuffer.allocateDirect(maxLength);
+            }
+        }
+
+        private final Slot[] mSlots = new Slot[SLOTS];
+        private final int mMaxLength;
+
+        /** Thousandths lost, smoothed over groups. */
+        private int mLoss;
+        private int mMeasured;
+
+        Decoder(int maxLength) {
+            mMaxLength = maxLength;
+            for (int i = 0; i < SLOTS; ++i) {
+                mSlots[i] = new Slot(maxLength);
+            }
+        }
+
+        /**
+         * Writes the datagram within to {@code out}, or the one rebuilt with the help of a
+         * parity, unless it is one that was written already. The datagram is consumed.
+         *
+         * @return whether a datagram was rebuilt.
+         * @throws IOException if it is malformed.
+         */
+        boolean decode(ByteBuffer datagram, WritableByteChannel out) throws IOException {
+            final int start = datagram.position();
+            final int length = datagram.remaining();
+            final int group = datagram.getShort(start + 2) & 0xFFFF;
+            final int index = datagram.get(start + 4) & 0xFF;
+            datagram.position(datagram.limit());
+            final Slot slot = mSlots[group % SLOTS];
+            if (slot.group != group) {
+                if (slot.group >= 0 && (short) (group - slot.group) < 0) {
+                    // The slot moved on to a newer group, so this one is too old to track.
+                    if (index < MAX_GROUP_SIZE) {
+                        datagram.position(start + DATA_HEADER_SIZE);
+                        out.write(datagram);
+                    }
+                    return false;
+                }
+                reset(slot, group);
+            }
+
+            if (index == INDEX_PARITY) {
+                if (length < PARITY_HEADER_SIZE
+                        || length - PARITY_HEADER_SIZE > mMaxLength) {
+                    throw new IOException("Bad parity");
+                }
+                if (slot.count >= 0) {
+                    return false;
+                }
+                slot.count = Math.min(datagram.get(start + 5) & 0xFF, MAX_GROUP_SIZE);
+                slot.lengths ^= datagram.getShort(start + 6) & 0xFFFF;
+                add(slot, datagram, start + PARITY_HEADER_SIZE, length - PARITY_HEADER_SIZE);
+            } else if (index < MAX_GROUP_SIZE) {
+                if (length - DATA_HEADER_SIZE > mMaxLength) {
+                    throw new IOException("Datagram too long");
+                }
+                if ((slot.received & 1 << index) != 0) {
+                    // Rebuilt already, or a duplicate.
+                    return false;
+                }
+                slot.received |= 1 << index;
+                slot.lengths ^= length - DATA_HEADER_SIZE;
+                add(slot, datagram, start + DATA_HEADER_SIZE, length - DATA_HEADER_SIZE);
+                datagram.limit(start + length).position(start + DATA_HEADER_SIZE);
+                out.write(datagram);
+                datagram.position(datagram.limit());
+            } else {
+                return false;
+            }
+            return recover(slot, out);
+        }
+
+        /** Rebuilds the one datagram the slot misses, if that is all it misses. */
+        private boolean recover(Slot slot, WritableByteChannel out) throws IOException {
+            if (slot.count < 0 || slot.recovered) {
+                return false;
+            }
+            final int all = slot.count == 32 ? -1 : (1 << slot.count) - 1;
+            final int missing = all & ~slot.received;
+            if (Integer.bitCount(missing) != 1) {
+                return false;
+            }
+            // What is left after XORing away everything that arrived is the missing one.
+            final int length = slot.lengths;
+            if (length <= 0 || length > slot.longest) {
+                return false;
+            }
+            slot.received |= missing;
+            slot.recovered = true;
+            slot.xor.limit(length).position(0);
+            out.write(slot.xor);
+            slot.xor.clear();
+            return true;
+        }
+
+        private void add(Slot slot, ByteBuffer datagram, int offset, int length) {
+            xor(datagram, offset, length, slot.xor, 0);
+            slot.longest = Math.max(slot.longest, length);
+        }
+
+        /** Measures the loss of the group in the slot and makes room for the next one. */
+        private void reset(Slot slot, int group) {
+            if (slot.count > 0) {
+                int lost = slot.count - Integer.bitCount(slot.received);
+                if (slot.recovered) {
+                    ++lost;
+                }
+                // Smooth it, like TCP does its round trip time.
+                mLoss += (lost * 1000 / slot.count - mLoss) / 8;
+                ++mMeasured;
+            }
+            for (int i = 0; i < slot.longest; ++i) {
+                slot.xor.put(i, (byte) 0);
+            }
+            slot.group = group;
+            slot.received = 0;
+            slot.count = -1;
+            slot.lengths = 0;
+            slot.longest = 0;
+            slot.recovered = false;
+        }
+
+        /** @return the loss measured so far, in thousandths. */
+        int getLoss() {
+            return mLoss;
+        }
+
+        /**
+         * @return whether enough groups were measured since the last time this returned true
+         *         that the other side should hear about it.
+         */
+        boolean isReportDue() {
+            if (mMeasured < REPORT_INTERVAL) {
+                return false;
+            }
+            mMeasured = 0;
+            return true;
+        }
+    }
+}
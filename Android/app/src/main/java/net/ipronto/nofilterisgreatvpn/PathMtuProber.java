@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Inet6Address;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the largest datagram that makes it to the server and back.
+ *
+ * A probe is a control message: a zero byte, {@link #CONTROL_PROBE}, a 16-bit sequence number
+ * and padding up to the size being tried. The server echoes it with the type changed to
+ * {@link #CONTROL_PROBE_ACK}, so both directions are tested. The search first checks that the
+ * server answers at all, then tries the largest size the local network allows, and only falls
+ * back to a binary search if that is lost. Servers that never answer leave the result at -1,
+ * meaning the MTU they pushed should be kept.
+ *
+ * This is a state machine without threads of its own: whoever owns the tunnel feeds it
+ * control messages and timer ticks, or calls {@link #probe} to run it to completion.
+ */
+class PathMtuProber {
+    static final byte CONTROL_PROBE = 2;
+    static final byte CONTROL_PROBE_ACK = 3;
+
+    /** Smallest MTU we ever settle for, the minimum every IPv4 host must handle. */
+    static final int MIN_MTU = 576;
+
+    /** Bytes of IP and UDP headers in front of every datagram, per address family. */
+    private static final int IPV4_OVERHEAD = 20 + 8;
+    private static final int IPV6_OVERHEAD = 40 + 8;
+
+    /** Bytes in front of the padding. */
+    private static final int HEADER_SIZE = 4;
+
+    /** Time to wait for the echo of a probe before trying again. */
+    private static final long PROBE_TIMEOUT_MS = TimeUnit.MILLISECONDS.toMillis(500);
+
+    /** Number of probes of one size that must be lost before giving up on it. */
+    private static final int MAX_ATTEMPTS = 2;
+
+    /** The search stops once the bounds are this close. */
+    private static final int RESOLUTION = 8;
+
+    /** Time after which the search settles for the largest size known to work. */
+    private static final long MAX_DURATION_MS = TimeUnit.SECONDS.toMillis(4);
+
+    private final DatagramChannel mTunnel;
+    private final ByteBuffer mProbe;
+    private final int mCeiling;
+
+    /** Largest size known to work, or 0 if the server has not answered yet. */
+    private int mLow;
+    /** Smallest size known to be lost. */
+    private int mHigh;
+
+    private int mSize;
+    private short mSequence;
+    private int mAttempts;
+    private long mDeadline = Long.MAX_VALUE;
+    private long mGiveUpTime;
+    private boolean mProbing;
+
+    /**
+     * @param ceiling the largest datagram the local network can send, see {@link #ceilingFor}.
+     */
+    PathMtuProber(DatagramChannel tunnel, int ceiling) {
+        mTunnel = tunnel;
+        mCeiling = Math.max(ceiling, MIN_MTU);
+        mProbe = ByteBuffer.allocateDirect(mCeiling);
+    }
+
+    /**
+     * @return the largest UDP payload the network behind a connected tunnel can send without
+     *         fragmenting locally.
+     */
+    static int ceilingFor(DatagramChannel tunnel) {
+        final InetAddress local = tunnel.socket().getLocalAddress();
+        final int overhead = local instanceof Inet6Address ? IPV6_OVERHEAD : IPV4_OVERHEAD;
+        int mtu = PacketForwarder.DEFAULT_MTU;
+        try {
+            final NetworkInterface network = NetworkInterface.getByInetAddress(local);
+            if (network != null && network.getMTU() > 0) {
+                mtu = network.getMTU();
+            }
+        } catch (IOException e) {
+            // Assume Ethernet.
+        }
+        return mtu - overhead;
+    }
+
+    /**
+     * Runs a whole search on a tunnel nobody else is reading from.
+     *
+     * @return the largest size that made it both ways, or -1 if the server never answered.
+     */
+    static int probe(DatagramChannel tunnel) throws IOException, InterruptedException {
+        return probe(tunnel, ceilingFor(tunnel));
+    }
+
+    static int probe(DatagramChannel tunnel, int ceiling)
+            throws IOException, InterruptedException {
+        final PathMtuProber prober = new PathMtuProber(tunnel, ceiling);
+        final ByteBuffer packet = ByteBuffer.allocateDirect(prober.mCeiling);
+        final boolean blocking = tunnel.isBlocking();
+        tunnel.configureBlocking(false);
+        try (Selector selector = Selector.open()) {
+            tunnel.register(selector, SelectionKey.OP_READ);
+            prober.start(System.currentTimeMillis());
+            while (prober.isProbing()) {
+                selector.select(Math.max(1, prober.getDeadline() - System.currentTimeMillis()));
+                selector.selectedKeys().clear();
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                packet.clear();
+                while (tunnel.read(packet) > 0) {
+                    packet.flip();
+                    prober.onControl(packet, System.currentTimeMillis());
+                    packet.clear();
+                }
+                prober.onTimer(System.currentTimeMillis());
+            }
+        }
+        // Closing the selector deregistered the tunnel, so it can block again.
+        tunnel.configureBlocking(blocking);
+        return prober.getResult();
+    }
+
+    /** Starts a new search, forgetting the result of the last one. */
+    void start(long now) throws IOException {
+        mLow = 0;
+        mHigh = mCeiling + 1;
+        mGiveUpTime = now + MAX_DURATION_MS;
+        mProbing = true;
+
+        // Make sure the server answers before reading anything into silence.
+        send(MIN_MTU, now);
+    }
+
+    boolean isProbing() {
+        return mProbing;
+    }
+
+    /**
+     * @return when {@link #onTimer} has something to do, or {@link Long#MAX_VALUE} if never.
+     */
+    long getDeadline() {
+        return mProbing ? mDeadline : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the largest size that made it both ways, or -1 if the server never answered.
+     *         Only meaningful once the search is over.
+     */
+    int getResult() {
+        return mLow == 0 ? -1 : mLow;
+    }
+
+    /**
+     * Handles a control message.
+     *
+     * @param datagram the message between its position and limit, which are left untouched.
+     * @return whether the message was the echo of a probe.
+     */
+    boolean onControl(ByteBuffer datagram, long now) throws IOException {
+        final int start = datagram.position();
+        if (datagram.remaining() < HEADER_SIZE || datagram.get(start) != 0
+                || datagram.get(start + 1) != CONTROL_PROBE_ACK) {
+            return false;
+        }
+        // Echoes of probes of other sizes are stale: we already moved on from them. The echo
+        // of an earlier attempt at the current size still counts.
+        if (mProbing && datagram.remaining() == mSize) {
+            mLow = mSize;
+            next(now);
+        }
+        return true;
+    }
+
+    /** Handles the loss of the current probe, if its time is up. */
+    void onTimer(long now) throws IOException {
+        if (!mProbing || now < mDeadline) {
+            return;
+        }
+        if (now >= mGiveUpTime || mLow == 0 && mAttempts >= MAX_ATTEMPTS) {
+            // Either the server does not support probing or it is gone; the
+            // caller keeps what it had either way.
+            mProbing = false;
+        } else if (mAttempts >= MAX_ATTEMPTS) {
+            mHigh = mSize;
+            next(now);
+        } else {
+            send(mSize, now);
+        }
+    }
+
+    private void next(long now) throws IOException {
+        if (mHigh - mLow <= RESOLUTION) {
+            mProbing = false;
+        } else if (mHigh > mCeiling) {
+            // Most paths carry whatever the local network does, so try that first.
+            send(mCeiling, now);
+        } else {
+            send((mLow + mHigh) >>> 1, now);
+        }
+    }
+
+    private void send(int size, long now) throws IOException {
+        if (size != mSize) {
+            mAttempts = 0;
+        }
+        mSize = size;
+        ++mAttempts;
+        mDeadline = now + PROBE_TIMEOUT_MS;
+
+        mProbe.clear();
+        mProbe.put((byte) 0).put(CONTROL_PROBE).putShort(++mSequence);
+        mProbe.position(size);
+        mProbe.flip();
+        mTunnel.write(mProbe);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which path each packet of a bonded tunnel takes, when the paths are sockets on
+ * different networks, such as Wi-Fi and cellular, to the same server.
+ *
+ * Every path is pinged every {@link #PROBE_INTERVAL_MS}, which measures its round trip time
+ * and how many pings it loses. A packet takes the path that costs least, the round trip
+ * weighted by the loss, unless that one has {@link #MAX_BACKLOG} packets waiting already, in
+ * which case the next cheapest takes the overflow. That way the best path carries everything
+ * while it keeps up, and the others add what they can once it does not. A path that loses
+ * {@link #MAX_LOST_PROBES} pings in a row is down and gets nothing till it answers again.
+ *
+ * In redundant mode, small packets go out on every path that is up: they are the lookups,
+ * handshakes and acknowledgments that something waits on, and whichever copy arrives first
+ * wins. The other side tells the copies apart by their sequence number, which every datagram
+ * of a bonded tunnel carries whatever path it takes; see {@link ReorderBuffer}.
+ *
+ * Each path is measured by the worker of its socket, while any thread can pick paths.
+ */
+class PathScheduler {
+    /** Time between two pings on each path. */
+    static final long PROBE_INTERVAL_MS = TimeUnit.MILLISECONDS.toMillis(500);
+
+    /** Pings in a row a path can lose before it counts as down. */
+    static final int MAX_LOST_PROBES = 3;
+
+    /** Packets waiting for a path before the next best one takes the overflow. */
+    static final int MAX_BACKLOG = 8;
+
+    /** Largest packet that is sent on every path in redundant mode. */
+    static final int REDUNDANT_MAX_SIZE = UplinkQueue.INTERACTIVE_MAX_SIZE;
+
+    /** Round trip assumed for a path that did not answer yet, which puts it behind the rest. */
+    static final long UNKNOWN_RTT_MS = TimeUnit.SECONDS.toMillis(1);
+
+    /** Least and most a datagram that came early waits; see {@link #getHoldTime}. */
+    static final long MIN_HOLD_MS = TimeUnit.MILLISECONDS.toMillis(5);
+    static final long MAX_HOLD_MS = TimeUnit.MILLISECONDS.toMillis(200);
+
+    /** Loss is kept in parts of this, and this much loss makes a path cost this much more. */
+    private static final int LOSS_SCALE = 1024;
+    private static final int LOSS_WEIGHT = 10;
+
+    private static final class Path {
+        /** Smoothed round trip time, or 0 before the first answer. */
+        volatile long srtt;
+        /** Smoothed share of pings lost, in parts of {@link #LOSS_SCALE}. */
+        volatile int loss;
+        volatile boolean up = true;
+
+        /** When the ping not answered yet went out, or 0. Only the worker uses these. */
+        long probeTime;
+        long nextProbeTime;
+        int lostProbes;
+    }
+
+    private final Path[] mPaths;
+    private final boolean mRedundant;
+    private final AtomicInteger mSequence = new AtomicInteger();
+
+    /**
+     * @param redundant whether small packets go out on every path.
+     */
+    PathScheduler(int paths, boolean redundant) {
+        mPaths = new Path[paths];
+        for (int i = 0; i < paths; ++i) {
+            mPaths[i] = new Path();
+        }
+        mRedundant = redundant;
+    }
+
+    int getPathCount() {
+        return mPaths.length;
+    }
+
+    /** @return the number of the next datagram, whatever path it takes. */
+    int nextSequence() {
+        return mSequence.getAndIncrement();
+    }
+
+    /** @return when the next ping is due on a path. */
+    long getProbeTime(int path) {
+        return mPaths[path].nextProbeTime;
+    }
+
+    /**
+     * Called by the worker of a path on its timer. The ping before counts as lost if it is
+     * still not answered.
+     *
+     * @return whether a ping should go out now, which counts as sent.
+     */
+    boolean probe(int path, long now) {
+        final Path p = mPaths[path];
+        if (now < p.nextProbeTime) {
+            return false;
+        }
+        if (p.probeTime != 0) {
+            onLoss(p, LOSS_SCALE);
+            if (++p.lostProbes >= MAX_LOST_PROBES) {
+                p.up = false;
+            }
+        }
+        p.probeTime = now;
+        p.nextProbeTime = now + PROBE_INTERVAL_MS;
+        return true;
+    }
+
+    /** Called by the worker of a path for every pong, which also brings the path back up. */
+    void onAnswer(int path, long rtt) {
+        final Path p = mPaths[path];
+        p.srtt = p.srtt == 0 ? Math.max(1, rtt) : Math.max(1, (7 * p.srtt + rtt) / 8);
+        if (p.probeTime != 0) {
+            onLoss(p, 0);
+            p.probeTime = 0;
+        }
+        p.lostProbes = 0;
+        p.up = true;
+    }
+
+    /**
+     * Takes a path down because its socket failed or its server stopped answering on it.
+     *
+     * @return whether another path is still up to carry the tunnel.
+     */
+    boolean onLost(int path) {
+        mPaths[path].up = false;
+        for (Path p : mPaths) {
+            if (p.up) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isUp(int path) {
+        return mPaths[path].up;
+    }
+
+    /** @return the round trip time of a path weighted by its loss. */
+    long getCost(int path) {
+        final Path p = mPaths[path];
+        final long rtt = p.srtt > 0 ? p.srtt : UNKNOWN_RTT_MS;
+        return rtt * (LOSS_SCALE + LOSS_WEIGHT * p.loss) / LOSS_SCALE;
+    }
+
+    /**
+     * @param backlogs the packets waiting for each path, which is only read.
+     * @return the path for the next packet: the cheapest that is up and has room, else the
+     *         one that is up with the least waiting, else the first.
+     */
+    int pick(int[] backlogs) {
+        int best = -1;
+        long bestCost = Long.MAX_VALUE;
+        int leastBacklogged = -1;
+        for (int i = 0; i < mPaths.length; ++i) {
+            if (!mPaths[i].up) {
+                continue;
+            }
+            if (backlogs[i] < MAX_BACKLOG) {
+                final long cost = getCost(i);
+                if (cost < bestCost) {
+                    best = i;
+                    bestCost = cost;
+                }
+            } else if (leastBacklogged < 0 || backlogs[i] < backlogs[leastBacklogged]) {
+                leastBacklogged = i;
+            }
+        }
+        return best >= 0 ? best : leastBacklogged >= 0 ? leastBacklogged : 0;
+    }
+
+    /** @return whether a packet of this size goes out on every path that is up. */
+    boolean isRedundant(int length) {
+        if (!mRedundant || length > REDUNDANT_MAX_SIZE) {
+            return false;
+        }
+        int up = 0;
+        for (Path p : mPaths) {
+            if (p.up) {
+                ++up;
+            }
+        }
+        return up > 1;
+    }
+
+    /**
+     * @return how long a datagram that came early should wait for those before it: about how
+     *         much slower the slowest path that is up is than the fastest.
+     */
+    long getHoldTime() {
+        long fastest = Long.MAX_VALUE;
+        long slowest = 0;
+        for (Path p : mPaths) {
+            if (p.up && p.srtt > 0) {
+                fastest = Math.min(fastest, p.srtt);
+                slowest = Math.max(slowest, p.srtt);
+            }
+        }
+        final long spread = slowest > fastest ? slowest - fastest : 0;
+        return Math.min(MAX_HOLD_MS, MIN_HOLD_MS + spread);
+    }
+
+    private static void onLoss(Path p, int sample) {
+        p.loss = (7 * p.loss + sample) / 8;
+    }
+}
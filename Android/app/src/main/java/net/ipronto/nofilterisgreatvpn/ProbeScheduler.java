@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes the servers in the background, over and over, on a thread of its own, and smooths
+ * what each probe measures into what the ones before it did, so one bad round does not
+ * reshuffle the list.
+ *
+ * There is only ever one probe running. A new list of servers cancels the probe of the old one,
+ * whose results are never reported, and starts over at once; results are kept by address, so
+ * servers that stay in the list keep their history.
+ */
+class ProbeScheduler {
+    private static final String TAG = "ProbeScheduler";
+
+    /** Time between two probes of the same servers. */
+    static final long DEFAULT_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    /** Pings remembered per server; older ones weigh less and less. */
+    private static final int MAX_HISTORY = 4 * ServerProber.ROUNDS;
+
+    interface Listener {
+        /**
+         * Called on the thread of the scheduler with what is known of every server of the
+         * current list, after each probe of it.
+         */
+        void onProbed(Map<InetSocketAddress, ServerProber.Result> results);
+    }
+
+    private final ScheduledExecutorService mExecutor;
+    private final Listener mListener;
+    private final long mIntervalMs;
+
+    /** Smoothed results by server, only touched while holding the lock. */
+    private final Map<InetSocketAddress, ServerProber.Result> mResults = new HashMap<>();
+
+    private List<InetSocketAddress> mServers = new ArrayList<>();
+    private ScheduledFuture<?> mProbe;
+    private boolean mStarted;
+
+    ProbeScheduler(Listener listener, long intervalMs) {
+        mListener = listener;
+        mIntervalMs = intervalMs;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ServerProberThread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Probes these servers from now on, at once if they are not the ones being probed already.
+     * The order does not matter. Unresolved addresses are resolved before every probe, and
+     * results are reported by the addresses as given.
+     */
+    synchronized void setServers(List<InetSocketAddress> servers) {
+        if (new HashSet<>(servers).equals(new HashSet<>(mServers))) {
+            return;
+        }
+        mServers = new ArrayList<>(servers);
+        mResults.keySet().retainAll(mServers);
+        reschedule();
+    }
+
+    /** Starts probing, at once, and keeps at it till {@link #stop()}. */
+    synchronized void start() {
+        if (!mStarted) {
+            mStarted = true;
+            reschedule();
+        }
+    }
+
+    /** Stops probing, cancelling a probe that is running. What was measured is kept. */
+    synchronized void stop() {
+        mStarted = false;
+        reschedule();
+    }
+
+    /** Stops probing for good. */
+    void shutdown() {
+        stop();
+        mExecutor.shutdownNow();
+    }
+
+    private void reschedule() {
+        if (mProbe != null) {
+            // Interrupting the probe closes its channels and wakes its selector up.
+            mProbe.cancel(true);
+            mProbe = null;
+        }
+        if (!mStarted || mServers.isEmpty()) {
+            return;
+        }
+        final List<InetSocketAddress> servers = mServers;
+        mProbe = mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probe(servers);
+            }
+        }, 0, mIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void probe(List<InetSocketAddress> servers) {
+        // Resolved here rather than by the caller, which is usually the main thread.
+        final List<InetSocketAddress> resolved = new ArrayList<>();
+        for (InetSocketAddress server : servers) {
+            resolved.add(server.isUnresolved()
+                    ? new InetSocketAddress(server.getHostName(), server.getPort()) : server);
+        }
+        final ServerProber.Result[] results;
+        try {
+            results = new ServerProber(resolved).run();
+        } catch (IOException | InterruptedException e) {
+            // Cancelled, most likely, or no network; either way the next probe will tell.
+            Log.i(TAG, "Probe did not finish: " + e);
+            return;
+        }
+        synchronized (this) {
+            // A newer list came in while probing; it is probed by now and this is stale.
+            if (servers != mServers) {
+                return;
+            }
+            for (int i = 0; i < results.length; ++i) {
+                final InetSocketAddress server = servers.get(i);
+                mResults.put(server, smooth(mResults.get(server), results[i]));
+            }
+            mListener.onProbed(new HashMap<>(mResults));
+        }
+    }
+
+    /** @return the history of a server with a new probe of it folded in. */
+    static ServerProber.Result smooth(ServerProber.Result history, ServerProber.Result probe) {
+        if (history == null) {
+            return probe;
+        }
+        final ServerProber.Result result = new ServerProber.Result();
+        result.sent = history.sent + probe.sent;
+        result.received = history.received + probe.received;
+        // Halving old pings keeps loss following what happens now.
+        while (result.sent > MAX_HISTORY) {
+            result.sent /= 2;
+            result.received /= 2;
+        }
+        if (history.srtt < 0) {
+            result.srtt = probe.srtt;
+        } else if (probe.srtt < 0) {
+            result.srtt = history.srtt;
+        } else {
+            result.srtt = (3 * history.srtt + probe.srtt) / 4;
+        }
+        return result;
+    }
+}
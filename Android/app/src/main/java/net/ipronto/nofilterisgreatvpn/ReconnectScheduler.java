@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when to try connecting again.
+ *
+ * Every failed attempt doubles the wait before the next one, up to {@link #MAX_DELAY_MS}, and
+ * a random half of each wait is jitter, so clients that lost the same server do not all come
+ * back at the same moment. Nothing is tried while there is no network, and the backoff starts
+ * over whenever the network changes, since whatever failed before may work now.
+ *
+ * The clock and the network are behind interfaces, so the policy can be tested without either.
+ */
+class ReconnectScheduler {
+    private static final String TAG = "ReconnectScheduler";
+
+    /** Wait after the first failure, before jitter. */
+    static final long INITIAL_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+
+    /** Longest wait between two attempts, before jitter. */
+    static final long MAX_DELAY_MS = TimeUnit.MINUTES.toMillis(2);
+
+    interface Clock {
+        long now();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long now() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /** Tells whether there is a network, and when that changes. */
+    interface Connectivity {
+        interface Listener {
+            void onConnectivityChanged();
+        }
+
+        boolean isConnected();
+
+        /** Starts reporting changes to {@code listener}, or stops on {@code null}. */
+        void setListener(Listener listener);
+    }
+
+    private final Clock mClock;
+    private final Connectivity mConnectivity;
+    private final Random mRandom;
+
+    private int mFailures;
+    private long mNextAttemptTime;
+
+    ReconnectScheduler(Clock clock, Connectivity connectivity, Random random) {
+        mClock = clock;
+        mConnectivity = connectivity;
+        mRandom = random;
+    }
+
+    /** Starts following the network. */
+    void start() {
+        mConnectivity.setListener(new Connectivity.Listener() {
+            @Override
+            public void onConnectivityChanged() {
+                Log.i(TAG, "Network changed, connected: " + mConnectivity.isConnected());
+                reset();
+            }
+        });
+    }
+
+    void stop() {
+        mConnectivity.setListener(null);
+    }
+
+    /** Lets the next attempt start at once, with the backoff starting over. */
+    synchronized void reset() {
+        mFailures = 0;
+        mNextAttemptTime = 0;
+        notifyAll();
+    }
+
+    /** Records a failed attempt, which pushes the next one back. */
+    synchronized void onFailure() {
+        mNextAttemptTime = mClock.now() + getJitteredDelay(mFailures);
+        ++mFailures;
+    }
+
+    /**
+     * @return when the next attempt is due, if there is a network by then.
+     */
+    synchronized long getNextAttemptTime() {
+        return mNextAttemptTime;
+    }
+
+    /**
+     * Blocks until the next attempt is due and there is a network to make it on.
+     */
+    synchronized void await() throws InterruptedException {
+        while (true) {
+            if (!mConnectivity.isConnected()) {
+                // The listener wakes us up.
+                wait();
+                continue;
+            }
+            final long delay = mNextAttemptTime - mClock.now();
+            if (delay <= 0) {
+                return;
+            }
+            wait(delay);
+        }
+    }
+
+    /**
+     * @return the wait after {@code failures} failures in a row: half of it fixed, the other
+     *         half random.
+     */
+    private long getJitteredDelay(int failures) {
+        final long delay = failures >= 30 ? MAX_DELAY_MS
+                : Math.min(MAX_DELAY_MS, INITIAL_DELAY_MS << failures);
+        final long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+
+    /** Follows the network through {@link ConnectivityManager}. */
+    static class SystemConnectivity extends BroadcastReceiver implements Connectivity {
+        private final Context mContext;
+        private final ConnectivityManager mManager;
+        private Listener mListener;
+
+        SystemConnectivity(Context context) {
+            mContext = context;
+            mManager = (ConnectivityManager) context.getSystemService(
+                    Context.CONNECTIVITY_SERVICE);
+        }
+
+        @Override
+        public boolean isConnected() {
+            final NetworkInfo info = mManager.getActiveNetworkInfo();
+            return info != null && info.isConnected();
+        }
+
+        @Override
+        public synchronized void setListener(Listener listener) {
+            if (mListener != null) {
+                mContext.unregisterReceiver(this);
+            }
+            mListener = listener;
+            if (listener != null) {
+                mContext.registerReceiver(this,
+                        new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            }
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Listener listener;
+            synchronized (this) {
+                listener = mListener;
+            }
+            if (listener != null) {
+                listener.onConnectivityChanged();
+            }
+        }
+    }
+}
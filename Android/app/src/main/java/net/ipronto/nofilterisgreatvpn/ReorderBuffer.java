@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Puts the datagrams of a bonded tunnel back in order, after paths of different speeds mixed
+ * them up, and drops the copies that redundant mode sent on more than one path.
+ *
+ * A sequenced datagram is a zero byte, {@link #CONTROL_SEQUENCED}, a 32-bit big-endian number
+ * that goes up by one with every datagram whatever path it takes, and then the datagram
+ * itself. Those that come in order are passed on at once. One that comes early waits for the
+ * ones before it, but only for {@link #setHoldTime the hold time}, since they may be lost;
+ * after that the gap is skipped and whatever waited behind it goes. Anything older than what
+ * was passed on is a copy or too late, and is dropped.
+ *
+ * The datagrams that wait are copied into buffers allocated up front. The workers of all the
+ * paths share one buffer, and take turns with it.
+ */
+class ReorderBuffer {
+    static final byte CONTROL_SEQUENCED = 12;
+    static final int HEADER_SIZE = 6;
+
+    /** Datagrams that can wait at once. A power of two. */
+    static final int DEFAULT_CAPACITY = 64;
+
+    private final ByteBuffer[] mSlots;
+    private final long[] mTimes;
+    private final boolean[] mHeld;
+    private final int mMask;
+
+    /** The number of the datagram that is due, once one arrived. */
+    private int mNext;
+    private boolean mStarted;
+    private int mHeldCount;
+    private long mHoldMs = PathScheduler.MIN_HOLD_MS;
+
+    private long mDuplicates;
+    private long mSkipped;
+
+    /**
+     * @param capacity datagrams that can wait at once, a power of two.
+     * @param datagramSize the largest datagram, without the sequence number.
+     */
+    ReorderBuffer(int capacity, int datagramSize) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+        mSlots = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            mSlots[i] = ByteBuffer.allocateDirect(datagramSize);
+        }
+        mTimes = new long[capacity];
+        mHeld = new boolean[capacity];
+        mMask = capacity - 1;
+    }
+
+    /** @return whether a datagram carries a sequence number. */
+    static boolean isSequenced(ByteBuffer datagram) {
+        final int start = datagram.position();
+        return datagram.remaining() > HEADER_SIZE && datagram.get(start) == 0
+                && datagram.get(start + 1) == CONTROL_SEQUENCED;
+    }
+
+    /**
+     * Puts a sequence number in front of a datagram, which is left as it was.
+     *
+     * @param out receives the sequenced datagram, ready to be written.
+     */
+    static void sequence(int sequence, ByteBuffer datagram, ByteBuffer out) {
+        final int position = datagram.position();
+        out.clear();
+        out.put((byte) 0).put(CONTROL_SEQUENCED).putInt(sequence);
+        out.put(datagram).flip();
+        datagram.position(position);
+    }
+
+    /** Sets how long a datagram that came early waits for those before it. */
+    synchronized void setHoldTime(long holdMs) {
+        mHoldMs = holdMs;
+    }
+
+    /**
+     * Passes a sequenced datagram on to {@code out}, along with whatever waited for it, or
+     * keeps it till those before it are in. The datagram is consumed either way.
+     */
+    synchronized void receive(ByteBuffer datagram, WritableByteChannel out, long now)
+            throws IOException {
+        final int sequence = datagram.getInt(datagram.position() + 2);
+        datagram.position(datagram.position() + HEADER_SIZE);
+        if (!mStarted) {
+            mStarted = true;
+            mNext = sequence;
+        }
+        final int ahead = sequence - mNext;
+        if (ahead < 0) {
+            ++mDuplicates;
+        } else if (ahead == 0) {
+            out.write(datagram);
+            ++mNext;
+            release(out);
+        } else if (ahead <= mMask) {
+            final int slot = sequence & mMask;
+            if (mHeld[slot]) {
+                ++mDuplicates;
+            } else {
+                mSlots[slot].clear();
+                mSlots[slot].put(datagram).flip();
+                mTimes[slot] = now;
+                mHeld[slot] = true;
+                ++mHeldCount;
+            }
+        } else {
+            // Too far ahead to wait: what is missing before it is given up on.
+            while (mHeldCount > 0) {
+                skip(out);
+            }
+            mSkipped += sequence - mNext;
+            mNext = sequence + 1;
+            out.write(datagram);
+        }
+        datagram.position(datagram.limit());
+    }
+
+    /** @return when the datagram that waited longest has waited long enough. */
+    synchronized long getFlushTime() {
+        if (mHeldCount == 0) {
+            return Long.MAX_VALUE;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i <= mMask; ++i) {
+            if (mHeld[i]) {
+                oldest = Math.min(oldest, mTimes[i]);
+            }
+        }
+        return oldest + mHoldMs;
+    }
+
+    /** Skips the gaps that datagrams waited behind for long enough. */
+    synchronized void flushIfDue(WritableByteChannel out, long now) throws IOException {
+        while (mHeldCount > 0 && getFlushTime() <= now) {
+            skip(out);
+        }
+    }
+
+    /** @return the number of copies and late datagrams dropped so far. */
+    synchronized long getDuplicates() {
+        return mDuplicates;
+    }
+
+    /** @return the number of datagrams given up on so far. */
+    synchronized long getSkipped() {
+        return mSkipped;
+    }
+
+    /** Gives up on the gap before the first datagram that waits, and passes on what follows. */
+    private void skip(WritableByteChannel out) throws IOException {
+        while (!mHeld[mNext & mMask]) {
+            ++mSkipped;
+            ++mNext;
+        }
+        release(out);
+    }
+
+    /** Passes on the datagrams that waited and are due now. */
+    private void release(WritableByteChannel out) throws IOException {
+        while (mHeldCount > 0 && mHeld[mNext & mMask]) {
+            final int slot = mNext & mMask;
+            mHeld[slot] = false;
+            --mHeldCount;
+            ++mNext;
+            out.write(mSlots[slot]);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+/**
+ * Remembers which packet counters have been seen, so that a packet recorded off the wire and
+ * sent again is dropped.
+ *
+ * Packets come in out of order, more so over several stripes, so the window reaches back
+ * close to {@link #SIZE} counters from the highest one seen. Anything older than that is
+ * dropped too, which is what IPsec does as well. Checking and accepting are apart, so that a
+ * packet which does not open cannot move the window.
+ */
+class ReplayWindow {
+    static final int SIZE = 1024;
+
+    private final long[] mBits = new long[SIZE / 64];
+    private long mHighest;
+
+    /** Returns whether the counter is new and not too old. Zero never is. */
+    synchronized boolean check(long counter) {
+        if (counter <= 0) {
+            return false;
+        }
+        if (counter > mHighest) {
+            return true;
+        }
+        // The words form a ring, so one that has come round again is too old.
+        if (mHighest / 64 - counter / 64 >= mBits.length) {
+            return false;
+        }
+        return (mBits[index(counter)] & bit(counter)) == 0;
+    }
+
+    /** Marks the counter as seen, which should only be done once its packet is authentic. */
+    synchronized void accept(long counter) {
+        if (!check(counter)) {
+            return;
+        }
+        if (counter > mHighest) {
+            // Clear the words the window slides over, or all of them after a long jump.
+            final long from = mHighest / 64 + 1;
+            final long to = Math.min(counter / 64, from + mBits.length - 1);
+            for (long word = from; word <= to; ++word) {
+                mBits[(int) (word % mBits.length)] = 0;
+            }
+            mHighest = counter;
+        }
+        mBits[index(counter)] |= bit(counter);
+    }
+
+    private int index(long counter) {
+        return (int) (counter / 64 % mBits.length);
+    }
+
+    private static long bit(long counter) {
+        return 1L << (counter & 63);
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns the ranges to send through the tunnel and the ranges to keep out of it into the
+ * fewest routes that cover exactly what is left, which is what the interface is configured
+ * with. Keeping the LAN and nearby servers out of the tunnel spares them the round trip.
+ *
+ * An excluded range wins over an included one whatever their order or lengths, and nothing is
+ * routed that was not included. Ranges are kept in a binary trie per address family, one bit
+ * per level, in which a subtree that is wholly included is a single marker instead of nodes,
+ * so a default route with tens of thousands of holes takes a few megabytes at most. Compiling
+ * subtracts the excluded trie from the included one and merges siblings that are both wholly
+ * included, which leaves the smallest set of prefixes there is.
+ */
+class RouteCompiler {
+    /** A prefix to be routed through the tunnel. */
+    static final class Route {
+        final String address;
+        final int prefixLength;
+
+        Route(String address, int prefixLength) {
+            this.address = address;
+            this.prefixLength = prefixLength;
+        }
+
+        @Override
+        public String toString() {
+            return address + "/" + prefixLength;
+        }
+    }
+
+    /**
+     * Ranges of one address family. Each node has two slots, one per value of the next bit,
+     * holding {@link #EMPTY}, {@link #FULL} or the index of the node below. Node 0 only holds
+     * the root, in slot 0.
+     */
+    private static final class Trie {
+        static final int EMPTY = 0;
+        static final int FULL = -1;
+
+        private int[] mSlots = new int[64];
+        private int mNodes = 1;
+
+        private int newNode(int zero, int one) {
+            if (2 * mNodes + 2 > mSlots.length) {
+                final int[] slots = new int[mSlots.length * 2];
+                System.arraycopy(mSlots, 0, slots, 0, mSlots.length);
+                mSlots = slots;
+            }
+            mSlots[2 * mNodes] = zero;
+            mSlots[2 * mNodes + 1] = one;
+            return mNodes++;
+        }
+
+        int getRoot() {
+            return mSlots[0];
+        }
+
+        int getChild(int node, int bit) {
+            return mSlots[2 * node + bit];
+        }
+
+        /** Marks a range as wholly in, dropping whatever was known about its insides. */
+        void add(byte[] address, int prefixLength) {
+            int slot = 0;
+            for (int depth = 0; depth < prefixLength; ++depth) {
+                int node = mSlots[slot];
+                if (node == FULL) {
+                    return;
+                }
+                if (node == EMPTY) {
+                    node = newNode(EMPTY, EMPTY);
+                    mSlots[slot] = node;
+                }
+                slot = 2 * node + getBit(address, depth);
+            }
+            mSlots[slot] = FULL;
+        }
+
+        /**
+         * Returns what is in {@code node} but not in {@code other} of {@code others}, with
+         * siblings that are both full merged. Nodes are reused where nothing changed.
+         */
+        int subtract(int node, Trie others, int other) {
+            if (other == FULL || node == EMPTY) {
+                return EMPTY;
+            }
+            if (node == FULL && other == EMPTY) {
+                return FULL;
+            }
+            final int zero;
+            final int one;
+            if (node == FULL) {
+                zero = subtract(FULL, others, others.getChild(other, 0));
+                one = subtract(FULL, others, others.getChild(other, 1));
+            } else {
+                final int otherZero = other == EMPTY ? EMPTY : others.getChild(other, 0);
+                final int otherOne = other == EMPTY ? EMPTY : others.getChild(other, 1);
+                zero = subtract(getChild(node, 0), others, otherZero);
+                one = subtract(getChild(node, 1), others, otherOne);
+            }
+            if (zero == one && zero <= 0) {
+                return zero;
+            }
+            if (node == FULL) {
+                return newNode(zero, one);
+            }
+            mSlots[2 * node] = zero;
+            mSlots[2 * node + 1] = one;
+            return node;
+        }
+
+        void setRoot(int node) {
+            mSlots[0] = node;
+        }
+    }
+
+    private final Trie mIncluded4 = new Trie();
+    private final Trie mExcluded4 = new Trie();
+    private final Trie mIncluded6 = new Trie();
+    private final Trie mExcluded6 = new Trie();
+    private boolean mCompiled;
+
+    /**
+     * Routes a range through the tunnel, unless it is excluded.
+     *
+     * @throws IllegalArgumentException if the address is not numeric or the length is wrong.
+     */
+    void include(String address, int prefixLength) throws IllegalArgumentException {
+        add(address, prefixLength, mIncluded4, mIncluded6);
+    }
+
+    /**
+     * Keeps a range out of the tunnel, whatever includes it.
+     *
+     * @throws IllegalArgumentException if the address is not numeric or the length is wrong.
+     */
+    void exclude(String address, int prefixLength) throws IllegalArgumentException {
+        add(address, prefixLength, mExcluded4, mExcluded6);
+    }
+
+    private void add(String address, int prefixLength, Trie trie4, Trie trie6) {
+        if (mCompiled) {
+            throw new IllegalStateException("Compiled already");
+        }
+        final byte[] bytes = parse(address);
+        if (prefixLength < 0 || prefixLength > bytes.length * 8) {
+            throw new IllegalArgumentException("Bad prefix length: " + prefixLength);
+        }
+        (bytes.length == 4 ? trie4 : trie6).add(bytes, prefixLength);
+    }
+
+    /**
+     * @return the fewest prefixes that cover what is included and not excluded, IPv4 first,
+     *         each family in address order. Nothing can be added after this.
+     */
+    List<Route> compile() {
+        subtractExcluded();
+        final List<Route> routes = new ArrayList<>();
+        collect(mIncluded4, mIncluded4.getRoot(), new byte[4], 0, routes);
+        collect(mIncluded6, mIncluded6.getRoot(), new byte[16], 0, routes);
+        return routes;
+    }
+
+    /**
+     * Finds the longest prefix that covers an address, once compiled.
+     *
+     * @return whether the address is routed through the tunnel.
+     */
+    boolean isRouted(String address) {
+        subtractExcluded();
+        final byte[] bytes = parse(address);
+        final Trie trie = bytes.length == 4 ? mIncluded4 : mIncluded6;
+        int node = trie.getRoot();
+        for (int depth = 0; node > 0; ++depth) {
+            node = trie.getChild(node, getBit(bytes, depth));
+        }
+        return node == Trie.FULL;
+    }
+
+    /** Leaves only what is routed in the included tries, once. */
+    private void subtractExcluded() {
+        if (!mCompiled) {
+            mCompiled = true;
+            mIncluded4.setRoot(mIncluded4.subtract(mIncluded4.getRoot(), mExcluded4,
+                    mExcluded4.getRoot()));
+            mIncluded6.setRoot(mIncluded6.subtract(mIncluded6.getRoot(), mExcluded6,
+                    mExcluded6.getRoot()));
+        }
+    }
+
+    private static void collect(Trie trie, int node, byte[] address, int depth,
+                                List<Route> routes) {
+        if (node == Trie.FULL) {
+            routes.add(new Route(format(address), depth));
+        } else if (node != Trie.EMPTY) {
+            collect(trie, trie.getChild(node, 0), address, depth + 1, routes);
+            address[depth / 8] |= 0x80 >>> (depth % 8);
+            collect(trie, trie.getChild(node, 1), address, depth + 1, routes);
+            address[depth / 8] &= ~(0x80 >>> (depth % 8));
+        }
+    }
+
+    private static int getBit(byte[] address, int depth) {
+        return (address[depth / 8] >>> (7 - depth % 8)) & 1;
+    }
+
+    /** Parses numeric addresses only, since anything else would be looked up. */
+    private static byte[] parse(String address) throws IllegalArgumentException {
+        if (address.indexOf(':') < 0) {
+            return parse4(address);
+        }
+        for (int i = 0; i < address.length(); ++i) {
+            final char c = address.charAt(i);
+            if (Character.digit(c, 16) < 0 && c != '.' && c != ':') {
+                throw new IllegalArgumentException("Bad address: " + address);
+            }
+        }
+        try {
+            final byte[] bytes = InetAddress.getByName(address).getAddress();
+            if (bytes.length == 16) {
+                return bytes;
+            }
+        } catch (UnknownHostException e) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("Bad address: " + address);
+    }
+
+    /** Parses dotted quads by hand, which is much faster when there are thousands of them. */
+    private static byte[] parse4(String address) throws IllegalArgumentException {
+        final byte[] bytes = new byte[4];
+        int part = 0;
+        int value = -1;
+        for (int i = 0; i <= address.length(); ++i) {
+            final char c = i < address.length() ? address.charAt(i) : '.';
+            if (c == '.') {
+                if (value < 0 || part == 4) {
+                    throw new IllegalArgumentException("Bad address: " + address);
+                }
+                bytes[part++] = (byte) value;
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + c - '0';
+                if (value > 255) {
+                    throw new IllegalArgumentException("Bad address: " + address);
+                }
+            } else {
+                throw new IllegalArgumentException("Bad address: " + address);
+            }
+        }
+        if (part != 4) {
+            throw new IllegalArgumentException("Bad address: " + address);
+        }
+        return bytes;
+    }
+
+    private static String format(byte[] address) {
+        if (address.length == 4) {
+            return (address[0] & 0xFF) + "." + (address[1] & 0xFF) + "." + (address[2] & 0xFF)
+                    + "." + (address[3] & 0xFF);
+        }
+        try {
+            return InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException e) {
+            // Only thrown for addresses of the wrong length.
+            throw new IllegalStateException(e);
+        }
+    }
+}
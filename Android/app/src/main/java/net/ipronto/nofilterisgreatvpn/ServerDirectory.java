@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the list of servers, serving the last known one at once and revalidating it in the
+ * background.
+ *
+ * The list is kept on disk already parsed, in a compact binary form, so a cold start has a
+ * list to connect to without the network. Once it is older than {@link #MAX_AGE_MS}, it is
+ * revalidated with a conditional request, which costs next to nothing while the list is
+ * unchanged; only a changed list is parsed and written again.
+ *
+ * Listeners are called on the background thread whenever the list changes, including when it
+ * is first loaded from disk.
+ */
+class ServerDirectory {
+    private static final String TAG = "ServerDirectory";
+
+    /** Callback to let whoever shows the list know about a new one. */
+    interface Listener {
+        void onServersChanged(List<ServerData> servers);
+    }
+
+    /** Age after which the list is revalidated. It is served all the same till then. */
+    static final long MAX_AGE_MS = TimeUnit.HOURS.toMillis(1);
+
+    /** Bumped whenever the format of the file changes, which throws old files away. */
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int CONNECT_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(15);
+    private static final int READ_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(10);
+
+    private final File mFile;
+    private final String mUrl;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean mRevalidating = new AtomicBoolean();
+
+    private List<ServerData> mServers = Collections.emptyList();
+    private String mETag;
+    private String mLastModified;
+    private long mFetchTime;
+
+    /**
+     * @param file where the parsed list is kept.
+     * @param url where the list is served from.
+     */
+    ServerDirectory(File file, String url) {
+        mFile = file;
+        mUrl = url;
+    }
+
+    /** Loads the list from disk and revalidates it if needed, in the background. */
+    void start() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                if (isStale(System.currentTimeMillis())) {
+                    revalidate();
+                }
+            }
+        }, TAG).start();
+    }
+
+    /** Revalidates the list in the background, however old it is. */
+    void refresh() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                revalidate();
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * @return the last known list, which is empty until it is loaded or fetched.
+     */
+    synchronized List<ServerData> getServers() {
+        return mServers;
+    }
+
+    synchronized boolean isStale(long now) {
+        return now - mFetchTime >= MAX_AGE_MS;
+    }
+
+    void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Reads the list kept on disk, if there is one.
+     *
+     * @return whether there was one.
+     */
+    boolean load() {
+        if (!mFile.exists()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return false;
+            }
+            final String eTag = readNullable(in);
+            final String lastModified = readNullable(in);
+            final long fetchTime = in.readLong();
+            final int count = in.readInt();
+            final List<ServerData> servers = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                final ServerData server = new ServerData();
+                server.name = in.readUTF();
+                server.address = in.readUTF();
+                server.port = in.readInt();
+                server.secret = in.readUTF();
+                servers.add(server);
+            }
+            update(Collections.unmodifiableList(servers), eTag, lastModified, fetchTime);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read " + mFile, e);
+            return false;
+        }
+    }
+
+    /**
+     * Asks the server whether the list changed, and fetches it if it did. Only one request is
+     * in flight at a time; others return at once.
+     *
+     * @return whether the list changed.
+     */
+    boolean revalidate() {
+        if (!mRevalidating.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            return fetch();
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Cannot fetch " + mUrl, e);
+            return false;
+        } finally {
+            mRevalidating.set(false);
+        }
+    }
+
+    private boolean fetch() throws IOException, JSONException {
+        final String eTag;
+        final String lastModified;
+        synchronized (this) {
+            eTag = mETag;
+            lastModified = mLastModified;
+        }
+
+        final HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setUseCaches(false);
+            if (eTag != null) {
+                connection.setRequestProperty("If-None-Match", eTag);
+            }
+            if (lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+
+            final long now = System.currentTimeMillis();
+            final int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.i(TAG, "Server list not modified");
+                final List<ServerData> servers;
+                synchronized (this) {
+                    mFetchTime = now;
+                    servers = mServers;
+                }
+                save(servers, eTag, lastModified, now);
+                return false;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected status " + status);
+            }
+
+            final StringBuilder json = new StringBuilder();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), "UTF-8"))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    json.append(line).append('\n');
+                }
+            }
+            final List<ServerData> servers = parse(json.toString());
+            Log.i(TAG, "Fetched " + servers.size() + " servers");
+
+            final String newETag = connection.getHeaderField("ETag");
+            final String newLastModified = connection.getHeaderField("Last-Modified");
+            store(servers, newETag, newLastModified, now);
+            return true;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /** Parses the list as it is served. */
+    static List<ServerData> parse(String json) throws JSONException {
+        final JSONArray array = new JSONObject(json).getJSONArray("servers");
+        final List<ServerData> servers = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); ++i) {
+            final JSONObject object = array.getJSONObject(i);
+            final ServerData server = new ServerData();
+            server.name = object.getString("name");
+            server.address = object.getString("address");
+            server.port = object.getInt("port");
+            server.secret = object.getString("secret");
+            servers.add(server);
+        }
+        return Collections.unmodifiableList(servers);
+    }
+
+    /** Replaces the list, on disk and in memory. */
+    void store(List<ServerData> servers, String eTag, String lastModified, long fetchTime) {
+        save(servers, eTag, lastModified, fetchTime);
+        update(servers, eTag, lastModified, fetchTime);
+    }
+
+    private void update(List<ServerData> servers, String eTag, String lastModified,
+                        long fetchTime) {
+        synchronized (this) {
+            mServers = servers;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mFetchTime = fetchTime;
+        }
+        for (Listener listener : mListeners) {
+            listener.onServersChanged(servers);
+        }
+    }
+
+    /** Writes the list next to the old one and renames it over, so a crash leaves either. */
+    private void save(List<ServerData> servers, String eTag, String lastModified,
+                      long fetchTime) {
+        final File temporary = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeInt(FORMAT_VERSION);
+            writeNullable(out, eTag);
+            writeNullable(out, lastModified);
+            out.writeLong(fetchTime);
+            out.writeInt(servers.size());
+            for (ServerData server : servers) {
+                out.writeUTF(server.name);
+                out.writeUTF(server.address);
+                out.writeInt(server.port);
+                out.writeUTF(server.secret);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write " + temporary, e);
+            return;
+        }
+        if (!temporary.renameTo(mFile)) {
+            Log.e(TAG, "Cannot rename " + temporary);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+}
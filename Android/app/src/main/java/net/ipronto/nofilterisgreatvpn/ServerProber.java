@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the round trip time and loss to every server at once, so the closest one can be
+ * picked by default.
+ *
+ * Each round sends every server a ping, the same control message {@link KeepaliveScheduler}
+ * uses, with the round number in place of the timestamp. Servers answer pings with pongs
+ * while they wait for a client. Everything runs on the calling thread over one
+ * {@link Selector}, so probing takes the same time however many servers there are.
+ */
+class ServerProber {
+    /** Pings sent to every server. */
+    static final int ROUNDS = 5;
+
+    /** Time between two rounds. */
+    private static final long ROUND_INTERVAL_MS = TimeUnit.MILLISECONDS.toMillis(200);
+
+    /** Time to wait for the pongs of the last round. */
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(1);
+
+    /** Round trip time a lost ping costs, when weighing loss against latency. */
+    private static final long LOSS_PENALTY_MS = TimeUnit.SECONDS.toMillis(1);
+
+    private static final int PING_SIZE = 6;
+
+    /** What was measured for one server. */
+    static final class Result {
+        /** Smoothed round trip time, or -1 if the server never answered. */
+        long srtt = -1;
+        int sent;
+        int received;
+
+        /** The fraction of pings that were lost, between 0 and 1. */
+        float getLoss() {
+            return sent == 0 ? 1 : 1 - (float) received / sent;
+        }
+
+        /**
+         * @return how bad the server looks, in milliseconds of round trip time, or
+         *         {@link Long#MAX_VALUE} if it never answered.
+         */
+        long getScore() {
+            if (received == 0) {
+                return Long.MAX_VALUE;
+            }
+            return srtt + (long) (getLoss() * LOSS_PENALTY_MS);
+        }
+    }
+
+    private final List<InetSocketAddress> mServers;
+
+    ServerProber(List<InetSocketAddress> servers) {
+        mServers = servers;
+    }
+
+    /**
+     * Probes every server, which takes about two seconds.
+     *
+     * @return a result per server, in the order they were given.
+     */
+    Result[] run() throws IOException, InterruptedException {
+        final int count = mServers.size();
+        final Result[] results = new Result[count];
+        final DatagramChannel[] channels = new DatagramChannel[count];
+        final long[] sendTimes = new long[ROUNDS];
+        final boolean[][] answered = new boolean[count][ROUNDS];
+        final ByteBuffer packet = ByteBuffer.allocate(PING_SIZE);
+
+        try (Selector selector = Selector.open()) {
+            for (int i = 0; i < count; ++i) {
+                results[i] = new Result();
+                final InetSocketAddress server = mServers.get(i);
+                if (server.isUnresolved()) {
+                    continue;
+                }
+                channels[i] = DatagramChannel.open();
+                channels[i].configureBlocking(false);
+                channels[i].connect(server);
+                channels[i].register(selector, SelectionKey.OP_READ, i);
+            }
+
+            int round = 0;
+            long deadline = System.currentTimeMillis();
+            while (true) {
+                final long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    if (round == ROUNDS) {
+                        break;
+                    }
+                    sendTimes[round] = now;
+                    for (int i = 0; i < count; ++i) {
+                        if (channels[i] != null) {
+                            ping(channels[i], packet, round);
+                            ++results[i].sent;
+                        }
+                    }
+                    ++round;
+                    deadline = now + (round == ROUNDS ? TIMEOUT_MS : ROUND_INTERVAL_MS);
+                }
+
+                selector.select(Math.max(1, deadline - now));
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    final int i = (Integer) key.attachment();
+                    receive(channels[i], packet, sendTimes, answered[i], round, results[i]);
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            for (DatagramChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the indices of the results, best first. Servers that look the same keep their
+     *         order.
+     */
+    static int[] rank(final Result[] results) {
+        final List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < results.length; ++i) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                final long scoreA = results[a].getScore();
+                final long scoreB = results[b].getScore();
+                return scoreA < scoreB ? -1 : scoreA > scoreB ? 1 : 0;
+            }
+        });
+
+        final int[] ranks = new int[order.size()];
+        for (int i = 0; i < ranks.length; ++i) {
+            ranks[i] = order.get(i);
+        }
+        return ranks;
+    }
+
+    private static void ping(DatagramChannel channel, ByteBuffer packet, int round) {
+        packet.clear();
+        packet.put((byte) 0).put(KeepaliveScheduler.CONTROL_PING).putInt(round).flip();
+        try {
+            channel.write(packet);
+        } catch (IOException e) {
+            // Unreachable for now, which counts as a loss.
+        }
+    }
+
+    private static void receive(DatagramChannel channel, ByteBuffer packet, long[] sendTimes,
+                                boolean[] answered, int rounds, Result result) {
+        while (true) {
+            packet.clear();
+            try {
+                if (channel.read(packet) < PING_SIZE) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Most likely the port is unreachable; the pings count as lost.
+                return;
+            }
+            if (packet.get(0) != 0 || packet.get(1) != KeepaliveScheduler.CONTROL_PONG) {
+                continue;
+            }
+            // Duplicated pongs are ignored.
+            final int round = packet.getInt(2);
+            if (round < 0 || round >= rounds || answered[round]) {
+                continue;
+            }
+            answered[round] = true;
+            ++result.received;
+
+            final long rtt = System.currentTimeMillis() - sendTimes[round];
+            result.srtt = result.srtt < 0 ? rtt : (7 * result.srtt + rtt) / 8;
+        }
+    }
+}
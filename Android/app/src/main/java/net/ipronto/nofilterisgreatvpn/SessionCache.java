@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers what the last session with each server found out, so a reconnect can skip it:
+ * the resolved address, the parameters the server pushed, the resumption ticket it issued and
+ * the path MTU found by probing.
+ *
+ * A server that recognizes the ticket in a handshake only answers with what changes from one
+ * session to the next, and the rest of the parameters come from here. Its ticket changes
+ * whenever its parameters could, so a resumed session also keeps the path MTU, as long as the
+ * local network did not change under it.
+ *
+ * Entries are shared by every connection of the service, so all methods are synchronized.
+ */
+class SessionCache {
+    /** Time a resolved address is used before resolving it again. */
+    static final long RESOLVE_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+
+    /** What the last session with one server left behind. */
+    static final class Session {
+        /** Parameters that do not change from one session to the next. */
+        final String parameters;
+        final String ticket;
+        /** Path MTU found by probing, or -1 if the server did not answer probes. */
+        final int pathMtu;
+        /** The probing ceiling of the local network at the time. */
+        final int ceiling;
+
+        Session(String parameters, String ticket, int pathMtu, int ceiling) {
+            this.parameters = parameters;
+            this.ticket = ticket;
+            this.pathMtu = pathMtu;
+            this.ceiling = ceiling;
+        }
+    }
+
+    private static final class Entry {
+        InetSocketAddress address;
+        long resolveTime;
+        Session session;
+    }
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    /**
+     * @return the address of the server, resolving it only if the last resolution is too old.
+     *         It may be unresolved, which is never cached.
+     */
+    InetSocketAddress resolve(String host, int port) {
+        final long now = System.currentTimeMillis();
+        synchronized (this) {
+            final Entry entry = getEntry(host, port);
+            if (entry.address != null && now - entry.resolveTime < RESOLVE_TTL_MS) {
+                return entry.address;
+            }
+        }
+
+        // Resolve without holding the lock; it may take a while.
+        final InetSocketAddress address = new InetSocketAddress(host, port);
+        if (!address.isUnresolved()) {
+            synchronized (this) {
+                final Entry entry = getEntry(host, port);
+                entry.address = address;
+                entry.resolveTime = now;
+            }
+        }
+        return address;
+    }
+
+    /**
+     * @return the last address the server resolved to, however old, or {@code null} if none.
+     */
+    synchronized InetSocketAddress getAddress(String host, int port) {
+        return getEntry(host, port).address;
+    }
+
+    /** Forgets the address of the server, which might have moved. */
+    synchronized void invalidateAddress(String host, int port) {
+        getEntry(host, port).address = null;
+    }
+
+    /**
+     * @return what the last session with the server left behind, or {@code null} if nothing.
+     */
+    synchronized Session getSession(String host, int port) {
+        return getEntry(host, port).session;
+    }
+
+    /** Stores what the current session found out, or forgets it on {@code null}. */
+    synchronized void putSession(String host, int port, Session session) {
+        getEntry(host, port).session = session;
+    }
+
+    private Entry getEntry(String host, int port) {
+        final String key = host + ":" + port;
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parameters the server pushes in the handshake: space-separated fields, each a letter
+ * followed by comma-separated values.
+ *
+ * Most of them configure the interface, which is done through a {@link Configurator} so the
+ * parsing does not depend on {@code VpnService.Builder}. The rest tell us how to use the
+ * tunnel: whether to batch, whether to compress packets or headers, whether to protect them
+ * with parity, which extra ports to stripe across and the resumption ticket. Servers that
+ * agree on {@link Capabilities} in the handshake still send those for older clients, but what
+ * was agreed on takes over, see {@link #setAgreed}.
+ */
+class SessionParameters {
+    /** Receives the settings of the interface. */
+    interface Configurator {
+        void addAddress(String address, int prefixLength);
+        void addRoute(String address, int prefixLength);
+        void addDnsServer(String address);
+        void addSearchDomain(String domain);
+    }
+
+    private final String mText;
+    private final List<String[]> mInterfaceFields = new ArrayList<>();
+    private int mMtu;
+    private int mBatchDeadlineMs = -1;
+    private final List<Integer> mStripePorts = new ArrayList<>();
+    private String mTicket;
+    private int mCompression;
+    private int mHeaderCompression;
+    private int mParityGroupSize;
+    private long mIdleTimeoutMs;
+    private boolean mBonded;
+    private boolean mRedundant;
+
+    private SessionParameters(String text) {
+        mText = text;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a field is malformed. Unknown fields are ignored.
+     */
+    static SessionParameters parse(String text) throws IllegalArgumentException {
+        final SessionParameters parameters = new SessionParameters(text);
+        for (String parameter : text.split(" ")) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            final String[] fields = parameter.split(",");
+            try {
+                switch (fields[0].charAt(0)) {
+                    case 'm':
+                        parameters.mMtu = Short.parseShort(fields[1]);
+                        break;
+                    case 'a':
+                    case 'r':
+                    case 'x':
+                        // Check them now, so configure() cannot fail half-way.
+                        Integer.parseInt(fields[2]);
+                        parameters.mInterfaceFields.add(fields);
+                        break;
+                    case 'd':
+                    case 's':
+                        if (fields.length < 2) {
+                            throw new IllegalArgumentException("Bad parameter: " + parameter);
+                        }
+                        parameters.mInterfaceFields.add(fields);
+                        break;
+                    case 'b':
+                        // The server batches and wants batches.
+                        parameters.mBatchDeadlineMs = Integer.parseInt(fields[1]);
+                        break;
+                    case 'p':
+                        // An extra port to stripe the tunnel across.
+                        parameters.mStripePorts.add(Integer.parseInt(fields[1]));
+                        break;
+                    case 'z':
+                        // The codec the server compresses with, if we agree.
+                        parameters.mCompression = Integer.parseInt(fields[1]);
+                        break;
+                    case 'h':
+                        // The scheme the server restores compressed headers with.
+                        parameters.mHeaderCompression = Integer.parseInt(fields[1]);
+                        break;
+                    case 'f':
+                        // The server protects with parity, a group of this many to start.
+                        parameters.mParityGroupSize = Integer.parseInt(fields[1]);
+                        break;
+                    case 't':
+                        // The resumption ticket, see Handshake.
+                        parameters.mTicket = fields[1];
+                        break;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Bad parameter: " + parameter);
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Hands the settings of the interface to {@code configurator}, in the order the server
+     * sent them. The MTU is left to the caller, who may know better from probing the path.
+     *
+     * Routes are what the server included with 'r' less what it excluded with 'x', as compiled
+     * by a {@link RouteCompiler}, and are all handed over where the first of them was.
+     *
+     * @throws IllegalArgumentException if a route has an address that is not numeric.
+     */
+    void configure(Configurator configurator) throws IllegalArgumentException {
+        boolean routed = false;
+        for (String[] fields : mInterfaceFields) {
+            switch (fields[0].charAt(0)) {
+                case 'a':
+                    configurator.addAddress(fields[1], Integer.parseInt(fields[2]));
+                    break;
+                case 'r':
+                case 'x':
+                    if (!routed) {
+                        routed = true;
+                        for (RouteCompiler.Route route : compileRoutes()) {
+                            configurator.addRoute(route.address, route.prefixLength);
+                        }
+                    }
+                    break;
+                case 'd':
+                    configurator.addDnsServer(fields[1]);
+                    break;
+                case 's':
+                    configurator.addSearchDomain(fields[1]);
+                    break;
+            }
+        }
+    }
+
+    private List<RouteCompiler.Route> compileRoutes() {
+        final RouteCompiler compiler = new RouteCompiler();
+        for (String[] fields : mInterfaceFields) {
+            if (fields[0].charAt(0) == 'r') {
+                compiler.include(fields[1], Integer.parseInt(fields[2]));
+            } else if (fields[0].charAt(0) == 'x') {
+                compiler.exclude(fields[1], Integer.parseInt(fields[2]));
+            }
+        }
+        return compiler.compile();
+    }
+
+    /**
+     * Takes what both ends agreed on in the handshake over what the server offered. Features
+     * the client did not advertise are off, whatever the server offered.
+     */
+    void setAgreed(Capabilities agreed) {
+        if (agreed.has(Capabilities.FIELD_MTU)) {
+            mMtu = agreed.get(Capabilities.FIELD_MTU);
+        }
+        mBatchDeadlineMs = agreed.supports(Capabilities.FEATURE_BATCHING)
+                ? agreed.get(Capabilities.FIELD_BATCH_DEADLINE_MS) : -1;
+        mCompression = agreed.supports(Capabilities.FEATURE_COMPRESSION)
+                ? PacketCompressor.CODEC_LZ4 : 0;
+        mHeaderCompression = agreed.supports(Capabilities.FEATURE_HEADER_COMPRESSION)
+                ? HeaderCompressor.SCHEME_IPV4 : 0;
+        mParityGroupSize = agreed.supports(Capabilities.FEATURE_PARITY)
+                ? agreed.get(Capabilities.FIELD_PARITY_GROUP) : 0;
+        mIdleTimeoutMs = agreed.supports(Capabilities.FEATURE_KEEPALIVE)
+                ? agreed.get(Capabilities.FIELD_IDLE_TIMEOUT_S) * 1000L : 0;
+        if (!agreed.supports(Capabilities.FEATURE_STRIPING)) {
+            mStripePorts.clear();
+        }
+        mBonded = agreed.supports(Capabilities.FEATURE_BONDING) && !mStripePorts.isEmpty();
+        mRedundant = mBonded && agreed.supports(Capabilities.FEATURE_REDUNDANCY);
+    }
+
+    /** @return the MTU the server pushed, or 0 if there was none. */
+    int getMtu() {
+        return mMtu;
+    }
+
+    /** @return the batch deadline the server pushed, or -1 to not batch. */
+    int getBatchDeadlineMs() {
+        return mBatchDeadlineMs;
+    }
+
+    /** @return the extra ports the server offered to stripe the tunnel across. */
+    List<Integer> getStripePorts() {
+        return Collections.unmodifiableList(mStripePorts);
+    }
+
+    /** @return the addresses of the DNS servers the interface is configured with. */
+    List<String> getDnsServers() {
+        final List<String> servers = new ArrayList<>();
+        for (String[] fields : mInterfaceFields) {
+            if (fields[0].charAt(0) == 'd') {
+                servers.add(fields[1]);
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * @return the codec the server offered to compress packets with, or 0 if it did not.
+     */
+    int getCompression() {
+        return mCompression;
+    }
+
+    /**
+     * @return the scheme the server offered to compress headers with, or 0 if it did not.
+     */
+    int getHeaderCompression() {
+        return mHeaderCompression;
+    }
+
+    /**
+     * @return the datagrams per parity the server offered to start protecting with, or 0 if it
+     *         did not.
+     */
+    int getParityGroupSize() {
+        return mParityGroupSize;
+    }
+
+    /**
+     * @return the longest the server keeps a silent session, as agreed on, or 0 if it did not
+     *         say.
+     */
+    long getIdleTimeoutMs() {
+        return mIdleTimeoutMs;
+    }
+
+    /**
+     * @return whether the stripes were agreed to be bonded across networks, which only
+     *         servers that agree on capabilities do.
+     */
+    boolean isBonded() {
+        return mBonded;
+    }
+
+    /** @return whether a bonded tunnel sends small packets on every stripe. */
+    boolean isRedundant() {
+        return mRedundant;
+    }
+
+    /** @return the resumption ticket, or {@code null} if there is none. */
+    String getTicket() {
+        return mTicket;
+    }
+
+    /**
+     * @return the parameters without those the server only hands out for one session, which
+     *         are the stripe ports and the ticket.
+     */
+    String getLasting() {
+        final StringBuilder lasting = new StringBuilder();
+        for (String parameter : mText.split(" ")) {
+            if (!parameter.isEmpty() && parameter.charAt(0) != 'p' && parameter.charAt(0) != 't') {
+                lasting.append(lasting.length() > 0 ? " " : "").append(parameter);
+            }
+        }
+        return lasting.toString();
+    }
+
+    @Override
+    public String toString() {
+        return mText;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The keys of a session and what it takes to seal and open the datagrams of the tunnel.
+ *
+ * Every datagram after the handshake, packets and control messages alike, travels sealed as
+ * {@code [0][CONTROL_SEALED][counter, 8 bytes][ciphertext][tag, 16 bytes]}. The counter is the
+ * nonce, which never repeats since each direction has its own key and its own counter, and it
+ * lets the receiver drop replays with a {@link ReplayWindow}. Counter zero is left to the
+ * handshake.
+ *
+ * Both keys are derived from the shared secret and random numbers both sides contribute to
+ * the handshake, so every session has fresh ones. This is no match for a real key exchange:
+ * whoever learns the secret can read recorded sessions. It does keep the secret off the wire,
+ * which the plaintext handshake did not.
+ *
+ * Sealing and opening need scratch state, so each thread gets a {@link Sealer} or an
+ * {@link Opener} of its own. They share the counter and the window, which are thread-safe.
+ */
+class TunnelCipher {
+    static final byte CONTROL_SEALED = 9;
+    static final byte CONTROL_KEY_EXCHANGE = 10;
+
+    static final int HEADER_SIZE = 10;
+
+    /** What sealing adds to each datagram. */
+    static final int OVERHEAD = HEADER_SIZE + PacketCipher.TAG_SIZE;
+
+    /** Size of the random number each side contributes to the keys. */
+    static final int RANDOM_SIZE = 32;
+
+    private final byte[] mSendKey;
+    private final byte[] mReceiveKey;
+    private final AtomicLong mSendCounter = new AtomicLong();
+    private final ReplayWindow mWindow = new ReplayWindow();
+
+    TunnelCipher(byte[] sendKey, byte[] receiveKey) {
+        mSendKey = sendKey;
+        mReceiveKey = receiveKey;
+    }
+
+    /** Returns the cipher of the client, which sends with the key labeled 'c'. */
+    static TunnelCipher forClient(byte[] masterKey, byte[] clientRandom, byte[] serverRandom) {
+        return new TunnelCipher(deriveKey(masterKey, clientRandom, serverRandom, 'c'),
+                deriveKey(masterKey, clientRandom, serverRandom, 's'));
+    }
+
+    /** Returns the key that seals the handshake, which is all the secret is used for. */
+    static byte[] deriveMasterKey(byte[] secret) {
+        final MessageDigest digest = newDigest();
+        return digest.digest(secret);
+    }
+
+    /**
+     * Returns the key of one direction: SHA-256 of the master key, both random numbers and a
+     * label, 'c' for what the client sends and 's' for what the server sends.
+     */
+    static byte[] deriveKey(byte[] masterKey, byte[] clientRandom, byte[] serverRandom,
+                            char label) {
+        final MessageDigest digest = newDigest();
+        digest.update(masterKey);
+        digest.update(clientRandom);
+        digest.update(serverRandom);
+        digest.update((byte) label);
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to have it.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static boolean isSealed(ByteBuffer datagram) {
+        return datagram.remaining() >= OVERHEAD && datagram.get(datagram.position()) == 0
+                && datagram.get(datagram.position() + 1) == CONTROL_SEALED;
+    }
+
+    Sealer newSealer() {
+        return new Sealer();
+    }
+
+    Opener newOpener() {
+        return new Opener();
+    }
+
+    /** Seals outgoing datagrams on one thread. */
+    final class Sealer {
+        private final PacketCipher mCipher = new PacketCipher(mSendKey);
+
+        /**
+         * Seals what remains of the datagram into {@code out}, which must have room for
+         * {@link #OVERHEAD} more bytes, and makes what remains of {@code out} the sealed one.
+         */
+        void seal(ByteBuffer datagram, ByteBuffer out) {
+            final long counter = mSendCounter.incrementAndGet();
+            final int length = datagram.remaining();
+            out.clear();
+            out.put((byte) 0).put(CONTROL_SEALED).putLong(counter);
+            mCipher.seal(0, counter, null, datagram, datagram.position(), length, out,
+                    HEADER_SIZE);
+            datagram.position(datagram.limit());
+            out.limit(OVERHEAD + length).position(0);
+        }
+    }
+
+    /** Opens incoming datagrams on one thread. */
+    final class Opener {
+        private final PacketCipher mCipher = new PacketCipher(mReceiveKey);
+
+        /**
+         * Opens a sealed datagram in place and makes what remains of it the datagram within.
+         *
+         * @return whether it was sealed, authentic and not seen before. If not, it is left as
+         *         it was.
+         */
+        boolean open(ByteBuffer datagram) {
+            if (!isSealed(datagram)) {
+                return false;
+            }
+            final int start = datagram.position();
+            final long counter = datagram.getLong(start + 2);
+            if (!mWindow.check(counter) || !mCipher.open(0, counter, null, datagram,
+                    start + HEADER_SIZE, datagram.remaining() - HEADER_SIZE)) {
+                return false;
+            }
+            mWindow.accept(counter);
+            datagram.limit(datagram.limit() - PacketCipher.TAG_SIZE).position(start + HEADER_SIZE);
+            return true;
+        }
+    }
+}
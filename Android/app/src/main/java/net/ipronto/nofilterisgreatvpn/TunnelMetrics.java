@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what goes through the tunnel, for the UI and for diagnostics.
+ *
+ * The forwarding threads only ever bump counters and record into histograms, which costs a
+ * few atomic increments per packet and never blocks or allocates. Readers take a
+ * {@link Snapshot}, which they can keep and compare with a later one to get rates.
+ *
+ * One instance is shared by every connection of the service, so the counters add up across
+ * reconnects.
+ */
+class TunnelMetrics {
+    private final AtomicLong mPacketsSent = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mPacketsReceived = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mPacketsDropped = new AtomicLong();
+    private final AtomicLong mKeepalivesSent = new AtomicLong();
+    private final AtomicLong mBytesSavedByCompression = new AtomicLong();
+    private final AtomicLong mPacketsRecovered = new AtomicLong();
+    private final AtomicLong mLookupsAnswered = new AtomicLong();
+    private final AtomicLong mQueueDepth = new AtomicLong();
+    private final AtomicLong mQueueDrops = new AtomicLong();
+    private final AtomicLong mSessions = new AtomicLong();
+    private final AtomicLong mReconnects = new AtomicLong();
+
+    /** Microseconds from reading a packet to having written it, in either direction. */
+    private final LatencyHistogram mForwardingLatency = new LatencyHistogram();
+
+    /** Microseconds a forwarding worker spends on everything that woke it up. */
+    private final LatencyHistogram mLoopTime = new LatencyHistogram();
+
+    /** Milliseconds from sending the secret to receiving the parameters. */
+    private final LatencyHistogram mHandshakeTime = new LatencyHistogram();
+
+    /** Microseconds outgoing packets waited in the send queues. */
+    private final LatencyHistogram mQueueDelay = new LatencyHistogram();
+
+    void onPacketSent(int length) {
+        mPacketsSent.incrementAndGet();
+        mBytesSent.addAndGet(length);
+    }
+
+    void onPacketReceived(int length) {
+        mPacketsReceived.incrementAndGet();
+        mBytesReceived.addAndGet(length);
+    }
+
+    /** Counts an outgoing packet that was read but never made it into the tunnel. */
+    void onPacketDropped() {
+        mPacketsDropped.incrementAndGet();
+    }
+
+    void onKeepalivesSent(int count) {
+        mKeepalivesSent.addAndGet(count);
+    }
+
+    /** Counts the bytes compression kept off the wire for one packet, in either direction. */
+    void onCompressed(int saved) {
+        mBytesSavedByCompression.addAndGet(saved);
+    }
+
+    /** Counts an incoming packet that was lost on the way and rebuilt from parity. */
+    void onRecovered() {
+        mPacketsRecovered.incrementAndGet();
+    }
+
+    /** Counts a DNS lookup answered from the cache, without going through the tunnel. */
+    void onLookupAnswered() {
+        mLookupsAnswered.incrementAndGet();
+    }
+
+    /** Counts an outgoing packet into a send queue. */
+    void onQueued() {
+        mQueueDepth.incrementAndGet();
+    }
+
+    /** Counts an outgoing packet out of a send queue, after waiting there this long. */
+    void onDequeued(long waitNanos) {
+        mQueueDepth.decrementAndGet();
+        mQueueDelay.record(waitNanos / 1000);
+    }
+
+    /** Counts an outgoing packet a send queue dropped, which it had counted in. */
+    void onQueueDropped() {
+        mQueueDepth.decrementAndGet();
+        mQueueDrops.incrementAndGet();
+    }
+
+    void onForwarded(long startNanos) {
+        mForwardingLatency.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    void onLoopDone(long startNanos) {
+        mLoopTime.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    void onHandshakeDone(long durationMs) {
+        mSessions.incrementAndGet();
+        mHandshakeTime.record(durationMs);
+    }
+
+    /** Counts an attempt to connect that follows a lost session or a failed attempt. */
+    void onReconnect() {
+        mReconnects.incrementAndGet();
+    }
+
+    Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * The counters at one point in time. The counters are read one by one while the tunnel
+     * keeps going, so they can be a packet or two apart.
+     */
+    public static final class Snapshot {
+        /** From {@link System#currentTimeMillis()}. */
+        public final long time;
+
+        /** Packets and bytes from the interface into the tunnel. */
+        public final long packetsSent;
+        public final long bytesSent;
+
+        /** Packets and bytes from the tunnel into the interface. */
+        public final long packetsReceived;
+        public final long bytesReceived;
+
+        /** Outgoing packets lost to a full queue or socket buffer. */
+        public final long packetsDropped;
+
+        public final long keepalivesSent;
+
+        /** Bytes compression kept off the wire, in both directions. */
+        public final long bytesSavedByCompression;
+
+        /** Incoming packets or batches rebuilt from parity. */
+        public final long packetsRecovered;
+
+        /** DNS lookups answered from the cache. */
+        public final long lookupsAnswered;
+
+        /** Outgoing packets waiting in the send queues at the time. */
+        public final long queueDepth;
+
+        /** Outgoing packets the send queues dropped, mostly to keep the wait short. */
+        public final long queueDrops;
+
+        /** Successful handshakes. */
+        public final long sessions;
+
+        public final long reconnects;
+
+        public final LatencyHistogram.Snapshot forwardingLatencyUs;
+        public final LatencyHistogram.Snapshot loopTimeUs;
+        public final LatencyHistogram.Snapshot handshakeTimeMs;
+        public final LatencyHistogram.Snapshot queueDelayUs;
+
+        private Snapshot(TunnelMetrics metrics) {
+            time = System.currentTimeMillis();
+            packetsSent = metrics.mPacketsSent.get();
+            bytesSent = metrics.mBytesSent.get();
+            packetsReceived = metrics.mPacketsReceived.get();
+            bytesReceived = metrics.mBytesReceived.get();
+            packetsDropped = metrics.mPacketsDropped.get();
+            keepalivesSent = metrics.mKeepalivesSent.get();
+            bytesSavedByCompression = metrics.mBytesSavedByCompression.get();
+            packetsRecovered = metrics.mPacketsRecovered.get();
+            lookupsAnswered = metrics.mLookupsAnswered.get();
+            queueDepth = metrics.mQueueDepth.get();
+            queueDrops = metrics.mQueueDrops.get();
+            sessions = metrics.mSessions.get();
+            reconnects = metrics.mReconnects.get();
+            forwardingLatencyUs = metrics.mForwardingLatency.snapshot();
+            loopTimeUs = metrics.mLoopTime.snapshot();
+            handshakeTimeMs = metrics.mHandshakeTime.snapshot();
+            queueDelayUs = metrics.mQueueDelay.snapshot();
+        }
+
+        /**
+         * @return bytes sent per second since {@code earlier}, or 0 if no time passed.
+         */
+        public long getSendRate(Snapshot earlier) {
+            return getRate(bytesSent - earlier.bytesSent, earlier);
+        }
+
+        /**
+         * @return bytes received per second since {@code earlier}, or 0 if no time passed.
+         */
+        public long getReceiveRate(Snapshot earlier) {
+            return getRate(bytesReceived - earlier.bytesReceived, earlier);
+        }
+
+        private long getRate(long bytes, Snapshot earlier) {
+            final long elapsedMs = time - earlier.time;
+            return elapsedMs > 0 ? bytes * 1000 / elapsedMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "sent " + packetsSent + " packets / " + bytesSent + " bytes, received "
+                    + packetsReceived + " packets / " + bytesReceived + " bytes, dropped "
+                    + packetsDropped + ", keepalives " + keepalivesSent + ", compression saved "
+                    + bytesSavedByCompression + " bytes, recovered " + packetsRecovered
+                    + ", cached lookups " + lookupsAnswered + ", queued " + queueDepth
+                    + ", queue drops " + queueDrops + ", sessions " + sessions
+                    + ", reconnects " + reconnects + ", forwarding us (" + forwardingLatencyUs
+                    + "), loop us (" + loopTimeUs + "), handshake ms (" + handshakeTimeMs
+                    + "), queue us (" + queueDelayUs + ")";
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.ipronto.nofilterisgreatvpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds outgoing packets of one socket while its buffer is full, so a large upload does not
+ * keep DNS lookups, TCP handshakes and voice waiting behind it.
+ *
+ * There are two bands and the interactive one always goes first. A packet is interactive if
+ * it is small and its flow is sparse: the flow has nothing in the bulk band, which also keeps
+ * its packets in order, and only a few in the interactive one. Everything else is bulk. Flows
+ * are told apart by a {@link FlowHash} bucket, so two flows in one bucket are only ever
+ * demoted together.
+ *
+ * Each band drops packets the CoDel way (RFC 8289) instead of letting the queue grow: once
+ * packets have waited longer than {@link #TARGET_NS} for a whole {@link #INTERVAL_NS}, one is
+ * dropped, then more and more often until the wait is back under the target. TCP takes that
+ * as congestion and slows down, while the queue stays short. A band that fills up anyway drops
+ * its oldest packet.
+ *
+ * The packets are copied into buffers allocated up front, and the sender only gets them while
+ * the queue is locked, so nothing is allocated per packet. A packet is only taken out once the
+ * socket has room, and goes back to the head of its band if the write finds it full after all,
+ * so the packets this queue is there for are not the ones a full socket drops.
+ */
+class UplinkQueue {
+    /** Receives packets in the order they are due. */
+    interface Sender {
+        /** @return whether the socket had room at the last write, which draining waits for. */
+        boolean hasRoom();
+
+        /**
+         * @return false if the socket turned out to be full, in which case the packet must be
+         *         left as it was, to be sent again once there is room.
+         */
+        boolean send(ByteBuffer packet) throws IOException;
+    }
+
+    /** Packets in the bulk band; the interactive one holds a quarter of it. */
+    static final int DEFAULT_CAPACITY = 64;
+
+    /** Largest packet that can be interactive: lookups, bare TCP segments, voice, games. */
+    static final int INTERACTIVE_MAX_SIZE = 512;
+
+    /** Packets a flow can have in the interactive band before it counts as bulk. */
+    static final int SPARSE_MAX_PACKETS = 4;
+
+    /** Wait that CoDel tolerates, from RFC 8289. */
+    static final long TARGET_NS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /** Time the wait must stay above the target before dropping, from RFC 8289. */
+    static final long INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** Buckets flows are told apart by. */
+    static final int FLOW_BUCKETS = 64;
+
+    /** A ring of packets, oldest at {@code head}, and the state of CoDel for it. */
+    private static final class Band {
+        final ByteBuffer[] packets;
+        /** When each packet was queued. */
+        final long[] times;
+        /** The flow bucket of each packet. */
+        final int[] flows;
+        /** Packets of each flow bucket in the band. */
+        final int[] flowPackets = new int[FLOW_BUCKETS];
+        int head;
+        int count;
+        int bytes;
+
+        /** When the wait went above the target plus an interval, or 0 if it is below it. */
+        long firstAboveTime;
+        long dropNext;
+        int dropCount;
+        int lastDropCount;
+        boolean dropping;
+
+        Band(int capacity, int packetSize) {
+            packets = new ByteBuffer[capacity];
+            for (int i = 0; i < capacity; ++i) {
+                packets[i] = ByteBuffer.allocateDirect(packetSize);
+            }
+            times = new long[capacity];
+            flows = new int[capacity];
+        }
+    }
+
+    private final Band mInteractive;
+    private final Band mBulk;
+    private final int mPacketSize;
+
+    /** When the packet that was taken last got queued. */
+    private long mTakenTime;
+    private long mDropped;
+    private boolean mClosed;
+    private TunnelMetrics mMetrics = new TunnelMetrics();
+
+    /**
+     * @param capacity packets in the bulk band.
+     * @param packetSize the largest packet.
+     */
+    UplinkQueue(int capacity, int packetSize) {
+        mInteractive = new Band(Math.max(capacity / 4, SPARSE_MAX_PACKETS), packetSize);
+        mBulk = new Band(capacity, packetSize);
+        mPacketSize = packetSize;
+    }
+
+    /** Optionally, count into metrics shared with others. */
+    void setMetrics(TunnelMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Copies a packet to the end of its band and consumes it.
+     *
+     * @param now from {@link System#nanoTime()}.
+     */
+    synchronized void offer(ByteBuffer packet, long now) {
+        mMetrics.onQueued();
+        if (mClosed) {
+            packet.position(packet.limit());
+            drop(packet);
+            return;
+        }
+        final int flow = FlowHash.bucket(packet, FLOW_BUCKETS);
+        final Band band = packet.remaining() <= INTERACTIVE_MAX_SIZE
+                && mBulk.flowPackets[flow] == 0
+                && mInteractive.flowPackets[flow] < SPARSE_MAX_PACKETS ? mInteractive : mBulk;
+        if (band.count == band.packets.length) {
+            drop(take(band));
+        }
+        final int tail = (band.head + band.count) % band.packets.length;
+        final ByteBuffer slot = band.packets[tail];
+        slot.clear();
+        slot.put(packet).flip();
+        band.times[tail] = now;
+        band.flows[tail] = flow;
+        ++band.flowPackets[flow];
+        ++band.count;
+        band.bytes += slot.remaining();
+    }
+
+    /**
+     * Hands packets to {@code sender}, interactive ones first, till the queue is empty or the
+     * socket is full. Packets CoDel drops on the way are counted.
+     *
+     * @param now from {@link System#nanoTime()}.
+     * @return the number of packets sent.
+     */
+    synchronized int drain(Sender sender, long now) throws IOException {
+        int sent = 0;
+        while (sender.hasRoom()) {
+            Band band = mInteractive;
+            ByteBuffer packet = dequeue(band, now);
+            if (packet == null) {
+                band = mBulk;
+                packet = dequeue(band, now);
+                if (packet == null) {
+                    break;
+                }
+            }
+            if (!sender.send(packet)) {
+                // It goes first once there is room again.
+                putBack(band, packet);
+                break;
+            }
+            mMetrics.onDequeued(now - mTakenTime);
+            ++sent;
+        }
+        return sent;
+    }
+
+    /** Drops what is queued and whatever comes later, once the socket is done with. */
+    synchronized void close() {
+        mClosed = true;
+        while (size() > 0) {
+            drop(take(size() > mBulk.count ? mInteractive : mBulk));
+        }
+    }
+
+    synchronized int size() {
+        return mInteractive.count + mBulk.count;
+    }
+
+    /** @return the number of packets dropped so far, by CoDel or for lack of room. */
+    synchronized long getDropped() {
+        return mDropped;
+    }
+
+    /** Takes the next packet of a band, dropping what CoDel says to, as in RFC 8289. */
+    private ByteBuffer dequeue(Band band, long now) {
+        ByteBuffer packet = take(band);
+        if (packet == null) {
+            band.dropping = false;
+            return null;
+        }
+        final boolean okToDrop = isAboveTarget(band, now);
+        if (band.dropping) {
+            if (!okToDrop) {
+                band.dropping = false;
+            }
+            while (band.dropping && now - band.dropNext >= 0) {
+                drop(packet);
+                ++band.dropCount;
+                packet = take(band);
+                if (packet == null || !isAboveTarget(band, now)) {
+                    band.dropping = false;
+                } else {
+                    band.dropNext = controlLaw(band.dropNext, band.dropCount);
+                }
+            }
+        } else if (okToDrop) {
+            drop(packet);
+            packet = take(band);
+            if (packet != null) {
+                isAboveTarget(band, now);
+            }
+            band.dropping = true;
+            // Start close to where the last episode ended if it was not long ago.
+            final int delta = band.dropCount - band.lastDropCount;
+            band.dropCount = delta > 1 && now - band.dropNext < 16 * INTERVAL_NS ? delta : 1;
+            band.dropNext = controlLaw(now, band.dropCount);
+            band.lastDropCount = band.dropCount;
+        }
+        return packet;
+    }
+
+    /** @return whether the wait of the packet taken last has been too long for long enough. */
+    private boolean isAboveTarget(Band band, long now) {
+        if (now - mTakenTime < TARGET_NS || band.bytes <= mPacketSize) {
+            // Less than a packet left can only be the link itself, not a queue.
+            band.firstAboveTime = 0;
+            return false;
+        }
+        if (band.firstAboveTime == 0) {
+            band.firstAboveTime = now + INTERVAL_NS;
+            return false;
+        }
+        return now - band.firstAboveTime >= 0;
+    }
+
+    private static long controlLaw(long time, int count) {
+        return time + (long) (INTERVAL_NS / Math.sqrt(count));
+    }
+
+    /**
+     * @return the oldest packet of a band, or {@code null} if it is empty. It stays valid till
+     *         the queue is unlocked.
+     */
+    private ByteBuffer take(Band band) {
+        if (band.count == 0) {
+            return null;
+        }
+        final ByteBuffer packet = band.packets[band.head];
+        mTakenTime = band.times[band.head];
+        --band.flowPackets[band.flows[band.head]];
+        band.head = (band.head + 1) % band.packets.length;
+        --band.count;
+        band.bytes -= packet.remaining();
+        return packet;
+    }
+
+    /** Undoes {@link #take(Band)} of the packet it returned last, which is left as it was. */
+    private void putBack(Band band, ByteBuffer packet) {
+        band.head = (band.head - 1 + band.packets.length) % band.packets.length;
+        ++band.count;
+        band.bytes += packet.remaining();
+        ++band.flowPackets[band.flows[band.head]];
+    }
+
+    private void drop(ByteBuffer packet) {
+        if (packet != null) {
+            ++mDropped;
+            mMetrics.onQueueDropped();
+        }
+    }
+}
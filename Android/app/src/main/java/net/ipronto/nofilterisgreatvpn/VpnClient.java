@@ -18,10 +18,8 @@ package net.ipronto.nofilterisgreatvpn;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.os.Bundle;
-import android.os.Message;
 import android.util.Log;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
@@ -32,16 +30,10 @@ import android.widget.TextView;
 import com.koushikdutta.ion.Ion;
 import com.koushikdutta.ion.builder.AnimateGifMode;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import com.facebook.ads.*;
 
@@ -53,6 +45,17 @@ public class VpnClient extends Activity {
     ListView listView;
     ImageView imgAnimation;
 
+    private ServerDirectory mServerDirectory;
+    private final ServerDirectory.Listener mServersListener = new ServerDirectory.Listener() {
+        @Override
+        public void onServersChanged(List<ServerData> servers) {
+            showServers(servers);
+        }
+    };
+
+    /** Keeps probing the servers shown, to put the closest ones first. */
+    private ProbeScheduler mProbeScheduler;
+
     private void connectToVPN() {
         Intent intent = android.net.VpnService.prepare(VpnClient.this);
         if (intent != null) {
@@ -117,106 +120,122 @@ public class VpnClient extends Activity {
             // change the background color of the selected element
             view.setBackgroundColor(Color.LTGRAY);
             selectedServer = servers.get(position);
+            userSelectedServer = true;
         });
 
 
-        new Thread(() -> {
-            try {
-                getServersList("https://s3.eu-central-1.amazonaws.com/nofiltervpn/config.json");
-            } catch(Exception e) {
-                Log.e("VpnConnection", "Could not fetch servers list", e);
-            }
-        }).start();
-    }
-
-    public class ServerData {
-        String address;
-        int port;
-        String secret;
+        mProbeScheduler = new ProbeScheduler(results -> onServersProbed(results),
+                ProbeScheduler.DEFAULT_INTERVAL_MS);
 
+        // Show the last known list at once; the directory tells us when a newer one arrives.
+        mServerDirectory = mMyApp.getServerDirectory();
+        mServerDirectory.addListener(mServersListener);
+        showServers(mServerDirectory.getServers());
     }
 
     private ArrayList<ServerData> servers;
     private String[] serverNames;
     private ServerData selectedServer = null;
 
-    private String getHttpData(String urlString) throws IOException {
-        Log.i("VpnConnection", "Requesting server list from Web");
+    /** Whether the user picked a server, which ranking must not override. */
+    private boolean userSelectedServer = false;
 
-        HttpURLConnection urlConnection;
-        URL url = new URL(urlString);
-        urlConnection = (HttpURLConnection) url.openConnection();
-        urlConnection.setRequestMethod("GET");
-        urlConnection.setReadTimeout(10000 /* milliseconds */ );
-        urlConnection.setConnectTimeout(15000 /* milliseconds */ );
-        urlConnection.setDoOutput(true);
-        urlConnection.connect();
+    private void showServers(final List<ServerData> list) {
+        if (list.isEmpty()) {
+            return;
+        }
+        final String[] names = new String[list.size()];
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = list.get(i).name;
+        }
 
-        BufferedReader br = new BufferedReader(new InputStreamReader(url.openStream()));
-        StringBuilder sb = new StringBuilder();
+        this.runOnUiThread(() -> {
+            servers = new ArrayList<>(list);
+            serverNames = names;
+            listView.setAdapter(new ArrayAdapter<>(this, R.layout.activity_listview, names));
+
+            // Every list is made of new objects, so the pick is found again by where it is.
+            final int picked = userSelectedServer ? indexOf(servers, selectedServer) : -1;
+            if (picked >= 0) {
+                listView.setSelection(picked);
+                selectedServer = servers.get(picked);
+            } else {
+                listView.setSelection(0);
+                selectedServer = servers.get(0);
+                userSelectedServer = false;
+            }
 
-        String line;
-        while ((line = br.readLine()) != null) {
-            sb.append(line).append("\n");
-        }
-        br.close();
+            btnConnect.setEnabled(true);
 
-        return sb.toString();
+            // The probe of the list shown before, if any, is cancelled.
+            mProbeScheduler.setServers(getAddresses(servers));
+        });
     }
 
-    private String getServerListFromCacheOrHttp(String urlString) throws IOException {
-        String serverListJson = "";
-        SharedPreferences sharedPreferences = getPreferences(MODE_PRIVATE);
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        long cachedTime = sharedPreferences.getLong("server_list_time", 0);
-        if (cachedTime == 0 || cachedTime< (System.currentTimeMillis() - 86400)) {
-            serverListJson = getHttpData(urlString);
-            editor.putString("server_list", serverListJson);
-            editor.putLong("server_list_time", System.currentTimeMillis());
-            editor.apply();
-        } else {
-            Log.i("VpnConnection", "Requesting server list from Cache");
-            serverListJson = sharedPreferences.getString("server_list", "");
+    /** @return the position of the server at the same address and port, or -1 if there is none. */
+    private static int indexOf(List<ServerData> servers, ServerData server) {
+        for (int i = 0; i < servers.size(); ++i) {
+            final ServerData candidate = servers.get(i);
+            if (candidate.address.equals(server.address) && candidate.port == server.port) {
+                return i;
+            }
         }
-
-        System.out.println("JSON: " + serverListJson);
-
-        return serverListJson;
+        return -1;
     }
 
-    private void parseServerList(String serverListJson) throws JSONException {
-        JSONObject serversData = new JSONObject(serverListJson);
-        JSONArray serversArr = serversData.getJSONArray("servers");
-        serverNames = new String[serversArr.length()];
-        servers = new ArrayList<>();
-        for (int i=0;i<serversArr.length();i++) {
-            JSONObject serverOnj = serversArr.getJSONObject(i);
-            ServerData sd = new ServerData();
-            sd.address = serverOnj.getString("address");
-            sd.secret = serverOnj.getString("secret");
-            sd.port = serverOnj.getInt("port");
-
-            serverNames[i] = serverOnj.getString("name");
-
-            servers.add(sd);
+    /** @return the addresses of the servers, left for the scheduler to resolve. */
+    private static List<InetSocketAddress> getAddresses(List<ServerData> servers) {
+        final List<InetSocketAddress> addresses = new ArrayList<>();
+        for (ServerData server : servers) {
+            addresses.add(InetSocketAddress.createUnresolved(server.address, server.port));
         }
+        return addresses;
     }
 
-    public void getServersList(String urlString) throws IOException, JSONException {
-        String serverListJson = getServerListFromCacheOrHttp(urlString);
-        parseServerList(serverListJson);
+    /**
+     * Puts the closest of the servers shown first, selecting the best unless the user picked
+     * one. This is called on the thread of the scheduler after every probe.
+     */
+    private void onServersProbed(final Map<InetSocketAddress, ServerProber.Result> probed) {
+        this.runOnUiThread(() -> {
+            if (servers != null) {
+                rankServers(servers, probed);
+            }
+        });
+    }
 
-        ArrayAdapter adapter = new ArrayAdapter<>(this,
-                R.layout.activity_listview, serverNames);
+    private void rankServers(final ArrayList<ServerData> shown,
+                             Map<InetSocketAddress, ServerProber.Result> probed) {
+        final List<InetSocketAddress> addresses = getAddresses(shown);
+        final ServerProber.Result[] results = new ServerProber.Result[addresses.size()];
+        for (int i = 0; i < results.length; ++i) {
+            results[i] = probed.get(addresses.get(i));
+            if (results[i] == null) {
+                // Not probed yet, which ranks it last for now.
+                results[i] = new ServerProber.Result();
+            }
+        }
+        final int[] ranks = ServerProber.rank(results);
+
+        final ArrayList<ServerData> rankedServers = new ArrayList<>();
+        final String[] rankedNames = new String[ranks.length];
+        for (int i = 0; i < ranks.length; ++i) {
+            final ServerProber.Result result = results[ranks[i]];
+            final ServerData server = shown.get(ranks[i]);
+            Log.i("VpnConnection", "Server " + server.name + ": rtt " + result.srtt
+                    + " ms, loss " + result.getLoss());
+            rankedServers.add(server);
+            rankedNames[i] = server.name;
+        }
 
-        this.runOnUiThread(() -> {
-            listView.setAdapter(adapter);
+        servers = rankedServers;
+        serverNames = rankedNames;
+        listView.setAdapter(new ArrayAdapter<>(this, R.layout.activity_listview, rankedNames));
 
+        if (!userSelectedServer) {
             listView.setSelection(0);
             selectedServer = servers.get(0);
-
-            btnConnect.setEnabled(true);
-        });
+        }
     }
 
     @Override
@@ -233,12 +252,21 @@ public class VpnClient extends Activity {
     protected void onResume() {
         super.onResume();
         mMyApp.setCurrentActivity(this);
+        mProbeScheduler.start();
+
+        // Pick up changes to the list if it was left in the background for long.
+        if (mServerDirectory.isStale(System.currentTimeMillis())) {
+            mServerDirectory.refresh();
+        }
     }
     protected void onPause() {
+        mProbeScheduler.stop();
         clearReferences();
         super.onPause();
     }
     protected void onDestroy() {
+        mServerDirectory.removeListener(mServersListener);
+        mProbeScheduler.shutdown();
         clearReferences();
         super.onDestroy();
     }
@@ -249,22 +277,23 @@ public class VpnClient extends Activity {
             mMyApp.setCurrentActivity(null);
     }
 
-    public void handleMessage(Message message) {
-        status_msg.setText(message.what);
+    /** Shows the status of the connection, given as one of its strings. */
+    public void showStatus(int status) {
+        status_msg.setText(status);
 
-        if (message.what != R.string.connecting) {
+        if (status != R.string.connecting) {
             Log.i("VpnConnection", "Removing the animation 2");
             Ion.with(imgAnimation)
                     .animateGif(AnimateGifMode.NO_ANIMATE)
                     .load("file:///android_asset/connecting.gif");
         }
 
-        if (message.what == R.string.disconnected) {
+        if (status == R.string.disconnected) {
             btnConnect.setEnabled(true);
             btnDisconnect.setEnabled(false);
         }
 
-        if (message.what == R.string.connected) {
+        if (status == R.string.connected) {
             btnDisconnect.setEnabled(true);
             btnConnect.setEnabled(false);
         }
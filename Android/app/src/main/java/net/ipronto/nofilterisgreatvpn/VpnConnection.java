@@ -17,18 +17,22 @@
 package net.ipronto.nofilterisgreatvpn;
 
 import android.app.PendingIntent;
+import android.net.Network;
+import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
-import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.util.concurrent.TimeUnit;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 public class VpnConnection implements Runnable {
     /**
@@ -40,36 +44,11 @@ public class VpnConnection implements Runnable {
         void onDisconnected();
     }
 
-    /** Maximum packet size is constrained by the MTU, which is given as a signed short. */
-    private static final int MAX_PACKET_SIZE = Short.MAX_VALUE;
-
-    /** Time to wait in between losing the connection and retrying. */
-    private static final long RECONNECT_WAIT_MS = TimeUnit.SECONDS.toMillis(3);
-
-    /** Time between keepalives if there is no traffic at the moment.
-     *
-     * TODO: don't do this; it's much better to let the connection die and then reconnect when
-     *       necessary instead of keeping the network hardware up for hours on end in between.
-     **/
-    private static final long KEEPALIVE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(15);
-
-    /** Time to wait without receiving any response before assuming the server is gone. */
-    private static final long RECEIVE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(20);
-
     /**
-     * Time between polling the VPN interface for new traffic, since it's non-blocking.
-     *
-     * TODO: really don't do this; a blocking read on another thread is much cleaner.
+     * Most sockets to stripe a tunnel across, however many the server offers. More sockets
+     * than cores only adds overhead.
      */
-    private static final long IDLE_INTERVAL_MS = TimeUnit.MILLISECONDS.toMillis(100);
-
-    /**
-     * Number of periods of length {@IDLE_INTERVAL_MS} to wait before declaring the handshake a
-     * complete and abject failure.
-     *
-     * TODO: use a higher-level protocol; hand-rolling is a fun but pointless exercise.
-     */
-    private static final int MAX_HANDSHAKE_ATTEMPTS = 50;
+    private static final int MAX_STRIPES = 4;
 
     private final android.net.VpnService mService;
     private final int mConnectionId;
@@ -78,6 +57,42 @@ public class VpnConnection implements Runnable {
     private final int mServerPort;
     private final byte[] mSharedSecret;
 
+    /**
+     * MTU of the interface: the one found by probing, else the one pushed by the server in the
+     * last handshake, or 0 if there was neither.
+     */
+    private int mMtu;
+
+    /**
+     * Keepalive interval learned by the last session, or 0 if there was none. The NAT in front
+     * of us is usually the same across sessions, so there is no point in learning it again.
+     */
+    private long mKeepaliveIntervalMs;
+    private boolean mKeepaliveIntervalFound;
+
+    /**
+     * The interface, which outlives the sessions as long as their parameters do not change,
+     * so apps only see a stall while the tunnel reconnects.
+     */
+    private ParcelFileDescriptor mIface;
+    /** Lasting parameters and MTU the interface was configured with. */
+    private String mIfaceParameters;
+    private int mIfaceMtu;
+    /** Packets received need to be written to this output channel. */
+    private FileChannel mIfaceOut;
+    /** Reads packets to be sent, and keeps them while there is no session. */
+    private OutboundQueue mOutbound;
+    /** Answers to DNS lookups, which outlive sessions as long as the interface does. */
+    private DnsCache mDnsCache;
+
+    private SessionCache mSessionCache = new SessionCache();
+    private TunnelMetrics mMetrics = new TunnelMetrics();
+    private ReconnectScheduler mReconnectScheduler;
+    /** Copies what goes through the interface, or {@code null} if capturing is off. */
+    private PacketCapture mCapture;
+    /** The networks to bond the stripes across, or {@code null} if bonding is off. */
+    private NetworkPaths mNetworkPaths;
+    private boolean mRedundant;
     private PendingIntent mConfigureIntent;
     private OnEstablishListener mOnEstablishListener;
 
@@ -98,6 +113,48 @@ public class VpnConnection implements Runnable {
         mConfigureIntent = intent;
     }
 
+    /**
+     * Optionally, share what earlier connections found out about the server, so reconnecting
+     * is faster. Each connection has a cache of its own by default.
+     */
+    public void setSessionCache(SessionCache cache) {
+        mSessionCache = cache;
+    }
+
+    /**
+     * Set what decides when to try again after losing the connection. The scheduler should
+     * outlive connections, so the backoff carries over when one gives up and the next starts.
+     */
+    public void setReconnectScheduler(ReconnectScheduler scheduler) {
+        mReconnectScheduler = scheduler;
+    }
+
+    /**
+     * Optionally, count what goes through the tunnel into metrics that outlive the connection.
+     * Each connection has metrics of its own by default.
+     */
+    public void setMetrics(TunnelMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Optionally, copy the packets that go through the interface into a capture that outlives
+     * the connection, to be exported when something breaks. This is off by default.
+     */
+    public void setCapture(PacketCapture capture) {
+        mCapture = capture;
+    }
+
+    /**
+     * Optionally, spread the stripes across every network there is, such as Wi-Fi and cellular,
+     * and send each packet on the one that does best, if the server agrees. In redundant mode,
+     * small packets go out on all of them. This is off by default.
+     */
+    public void setBonding(boolean enabled, boolean redundant) {
+        mNetworkPaths = enabled ? new NetworkPaths(mService) : null;
+        mRedundant = redundant;
+    }
+
     public void setOnEstablishListener(OnEstablishListener listener) {
         mOnEstablishListener = listener;
     }
@@ -106,37 +163,67 @@ public class VpnConnection implements Runnable {
     public void run() {
         try {
             Log.i(getTag(), "Starting");
+            if (mNetworkPaths != null) {
+                // Cellular has to stay up next to Wi-Fi for as long as we may bond across them.
+                mNetworkPaths.open();
+            }
 
-            // If anything needs to be obtained using the network, get it now.
-            // This greatly reduces the complexity of seamless handover, which
-            // tries to recreate the tunnel without shutting down everything.
-            // In this demo, all we need to know is the server address.
-            final SocketAddress serverAddress = new InetSocketAddress(mServerName, mServerPort);
-
-            // We try to create the tunnel several times.
-            // TODO: The better way is to work with ConnectivityManager, trying only when the
-            //       network is available.
-            // Here we just use a counter to keep things simple.
-            for (int attempt = 0; attempt < 10; ++attempt) {
-                // Reset the counter if we were connected.
-                if (run(serverAddress)) {
-                    attempt = 0;
+            // We keep trying to create the tunnel, as long as there is a network to try on
+            // and with longer and longer waits in between.
+            for (boolean first = true; ; first = false) {
+                // Wait till the next attempt is due. This also checks if we got interrupted.
+                mReconnectScheduler.await();
+                if (!first) {
+                    mMetrics.onReconnect();
                 }
 
-                // Sleep for a while. This also checks if we got interrupted.
-                Thread.sleep(3000);
+                // If anything needs to be obtained using the network, get it now. In this
+                // demo, all we need to know is the server address, which is only resolved
+                // again once it gets old or stops working. While we keep the interface,
+                // lookups would go into the very tunnel we are trying to bring back, so the
+                // last known address is used however old it is.
+                SocketAddress serverAddress = null;
+                if (mIface != null) {
+                    serverAddress = mSessionCache.getAddress(mServerName, mServerPort);
+                }
+                if (serverAddress == null) {
+                    serverAddress = mSessionCache.resolve(mServerName, mServerPort);
+                }
+
+                // Start over with the backoff if we were connected.
+                boolean connected = false;
+                try {
+                    connected = run(serverAddress);
+                } catch (IOException e) {
+                    Log.e(getTag(), "Cannot connect", e);
+                }
+                if (connected) {
+                    mReconnectScheduler.reset();
+                } else {
+                    if (mIface == null) {
+                        mSessionCache.invalidateAddress(mServerName, mServerPort);
+                    }
+                    mReconnectScheduler.onFailure();
+                }
             }
-            Log.i(getTag(), "Giving up");
-        } catch (IOException | InterruptedException | IllegalArgumentException e) {
+        } catch (InterruptedException e) {
+            // The service replaced or stopped us, and knows it.
+            Log.i(getTag(), "Interrupted, exiting");
+        } catch (IllegalArgumentException e) {
             Log.e(getTag(), "Connection failed to " + mServerName + ":" + mServerPort+ ", secret: " +mSharedSecret +" , exiting", e);
             mOnEstablishListener.onDisconnected();
+        } finally {
+            closeInterface();
+            if (mNetworkPaths != null) {
+                mNetworkPaths.close();
+            }
         }
     }
 
     private boolean run(SocketAddress server)
             throws IOException, InterruptedException, IllegalArgumentException {
-        ParcelFileDescriptor iface = null;
         boolean connected = false;
+        final List<DatagramChannel> stripes = new ArrayList<>();
         // Create a DatagramChannel as the VPN tunnel.
         try (DatagramChannel tunnel = DatagramChannel.open()) {
 
@@ -148,162 +235,222 @@ public class VpnConnection implements Runnable {
             // Connect to the server.
             tunnel.connect(server);
 
-            // For simplicity, we use the same thread for both reading and
-            // writing. Here we put the tunnel into non-blocking mode.
+            // The handshake polls the tunnel, so put it into non-blocking mode.
             tunnel.configureBlocking(false);
 
-            // Authenticate and configure the virtual network interface.
-            iface = handshake(tunnel);
-
-            // Now we are connected. Set the flag.
-            connected = true;
+            // Authenticate and get the parameters and keys of the session, resuming the last
+            // one if the server still knows it, and agree on what to use the tunnel for.
+            final SessionCache.Session cached =
+                    mSessionCache.getSession(mServerName, mServerPort);
+            final long handshakeStart = System.currentTimeMillis();
+            final Capabilities offer = Handshake.newOffer();
+            if (mNetworkPaths != null) {
+                offer.set(Capabilities.FIELD_FEATURES, offer.get(Capabilities.FIELD_FEATURES)
+                        | Capabilities.FEATURE_BONDING
+                        | (mRedundant ? Capabilities.FEATURE_REDUNDANCY : 0));
+            }
+            final Handshake.Result result = Handshake.performSealed(tunnel, mSharedSecret,
+                    cached != null ? cached.ticket : null, offer, Handshake.TIMEOUT_MS);
+            final SessionParameters answer = SessionParameters.parse(result.parameters);
+            mMetrics.onHandshakeDone(System.currentTimeMillis() - handshakeStart);
+            final String ticket = answer.getTicket();
+            final boolean resumed = cached != null && cached.ticket.equals(ticket);
+            final SessionParameters parameters = resumed
+                    ? SessionParameters.parse(cached.parameters + " " + answer) : answer;
+            if (result.agreed != null) {
+                parameters.setAgreed(result.agreed);
+            }
 
-            // Packets to be sent are queued in this input stream.
-            FileInputStream in = new FileInputStream(iface.getFileDescriptor());
+            // Find the largest packet the path carries before sizing the interface, unless
+            // it is known already.
+            final int ceiling = PathMtuProber.ceilingFor(tunnel);
+            int pathMtu;
+            if (resumed && cached.ceiling == ceiling) {
+                Log.i(getTag(), "Resuming session");
+                pathMtu = cached.pathMtu;
+            } else {
+                pathMtu = PathMtuProber.probe(tunnel, ceiling);
+            }
+            cacheSession(parameters, ticket, pathMtu, ceiling);
 
-            // Packets received need to be written to this output stream.
-            FileOutputStream out = new FileOutputStream(iface.getFileDescriptor());
+            // Configure the virtual network interface, or keep the one we have.
+            configure(parameters, pathMtu);
 
-            // Allocate the buffer for a single packet.
-            ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
+            // Now we are connected. Set the flag.
+            connected = true;
 
-            // Timeouts:
-            //   - when data has not been sent in a while, send empty keepalive messages.
-            //   - when data has not been received in a while, assume the connection is broken.
-            long lastSendTime = System.currentTimeMillis();
-            long lastReceiveTime = System.currentTimeMillis();
+            // Join the extra sockets the server offered, if any.
+            stripes.add(tunnel);
+            openStripes(((InetSocketAddress) server).getAddress(),
+                    parameters.getStripePorts(), result.cipher, parameters.isBonded()
+                            ? mNetworkPaths.getNetworks() : new ArrayList<Network>(), stripes);
 
-            // We keep forwarding packets till something goes wrong.
             while (true) {
-                // Assume that we did not make any progress in this iteration.
-                boolean idle = true;
-
-                // Read the outgoing packet from the input stream.
-                int length = in.read(packet.array());
-                if (length > 0) {
-                    // Write the outgoing packet to the tunnel.
-                    packet.limit(length);
-                    tunnel.write(packet);
-                    packet.clear();
-
-                    // There might be more outgoing packets.
-                    idle = false;
-                    lastReceiveTime = System.currentTimeMillis();
+                // We keep forwarding packets till something goes wrong. Packets to be sent
+                // come from the outbound queue, starting with those that waited for us.
+                PacketForwarder forwarder = new PacketForwarder(null, mIfaceOut,
+                        stripes.toArray(new DatagramChannel[stripes.size()]), mMtu, getTag());
+                if (parameters.getBatchDeadlineMs() >= 0) {
+                    forwarder.setBatching(mMtu, parameters.getBatchDeadlineMs());
                 }
-
-                // Read the incoming packet from the tunnel.
-                length = tunnel.read(packet);
-                if (length > 0) {
-                    // Ignore control messages, which start with zero.
-                    if (packet.get(0) != 0) {
-                        // Write the incoming packet to the output stream.
-                        out.write(packet.array(), 0, length);
-                    }
-                    packet.clear();
-
-                    // There might be more incoming packets.
-                    idle = false;
-                    lastSendTime = System.currentTimeMillis();
+                if (pathMtu > 0) {
+                    forwarder.setPathMtu(pathMtu);
                 }
-
-                // If we are idle or waiting for the network, sleep for a
-                // fraction of time to avoid busy looping.
-                if (idle) {
-                    Thread.sleep(IDLE_INTERVAL_MS);
-                    final long timeNow = System.currentTimeMillis();
-
-                    if (lastSendTime + KEEPALIVE_INTERVAL_MS <= timeNow) {
-                        // We are receiving for a long time but not sending.
-                        // Send empty control messages.
-                        packet.put((byte) 0).limit(1);
-                        for (int i = 0; i < 3; ++i) {
-                            packet.position(0);
-                            tunnel.write(packet);
-                        }
-                        packet.clear();
-                        lastSendTime = timeNow;
-                    } else if (lastReceiveTime + RECEIVE_TIMEOUT_MS <= timeNow) {
-                        // We are sending for a long time but not receiving.
-                        throw new IllegalStateException("Timed out");
-                    }
+                forwarder.setCipher(result.cipher);
+                if (parameters.getIdleTimeoutMs() > 0) {
+                    forwarder.setIdleTimeout(parameters.getIdleTimeoutMs());
+                }
+                forwarder.setKeepaliveInterval(mKeepaliveIntervalMs, mKeepaliveIntervalFound);
+                forwarder.setCompression(
+                        parameters.getCompression() == PacketCompressor.CODEC_LZ4);
+                forwarder.setHeaderCompression(
+                        parameters.getHeaderCompression() == HeaderCompressor.SCHEME_IPV4);
+                forwarder.setErrorCorrection(parameters.getParityGroupSize());
+                if (parameters.isBonded()) {
+                    forwarder.setBonding(parameters.isRedundant());
+                }
+                forwarder.setMetrics(mMetrics);
+                forwarder.setDnsCache(mDnsCache);
+                forwarder.setCapture(mCapture);
+                mOutbound.attach(forwarder);
+                try {
+                    forwarder.run();
+                } finally {
+                    mOutbound.detach();
+                    mKeepaliveIntervalMs = forwarder.getKeepaliveInterval();
+                    mKeepaliveIntervalFound = forwarder.isKeepaliveIntervalFound();
                 }
+
+                // The path no longer carries packets as large as the interface hands us, so
+                // shrink the interface. The session stays as it is.
+                pathMtu = forwarder.getPathMtu();
+                configure(parameters, pathMtu);
+                cacheSession(parameters, ticket, pathMtu, ceiling);
+            }
+        } catch (IOException e) {
+            // A session that got connected worked, however it ended: a broken socket, the
+            // interface or whatever the forwarder ran into. Only a failure to get there
+            // counts against the backoff.
+            if (!connected && !(e instanceof SocketException)) {
+                throw e;
             }
-        } catch (SocketException e) {
-            Log.e(getTag(), "Cannot use socket", e);
+            Log.e(getTag(), connected ? "Session ended" : "Cannot use socket", e);
         } finally {
-            if (iface != null) {
+            // The interface stays for the next session.
+            for (int i = 1; i < stripes.size(); ++i) {
                 try {
-                    iface.close();
+                    stripes.get(i).close();
                 } catch (IOException e) {
-                    Log.e(getTag(), "Unable to close interface", e);
+                    Log.e(getTag(), "Unable to close socket", e);
                 }
             }
         }
         return connected;
     }
 
-    private ParcelFileDescriptor handshake(DatagramChannel tunnel)
-            throws IOException, InterruptedException {
-        // To build a secured tunnel, we should perform mutual authentication
-        // and exchange session keys for encryption. To keep things simple in
-        // this demo, we just send the shared secret in plaintext and wait
-        // for the server to send the parameters.
-
-        // Allocate the buffer for handshaking. We have a hardcoded maximum
-        // handshake size of 1024 bytes, which should be enough for demo
-        // purposes.
-        ByteBuffer packet = ByteBuffer.allocate(1024);
-
-        // Control messages always start with zero.
-        packet.put((byte) 0).put(mSharedSecret).flip();
-
-        // Send the secret several times in case of packet loss.
-        for (int i = 0; i < 3; ++i) {
-            packet.position(0);
-            tunnel.write(packet);
+    /**
+     * Connects a socket to each extra port the server offered and joins it to the session.
+     *
+     * @param networks the networks to bond across, if there is more than one. The first socket
+     *                 took the default one, which is usually the first of them, so the extra
+     *                 sockets start from the second and take turns.
+     */
+    private void openStripes(InetAddress server, List<Integer> ports, TunnelCipher cipher,
+                             List<Network> networks, List<DatagramChannel> stripes)
+            throws IOException {
+        for (int port : ports) {
+            if (stripes.size() == MAX_STRIPES) {
+                break;
+            }
+            final DatagramChannel stripe = DatagramChannel.open();
+            stripes.add(stripe);
+            if (!mService.protect(stripe.socket())) {
+                throw new IllegalStateException("Cannot protect the tunnel");
+            }
+            if (networks.size() > 1) {
+                NetworkPaths.bind(stripe, networks.get((stripes.size() - 1) % networks.size()));
+            }
+            stripe.connect(new InetSocketAddress(server, port));
+            Handshake.join(stripe, cipher);
         }
-        packet.clear();
-
-        // Wait for the parameters within a limited time.
-        for (int i = 0; i < MAX_HANDSHAKE_ATTEMPTS; ++i) {
-            Thread.sleep(IDLE_INTERVAL_MS);
+        if (stripes.size() > 1 && networks.size() > 1) {
+            Log.i(getTag(), "Bonding " + stripes.size() + " sockets across "
+                    + networks.size() + " networks");
+        } else if (stripes.size() > 1) {
+            Log.i(getTag(), "Striping across " + stripes.size() + " sockets");
+        }
+    }
 
-            // Normally we should not receive random packets. Check that the first
-            // byte is 0 as expected.
-            int length = tunnel.read(packet);
-            if (length > 0 && packet.get(0) == 0) {
-                return configure(new String(packet.array(), 1, length - 1).trim());
-            }
+    /**
+     * Remembers the session for the next one, leaving out the parameters the server only
+     * hands out for this one.
+     */
+    private void cacheSession(SessionParameters parameters, String ticket, int pathMtu,
+                              int ceiling) {
+        if (ticket == null) {
+            mSessionCache.putSession(mServerName, mServerPort, null);
+            return;
         }
-        throw new IOException("Timed out");
+        mSessionCache.putSession(mServerName, mServerPort, new SessionCache.Session(
+                parameters.getLasting(), ticket, pathMtu, ceiling));
     }
 
-    private ParcelFileDescriptor configure(String parameters) throws IllegalArgumentException {
-        // Configure a builder while parsing the parameters.
-        android.net.VpnService.Builder builder = mService.new Builder();
-        for (String parameter : parameters.split(" ")) {
-            String[] fields = parameter.split(",");
-            try {
-                switch (fields[0].charAt(0)) {
-                    case 'm':
-                        builder.setMtu(Short.parseShort(fields[1]));
-                        break;
-                    case 'a':
-                        builder.addAddress(fields[1], Integer.parseInt(fields[2]));
-                        break;
-                    case 'r':
-                        builder.addRoute(fields[1], Integer.parseInt(fields[2]));
-                        break;
-                    case 'd':
-                        builder.addDnsServer(fields[1]);
-                        break;
-                    case 's':
-                        builder.addSearchDomain(fields[1]);
-                        break;
-                }
-            } catch (NumberFormatException e) {
-                throw new IllegalArgumentException("Bad parameter: " + parameter);
+    /**
+     * Configures the interface for a session, keeping the current one if nothing changed.
+     *
+     * @param pathMtu the MTU found by probing, which overrides the one the server pushed, or
+     *                -1 to use the latter. The interface gets what is left of it after sealing.
+     */
+    private void configure(SessionParameters parameters, int pathMtu)
+            throws IllegalArgumentException {
+        // Configure a builder from the parameters.
+        final android.net.VpnService.Builder builder = mService.new Builder();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // Let the outgoing path block on the interface instead of polling it.
+            builder.setBlocking(true);
+        }
+        parameters.configure(new SessionParameters.Configurator() {
+            @Override
+            public void addAddress(String address, int prefixLength) {
+                builder.addAddress(address, prefixLength);
+            }
+
+            @Override
+            public void addRoute(String address, int prefixLength) {
+                builder.addRoute(address, prefixLength);
+            }
+
+            @Override
+            public void addDnsServer(String address) {
+                builder.addDnsServer(address);
+            }
+
+            @Override
+            public void addSearchDomain(String domain) {
+                builder.addSearchDomain(domain);
             }
+        });
+
+        mMtu = pathMtu > 0 ? pathMtu - TunnelCipher.OVERHEAD : parameters.getMtu();
+        if (pathMtu > 0 && parameters.getParityGroupSize() > 0) {
+            // Leave room for the parity header, so a full packet still fits the path.
+            mMtu -= ParityEncoder.OVERHEAD;
+        }
+        if (pathMtu > 0 && parameters.isBonded()) {
+            // And for the sequence number every datagram of a bonded tunnel carries.
+            mMtu -= ReorderBuffer.HEADER_SIZE;
+        }
+        if (mMtu > 0) {
+            builder.setMtu(mMtu);
+        }
+
+        // Apps keep their connections through a reconnect as long as the interface stays.
+        final String lasting = parameters.getLasting();
+        // Unless it can no longer be read, in which case nothing would ever go out.
+        if (mIface != null && lasting.equals(mIfaceParameters) && mMtu == mIfaceMtu
+                && !mOutbound.isFailed()) {
+            Log.i(getTag(), "Keeping interface: " + mIface);
+            return;
         }
 
         // Create a new interface using the builder and save the parameters.
@@ -318,7 +465,34 @@ public class VpnConnection implements Runnable {
             }
         }
         Log.i(getTag(), "New interface: " + vpnInterface + " (" + parameters + ")");
-        return vpnInterface;
+
+        // The new interface is up, so the old one can go.
+        closeInterface();
+        mIface = vpnInterface;
+        mIfaceParameters = lasting;
+        mIfaceMtu = mMtu;
+        mIfaceOut = new FileOutputStream(vpnInterface.getFileDescriptor()).getChannel();
+        mOutbound = new OutboundQueue(
+                new FileInputStream(vpnInterface.getFileDescriptor()).getChannel(),
+                OutboundQueue.DEFAULT_CAPACITY, Math.max(mMtu, PacketForwarder.DEFAULT_MTU));
+        mOutbound.setMetrics(mMetrics);
+        mOutbound.start(getTag() + "-out");
+        mDnsCache = new DnsCache(parameters.getDnsServers());
+    }
+
+    private void closeInterface() {
+        if (mOutbound != null) {
+            mOutbound.close();
+            mOutbound = null;
+        }
+        if (mIface != null) {
+            try {
+                mIface.close();
+            } catch (IOException e) {
+                Log.e(getTag(), "Unable to close interface", e);
+            }
+            mIface = null;
+        }
     }
 
     private final String getTag() {
@@ -0,0 +1,102 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class CapabilitiesTest {
+    private final Capabilities mDecoded = new Capabilities();
+
+    @Test
+    public void decodesWhatItEncodes() {
+        final Capabilities offer = new Capabilities()
+                .set(Capabilities.FIELD_FEATURES, Capabilities.FEATURE_BATCHING
+                        | Capabilities.FEATURE_PARITY)
+                .set(Capabilities.FIELD_MTU, 1500)
+                .set(Capabilities.FIELD_IDLE_TIMEOUT_S, 0x12345678);
+        final ByteBuffer buffer = ByteBuffer.allocate(Capabilities.MAX_SIZE + 6);
+        offer.encode(buffer);
+        // The version, the size, then 3 bytes for the features, 4 for the MTU and 6 for the
+        // timeout.
+        assertEquals(2 + 3 + 4 + 6, buffer.position());
+        buffer.put("ticket".getBytes()).flip();
+
+        assertTrue(mDecoded.decode(buffer));
+        assertEquals("ticket", new String(buffer.array(), buffer.position(),
+                buffer.remaining()));
+        assertTrue(mDecoded.supports(Capabilities.FEATURE_BATCHING));
+        assertFalse(mDecoded.supports(Capabilities.FEATURE_BATCHING
+                | Capabilities.FEATURE_COMPRESSION));
+        assertEquals(1500, mDecoded.get(Capabilities.FIELD_MTU));
+        assertEquals(0x12345678, mDecoded.get(Capabilities.FIELD_IDLE_TIMEOUT_S));
+        assertFalse(mDecoded.has(Capabilities.FIELD_BATCH_DEADLINE_MS));
+    }
+
+    @Test
+    public void skipsFieldsItDoesNotKnow() {
+        final ByteBuffer buffer = ByteBuffer.wrap(new byte[] {
+                Capabilities.VERSION, 11, 99, 3, 1, 2, 3, Capabilities.FIELD_MTU, 2, 5, (byte) 0xDC,
+                100, 0, 'm'});
+        assertTrue(mDecoded.decode(buffer));
+        assertEquals(1500, mDecoded.get(Capabilities.FIELD_MTU));
+        assertEquals(13, buffer.position());
+    }
+
+    @Test
+    public void skipsVersionsItDoesNotKnow() {
+        final ByteBuffer buffer = ByteBuffer.wrap(new byte[] {
+                Capabilities.VERSION + 1, 3, Capabilities.FIELD_MTU, 1, 100, 'm'});
+        assertFalse(mDecoded.decode(buffer));
+        assertFalse(mDecoded.has(Capabilities.FIELD_MTU));
+        assertEquals(5, buffer.position());
+    }
+
+    @Test
+    public void leavesTextAndGarbageAlone() {
+        final String[] texts = {"m,1400 t,ticket", "ticket", ""};
+        for (String text : texts) {
+            final ByteBuffer buffer = ByteBuffer.wrap(text.getBytes());
+            assertFalse(mDecoded.decode(buffer));
+            assertEquals(0, buffer.position());
+        }
+
+        // A size past the end, a field past the size and a value too long for its field.
+        final byte[][] broken = {{Capabilities.VERSION, 3, Capabilities.FIELD_MTU, 1},
+                {Capabilities.VERSION, 3, Capabilities.FIELD_MTU, 2, 100},
+                {Capabilities.VERSION, 7, Capabilities.FIELD_MTU, 5, 0, 0, 0, 5, (byte) 0xDC}};
+        for (byte[] bytes : broken) {
+            assertFalse(mDecoded.decode(ByteBuffer.wrap(bytes)));
+            assertFalse(mDecoded.has(Capabilities.FIELD_MTU));
+        }
+    }
+
+    @Test
+    public void agreesOnWhatBothEndsCanDo() {
+        final Capabilities offer = Handshake.newOffer()
+                .set(Capabilities.FIELD_FEATURES, Capabilities.FEATURE_BATCHING
+                        | Capabilities.FEATURE_COMPRESSION | Capabilities.FEATURE_KEEPALIVE);
+        final Capabilities own = new Capabilities()
+                .set(Capabilities.FIELD_FEATURES, Capabilities.FEATURE_BATCHING
+                        | Capabilities.FEATURE_PARITY | Capabilities.FEATURE_KEEPALIVE)
+                .set(Capabilities.FIELD_MTU, 1400)
+                .set(Capabilities.FIELD_BATCH_DEADLINE_MS, 5)
+                .set(Capabilities.FIELD_IDLE_TIMEOUT_S, 600)
+                .set(Capabilities.FIELD_PARITY_GROUP, 8);
+        final Capabilities agreed = new Capabilities();
+        Capabilities.agree(offer, own, agreed);
+
+        assertEquals(Capabilities.FEATURE_BATCHING | Capabilities.FEATURE_KEEPALIVE,
+                agreed.get(Capabilities.FIELD_FEATURES));
+        assertEquals(1400, agreed.get(Capabilities.FIELD_MTU));
+        assertEquals(5, agreed.get(Capabilities.FIELD_BATCH_DEADLINE_MS));
+        assertEquals(600, agreed.get(Capabilities.FIELD_IDLE_TIMEOUT_S));
+        assertFalse(agreed.has(Capabilities.FIELD_PARITY_GROUP));
+
+        // An offer without an MTU takes the one of the server.
+        Capabilities.agree(new Capabilities(), own, agreed);
+        assertEquals(1400, agreed.get(Capabilities.FIELD_MTU));
+        assertEquals(0, agreed.get(Capabilities.FIELD_FEATURES));
+    }
+}
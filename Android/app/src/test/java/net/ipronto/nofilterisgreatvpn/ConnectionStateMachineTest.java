@@ -0,0 +1,151 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionStateMachineTest {
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /** Connections that establish at once, unless told to fail, and run till interrupted. */
+    private class FakeConnector implements ConnectionStateMachine.Connector {
+        final List<Integer> started = new CopyOnWriteArrayList<>();
+        final AtomicInteger running = new AtomicInteger();
+        final Semaphore stopped = new Semaphore(0);
+        volatile int failures;
+        volatile int crashes;
+        volatile boolean overlapped;
+
+        @Override
+        public Runnable newConnection(final int generation) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    overlapped |= running.incrementAndGet() > 1;
+                    started.add(generation);
+                    try {
+                        if (crashes > 0) {
+                            --crashes;
+                            throw new IllegalStateException("Cannot protect the tunnel");
+                        }
+                        if (failures > 0) {
+                            --failures;
+                            return;
+                        }
+                        mMachine.onEstablished(generation);
+                        Thread.sleep(Long.MAX_VALUE);
+                    } catch (InterruptedException e) {
+                        // Replaced or stopped, and the interrupt is kept for the machine.
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        running.decrementAndGet();
+                        stopped.release();
+                    }
+                }
+            };
+        }
+    }
+
+    private final FakeConnector mConnector = new FakeConnector();
+    private final ConnectionStateMachine mMachine =
+            new ConnectionStateMachine(mExecutor, mConnector);
+    private final List<ConnectionStateMachine.State> mStates = new CopyOnWriteArrayList<>();
+
+    {
+        mMachine.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(ConnectionStateMachine.State state) {
+                mStates.add(state);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mMachine.shutdown();
+    }
+
+    private void awaitState(ConnectionStateMachine.State state) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (mMachine.getState() != state) {
+            assertTrue("Stuck in " + mMachine.getState(), System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void connectsAndDisconnects() throws Exception {
+        assertEquals(ConnectionStateMachine.State.DISCONNECTED, mMachine.getState());
+        mMachine.connect();
+        awaitState(ConnectionStateMachine.State.CONNECTED);
+
+        mMachine.disconnect();
+        assertEquals(ConnectionStateMachine.State.DISCONNECTED, mMachine.getState());
+        assertTrue(mConnector.stopped.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals("[CONNECTING, CONNECTED, DISCONNECTED]", mStates.toString());
+    }
+
+    @Test
+    public void runsOnlyTheLastOfManyConnects() throws Exception {
+        for (int i = 0; i < 1000; ++i) {
+            mMachine.connect();
+        }
+        awaitState(ConnectionStateMachine.State.CONNECTED);
+        assertEquals(1000, mMachine.getGeneration());
+        assertEquals(1000, (int) mConnector.started.get(mConnector.started.size() - 1));
+        // The ones that were replaced before their turn never ran at all.
+        assertTrue(mConnector.started.size() < 1000);
+        assertFalse(mConnector.overlapped);
+    }
+
+    @Test
+    public void startsAnotherConnectionWhenOneFails() throws Exception {
+        mConnector.failures = 2;
+        mMachine.connect();
+        awaitState(ConnectionStateMachine.State.CONNECTED);
+        assertEquals("[1, 2, 3]", mConnector.started.toString());
+        assertEquals(3, mMachine.getGeneration());
+    }
+
+    @Test
+    public void disconnectsWhenAConnectionCrashes() throws Exception {
+        mConnector.crashes = 1;
+        mMachine.connect();
+        awaitState(ConnectionStateMachine.State.DISCONNECTED);
+        assertEquals("[CONNECTING, DISCONNECTED]", mStates.toString());
+        assertEquals("[1]", mConnector.started.toString());
+
+        // Nothing is left behind that stops the next connect.
+        mMachine.connect();
+        awaitState(ConnectionStateMachine.State.CONNECTED);
+    }
+
+    @Test
+    public void ignoresConnectionsThatWereReplaced() throws Exception {
+        mMachine.connect();
+        awaitState(ConnectionStateMachine.State.CONNECTED);
+        mMachine.connect();
+        mMachine.onEstablished(1);
+        mMachine.disconnect();
+        mMachine.onEstablished(2);
+        assertEquals(ConnectionStateMachine.State.DISCONNECTED, mMachine.getState());
+    }
+
+    @Test
+    public void connectsNoMoreOnceShutDown() throws Exception {
+        mMachine.shutdown();
+        mMachine.connect();
+        assertTrue(mExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(mConnector.started.isEmpty());
+        assertEquals(ConnectionStateMachine.State.DISCONNECTED, mMachine.getState());
+    }
+}
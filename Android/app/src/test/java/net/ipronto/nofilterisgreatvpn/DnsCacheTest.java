@@ -0,0 +1,196 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class DnsCacheTest {
+    private static final int CLIENT = 0x0A000002;
+    private static final int RESOLVER = 0x08080808;
+
+    private final DnsCache mCache = new DnsCache(Arrays.asList("8.8.8.8", "2001:4860::8888"));
+    private final ByteBuffer mAnswer = ByteBuffer.allocate(1500);
+
+    /** The question for the A records of a name, as it goes on the wire. */
+    private static byte[] question(String name) {
+        final ByteBuffer question = ByteBuffer.allocate(name.length() + 6);
+        for (String label : name.split("\\.")) {
+            question.put((byte) label.length()).put(label.getBytes());
+        }
+        question.put((byte) 0).putShort((short) 1).putShort((short) 1);
+        return question.array();
+    }
+
+    /** Wraps a DNS message in an IPv4 UDP packet. */
+    private static ByteBuffer udp(int source, int sourcePort, int destination,
+                                  int destinationPort, byte[] message) {
+        final ByteBuffer packet = ByteBuffer.allocate(28 + message.length);
+        packet.putInt(0, 0x45000000 | packet.capacity()).putInt(8, 0x40110000)
+                .putInt(12, source).putInt(16, destination)
+                .putShort(20, (short) sourcePort).putShort(22, (short) destinationPort)
+                .putShort(24, (short) (8 + message.length));
+        for (int i = 0; i < message.length; ++i) {
+            packet.put(28 + i, message[i]);
+        }
+        return packet;
+    }
+
+    private static ByteBuffer query(int port, int id, String name) {
+        final byte[] question = question(name);
+        final ByteBuffer message = ByteBuffer.allocate(12 + question.length);
+        message.putShort((short) id).putShort((short) 0x0100).putShort((short) 1)
+                .putShort((short) 0).putShort((short) 0).putShort((short) 0).put(question);
+        return udp(CLIENT, port, RESOLVER, 53, message.array());
+    }
+
+    /** An answer with one A record, pointing back at the question for its name. */
+    private static ByteBuffer response(int port, int id, String name, int flags, int ttl) {
+        final byte[] question = question(name);
+        final ByteBuffer message = ByteBuffer.allocate(12 + question.length + 16);
+        message.putShort((short) id).putShort((short) flags).putShort((short) 1)
+                .putShort((short) 1).putShort((short) 0).putShort((short) 0).put(question)
+                .putShort((short) 0xC00C).putShort((short) 1).putShort((short) 1)
+                .putInt(ttl).putShort((short) 4).putInt(0x5DB8D822);
+        return udp(RESOLVER, 53, CLIENT, port, message.array());
+    }
+
+    @Test
+    public void answersRepeatedLookupsWithTheirOwnIds() {
+        final ByteBuffer first = query(40000, 1, "example.com");
+        assertEquals(DnsCache.MISS, mCache.answer(first, mAnswer, 0));
+        assertTrue(mCache.onResponse(response(40000, 1, "example.com", 0x8180, 300), 1000));
+        assertEquals(1, mCache.size());
+
+        // Another app asks with its own port, ID and case, 100 seconds later.
+        final ByteBuffer second = query(40001, 2, "ExAmple.COM");
+        assertEquals(DnsCache.HIT, mCache.answer(second, mAnswer, 101000));
+        assertEquals(0, second.position());
+
+        assertEquals(0x45, mAnswer.get(0));
+        assertEquals(mAnswer.remaining(), mAnswer.getShort(2));
+        assertEquals(RESOLVER, mAnswer.getInt(12));
+        assertEquals(CLIENT, mAnswer.getInt(16));
+        assertEquals(53, mAnswer.getShort(20));
+        assertEquals(40001, mAnswer.getShort(22) & 0xFFFF);
+        assertEquals(2, mAnswer.getShort(28));
+        assertEquals(0x8180, mAnswer.getShort(30) & 0xFFFF);
+        assertEquals('E', mAnswer.get(41));
+        assertEquals(200, mAnswer.getInt(mAnswer.limit() - 10));
+
+        // Both checksums add up.
+        assertEquals(0xFFFF, DnsCache.fold(DnsCache.sum(mAnswer, 0, 20)));
+        final int udpLength = mAnswer.remaining() - 20;
+        assertEquals(0xFFFF, DnsCache.fold(DnsCache.sum(mAnswer, 12, 8) + 17 + udpLength
+                + DnsCache.sum(mAnswer, 20, udpLength)));
+    }
+
+    /** Moves an IPv4 packet to IPv6, between 2001:db8::2 and the resolver. */
+    private static ByteBuffer toIpv6(ByteBuffer ipv4, boolean query) {
+        final ByteBuffer packet = ByteBuffer.allocate(ipv4.capacity() + 20);
+        final byte[] client = {0x20, 0x01, 0x0D, (byte) 0xB8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                0, 2};
+        final byte[] resolver = {0x20, 0x01, 0x48, 0x60, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                (byte) 0x88, (byte) 0x88};
+        packet.putInt(0x60000000).putShort((short) (ipv4.capacity() - 20)).put((byte) 17)
+                .put((byte) 64).put(query ? client : resolver).put(query ? resolver : client);
+        ipv4.position(20);
+        packet.put(ipv4).flip();
+        return packet;
+    }
+
+    @Test
+    public void answersOverIpv6() {
+        mCache.onResponse(toIpv6(response(40000, 1, "example.com", 0x8180, 300), false), 0);
+        assertEquals(DnsCache.HIT,
+                mCache.answer(toIpv6(query(40001, 2, "example.com"), true), mAnswer, 0));
+        assertEquals(6, mAnswer.get(0) >> 4);
+        assertEquals(mAnswer.remaining() - 40, mAnswer.getShort(4));
+        assertEquals(0x20014860, mAnswer.getInt(8));
+        assertEquals(0x20010DB8, mAnswer.getInt(24));
+        final int udpLength = mAnswer.remaining() - 40;
+        assertEquals(0xFFFF, DnsCache.fold(DnsCache.sum(mAnswer, 8, 32) + 17 + udpLength
+                + DnsCache.sum(mAnswer, 40, udpLength)));
+    }
+
+    @Test
+    public void forgetsAnswersWhenTheirTtlRunsOut() {
+        mCache.onResponse(response(40000, 1, "example.com", 0x8180, 60), 0);
+        assertEquals(DnsCache.HIT, mCache.answer(query(40000, 2, "example.com"), mAnswer, 59999));
+        assertEquals(DnsCache.MISS, mCache.answer(query(40000, 3, "example.com"), mAnswer, 60000));
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void refreshesPopularNamesBeforeTheyExpire() {
+        mCache.onResponse(response(40000, 1, "example.com", 0x8180, 100), 0);
+        assertEquals(DnsCache.HIT, mCache.answer(query(40000, 2, "example.com"), mAnswer, 1000));
+        assertEquals(DnsCache.HIT_AND_REFRESH,
+                mCache.answer(query(40002, 3, "example.com"), mAnswer, 95000));
+        // Only one refresh at a time.
+        assertEquals(DnsCache.HIT, mCache.answer(query(40003, 4, "example.com"), mAnswer, 96000));
+
+        // The answer to the refresh only goes into the cache, others reach the app as usual.
+        assertTrue(mCache.onResponse(response(40003, 4, "example.com", 0x8180, 100), 97000));
+        mCache.onResponse(response(40000, 1, "example.com", 0x8180, 100), 0);
+        mCache.answer(query(40000, 2, "example.com"), mAnswer, 1000);
+        mCache.answer(query(40002, 3, "example.com"), mAnswer, 95000);
+        assertFalse(mCache.onResponse(response(40002, 3, "example.com", 0x8180, 100), 96000));
+        assertEquals(DnsCache.HIT, mCache.answer(query(40000, 5, "example.com"), mAnswer, 150000));
+    }
+
+    @Test
+    public void keepsOnlyAnswersWorthKeeping() {
+        // Truncated, failed, or not to be kept at all.
+        mCache.onResponse(response(40000, 1, "a.com", 0x8380, 300), 0);
+        mCache.onResponse(response(40000, 1, "b.com", 0x8182, 300), 0);
+        mCache.onResponse(response(40000, 1, "c.com", 0x8180, 0), 0);
+        // From someone who is not the resolver.
+        final ByteBuffer other = response(40000, 1, "d.com", 0x8180, 300);
+        other.putInt(12, 0x01010101);
+        assertTrue(mCache.onResponse(other, 0));
+        assertEquals(0, mCache.size());
+
+        // A name that does not exist is an answer too.
+        mCache.onResponse(response(40000, 1, "e.com", 0x8183, 300), 0);
+        assertEquals(1, mCache.size());
+    }
+
+    @Test
+    public void ignoresWhatIsNotAQueryToTheResolver() {
+        mCache.onResponse(response(40000, 1, "example.com", 0x8180, 300), 0);
+        final ByteBuffer elsewhere = query(40000, 2, "example.com");
+        elsewhere.putInt(16, 0x01010101);
+        assertEquals(DnsCache.MISS, mCache.answer(elsewhere, mAnswer, 0));
+        final ByteBuffer tcp = query(40000, 2, "example.com");
+        tcp.put(9, (byte) 6);
+        assertEquals(DnsCache.MISS, mCache.answer(tcp, mAnswer, 0));
+        assertEquals(DnsCache.MISS, mCache.answer(ByteBuffer.allocate(0), mAnswer, 0));
+    }
+
+    @Test
+    public void keepsTheAnswersUsedMostRecently() {
+        for (int i = 0; i <= DnsCache.MAX_ENTRIES; ++i) {
+            mCache.onResponse(response(40000, 1, "host" + i + ".com", 0x8180, 300), 0);
+            if (i == 1) {
+                mCache.answer(query(40000, 2, "host0.com"), mAnswer, 0);
+            }
+        }
+        assertEquals(DnsCache.MAX_ENTRIES, mCache.size());
+        assertEquals(DnsCache.HIT, mCache.answer(query(40000, 2, "host0.com"), mAnswer, 0));
+        assertEquals(DnsCache.MISS, mCache.answer(query(40000, 2, "host1.com"), mAnswer, 0));
+    }
+
+    @Test
+    public void rejectsResolversThatAreNotAddresses() {
+        try {
+            new DnsCache(Collections.singletonList("dns.google"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class FlowHashTest {
+    /** An IPv4 packet with the given addresses and TCP ports. */
+    private static ByteBuffer tcp(int source, int destination, int sourcePort,
+                                  int destinationPort) {
+        final ByteBuffer packet = ByteBuffer.allocate(40);
+        packet.put(0, (byte) 0x45);
+        packet.put(9, (byte) 6);
+        packet.putInt(12, source);
+        packet.putInt(16, destination);
+        packet.putShort(20, (short) sourcePort);
+        packet.putShort(22, (short) destinationPort);
+        return packet;
+    }
+
+    @Test
+    public void isSymmetric() {
+        assertEquals(FlowHash.of(tcp(0x0A000002, 0x08080808, 40000, 443)),
+                FlowHash.of(tcp(0x08080808, 0x0A000002, 443, 40000)));
+    }
+
+    @Test
+    public void tellsFlowsApart() {
+        assertNotEquals(FlowHash.of(tcp(0x0A000002, 0x08080808, 40000, 443)),
+                FlowHash.of(tcp(0x0A000002, 0x08080808, 40001, 443)));
+    }
+
+    @Test
+    public void leavesThePacketAlone() {
+        final ByteBuffer packet = tcp(1, 2, 3, 4);
+        packet.position(0).limit(40);
+        FlowHash.of(packet);
+        assertEquals(0, packet.position());
+        assertEquals(40, packet.limit());
+    }
+
+    @Test
+    public void ignoresGarbage() {
+        assertEquals(0, FlowHash.of(ByteBuffer.wrap(new byte[] {0x45, 0, 0})));
+        assertEquals(0, FlowHash.bucket(ByteBuffer.wrap(new byte[] {0x45}), 4));
+    }
+}
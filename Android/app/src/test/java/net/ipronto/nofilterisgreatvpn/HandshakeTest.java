@@ -0,0 +1,231 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class HandshakeTest {
+    /** Opens a client tunnel connected to a loopback peer. */
+    private static DatagramChannel connect(DatagramChannel peer) throws IOException {
+        peer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        final DatagramChannel tunnel = DatagramChannel.open();
+        tunnel.connect(peer.getLocalAddress());
+        tunnel.configureBlocking(false);
+        return tunnel;
+    }
+
+    @Test
+    public void sendsSecretAndTicketAndReturnsParameters() throws Exception {
+        try (DatagramChannel peer = DatagramChannel.open();
+             DatagramChannel tunnel = connect(peer)) {
+            final Thread server = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final ByteBuffer request = ByteBuffer.allocate(1024);
+                        final InetSocketAddress client = (InetSocketAddress) peer.receive(request);
+                        request.flip();
+                        final byte[] expected = "\0secret\0ticket".getBytes();
+                        final byte[] received = new byte[request.remaining()];
+                        request.get(received);
+                        final String answer = Arrays.equals(expected, received)
+                                ? "\0m,1400 t,ticket " : "\0wrong";
+                        peer.send(ByteBuffer.wrap(answer.getBytes()), client);
+                    } catch (IOException e) {
+                        // The handshake times out and the test fails.
+                    }
+                }
+            });
+            server.start();
+
+            assertEquals("m,1400 t,ticket", Handshake.perform(tunnel, "secret".getBytes(),
+                    "ticket", Handshake.TIMEOUT_MS));
+            server.join();
+        }
+    }
+
+    @Test
+    public void sealsTheHandshakeAndAgreesOnKeys() throws Exception {
+        final byte[] secret = "secret".getBytes();
+        final byte[] masterKey = TunnelCipher.deriveMasterKey(secret);
+        final byte[] serverRandom = new byte[TunnelCipher.RANDOM_SIZE];
+        Arrays.fill(serverRandom, (byte) 7);
+        final TunnelCipher[] serverCipher = new TunnelCipher[1];
+
+        try (DatagramChannel peer = DatagramChannel.open();
+             DatagramChannel tunnel = connect(peer)) {
+            final Thread server = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final ByteBuffer hello = ByteBuffer.allocate(1024);
+                        final InetSocketAddress client = (InetSocketAddress) peer.receive(hello);
+                        final int length = hello.position();
+                        final byte[] clientRandom = Arrays.copyOfRange(hello.array(), 2, 34);
+                        final ByteBuffer nonce =
+                                ByteBuffer.wrap(clientRandom).order(ByteOrder.LITTLE_ENDIAN);
+                        if (hello.get(1) != TunnelCipher.CONTROL_KEY_EXCHANGE
+                                || !new PacketCipher(masterKey).open(nonce.getInt(0),
+                                nonce.getLong(4), ByteBuffer.wrap(clientRandom), hello, 34,
+                                length - 34)
+                                || !"ticket".equals(new String(hello.array(), 34,
+                                length - 34 - PacketCipher.TAG_SIZE))) {
+                            return;
+                        }
+
+                        // A reply sealed with the wrong key comes first and must be ignored.
+                        final ByteBuffer forged = reply(new byte[PacketCipher.KEY_SIZE],
+                                serverRandom, "m,576");
+                        peer.send(forged, client);
+                        final byte[] sendKey = TunnelCipher.deriveKey(masterKey, clientRandom,
+                                serverRandom, 's');
+                        peer.send(reply(sendKey, serverRandom, "m,1400 t,ticket "), client);
+                        serverCipher[0] = new TunnelCipher(sendKey, TunnelCipher.deriveKey(
+                                masterKey, clientRandom, serverRandom, 'c'));
+                    } catch (IOException e) {
+                        // The handshake times out and the test fails.
+                    }
+                }
+            });
+            server.start();
+
+            final Handshake.Result result = Handshake.performSealed(tunnel, secret, "ticket",
+                    null, Handshake.TIMEOUT_MS);
+            server.join();
+            assertEquals("m,1400 t,ticket", result.parameters);
+            assertNull(result.agreed);
+
+            // Both ends derived the same keys, each sending with its own.
+            final ByteBuffer sealed = ByteBuffer.allocate(100);
+            result.cipher.newSealer().seal(ByteBuffer.wrap("hello".getBytes()), sealed);
+            assertTrue(serverCipher[0].newOpener().open(sealed));
+            assertEquals(ByteBuffer.wrap("hello".getBytes()), sealed);
+
+            serverCipher[0].newSealer().seal(ByteBuffer.wrap("world".getBytes()), sealed);
+            assertTrue(result.cipher.newOpener().open(sealed));
+            assertEquals(ByteBuffer.wrap("world".getBytes()), sealed);
+        }
+    }
+
+    /** Builds the reply of the server to a sealed hello. */
+    private static ByteBuffer reply(byte[] key, byte[] serverRandom, String parameters) {
+        return reply(key, serverRandom, null, parameters);
+    }
+
+    /** Builds the reply of a server that agreed on capabilities, unless they are null. */
+    private static ByteBuffer reply(byte[] key, byte[] serverRandom, Capabilities agreed,
+                                    String parameters) {
+        final ByteBuffer reply = ByteBuffer.allocate(1024);
+        reply.put((byte) 0).put(TunnelCipher.CONTROL_KEY_EXCHANGE).put(serverRandom);
+        if (agreed != null) {
+            agreed.encode(reply);
+        }
+        reply.put(parameters.getBytes());
+        final int length = reply.position() - 34;
+        new PacketCipher(key).seal(0, 0, ByteBuffer.wrap(serverRandom), reply, 34, length,
+                reply, 34);
+        reply.limit(34 + length + PacketCipher.TAG_SIZE).position(0);
+        return reply;
+    }
+
+    @Test
+    public void agreesOnCapabilitiesInTheSameRoundTrip() throws Exception {
+        final byte[] secret = "secret".getBytes();
+        final byte[] masterKey = TunnelCipher.deriveMasterKey(secret);
+        final byte[] serverRandom = new byte[TunnelCipher.RANDOM_SIZE];
+        final String[] ticket = new String[1];
+
+        try (DatagramChannel peer = DatagramChannel.open();
+             DatagramChannel tunnel = connect(peer)) {
+            final Thread server = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final ByteBuffer hello = ByteBuffer.allocate(1024);
+                        final InetSocketAddress client = (InetSocketAddress) peer.receive(hello);
+                        final int length = hello.position();
+                        final byte[] clientRandom = Arrays.copyOfRange(hello.array(), 2, 34);
+                        final ByteBuffer nonce =
+                                ByteBuffer.wrap(clientRandom).order(ByteOrder.LITTLE_ENDIAN);
+                        if (!new PacketCipher(masterKey).open(nonce.getInt(0), nonce.getLong(4),
+                                ByteBuffer.wrap(clientRandom), hello, 34, length - 34)) {
+                            return;
+                        }
+
+                        // The server side, with the reference codec: what the client can do,
+                        // then its ticket.
+                        hello.limit(length - PacketCipher.TAG_SIZE).position(34);
+                        final Capabilities offer = new Capabilities();
+                        if (!offer.decode(hello)) {
+                            return;
+                        }
+                        ticket[0] = new String(hello.array(), hello.position(),
+                                hello.remaining());
+                        final Capabilities own = new Capabilities()
+                                .set(Capabilities.FIELD_FEATURES,
+                                        Capabilities.FEATURE_COMPRESSION
+                                        | Capabilities.FEATURE_KEEPALIVE)
+                                .set(Capabilities.FIELD_MTU, 1400)
+                                .set(Capabilities.FIELD_IDLE_TIMEOUT_S, 60);
+                        final Capabilities agreed = new Capabilities();
+                        Capabilities.agree(offer, own, agreed);
+                        peer.send(reply(TunnelCipher.deriveKey(masterKey, clientRandom,
+                                serverRandom, 's'), serverRandom, agreed, "m,1400 b,5 t,new "),
+                                client);
+                    } catch (IOException e) {
+                        // The handshake times out and the test fails.
+                    }
+                }
+            });
+            server.start();
+
+            final Handshake.Result result = Handshake.performSealed(tunnel, secret, "ticket",
+                    Handshake.newOffer(), Handshake.TIMEOUT_MS);
+            server.join();
+            assertEquals("ticket", ticket[0]);
+            assertEquals("m,1400 b,5 t,new", result.parameters);
+            assertEquals(Capabilities.FEATURE_COMPRESSION | Capabilities.FEATURE_KEEPALIVE,
+                    result.agreed.get(Capabilities.FIELD_FEATURES));
+            assertEquals(1400, result.agreed.get(Capabilities.FIELD_MTU));
+            assertEquals(60, result.agreed.get(Capabilities.FIELD_IDLE_TIMEOUT_S));
+        }
+    }
+
+    @Test
+    public void joinsWithSealedMessages() throws Exception {
+        final TunnelCipher client = new TunnelCipher(new byte[32], new byte[32]);
+        final TunnelCipher server = new TunnelCipher(new byte[32], new byte[32]);
+        try (DatagramChannel peer = DatagramChannel.open();
+             DatagramChannel stripe = connect(peer)) {
+            Handshake.join(stripe, client);
+
+            // Every copy opens, since each has a counter of its own.
+            final TunnelCipher.Opener opener = server.newOpener();
+            final ByteBuffer join = ByteBuffer.allocate(100);
+            for (int i = 0; i < 3; ++i) {
+                join.clear();
+                peer.receive(join);
+                join.flip();
+                assertTrue(opener.open(join));
+                assertEquals(1, join.remaining());
+                assertEquals(0, join.get(join.position()));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void timesOutWithoutAnswer() throws Exception {
+        try (DatagramChannel peer = DatagramChannel.open();
+             DatagramChannel tunnel = connect(peer)) {
+            Handshake.perform(tunnel, "secret".getBytes(), null, 100);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class HeaderCompressorTest {
+    private final HeaderCompressor mCompressor = new HeaderCompressor();
+    private final HeaderCompressor.Decompressor mDecompressor =
+            new HeaderCompressor.Decompressor();
+    private final ByteBuffer mOut = ByteBuffer.allocate(1500);
+
+    /** A TCP packet from 10.0.0.2 with 12 bytes of timestamps if asked for. */
+    private static ByteBuffer tcp(int port, int id, int sequence, int acknowledgment,
+                                  int window, boolean timestamps, int payload) {
+        final int headerLength = 40 + (timestamps ? 12 : 0);
+        final ByteBuffer packet = ByteBuffer.allocate(headerLength + payload);
+        packet.put(0, (byte) 0x45).putShort(2, (short) packet.capacity())
+                .putShort(4, (short) id).putShort(6, (short) 0x4000).put(8, (byte) 64)
+                .put(9, (byte) 6).putInt(12, 0x0A000002).putInt(16, 0x5DB8D822)
+                .putShort(20, (short) port).putShort(22, (short) 443)
+                .putInt(24, sequence).putInt(28, acknowledgment)
+                .put(32, (byte) ((headerLength - 20) / 4 << 4)).put(33, (byte) 0x10)
+                .putShort(34, (short) window).putShort(36, (short) (id * 31));
+        if (timestamps) {
+            packet.putInt(40, 0x0101080A).putInt(44, id * 7).putInt(48, id * 5);
+        }
+        for (int i = headerLength; i < packet.capacity(); ++i) {
+            packet.put(i, (byte) i);
+        }
+        return finish(packet);
+    }
+
+    private static ByteBuffer udp(int port, int id, int payload) {
+        final ByteBuffer packet = ByteBuffer.allocate(28 + payload);
+        packet.put(0, (byte) 0x45).putShort(2, (short) packet.capacity())
+                .putShort(4, (short) id).put(8, (byte) 64).put(9, (byte) 17)
+                .putInt(12, 0x0A000002).putInt(16, 0x08080808)
+                .putShort(20, (short) port).putShort(22, (short) 53)
+                .putShort(24, (short) (8 + payload)).putShort(26, (short) id);
+        return finish(packet);
+    }
+
+    private static ByteBuffer finish(ByteBuffer packet) {
+        packet.putShort(10, (short) HeaderCompressor.getChecksum(packet, 0, 20));
+        return packet;
+    }
+
+    /** Compresses the packet and checks that it comes back the same. */
+    private int roundTrip(ByteBuffer packet) throws IOException {
+        final ByteBuffer compressed = mCompressor.compress(packet);
+        assertNotNull(compressed);
+        assertTrue(HeaderCompressor.isCompressed(compressed));
+        final int size = compressed.remaining();
+        assertTrue(mDecompressor.decompress(compressed, mOut));
+        assertEquals(packet, mOut);
+        return size;
+    }
+
+    /** Sends the packets that repeat the last refresh, after which the rest are compressed. */
+    private void repeatRefresh(ByteBuffer packet) throws IOException {
+        for (int i = 0; i < HeaderCompressor.REFRESH_REPEATS; ++i) {
+            roundTrip(packet);
+        }
+    }
+
+    /** Sends a packet of the flow as a refresh or a repeat of one, and loses it on the way. */
+    private void loseRefresh(ByteBuffer packet) {
+        final ByteBuffer compressed = mCompressor.compress(packet);
+        assertEquals(HeaderCompressor.CONTROL_HEADER_REFRESH, compressed.get(1));
+    }
+
+    @Test
+    public void compressesAcksOfADownload() throws IOException {
+        // The first one sets up the context, and the next ones repeat it.
+        assertEquals(4 + 40, roundTrip(tcp(40000, 1, 1000, 5000, 1024, false, 0)));
+        for (int i = 1; i <= HeaderCompressor.REFRESH_REPEATS; ++i) {
+            assertEquals(4 + 40 + 40, roundTrip(tcp(40000, 1, 1000, 5000, 1024, false, 0)));
+        }
+        for (int i = HeaderCompressor.REFRESH_REPEATS + 1;
+                i < HeaderCompressor.REFRESH_INTERVAL; ++i) {
+            final int size = roundTrip(tcp(40000, 1 + i, 1000, 5000 + i * 2800, 1024, false, 0));
+            assertTrue("ACK took " + size, size <= 12);
+        }
+    }
+
+    @Test
+    public void carriesOptionsAndPayload() throws IOException {
+        roundTrip(tcp(40000, 1, 1000, 5000, 1024, true, 0));
+        repeatRefresh(tcp(40000, 1, 1000, 5000, 1024, true, 0));
+        final int size = roundTrip(tcp(40000, 2, 1100, 5000, 2048, true, 100));
+        assertTrue(size < 52 + 100 - 20);
+        roundTrip(tcp(40000, 3, 1200, 6000, 2048, true, 0));
+    }
+
+    @Test
+    public void compressesUdp() throws IOException {
+        assertEquals(4 + 28 + 30, roundTrip(udp(5353, 1, 30)));
+        repeatRefresh(udp(5353, 1, 30));
+        assertTrue(roundTrip(udp(5353, 2, 40)) <= 4 + 3 + 2 + 40);
+    }
+
+    @Test
+    public void refreshesEveryNowAndThen() throws IOException {
+        int refreshes = 0;
+        for (int i = 0; i < 3 * HeaderCompressor.REFRESH_INTERVAL; ++i) {
+            final ByteBuffer packet = tcp(40000, i, 1000, 5000 + i, 1024, false, 0);
+            if (roundTrip(packet) == 4 + packet.capacity()) {
+                ++refreshes;
+            }
+        }
+        // One to start with, then one after each interval.
+        assertEquals(3, refreshes);
+    }
+
+    @Test
+    public void refreshesWhenAFieldChanges() throws IOException {
+        final ByteBuffer first = tcp(40000, 1, 1000, 5000, 1024, false, 0);
+        roundTrip(first);
+
+        // Another TTL.
+        final ByteBuffer ttl = tcp(40000, 2, 1000, 5000, 1024, false, 0);
+        ttl.put(8, (byte) 63).putShort(10, (short) 0);
+        assertEquals(44, roundTrip(finish(ttl)));
+
+        // A retransmission goes back in the sequence.
+        final ByteBuffer third = tcp(40000, 3, 1000, 5000, 1024, false, 0);
+        roundTrip(third);
+        repeatRefresh(third);
+        assertEquals(44, roundTrip(tcp(40000, 4, 999, 5000, 1024, false, 0)));
+    }
+
+    @Test
+    public void survivesLosingCompressedPackets() throws IOException {
+        roundTrip(tcp(40000, 1, 1000, 5000, 1024, false, 0));
+        mCompressor.compress(tcp(40000, 2, 1000, 7800, 1024, false, 0));
+        mCompressor.compress(tcp(40000, 3, 1000, 10600, 1024, false, 0));
+        roundTrip(tcp(40000, 4, 1000, 13400, 1024, false, 0));
+    }
+
+    @Test
+    public void losesNothingMoreWhenARefreshIsLost() throws IOException {
+        for (int i = 0; i < HeaderCompressor.REFRESH_INTERVAL + 1; ++i) {
+            roundTrip(tcp(40000, i, 1000, 5000 + i, 1024, false, 0));
+        }
+        // The refresh that follows is lost, and so is the first repeat of it; the next
+        // repeat sets up the same reference, so every packet after it gets through.
+        loseRefresh(tcp(40000, 100, 1000, 6000, 1024, false, 0));
+        loseRefresh(tcp(40000, 101, 1000, 6001, 1024, false, 0));
+        int lost = 0;
+        for (int i = 2; i < HeaderCompressor.REFRESH_INTERVAL; ++i) {
+            final ByteBuffer packet = tcp(40000, 100 + i, 1000, 6000 + i, 1024, false, 0);
+            if (!mDecompressor.decompress(mCompressor.compress(packet), mOut)) {
+                ++lost;
+            } else {
+                assertEquals(packet, mOut);
+            }
+        }
+        assertEquals(0, lost);
+    }
+
+    @Test
+    public void dropsPacketsTillTheNextRefreshOnceItAndItsRepeatsAreLost() throws IOException {
+        for (int i = 0; i < HeaderCompressor.REFRESH_INTERVAL + 1; ++i) {
+            roundTrip(tcp(40000, i, 1000, 5000 + i, 1024, false, 0));
+        }
+        // The refresh that followed was lost along with its repeats, so whatever was
+        // compressed against it is dropped.
+        for (int i = 0; i <= HeaderCompressor.REFRESH_REPEATS; ++i) {
+            loseRefresh(tcp(40000, 100 + i, 1000, 6000 + i, 1024, false, 0));
+        }
+        for (int i = HeaderCompressor.REFRESH_REPEATS + 1;
+                i <= HeaderCompressor.REFRESH_INTERVAL; ++i) {
+            final ByteBuffer compressed =
+                    mCompressor.compress(tcp(40000, 100 + i, 1000, 6000 + i, 1024, false, 0));
+            assertFalse(mDecompressor.decompress(compressed, mOut));
+        }
+        // The next refresh brings it back.
+        roundTrip(tcp(40000, 200, 1000, 7000, 1024, false, 0));
+        roundTrip(tcp(40000, 201, 1000, 7001, 1024, false, 0));
+    }
+
+    @Test
+    public void keepsFlowsApart() throws IOException {
+        // More flows than contexts, so some are taken over on the way.
+        for (int round = 0; round < 3; ++round) {
+            for (int flow = 0; flow < HeaderCompressor.MAX_CONTEXTS + 4; ++flow) {
+                roundTrip(tcp(40000 + flow, round, 1000 * flow, 5000 + round, 1024, false, 0));
+                roundTrip(udp(50000 + flow, round, 20));
+            }
+        }
+    }
+
+    @Test
+    public void leavesOtherPacketsAlone() {
+        // Too long.
+        assertNull(mCompressor.compress(tcp(40000, 1, 1000, 5000, 1024, false, 1000)));
+        // A fragment.
+        final ByteBuffer fragment = tcp(40000, 1, 1000, 5000, 1024, false, 0);
+        assertNull(mCompressor.compress(fragment.putShort(6, (short) 0x2000)));
+        // ICMP.
+        final ByteBuffer icmp = udp(5353, 1, 30);
+        assertNull(mCompressor.compress(icmp.put(9, (byte) 1)));
+        // IPv6.
+        final ByteBuffer ipv6 = ByteBuffer.allocate(60);
+        assertNull(mCompressor.compress(ipv6.put(0, (byte) 0x60)));
+    }
+
+    @Test
+    public void rejectsMalformedDatagrams() throws IOException {
+        final ByteBuffer compressed = mCompressor.compress(tcp(40000, 1, 1000, 5000, 1024,
+                false, 0));
+        assertTrue(mDecompressor.decompress(compressed, mOut));
+
+        // A context that does not exist.
+        try {
+            mDecompressor.decompress(ByteBuffer.wrap(new byte[] {0,
+                    HeaderCompressor.CONTROL_HEADER_COMPRESSED, (byte) 200, 0x10}), mOut);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        // Cut short.
+        final ByteBuffer next = mCompressor.compress(tcp(40000, 2, 1000, 6000, 1024, false, 0));
+        next.limit(next.limit() - 1);
+        try {
+            mDecompressor.decompress(next, mOut);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        // A repeat without a reference in front.
+        try {
+            mDecompressor.decompress(ByteBuffer.wrap(new byte[] {0,
+                    HeaderCompressor.CONTROL_HEADER_REFRESH, 0, (byte) 0x81, 0x45, 0, 0, 5}),
+                    mOut);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        // A refresh that is not a packet.
+        try {
+            mDecompressor.decompress(ByteBuffer.wrap(new byte[] {0,
+                    HeaderCompressor.CONTROL_HEADER_REFRESH, 0, 1, 0x45, 0, 0, 5}), mOut);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
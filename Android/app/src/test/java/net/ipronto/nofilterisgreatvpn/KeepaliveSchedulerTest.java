@@ -0,0 +1,137 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class KeepaliveSchedulerTest {
+    /** Stands in for the tunnel and keeps whatever is written to it. */
+    private static class RecordingChannel implements WritableByteChannel {
+        final List<ByteBuffer> sent = new ArrayList<>();
+
+        @Override
+        public int write(ByteBuffer src) {
+            final ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+            copy.put(src).flip();
+            sent.add(copy);
+            return copy.limit();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Echoes the last ping sent as a pong. */
+    private static void pong(KeepaliveScheduler keepalive, RecordingChannel tunnel, long now) {
+        final ByteBuffer ping = tunnel.sent.get(tunnel.sent.size() - 1);
+        final ByteBuffer pong = ByteBuffer.allocate(ping.limit());
+        pong.put(ping.duplicate()).flip();
+        pong.put(1, KeepaliveScheduler.CONTROL_PONG);
+        keepalive.onReceive(now);
+        assertTrue(keepalive.onControl(pong, now));
+    }
+
+    /** Runs the timers until the scheduler throws, and returns when that happened. */
+    private static long runUntilDead(KeepaliveScheduler keepalive, long now) throws Exception {
+        for (int i = 0; i < 100; ++i) {
+            now = keepalive.getDeadline();
+            try {
+                keepalive.onTimer(now);
+            } catch (SocketException e) {
+                return now;
+            }
+        }
+        fail("Never timed out");
+        return now;
+    }
+
+    @Test
+    public void fallsBackToLegacyTimers() throws Exception {
+        final RecordingChannel tunnel = new RecordingChannel();
+        final KeepaliveScheduler keepalive = new KeepaliveScheduler(tunnel, 0, false);
+        keepalive.start(0);
+        assertEquals(1, tunnel.sent.size());
+
+        keepalive.onTimer(keepalive.getDeadline());
+        assertEquals(4, tunnel.sent.size());
+        assertEquals(20000, runUntilDead(keepalive, 0));
+    }
+
+    @Test
+    public void detectsDeadServerQuickly() throws Exception {
+        final RecordingChannel tunnel = new RecordingChannel();
+        final KeepaliveScheduler keepalive = new KeepaliveScheduler(tunnel, 0, false);
+        keepalive.start(0);
+        pong(keepalive, tunnel, 30);
+        assertEquals(30, keepalive.getRtt());
+
+        // Traffic goes out and nothing ever comes back.
+        keepalive.onSend(1000);
+        final long dead = runUntilDead(keepalive, 1000);
+        assertTrue("Took " + dead + " ms", dead < 3000);
+    }
+
+    @Test
+    public void growsIntervalWhileIdlePingsGetThrough() throws Exception {
+        final RecordingChannel tunnel = new RecordingChannel();
+        final KeepaliveScheduler keepalive = new KeepaliveScheduler(tunnel, 0, false);
+        keepalive.start(0);
+        pong(keepalive, tunnel, 10);
+
+        final long interval = keepalive.getInterval();
+        assertEquals(KeepaliveScheduler.MIN_INTERVAL_MS, keepalive.getDeadline());
+        final long now = keepalive.getDeadline();
+        keepalive.onTimer(now);
+        pong(keepalive, tunnel, now + 10);
+        assertTrue(keepalive.getInterval() > interval);
+        assertFalse(keepalive.isIntervalFound());
+    }
+
+    @Test
+    public void staysWithinWhatTheServerKeeps() throws Exception {
+        final RecordingChannel tunnel = new RecordingChannel();
+        final KeepaliveScheduler found = new KeepaliveScheduler(tunnel, 200000, true);
+        found.setMaxInterval(60000);
+        assertEquals(60000, found.getInterval());
+
+        final KeepaliveScheduler keepalive = new KeepaliveScheduler(tunnel, 50000, false);
+        keepalive.setMaxInterval(60000);
+        keepalive.start(0);
+        pong(keepalive, tunnel, 10);
+        final long now = keepalive.getDeadline();
+        keepalive.onTimer(now);
+        pong(keepalive, tunnel, now + 10);
+        assertEquals(60000, keepalive.getInterval());
+    }
+
+    @Test
+    public void settlesOnLastGoodIntervalAfterLoss() throws Exception {
+        final RecordingChannel tunnel = new RecordingChannel();
+        final KeepaliveScheduler keepalive = new KeepaliveScheduler(tunnel, 60000, false);
+        keepalive.start(0);
+        pong(keepalive, tunnel, 10);
+
+        // The idle ping and every probe after it are lost.
+        runUntilDead(keepalive, 10);
+        assertTrue(keepalive.isIntervalFound());
+        assertEquals(KeepaliveScheduler.MIN_INTERVAL_MS, keepalive.getInterval());
+
+        // The next session starts from there and does not learn any further.
+        final KeepaliveScheduler next = new KeepaliveScheduler(tunnel,
+                keepalive.getInterval(), keepalive.isIntervalFound());
+        assertEquals(KeepaliveScheduler.MIN_INTERVAL_MS, next.getInterval());
+        assertTrue(next.isIntervalFound());
+    }
+}
@@ -0,0 +1,48 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void bucketsCoverEveryValueInOrder() {
+        int last = -1;
+        for (long value = 0; value < 100000; ++value) {
+            final int index = LatencyHistogram.getIndex(value);
+            assertTrue("Value " + value, index == last || index == last + 1);
+            assertTrue("Value " + value, LatencyHistogram.getHighestValue(index) >= value);
+            last = index;
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinAnEighth() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 10000; ++value) {
+            histogram.record(value);
+        }
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(10000, snapshot.getMax());
+        for (int percentile : new int[] {1, 50, 90, 99}) {
+            final long value = snapshot.getPercentile(percentile);
+            final long exact = percentile * 100;
+            assertTrue("p" + percentile + " is " + value, value >= exact);
+            assertTrue("p" + percentile + " is " + value, value <= exact + exact / 8);
+        }
+        assertEquals(10000, snapshot.getPercentile(100));
+    }
+
+    @Test
+    public void clampsOutliers() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(50));
+        assertEquals(Long.MAX_VALUE, snapshot.getMax());
+        assertEquals(0, new LatencyHistogram().snapshot().getPercentile(99));
+    }
+}
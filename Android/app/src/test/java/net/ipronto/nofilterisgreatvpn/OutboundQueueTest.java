@@ -0,0 +1,129 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+    /** Stands in for the interface: hands out one queued packet per read, or nothing. */
+    private static class FakeInterface implements ReadableByteChannel {
+        final Queue<byte[]> packets = new ArrayDeque<>();
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            final byte[] packet = packets.poll();
+            if (packet == null) {
+                return 0;
+            }
+            dst.put(packet);
+            return packet.length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Records the first byte of every packet it is sent, and the failure if any. */
+    private static class RecordingSink implements OutboundQueue.Sink {
+        final List<Integer> sent = new ArrayList<>();
+        IOException failure;
+
+        @Override
+        public void send(ByteBuffer packet) {
+            sent.add((int) packet.get(packet.position()));
+        }
+
+        @Override
+        public void onFailed(IOException e) {
+            failure = e;
+        }
+    }
+
+    private static void read(OutboundQueue queue, FakeInterface in, int... ids)
+            throws Exception {
+        for (int id : ids) {
+            in.packets.add(new byte[] {(byte) id, 0, 0, 0});
+            assertTrue(queue.forwardPacket());
+        }
+    }
+
+    @Test
+    public void holdsPacketsUntilAttached() throws Exception {
+        final FakeInterface in = new FakeInterface();
+        final OutboundQueue queue = new OutboundQueue(in, 8, 1500);
+        read(queue, in, 1, 2, 3);
+        assertEquals(3, queue.size());
+
+        final RecordingSink sink = new RecordingSink();
+        queue.attach(sink);
+        assertEquals(0, queue.size());
+        read(queue, in, 4);
+        assertEquals(Arrays.asList(1, 2, 3, 4), sink.sent);
+    }
+
+    @Test
+    public void dropsOldestWhenFull() throws Exception {
+        final FakeInterface in = new FakeInterface();
+        final OutboundQueue queue = new OutboundQueue(in, 2, 1500);
+        read(queue, in, 1, 2, 3);
+        assertEquals(2, queue.size());
+
+        final RecordingSink sink = new RecordingSink();
+        queue.attach(sink);
+        assertEquals(Arrays.asList(2, 3), sink.sent);
+    }
+
+    @Test
+    public void queuesAgainOnceDetached() throws Exception {
+        final FakeInterface in = new FakeInterface();
+        final OutboundQueue queue = new OutboundQueue(in, 8, 1500);
+        final RecordingSink first = new RecordingSink();
+        queue.attach(first);
+        read(queue, in, 1);
+        queue.detach();
+        read(queue, in, 2);
+
+        final RecordingSink second = new RecordingSink();
+        queue.attach(second);
+        assertEquals(Arrays.asList(1), first.sent);
+        assertEquals(Arrays.asList(2), second.sent);
+        assertFalse(queue.forwardPacket());
+    }
+
+    @Test
+    public void reportsWhenTheInterfaceCannotBeRead() throws Exception {
+        final IOException broken = new IOException("Broken");
+        final OutboundQueue queue = new OutboundQueue(new FakeInterface() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                throw broken;
+            }
+        }, 8, 1500);
+        final RecordingSink first = new RecordingSink();
+        queue.attach(first);
+        queue.run();
+        assertSame(broken, first.failure);
+        assertTrue(queue.isFailed());
+
+        // The next session hears of it as well.
+        queue.detach();
+        final RecordingSink second = new RecordingSink();
+        queue.attach(second);
+        assertSame(broken, second.failure);
+    }
+}
@@ -0,0 +1,112 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PacketBatcherTest {
+    private static final int MTU = 1400;
+    private static final long DEADLINE_MS = 5;
+
+    /** Remembers a copy of everything written to it. */
+    private static class Recorder implements WritableByteChannel {
+        final List<byte[]> writes = new ArrayList<>();
+
+        @Override
+        public int write(ByteBuffer src) {
+            final byte[] bytes = new byte[src.remaining()];
+            src.get(bytes);
+            writes.add(bytes);
+            return bytes.length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final Recorder mTunnel = new Recorder();
+    private final PacketBatcher mBatcher = new PacketBatcher(mTunnel, MTU, DEADLINE_MS);
+
+    private static byte[] packet(int length, int seed) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = (byte) (seed + i);
+        }
+        bytes[0] = 0x45;
+        return bytes;
+    }
+
+    @Test
+    public void holdsSmallPacketsUntilTheDeadline() throws Exception {
+        assertTrue(mBatcher.send(ByteBuffer.wrap(packet(40, 1)), 100));
+        assertFalse(mBatcher.send(ByteBuffer.wrap(packet(52, 2)), 101));
+        assertEquals(100 + DEADLINE_MS, mBatcher.getFlushTime());
+
+        mBatcher.flushIfDue(100 + DEADLINE_MS - 1);
+        assertEquals(0, mTunnel.writes.size());
+
+        mBatcher.flushIfDue(100 + DEADLINE_MS);
+        assertEquals(1, mTunnel.writes.size());
+        assertEquals(2 + 2 + 40 + 2 + 52, mTunnel.writes.get(0).length);
+        assertEquals(Long.MAX_VALUE, mBatcher.getFlushTime());
+    }
+
+    @Test
+    public void roundTrips() throws Exception {
+        final byte[][] packets = {packet(40, 1), packet(1, 2), packet(300, 3), packet(60, 4)};
+        for (byte[] packet : packets) {
+            mBatcher.send(ByteBuffer.wrap(packet), 0);
+        }
+        mBatcher.flush();
+
+        final ByteBuffer datagram = ByteBuffer.wrap(mTunnel.writes.get(0));
+        assertTrue(PacketBatcher.isBatch(datagram));
+
+        final Recorder out = new Recorder();
+        PacketBatcher.unbatch(datagram, out);
+        assertEquals(packets.length, out.writes.size());
+        for (int i = 0; i < packets.length; ++i) {
+            assertArrayEquals(packets[i], out.writes.get(i));
+        }
+    }
+
+    @Test
+    public void flushesWhenFull() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            mBatcher.send(ByteBuffer.wrap(packet(600, i)), 0);
+        }
+        assertEquals(1, mTunnel.writes.size());
+        assertTrue(mTunnel.writes.get(0).length <= MTU);
+    }
+
+    @Test
+    public void keepsOrderAroundLargePackets() throws Exception {
+        final byte[] small = packet(40, 1);
+        final byte[] large = packet(MTU, 2);
+        mBatcher.send(ByteBuffer.wrap(small), 0);
+        assertFalse(mBatcher.send(ByteBuffer.wrap(large), 0));
+
+        // A lone packet goes out without framing.
+        assertEquals(2, mTunnel.writes.size());
+        assertArrayEquals(small, mTunnel.writes.get(0));
+        assertArrayEquals(large, mTunnel.writes.get(1));
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void rejectsTruncatedBatches() throws Exception {
+        final ByteBuffer datagram = ByteBuffer.wrap(new byte[] {0, PacketBatcher.CONTROL_BATCH,
+                0, 10, 0x45, 0});
+        PacketBatcher.unbatch(datagram, new Recorder());
+    }
+}
@@ -0,0 +1,180 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class PacketCaptureTest {
+    private static final int HOST_A = 0x0A000002;
+    private static final int HOST_B = 0x08080808;
+
+    private final PacketCapture mCapture = new PacketCapture(4, 32);
+
+    {
+        mCapture.setEnabled(true);
+    }
+
+    /** An IPv4 packet of {@code length} bytes, numbered by its last byte. */
+    private static ByteBuffer ipv4(int protocol, int source, int destination, int sourcePort,
+                                   int destinationPort, int length, int number) {
+        final ByteBuffer packet = ByteBuffer.allocate(length);
+        packet.put(0, (byte) 0x45);
+        packet.put(9, (byte) protocol);
+        packet.putInt(12, source);
+        packet.putInt(16, destination);
+        packet.putShort(20, (short) sourcePort);
+        packet.putShort(22, (short) destinationPort);
+        packet.put(length - 1, (byte) number);
+        return packet;
+    }
+
+    private static ByteBuffer udp(int sourcePort, int destinationPort) {
+        return ipv4(17, HOST_A, HOST_B, sourcePort, destinationPort, 40, 0);
+    }
+
+    private static boolean matches(String filter, ByteBuffer packet, int direction) {
+        return PacketCapture.Filter.parse(filter).matches(packet, direction);
+    }
+
+    /** The records of an exported capture, as {@code captured/length} pairs. */
+    private String export(PacketCapture capture) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int count = capture.writePcap(out);
+        final ByteBuffer pcap = ByteBuffer.wrap(out.toByteArray());
+        assertEquals(0xA1B2C3D4, pcap.getInt());
+        assertEquals(2, pcap.getShort());
+        assertEquals(4, pcap.getShort());
+        pcap.position(16);
+        assertEquals(32, pcap.getInt());
+        assertEquals(101, pcap.getInt());
+
+        final StringBuilder records = new StringBuilder();
+        for (int i = 0; i < count; ++i) {
+            pcap.getInt();
+            assertTrue(pcap.getInt() < 1000000);
+            final int captured = pcap.getInt();
+            records.append(captured).append('/').append(pcap.getInt()).append(' ');
+            pcap.position(pcap.position() + captured);
+        }
+        assertFalse(pcap.hasRemaining());
+        return records.toString().trim();
+    }
+
+    @Test
+    public void keepsNothingTillItIsEnabled() throws Exception {
+        final PacketCapture capture = new PacketCapture(4, 32);
+        capture.capture(udp(1, 2), PacketCapture.OUTGOING);
+        assertEquals("", export(capture));
+    }
+
+    @Test
+    public void cutsPacketsAtTheSnapLength() throws Exception {
+        mCapture.capture(ipv4(6, HOST_A, HOST_B, 1, 2, 24, 0), PacketCapture.OUTGOING);
+        mCapture.capture(ipv4(6, HOST_A, HOST_B, 1, 2, 1400, 0), PacketCapture.INCOMING);
+        assertEquals("24/24 32/1400", export(mCapture));
+    }
+
+    @Test
+    public void leavesThePacketAlone() {
+        final ByteBuffer packet = udp(1, 2);
+        packet.position(4).limit(30);
+        mCapture.capture(packet, PacketCapture.OUTGOING);
+        assertEquals(4, packet.position());
+        assertEquals(30, packet.limit());
+    }
+
+    @Test
+    public void keepsTheLastPacketsOldestFirst() throws Exception {
+        for (int i = 0; i < 10; ++i) {
+            mCapture.capture(ipv4(17, HOST_A, HOST_B, 1, 2, 24 + i, i), PacketCapture.OUTGOING);
+        }
+        assertEquals("30/30 31/31 32/32 32/33", export(mCapture));
+    }
+
+    @Test
+    public void keepsOneInEverySampling() throws Exception {
+        mCapture.setSampling(3);
+        for (int i = 0; i < 9; ++i) {
+            mCapture.capture(ipv4(17, HOST_A, HOST_B, 1, 2, 24 + i, i), PacketCapture.OUTGOING);
+        }
+        assertEquals("24/24 27/27 30/30", export(mCapture));
+    }
+
+    @Test
+    public void keepsOnlyWhatMatchesTheFilter() throws Exception {
+        mCapture.setFilter(PacketCapture.Filter.parse("udp and port 53"));
+        mCapture.capture(ipv4(17, HOST_A, HOST_B, 40000, 53, 60, 0), PacketCapture.OUTGOING);
+        mCapture.capture(ipv4(6, HOST_A, HOST_B, 40000, 53, 24, 0), PacketCapture.OUTGOING);
+        mCapture.capture(ipv4(17, HOST_B, HOST_A, 53, 40000, 25, 0), PacketCapture.INCOMING);
+        assertEquals("32/60 25/25", export(mCapture));
+    }
+
+    @Test
+    public void matchesProtocolsAndDirections() {
+        assertTrue(matches("udp", udp(1, 2), PacketCapture.OUTGOING));
+        assertFalse(matches("tcp", udp(1, 2), PacketCapture.OUTGOING));
+        assertTrue(matches("not tcp", udp(1, 2), PacketCapture.OUTGOING));
+        assertTrue(matches("inbound", udp(1, 2), PacketCapture.INCOMING));
+        assertFalse(matches("outbound", udp(1, 2), PacketCapture.INCOMING));
+        assertTrue(matches("", udp(1, 2), PacketCapture.INCOMING));
+    }
+
+    @Test
+    public void matchesAddressesAndPortsOnEitherSide() {
+        final ByteBuffer packet = udp(40000, 53);
+        assertTrue(matches("host 8.8.8.8", packet, PacketCapture.OUTGOING));
+        assertTrue(matches("dst host 8.8.8.8", packet, PacketCapture.OUTGOING));
+        assertFalse(matches("src host 8.8.8.8", packet, PacketCapture.OUTGOING));
+        assertTrue(matches("src port 40000 and dst port 53", packet, PacketCapture.OUTGOING));
+        assertFalse(matches("src port 53", packet, PacketCapture.OUTGOING));
+        assertFalse(matches("not port 53", packet, PacketCapture.OUTGOING));
+    }
+
+    @Test
+    public void matchesIpv6() {
+        final ByteBuffer packet = ByteBuffer.allocate(48);
+        packet.put(0, (byte) 0x60);
+        packet.put(6, (byte) 58);
+        packet.put(8, (byte) 0x20);
+        packet.put(9, (byte) 0x01);
+        packet.put(10, (byte) 0x0d);
+        packet.put(11, (byte) 0xb8);
+        packet.put(23, (byte) 1);
+        assertTrue(matches("icmp and src host 2001:db8::1", packet, PacketCapture.OUTGOING));
+        assertFalse(matches("host 10.0.0.2", packet, PacketCapture.OUTGOING));
+        assertFalse(matches("port 53", packet, PacketCapture.OUTGOING));
+    }
+
+    @Test
+    public void ignoresPortsOfLaterFragments() {
+        final ByteBuffer packet = udp(40000, 53);
+        packet.putShort(6, (short) 100);
+        assertTrue(matches("udp", packet, PacketCapture.OUTGOING));
+        assertFalse(matches("port 53", packet, PacketCapture.OUTGOING));
+    }
+
+    @Test
+    public void rejectsWhatItCannotParse() {
+        final String[] filters = {"port", "port http", "host example.com", "src tcp", "and",
+                "udp or tcp", "not", "tcp udp"};
+        for (String filter : filters) {
+            try {
+                PacketCapture.Filter.parse(filter);
+                fail(filter);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void rejectsSlotCountsThatAreNotPowersOfTwo() {
+        try {
+            new PacketCapture(3, 32);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PacketCipherTest {
+    private static byte[] hex(String hex) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static byte[] key() {
+        final byte[] key = new byte[PacketCipher.KEY_SIZE];
+        for (int i = 0; i < key.length; ++i) {
+            key[i] = (byte) (0x80 + i);
+        }
+        return key;
+    }
+
+    @Test
+    public void matchesTheRfc() {
+        // RFC 8439, section 2.8.2.
+        final byte[] plaintext = ("Ladies and Gentlemen of the class of '99: If I could offer "
+                + "you only one tip for the future, sunscreen would be it.").getBytes();
+        final byte[] expected = hex("d31a8d34648e60db7b86afbc53ef7ec2a4aded51296e08fea9e2b5a7"
+                + "36ee62d63dbea45e8ca9671282fafb69da92728b1a71de0a9e060b2905d6a5b67ecd3b3692dd"
+                + "bd7f2d778b8c9803aee328091b58fab324e4fad675945585808b4831d7bc3ff4def08e4b7a9d"
+                + "e576d26586cec64b6116" + "1ae10b594f09e26a7e902ecbd0600691");
+        final ByteBuffer aad = ByteBuffer.wrap(hex("50515253c0c1c2c3c4c5c6c7"));
+        final ByteBuffer buffer = ByteBuffer.allocate(expected.length);
+        buffer.put(plaintext);
+
+        final PacketCipher cipher = new PacketCipher(key());
+        cipher.seal(7, 0x4746454443424140L, aad, buffer, 0, plaintext.length, buffer, 0);
+        assertArrayEquals(expected, buffer.array());
+
+        assertTrue(cipher.open(7, 0x4746454443424140L, aad, buffer, 0, expected.length));
+        assertEquals(ByteBuffer.wrap(plaintext), ByteBuffer.wrap(buffer.array(), 0,
+                plaintext.length));
+    }
+
+    @Test
+    public void roundTripsEveryLength() {
+        final PacketCipher cipher = new PacketCipher(key());
+        final Random random = new Random(3);
+        for (int length = 0; length < 300; ++length) {
+            final byte[] plaintext = new byte[length];
+            random.nextBytes(plaintext);
+            final ByteBuffer src = ByteBuffer.wrap(plaintext);
+            // Out of place, at an odd offset.
+            final ByteBuffer dst = ByteBuffer.allocateDirect(length + PacketCipher.TAG_SIZE + 3);
+            cipher.seal(0, length, null, src, 0, length, dst, 3);
+            assertTrue(cipher.open(0, length, null, dst, 3, length + PacketCipher.TAG_SIZE));
+            for (int i = 0; i < length; ++i) {
+                assertEquals(plaintext[i], dst.get(3 + i));
+            }
+        }
+    }
+
+    @Test
+    public void rejectsTamperingAndOtherNonces() {
+        final PacketCipher cipher = new PacketCipher(key());
+        final ByteBuffer aad = ByteBuffer.wrap(new byte[] {1, 2});
+        final ByteBuffer buffer = ByteBuffer.allocate(100 + PacketCipher.TAG_SIZE);
+        cipher.seal(0, 1, aad, buffer, 0, 100, buffer, 0);
+        final byte[] sealed = buffer.array().clone();
+
+        for (int i = 0; i < sealed.length; i += 7) {
+            buffer.put(i, (byte) (sealed[i] ^ 1));
+            assertFalse(cipher.open(0, 1, aad, buffer, 0, sealed.length));
+            // Left as it was.
+            assertEquals(sealed[i] ^ 1, buffer.get(i));
+            buffer.put(i, sealed[i]);
+        }
+        assertFalse(cipher.open(0, 2, aad, buffer, 0, sealed.length));
+        assertFalse(cipher.open(0, 1, ByteBuffer.wrap(new byte[] {1, 3}), buffer, 0,
+                sealed.length));
+        assertFalse(cipher.open(0, 1, aad, buffer, 0, PacketCipher.TAG_SIZE - 1));
+        assertTrue(cipher.open(0, 1, aad, buffer, 0, sealed.length));
+    }
+}
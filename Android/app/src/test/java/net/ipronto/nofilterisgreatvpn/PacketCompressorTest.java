@@ -0,0 +1,126 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PacketCompressorTest {
+    private static final int MTU = 1400;
+
+    private final PacketCompressor mCompressor = new PacketCompressor(MTU);
+
+    /** An IPv4 packet of the given protocol and destination port with the given body. */
+    private static ByteBuffer packet(int protocol, int port, byte[] body) {
+        final ByteBuffer packet = ByteBuffer.allocate(28 + body.length);
+        packet.put((byte) 0x45).put(new byte[8]).put((byte) protocol).put(new byte[10])
+                .putShort((short) 40000).putShort((short) port).put(new byte[4]).put(body);
+        packet.flip();
+        return packet;
+    }
+
+    private static byte[] text(int length) {
+        final byte[] text = "Host: www.example.com\r\nAccept: text/html\r\n".getBytes();
+        final byte[] body = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            body[i] = text[i % text.length];
+        }
+        return body;
+    }
+
+    private static ByteBuffer roundTrip(ByteBuffer compressed) throws IOException {
+        final ByteBuffer out = ByteBuffer.allocate(MTU);
+        PacketCompressor.decompress(compressed, out);
+        return out;
+    }
+
+    @Test
+    public void compressesTextAndRestoresIt() throws IOException {
+        final ByteBuffer packet = packet(17, 53, text(1000));
+        final ByteBuffer compressed = mCompressor.compress(packet);
+
+        assertNotNull(compressed);
+        assertTrue(PacketCompressor.isCompressed(compressed));
+        assertTrue(compressed.remaining() < packet.remaining() / 4);
+        assertEquals(0, packet.position());
+        assertEquals(packet, roundTrip(compressed));
+    }
+
+    @Test
+    public void restoresEveryPacketOfAStream() throws IOException {
+        // The hash table carries over between packets and must not leak into them.
+        final Random random = new Random(7);
+        for (int i = 0; i < 200; ++i) {
+            final byte[] body = text(64 + random.nextInt(1300));
+            for (int j = random.nextInt(50); j > 0; --j) {
+                body[random.nextInt(body.length)] = (byte) random.nextInt();
+            }
+            final ByteBuffer packet = packet(6, 80, body);
+            final ByteBuffer compressed = mCompressor.compress(packet);
+            if (compressed != null) {
+                assertEquals(packet, roundTrip(compressed));
+            }
+        }
+    }
+
+    @Test
+    public void leavesIncompressiblePacketsAlone() {
+        // Random addresses and all, since even a few zeros in a row would shrink.
+        final byte[] bytes = new byte[1000];
+        new Random(1).nextBytes(bytes);
+        final ByteBuffer packet = ByteBuffer.wrap(bytes);
+        packet.put(0, (byte) 0x45).putShort(6, (short) 0).put(9, (byte) 17)
+                .putShort(22, (short) 80);
+        assertNull(mCompressor.compress(packet));
+    }
+
+    @Test
+    public void skipsTinyAndEncryptedPackets() {
+        assertNull(mCompressor.compress(packet(17, 53, text(20))));
+        assertNull(mCompressor.compress(packet(6, 443, text(1000))));
+        assertNull(mCompressor.compress(packet(17, 443, text(1000))));
+        assertTrue(PacketCompressor.isEncrypted(packet(6, 443, text(10))));
+        assertFalse(PacketCompressor.isEncrypted(packet(6, 8443, text(10))));
+    }
+
+    @Test
+    public void recognizesTheHello() {
+        final ByteBuffer hello =
+                ByteBuffer.wrap(new byte[] {0, PacketCompressor.CONTROL_COMPRESSED});
+        assertTrue(PacketCompressor.isCompressed(hello));
+        assertFalse(PacketCompressor.isCompressed(ByteBuffer.wrap(new byte[] {0, 1})));
+        assertFalse(PacketCompressor.isCompressed(packet(17, 53, text(10))));
+    }
+
+    @Test
+    public void rejectsMalformedPackets() {
+        final ByteBuffer compressed = mCompressor.compress(packet(17, 53, text(1000)));
+        final byte[] bytes = new byte[compressed.remaining()];
+        compressed.get(bytes);
+
+        // Cut short.
+        try {
+            roundTrip(ByteBuffer.wrap(bytes, 0, bytes.length / 2));
+            fail();
+        } catch (IOException expected) {
+        }
+
+        // A match that points before the start.
+        try {
+            roundTrip(ByteBuffer.wrap(new byte[] {0, PacketCompressor.CONTROL_COMPRESSED,
+                    0x10, 'a', 5, 0, 0x00}));
+            fail();
+        } catch (IOException expected) {
+        }
+
+        // More than fits.
+        try {
+            PacketCompressor.decompress(ByteBuffer.wrap(bytes), ByteBuffer.allocate(100));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives both forwarding paths on the test thread, with pipes standing in for the interface
+ * and a loopback socket standing in for the server. Bonded tunnels run on threads of their
+ * own instead, with a loopback socket and a {@link Peer} for each path.
+ */
+public class PacketForwarderTest {
+    private static final int MTU = 1400;
+    private static final int WARMUP_PACKETS = 20000;
+    private static final int MEASURED_PACKETS = 2000;
+
+    private Pipe mOutgoing;
+    private Pipe mIncoming;
+    private DatagramChannel mTunnel;
+    private DatagramChannel mServer;
+    private PacketForwarder mForwarder;
+
+    private final ByteBuffer mPacket = ByteBuffer.allocateDirect(MTU);
+
+    private final List<Peer> mPeers = new ArrayList<>();
+    private final List<DatagramChannel> mBonded = new ArrayList<>();
+    private final ScheduledExecutorService mDelays = Executors.newSingleThreadScheduledExecutor();
+    private PacketForwarder mBondedForwarder;
+    private Thread mBondedThread;
+
+    /**
+     * The server end of one path of a bonded tunnel, impaired as told: it answers pings after a
+     * delay, and loses the datagrams whose sequence number is odd or even.
+     */
+    private class Peer implements Runnable {
+        final DatagramChannel channel;
+        final long delayMs;
+        /** Loses the datagrams whose sequence number has this remainder by 2, unless -1. */
+        final int lossRemainder;
+        /** Sequence numbers of the datagrams that got through. */
+        final List<Integer> received = new CopyOnWriteArrayList<>();
+
+        Peer(DatagramChannel channel, long delayMs, int lossRemainder) {
+            this.channel = channel;
+            this.delayMs = delayMs;
+            this.lossRemainder = lossRemainder;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final ByteBuffer datagram = ByteBuffer.allocate(MTU + 100);
+                    channel.read(datagram);
+                    datagram.flip();
+                    if (datagram.get(1) == KeepaliveScheduler.CONTROL_PING) {
+                        datagram.put(1, KeepaliveScheduler.CONTROL_PONG);
+                        mDelays.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                send(datagram);
+                            }
+                        }, delayMs, TimeUnit.MILLISECONDS);
+                    } else if (ReorderBuffer.isSequenced(datagram)) {
+                        final int sequence = datagram.getInt(2);
+                        if (Math.abs(sequence % 2) != lossRemainder) {
+                            received.add(sequence);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                // Closed by the test.
+            }
+        }
+
+        /** Sends a packet numbered {@code sequence} down this path, as the server would. */
+        void sendSequenced(int sequence) throws Exception {
+            final ByteBuffer packet = ByteBuffer.allocate(20);
+            packet.put(0, (byte) 0x45).put(1, (byte) sequence);
+            final ByteBuffer datagram = ByteBuffer.allocate(packet.remaining()
+                    + ReorderBuffer.HEADER_SIZE);
+            ReorderBuffer.sequence(sequence, packet, datagram);
+            channel.write(datagram);
+        }
+
+        void send(ByteBuffer datagram) {
+            try {
+                channel.write(datagram);
+            } catch (Exception e) {
+                // Closed by the test.
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mOutgoing = Pipe.open();
+        mIncoming = Pipe.open();
+
+        mServer = DatagramChannel.open();
+        mServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mTunnel = DatagramChannel.open();
+        mTunnel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mTunnel.connect(mServer.getLocalAddress());
+        mServer.connect(mTunnel.getLocalAddress());
+        mTunnel.configureBlocking(false);
+
+        mForwarder = new PacketForwarder(mOutgoing.source(), mIncoming.sink(), mTunnel, MTU,
+                "test");
+
+        for (int i = 0; i < MTU; ++i) {
+            mPacket.put((byte) (0x45 + i));
+        }
+        mPacket.flip();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mBondedThread != null) {
+            mBondedThread.interrupt();
+            mBondedThread.join();
+        }
+        for (DatagramChannel channel : mBonded) {
+            channel.close();
+        }
+        for (Peer peer : mPeers) {
+            peer.channel.close();
+        }
+        mDelays.shutdownNow();
+        mTunnel.close();
+        mServer.close();
+        mOutgoing.source().close();
+        mOutgoing.sink().close();
+        mIncoming.source().close();
+        mIncoming.sink().close();
+    }
+
+    @Test
+    public void forwardsBothWays() throws Exception {
+        final ByteBuffer received = ByteBuffer.allocate(MTU);
+
+        roundTrip(received);
+        received.flip();
+        assertEquals(MTU, received.remaining());
+        assertEquals(mPacket.get(0), received.get(0));
+        assertEquals(mPacket.get(MTU - 1), received.get(MTU - 1));
+    }
+
+    @Test
+    public void dropsControlMessages() throws Exception {
+        mServer.write(ByteBuffer.wrap(new byte[] {0, 1, 2}));
+        while (!mForwarder.forwardIncomingPacket()) {
+            Thread.yield();
+        }
+
+        mIncoming.source().configureBlocking(false);
+        assertEquals(0, mIncoming.source().read(ByteBuffer.allocate(MTU)));
+    }
+
+    @Test
+    public void doesNotAllocatePerPacket() throws Exception {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        final ByteBuffer received = ByteBuffer.allocateDirect(MTU);
+
+        // Let the JIT settle so we measure the compiled steady state.
+        for (int i = 0; i < WARMUP_PACKETS; ++i) {
+            roundTrip(received);
+        }
+
+        final long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < MEASURED_PACKETS; ++i) {
+            roundTrip(received);
+        }
+        final long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        // Leave room for the odd allocation made by the measurement itself, but nowhere near
+        // one object per packet.
+        assertTrue("Allocated " + allocated + " bytes for " + MEASURED_PACKETS + " packets",
+                allocated < MEASURED_PACKETS);
+    }
+
+    @Test
+    public void bondedTunnelPrefersTheFasterPath() throws Exception {
+        startBonded(false, new Peer[] {newPeer(100, -1), newPeer(0, -1)});
+        awaitRoundTrips();
+        sendOutgoing(30, 600);
+        awaitReceived(mPeers.get(1), 30);
+        assertTrue(mPeers.get(0).received.isEmpty());
+    }
+
+    @Test
+    public void redundantModeGetsSmallPacketsThroughTwoLossyPaths() throws Exception {
+        // Each path loses half of what it carries, but never what the other one loses.
+        startBonded(true, new Peer[] {newPeer(0, 0), newPeer(30, 1)});
+        sendOutgoing(40, 100);
+        final Peer first = mPeers.get(0);
+        final Peer second = mPeers.get(1);
+        awaitReceived(first, 20);
+        awaitReceived(second, 20);
+        for (int i = 0; i < 40; ++i) {
+            assertTrue("Lost " + i, first.received.contains(i) || second.received.contains(i));
+        }
+    }
+
+    @Test
+    public void bondedTunnelDeliversWhatArrivesOutOfOrderInOrder() throws Exception {
+        // The second path is slower, which the hold time of the reorder buffer allows for.
+        startBonded(false, new Peer[] {newPeer(0, -1), newPeer(100, -1)});
+        awaitRoundTrips();
+        for (int i = 0; i < 20; i += 2) {
+            mPeers.get(0).sendSequenced(i);
+        }
+        Thread.sleep(20);
+        for (int i = 1; i < 20; i += 2) {
+            mPeers.get(1).sendSequenced(i);
+        }
+        // A copy is dropped, and what was lost on both paths is skipped once its time is up.
+        mPeers.get(1).sendSequenced(19);
+        mPeers.get(0).sendSequenced(21);
+        mPeers.get(0).sendSequenced(22);
+
+        final List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            expected.add(i);
+        }
+        expected.add(21);
+        expected.add(22);
+        assertEquals(expected, readIncoming(expected.size(), 20));
+    }
+
+    @Test
+    public void stopsWithoutClosingTheInterfaceUnderAWorker() throws Exception {
+        // A pipe, like the interface, closes if a thread writing to it is interrupted. Reading
+        // it slowly keeps the workers in the middle of writes.
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final ByteBuffer packet = ByteBuffer.allocate(MTU);
+                try {
+                    while (true) {
+                        Thread.sleep(1);
+                        packet.clear();
+                        mIncoming.source().read(packet);
+                    }
+                } catch (Exception e) {
+                    // Closed by the test.
+                }
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        final Peer first = newPeer(0, -1);
+        final Peer second = newPeer(0, -1);
+        final PacketForwarder forwarder = new PacketForwarder(null, mIncoming.sink(),
+                mBonded.toArray(new DatagramChannel[mBonded.size()]), MTU, "test");
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    forwarder.run();
+                } catch (Exception e) {
+                    // Interrupted by the test.
+                }
+            }
+        });
+        thread.start();
+
+        // Keep the worker of the second socket writing while the forwarder stops.
+        final long end = System.currentTimeMillis() + 200;
+        while (System.currentTimeMillis() < end) {
+            mPacket.clear();
+            second.send(mPacket);
+        }
+        thread.interrupt();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertTrue(mIncoming.sink().isOpen());
+        first.channel.close();
+        second.channel.close();
+    }
+
+    private Peer newPeer(long delayMs, int lossRemainder) throws Exception {
+        final DatagramChannel server = DatagramChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        final DatagramChannel tunnel = DatagramChannel.open();
+        tunnel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        tunnel.connect(server.getLocalAddress());
+        server.connect(tunnel.getLocalAddress());
+        mBonded.add(tunnel);
+        return new Peer(server, delayMs, lossRemainder);
+    }
+
+    /** Runs a bonded forwarder across the paths of {@code peers} till the test is over. */
+    private void startBonded(boolean redundant, Peer[] peers) {
+        for (Peer peer : peers) {
+            mPeers.add(peer);
+            final Thread thread = new Thread(peer);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        final PacketForwarder forwarder = new PacketForwarder(null, mIncoming.sink(),
+                mBonded.toArray(new DatagramChannel[mBonded.size()]), MTU, "test");
+        forwarder.setBonding(redundant);
+        mBondedForwarder = forwarder;
+        mBondedThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    forwarder.run();
+                } catch (Exception e) {
+                    // Interrupted by the test.
+                }
+            }
+        });
+        mBondedThread.start();
+    }
+
+    /** Waits for the pings that measure every path to be answered. */
+    private void awaitRoundTrips() throws Exception {
+        long slowest = 0;
+        for (Peer peer : mPeers) {
+            slowest = Math.max(slowest, peer.delayMs);
+        }
+        Thread.sleep(2 * slowest + 100);
+    }
+
+    /** Hands IPv4 packets of the given size to the bonded forwarder, to go out on the paths. */
+    private void sendOutgoing(int count, int size) {
+        for (int i = 0; i < count; ++i) {
+            final ByteBuffer packet = ByteBuffer.allocate(size);
+            packet.putInt(0, 0x45000000 | size).putInt(8, 0x40110000)
+                    .putInt(12, 0x0A000002).putInt(16, 0x08080808)
+                    .putShort(20, (short) (40000 + i)).putShort(22, (short) 53);
+            mBondedForwarder.send(packet);
+        }
+    }
+
+    private static void awaitReceived(Peer peer, int count) throws Exception {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (peer.received.size() < count) {
+            assertTrue("Got " + peer.received, System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /** @return the second byte of {@code count} packets of {@code size} from the interface. */
+    private List<Integer> readIncoming(int count, int size) throws Exception {
+        final List<Integer> received = new ArrayList<>();
+        final ByteBuffer packet = ByteBuffer.allocate(size);
+        mIncoming.source().configureBlocking(false);
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (received.size() < count) {
+            assertTrue("Got " + received, System.currentTimeMillis() < deadline);
+            if (mIncoming.source().read(packet) == 0) {
+                Thread.sleep(1);
+            } else if (!packet.hasRemaining()) {
+                received.add(packet.get(1) & 0xFF);
+                packet.clear();
+            }
+        }
+        return received;
+    }
+
+    /** Sends {@link #mPacket} out through the tunnel and back in again. */
+    private void roundTrip(ByteBuffer received) throws Exception {
+        mPacket.rewind();
+        mOutgoing.sink().write(mPacket);
+        assertTrue(mForwarder.forwardOutgoingPacket());
+
+        received.clear();
+        mServer.read(received);
+        received.flip();
+        mServer.write(received);
+        while (!mForwarder.forwardIncomingPacket()) {
+            Thread.yield();
+        }
+
+        received.clear();
+        while (received.position() < MTU) {
+            mIncoming.source().read(received);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParityEncoderTest {
+    /** Keeps a copy of every datagram written. */
+    private static final class RecordingChannel implements WritableByteChannel {
+        final List<ByteBuffer> datagrams = new ArrayList<>();
+
+        @Override
+        public int write(ByteBuffer datagram) {
+            final int length = datagram.remaining();
+            final ByteBuffer copy = ByteBuffer.allocate(length);
+            copy.put(datagram).flip();
+            datagrams.add(copy);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final RecordingChannel mTunnel = new RecordingChannel();
+    private final RecordingChannel mOut = new RecordingChannel();
+    private final ParityEncoder.Decoder mDecoder = new ParityEncoder.Decoder(1500);
+
+    private static ByteBuffer packet(int id, int length) {
+        final ByteBuffer packet = ByteBuffer.allocate(length);
+        packet.put(0, (byte) 0x45);
+        for (int i = 1; i < length; ++i) {
+            packet.put(i, (byte) (id * 31 + i));
+        }
+        return packet;
+    }
+
+    /** Sends a group of packets of different lengths, so padding gets exercised. */
+    private List<ByteBuffer> sendGroup(ParityEncoder encoder, int first, int count)
+            throws Exception {
+        final List<ByteBuffer> packets = new ArrayList<>();
+        for (int i = first; i < first + count; ++i) {
+            final ByteBuffer packet = packet(i, 40 + i * 37 % 1200);
+            packets.add(packet.duplicate());
+            assertEquals(packet.remaining(), encoder.write(packet));
+        }
+        return packets;
+    }
+
+    @Test
+    public void rebuildsOneLostDatagramPerGroup() throws Exception {
+        final ParityEncoder encoder = new ParityEncoder(mTunnel, 1500, 4);
+        final List<ByteBuffer> packets = sendGroup(encoder, 0, 4);
+        assertEquals(5, mTunnel.datagrams.size());
+        assertTrue(ParityEncoder.isFec(mTunnel.datagrams.get(4)));
+        assertFalse(ParityEncoder.isReport(mTunnel.datagrams.get(4)));
+
+        for (int i = 0; i < 5; ++i) {
+            if (i != 2) {
+                assertEquals(i == 4, mDecoder.decode(mTunnel.datagrams.get(i), mOut));
+            }
+        }
+        assertEquals(4, mOut.datagrams.size());
+        assertEquals(packets.get(0), mOut.datagrams.get(0));
+        assertEquals(packets.get(1), mOut.datagrams.get(1));
+        assertEquals(packets.get(3), mOut.datagrams.get(2));
+        assertEquals(packets.get(2), mOut.datagrams.get(3));
+
+        // The lost one showing up late is a duplicate by now.
+        assertFalse(mDecoder.decode(mTunnel.datagrams.get(2), mOut));
+        assertEquals(4, mOut.datagrams.size());
+    }
+
+    @Test
+    public void rebuildsWhenTheParityComesFirst() throws Exception {
+        final ParityEncoder encoder = new ParityEncoder(mTunnel, 1500, 3);
+        final List<ByteBuffer> packets = sendGroup(encoder, 5, 3);
+        assertFalse(mDecoder.decode(mTunnel.datagrams.get(3), mOut));
+        assertFalse(mDecoder.decode(mTunnel.datagrams.get(2), mOut));
+        assertTrue(mDecoder.decode(mTunnel.datagrams.get(1), mOut));
+        assertEquals(packets.get(0), mOut.datagrams.get(2));
+    }
+
+    @Test
+    public void dropsDuplicatesAndCannotRebuildTwoLosses() throws Exception {
+        final ParityEncoder encoder = new ParityEncoder(mTunnel, 1500, 4);
+        sendGroup(encoder, 0, 4);
+        mDecoder.decode(mTunnel.datagrams.get(0).duplicate(), mOut);
+        mDecoder.decode(mTunnel.datagrams.get(0).duplicate(), mOut);
+        assertFalse(mDecoder.decode(mTunnel.datagrams.get(4).duplicate(), mOut));
+        assertFalse(mDecoder.decode(mTunnel.datagrams.get(4).duplicate(), mOut));
+        assertEquals(1, mOut.datagrams.size());
+    }
+
+    @Test
+    public void passesDatagramsOfOldGroupsThrough() throws Exception {
+        final ParityEncoder encoder = new ParityEncoder(mTunnel, 1500, 2);
+        sendGroup(encoder, 0, 10);
+        // Group 4 takes the slot of group 0, whose datagrams still get through.
+        mDecoder.decode(mTunnel.datagrams.get(12), mOut);
+        mDecoder.decode(mTunnel.datagrams.get(0), mOut);
+        assertFalse(mDecoder.decode(mTunnel.datagrams.get(2), mOut));
+        assertEquals(2, mOut.datagrams.size());
+    }
+
+    @Test
+    public void flushesGroupsThatAreNotFullInTime() throws Exception {
+        final ParityEncoder encoder = new ParityEncoder(mTunnel, 1500, 8);
+        assertEquals(Long.MAX_VALUE, encoder.getFlushTime());
+        assertFalse(encoder.takeGroupStarted());
+
+        final List<ByteBuffer> packets = sendGroup(encoder, 0, 2);
+        assertTrue(encoder.takeGroupStarted());
+        assertFalse(encoder.takeGroupStarted());
+        final long flushTime = encoder.getFlushTime();
+        encoder.flushIfDue(flushTime - 1);
+        assertEquals(2, mTunnel.datagrams.size());
+        encoder.flushIfDue(flushTime);
+        assertEquals(3, mTunnel.datagrams.size());
+        assertEquals(Long.MAX_VALUE, encoder.getFlushTime());
+
+        mDecoder.decode(mTunnel.datagrams.get(2), mOut);
+        assertTrue(mDecoder.decode(mTunnel.datagrams.get(1), mOut));
+        assertEquals(packets.get(0), mOut.datagrams.get(1));
+    }
+
+    @Test
+    public void passesDatagramsTooLongToProtect() throws Exception {
+        final ParityEncoder encoder = new ParityEncoder(mTunnel, 100, 4);
+        encoder.write(packet(1, 200));
+        assertEquals(1, mTunnel.datagrams.size());
+        assertFalse(ParityEncoder.isFec(mTunnel.datagrams.get(0)));
+        assertEquals(Long.MAX_VALUE, encoder.getFlushTime());
+    }
+
+    @Test
+    public void sizesGroupsByLoss() throws Exception {
+        assertEquals(ParityEncoder.MAX_GROUP_SIZE, ParityEncoder.getGroupSize(0));
+        assertEquals(25, ParityEncoder.getGroupSize(10));
+        assertEquals(ParityEncoder.MIN_GROUP_SIZE, ParityEncoder.getGroupSize(200));
+
+        final ParityEncoder encoder = new ParityEncoder(mTunnel, 1500, 8);
+        sendGroup(encoder, 0, 3);
+        // The group is already longer than a lossy link allows, so it ends right away.
+        encoder.setLoss(500);
+        assertEquals(ParityEncoder.MIN_GROUP_SIZE, encoder.getGroupSize());
+        assertEquals(4, mTunnel.datagrams.size());
+    }
+
+    @Test
+    public void measuresAndReportsLoss() throws Exception {
+        final ParityEncoder encoder = new ParityEncoder(mTunnel, 1500, 4);
+        for (int group = 0; group < ParityEncoder.Decoder.REPORT_INTERVAL + 4; ++group) {
+            mTunnel.datagrams.clear();
+            sendGroup(encoder, 0, 4);
+            // One in four gets lost, and is rebuilt.
+            for (int i = 1; i < 5; ++i) {
+                mDecoder.decode(mTunnel.datagrams.get(i), mOut);
+            }
+        }
+        assertTrue(mDecoder.isReportDue());
+        assertFalse(mDecoder.isReportDue());
+        final int loss = mDecoder.getLoss();
+        assertTrue(String.valueOf(loss), loss > 150 && loss <= 250);
+
+        mTunnel.datagrams.clear();
+        ParityEncoder.sendReport(mTunnel, loss);
+        final ByteBuffer report = mTunnel.datagrams.get(0);
+        assertTrue(ParityEncoder.isReport(report));
+        assertEquals(loss, ParityEncoder.getReportedLoss(report));
+    }
+}
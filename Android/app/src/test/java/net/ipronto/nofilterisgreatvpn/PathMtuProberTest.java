@@ -0,0 +1,93 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * Probes a loopback peer that plays the server and drops anything above a given size.
+ */
+public class PathMtuProberTest {
+    private static final int CEILING = 1472;
+
+    private DatagramChannel mTunnel;
+    private DatagramChannel mServer;
+    private Thread mEcho;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = DatagramChannel.open();
+        mServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mTunnel = DatagramChannel.open();
+        mTunnel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mTunnel.connect(mServer.getLocalAddress());
+        mServer.connect(mTunnel.getLocalAddress());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mEcho != null) {
+            mEcho.interrupt();
+        }
+        mTunnel.close();
+        mServer.close();
+    }
+
+    /** Echoes probes up to {@code limit} bytes, like VpnServer does. */
+    private void startEcho(final int limit) {
+        mEcho = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final ByteBuffer packet = ByteBuffer.allocate(65536);
+                try {
+                    while (true) {
+                        packet.clear();
+                        mServer.read(packet);
+                        packet.flip();
+                        if (packet.remaining() <= limit
+                                && packet.get(1) == PathMtuProber.CONTROL_PROBE) {
+                            packet.put(1, PathMtuProber.CONTROL_PROBE_ACK);
+                            mServer.write(packet);
+                        }
+                    }
+                } catch (Exception e) {
+                    // Closed by tearDown().
+                }
+            }
+        });
+        mEcho.start();
+    }
+
+    @Test
+    public void takesTheCeilingWhenItGetsThrough() throws Exception {
+        startEcho(CEILING);
+        assertEquals(CEILING, PathMtuProber.probe(mTunnel, CEILING));
+    }
+
+    @Test
+    public void findsTheLimitOfThePath() throws Exception {
+        startEcho(1400);
+        final int mtu = PathMtuProber.probe(mTunnel, CEILING);
+        assertTrue("Found " + mtu, mtu <= 1400 && mtu > 1400 - 16);
+    }
+
+    @Test
+    public void givesUpOnServersThatDoNotAnswer() throws Exception {
+        assertEquals(-1, PathMtuProber.probe(mTunnel, CEILING));
+    }
+
+    @Test
+    public void ignoresOtherControlMessages() throws Exception {
+        final PathMtuProber prober = new PathMtuProber(mTunnel, CEILING);
+        assertFalse(prober.onControl(ByteBuffer.wrap(new byte[] {0, PacketBatcher.CONTROL_BATCH,
+                0, 0}), 0));
+        assertFalse(prober.onControl(ByteBuffer.wrap(new byte[] {0}), 0));
+    }
+}
@@ -0,0 +1,111 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PathSchedulerTest {
+    private final PathScheduler mPaths = new PathScheduler(2, false);
+
+    /** Pings a path at {@code now} and has it answered after {@code rtt}. */
+    private void measure(PathScheduler paths, int path, long now, long rtt) {
+        assertTrue(paths.probe(path, now));
+        paths.onAnswer(path, rtt);
+    }
+
+    @Test
+    public void probesEachPathOnItsOwnSchedule() {
+        assertTrue(mPaths.probe(0, 1000));
+        assertEquals(1000 + PathScheduler.PROBE_INTERVAL_MS, mPaths.getProbeTime(0));
+        assertFalse(mPaths.probe(0, 1001));
+        assertEquals(0, mPaths.getProbeTime(1));
+        assertTrue(mPaths.probe(1, 1001));
+    }
+
+    @Test
+    public void prefersTheFasterPath() {
+        measure(mPaths, 0, 0, 80);
+        measure(mPaths, 1, 0, 20);
+        assertEquals(1, mPaths.pick(new int[] {0, 0}));
+    }
+
+    @Test
+    public void weighsRoundTripsByLoss() {
+        measure(mPaths, 0, 0, 30);
+        measure(mPaths, 1, 0, 20);
+        // The faster path loses two pings out of three from now on.
+        long now = 0;
+        for (int i = 0; i < 30; ++i) {
+            now += PathScheduler.PROBE_INTERVAL_MS;
+            measure(mPaths, 0, now, 30);
+            assertTrue(mPaths.probe(1, now));
+            if (i % 3 == 0) {
+                mPaths.onAnswer(1, 20);
+            }
+        }
+        assertTrue(mPaths.isUp(1));
+        assertTrue(mPaths.getCost(1) > mPaths.getCost(0));
+        assertEquals(0, mPaths.pick(new int[] {0, 0}));
+    }
+
+    @Test
+    public void spillsOverOnceTheBestPathIsBacklogged() {
+        measure(mPaths, 0, 0, 20);
+        measure(mPaths, 1, 0, 80);
+        assertEquals(0, mPaths.pick(new int[] {PathScheduler.MAX_BACKLOG - 1, 0}));
+        assertEquals(1, mPaths.pick(new int[] {PathScheduler.MAX_BACKLOG, 0}));
+        // With both backlogged, the one with the least waiting.
+        assertEquals(1, mPaths.pick(new int[] {
+                PathScheduler.MAX_BACKLOG + 3, PathScheduler.MAX_BACKLOG + 1}));
+    }
+
+    @Test
+    public void takesAPathDownAfterLostPingsAndBackUpOnAnAnswer() {
+        measure(mPaths, 0, 0, 20);
+        measure(mPaths, 1, 0, 80);
+        long now = 0;
+        for (int i = 0; i <= PathScheduler.MAX_LOST_PROBES; ++i) {
+            now += PathScheduler.PROBE_INTERVAL_MS;
+            assertTrue(mPaths.isUp(0));
+            assertTrue(mPaths.probe(0, now));
+        }
+        assertFalse(mPaths.isUp(0));
+        assertEquals(1, mPaths.pick(new int[] {0, 0}));
+
+        mPaths.onAnswer(0, 20);
+        assertTrue(mPaths.isUp(0));
+        assertEquals(0, mPaths.pick(new int[] {0, 0}));
+    }
+
+    @Test
+    public void reportsWhetherAnotherPathIsLeft() {
+        assertTrue(mPaths.onLost(0));
+        assertFalse(mPaths.onLost(1));
+    }
+
+    @Test
+    public void duplicatesOnlySmallPacketsWhileTwoPathsAreUp() {
+        final PathScheduler redundant = new PathScheduler(2, true);
+        assertTrue(redundant.isRedundant(PathScheduler.REDUNDANT_MAX_SIZE));
+        assertFalse(redundant.isRedundant(PathScheduler.REDUNDANT_MAX_SIZE + 1));
+        redundant.onLost(1);
+        assertFalse(redundant.isRedundant(100));
+        assertFalse(mPaths.isRedundant(100));
+    }
+
+    @Test
+    public void holdsForTheSpreadOfRoundTrips() {
+        assertEquals(PathScheduler.MIN_HOLD_MS, mPaths.getHoldTime());
+        measure(mPaths, 0, 0, 20);
+        measure(mPaths, 1, 0, 80);
+        assertEquals(PathScheduler.MIN_HOLD_MS + 60, mPaths.getHoldTime());
+        measure(mPaths, 1, PathScheduler.PROBE_INTERVAL_MS, 8000);
+        assertEquals(PathScheduler.MAX_HOLD_MS, mPaths.getHoldTime());
+    }
+
+    @Test
+    public void numbersDatagramsAcrossPaths() {
+        assertEquals(0, mPaths.nextSequence());
+        assertEquals(1, mPaths.nextSequence());
+    }
+}
@@ -0,0 +1,141 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ProbeSchedulerTest {
+    private final List<DatagramChannel> mServers = new ArrayList<>();
+    private final BlockingQueue<Map<InetSocketAddress, ServerProber.Result>> mReports =
+            new LinkedBlockingQueue<>();
+    private final ProbeScheduler mScheduler = new ProbeScheduler(new ProbeScheduler.Listener() {
+        @Override
+        public void onProbed(Map<InetSocketAddress, ServerProber.Result> results) {
+            mReports.add(results);
+        }
+    }, 1);
+
+    /** A server on loopback that answers every ping at once. */
+    private InetSocketAddress startServer() throws Exception {
+        final DatagramChannel server = DatagramChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mServers.add(server);
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final ByteBuffer packet = ByteBuffer.allocate(64);
+                try {
+                    while (true) {
+                        packet.clear();
+                        final SocketAddress client = server.receive(packet);
+                        packet.flip();
+                        packet.put(1, KeepaliveScheduler.CONTROL_PONG);
+                        server.send(packet, client);
+                    }
+                } catch (Exception e) {
+                    // Closed at the end of the test.
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mScheduler.shutdown();
+        for (DatagramChannel server : mServers) {
+            server.close();
+        }
+    }
+
+    private Map<InetSocketAddress, ServerProber.Result> nextReport() throws Exception {
+        final Map<InetSocketAddress, ServerProber.Result> report = mReports.poll(5,
+                TimeUnit.SECONDS);
+        assertNotNull(report);
+        return report;
+    }
+
+    @Test
+    public void keepsProbingAndSmoothsWhatItMeasures() throws Exception {
+        final InetSocketAddress server = startServer();
+        mScheduler.setServers(Collections.singletonList(server));
+        assertTrue(mReports.isEmpty());
+        mScheduler.start();
+
+        assertEquals(ServerProber.ROUNDS, nextReport().get(server).received);
+        final ServerProber.Result second = nextReport().get(server);
+        assertEquals(2 * ServerProber.ROUNDS, second.sent);
+        assertEquals(0, second.getLoss(), 0);
+    }
+
+    @Test
+    public void resolvesNamesOffTheCallingThread() throws Exception {
+        final InetSocketAddress server = startServer();
+        final InetSocketAddress named = InetSocketAddress.createUnresolved("localhost",
+                server.getPort());
+        mScheduler.setServers(Collections.singletonList(named));
+        mScheduler.start();
+        assertEquals(ServerProber.ROUNDS, nextReport().get(named).received);
+    }
+
+    @Test
+    public void dropsTheProbeOfAListReplacedMeanwhile() throws Exception {
+        final InetSocketAddress old = startServer();
+        final InetSocketAddress replacement = startServer();
+        mScheduler.start();
+        mScheduler.setServers(Collections.singletonList(old));
+        // The first probe of the old list takes about two seconds; this cuts it short.
+        Thread.sleep(100);
+        mScheduler.setServers(Collections.singletonList(replacement));
+
+        final Map<InetSocketAddress, ServerProber.Result> report = nextReport();
+        assertFalse(report.containsKey(old));
+        assertEquals(ServerProber.ROUNDS, report.get(replacement).received);
+    }
+
+    @Test
+    public void reportsNothingOnceStopped() throws Exception {
+        mScheduler.setServers(Collections.singletonList(startServer()));
+        mScheduler.start();
+        mScheduler.stop();
+        assertNull(mReports.poll(3, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void weighsNewProbesAgainstHistory() {
+        final ServerProber.Result history = new ServerProber.Result();
+        history.srtt = 100;
+        history.sent = 20;
+        history.received = 20;
+        final ServerProber.Result probe = new ServerProber.Result();
+        probe.srtt = 20;
+        probe.sent = ServerProber.ROUNDS;
+
+        final ServerProber.Result smoothed = ProbeScheduler.smooth(history, probe);
+        assertEquals(80, smoothed.srtt);
+        // Old pings count half once there are too many of them.
+        assertEquals(12, smoothed.sent);
+        assertEquals(10, smoothed.received);
+
+        // A probe nothing answered leaves the round trip time as it was.
+        probe.srtt = -1;
+        assertEquals(100, ProbeScheduler.smooth(history, probe).srtt);
+        assertSame(probe, ProbeScheduler.smooth(null, probe));
+    }
+}
@@ -0,0 +1,141 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ReconnectSchedulerTest {
+    private static class FakeClock implements ReconnectScheduler.Clock {
+        long now = 1000000;
+
+        @Override
+        public long now() {
+            return now;
+        }
+    }
+
+    private static class FakeConnectivity implements ReconnectScheduler.Connectivity {
+        volatile boolean connected = true;
+        Listener listener;
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        void change(boolean connected) {
+            this.connected = connected;
+            listener.onConnectivityChanged();
+        }
+    }
+
+    private static long delayAfterFailure(ReconnectScheduler scheduler, FakeClock clock) {
+        scheduler.onFailure();
+        return scheduler.getNextAttemptTime() - clock.now;
+    }
+
+    /** Runs {@link ReconnectScheduler#await()} on another thread. */
+    private static Thread startAwaiting(final ReconnectScheduler scheduler) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.await();
+                } catch (InterruptedException e) {
+                    // Left running by a failed test.
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void backsOffExponentiallyWithJitter() {
+        final FakeClock clock = new FakeClock();
+        final ReconnectScheduler scheduler =
+                new ReconnectScheduler(clock, new FakeConnectivity(), new Random(1));
+        long ceiling = ReconnectScheduler.INITIAL_DELAY_MS;
+        for (int i = 0; i < 20; ++i) {
+            final long delay = delayAfterFailure(scheduler, clock);
+            assertTrue("Delay " + delay + " below " + ceiling / 2, delay >= ceiling / 2);
+            assertTrue("Delay " + delay + " above " + ceiling, delay <= ceiling);
+            ceiling = Math.min(ceiling * 2, ReconnectScheduler.MAX_DELAY_MS);
+        }
+    }
+
+    @Test
+    public void spreadsClientsApart() {
+        final FakeClock clock = new FakeClock();
+        final long[] delays = new long[5];
+        for (int i = 0; i < delays.length; ++i) {
+            final ReconnectScheduler scheduler =
+                    new ReconnectScheduler(clock, new FakeConnectivity(), new Random(i));
+            for (int j = 0; j < 5; ++j) {
+                delays[i] = delayAfterFailure(scheduler, clock);
+            }
+        }
+        for (int i = 1; i < delays.length; ++i) {
+            assertNotEquals(delays[0], delays[i]);
+        }
+    }
+
+    @Test
+    public void returnsAtOnceWhenDue() throws Exception {
+        final FakeClock clock = new FakeClock();
+        final ReconnectScheduler scheduler =
+                new ReconnectScheduler(clock, new FakeConnectivity(), new Random(1));
+        scheduler.await();
+        scheduler.onFailure();
+        clock.now = scheduler.getNextAttemptTime();
+        scheduler.await();
+    }
+
+    @Test
+    public void networkChangeCutsTheWaitShort() throws Exception {
+        final FakeClock clock = new FakeClock();
+        final FakeConnectivity connectivity = new FakeConnectivity();
+        final ReconnectScheduler scheduler =
+                new ReconnectScheduler(clock, connectivity, new Random(1));
+        scheduler.start();
+        for (int i = 0; i < 10; ++i) {
+            scheduler.onFailure();
+        }
+
+        // The clock never moves, so only the change can end the wait.
+        final Thread waiting = startAwaiting(scheduler);
+        waiting.join(100);
+        assertTrue(waiting.isAlive());
+
+        connectivity.change(true);
+        waiting.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(waiting.isAlive());
+        assertEquals(ReconnectScheduler.INITIAL_DELAY_MS,
+                delayAfterFailure(scheduler, clock), ReconnectScheduler.INITIAL_DELAY_MS / 2);
+    }
+
+    @Test
+    public void waitsForNetwork() throws Exception {
+        final FakeConnectivity connectivity = new FakeConnectivity();
+        connectivity.connected = false;
+        final ReconnectScheduler scheduler =
+                new ReconnectScheduler(new FakeClock(), connectivity, new Random(1));
+        scheduler.start();
+
+        final Thread waiting = startAwaiting(scheduler);
+        waiting.join(100);
+        assertTrue(waiting.isAlive());
+
+        connectivity.change(true);
+        waiting.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(waiting.isAlive());
+    }
+}
@@ -0,0 +1,132 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReorderBufferTest {
+    private static final long HOLD_MS = 50;
+
+    private final ReorderBuffer mBuffer = new ReorderBuffer(8, 100);
+    private final ByteBuffer mSequenced = ByteBuffer.allocate(100 + ReorderBuffer.HEADER_SIZE);
+
+    /** Keeps the first byte of every datagram passed on, which is its number in these tests. */
+    private static class RecordingChannel implements WritableByteChannel {
+        final List<Integer> received = new ArrayList<>();
+
+        @Override
+        public int write(ByteBuffer datagram) {
+            final int length = datagram.remaining();
+            received.add(datagram.get(datagram.position()) & 0xFF);
+            datagram.position(datagram.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final RecordingChannel mOut = new RecordingChannel();
+
+    {
+        mBuffer.setHoldTime(HOLD_MS);
+    }
+
+    private void receive(int sequence, long now) throws Exception {
+        ReorderBuffer.sequence(sequence, ByteBuffer.wrap(new byte[] {(byte) sequence, 1, 2}),
+                mSequenced);
+        assertTrue(ReorderBuffer.isSequenced(mSequenced));
+        mBuffer.receive(mSequenced, mOut, now);
+        assertFalse(mSequenced.hasRemaining());
+    }
+
+    @Test
+    public void leavesTheDatagramAsItWas() {
+        final ByteBuffer datagram = ByteBuffer.wrap(new byte[] {0x45, 1, 2});
+        ReorderBuffer.sequence(7, datagram, mSequenced);
+        assertEquals(0, datagram.position());
+        assertEquals(3 + ReorderBuffer.HEADER_SIZE, mSequenced.remaining());
+        assertEquals(7, mSequenced.getInt(2));
+        assertFalse(ReorderBuffer.isSequenced(datagram));
+    }
+
+    @Test
+    public void passesOnDatagramsInOrderAtOnce() throws Exception {
+        for (int i = 10; i < 20; ++i) {
+            receive(i, 0);
+        }
+        assertEquals(10, mOut.received.size());
+        assertEquals(Long.MAX_VALUE, mBuffer.getFlushTime());
+    }
+
+    @Test
+    public void putsDatagramsBackInOrder() throws Exception {
+        receive(0, 0);
+        receive(2, 1);
+        receive(3, 2);
+        assertEquals("[0]", mOut.received.toString());
+        assertEquals(1 + HOLD_MS, mBuffer.getFlushTime());
+        receive(1, 3);
+        assertEquals("[0, 1, 2, 3]", mOut.received.toString());
+        assertEquals(0, mBuffer.getSkipped());
+    }
+
+    @Test
+    public void dropsCopiesAndLateDatagrams() throws Exception {
+        receive(0, 0);
+        receive(2, 0);
+        receive(2, 0);
+        receive(1, 0);
+        receive(1, 0);
+        receive(0, 0);
+        assertEquals("[0, 1, 2]", mOut.received.toString());
+        assertEquals(3, mBuffer.getDuplicates());
+    }
+
+    @Test
+    public void skipsWhatWasLostOnceTheHoldTimeIsUp() throws Exception {
+        receive(0, 0);
+        receive(2, 10);
+        receive(4, 20);
+        mBuffer.flushIfDue(mOut, 10 + HOLD_MS - 1);
+        assertEquals("[0]", mOut.received.toString());
+        mBuffer.flushIfDue(mOut, 10 + HOLD_MS);
+        assertEquals("[0, 2]", mOut.received.toString());
+        // The next gap waits for what is left of its own hold time.
+        assertEquals(20 + HOLD_MS, mBuffer.getFlushTime());
+        receive(3, 30);
+        assertEquals("[0, 2, 3, 4]", mOut.received.toString());
+        assertEquals(1, mBuffer.getSkipped());
+    }
+
+    @Test
+    public void givesUpOnGapsTooWideToWaitFor() throws Exception {
+        receive(0, 0);
+        receive(2, 0);
+        receive(20, 0);
+        assertEquals("[0, 2, 20]", mOut.received.toString());
+        assertEquals(18, mBuffer.getSkipped());
+        receive(21, 0);
+        assertEquals("[0, 2, 20, 21]", mOut.received.toString());
+    }
+
+    @Test
+    public void followsTheSequenceAcrossTheWrap() throws Exception {
+        receive(Integer.MAX_VALUE, 0);
+        receive(Integer.MIN_VALUE + 1, 0);
+        receive(Integer.MIN_VALUE, 0);
+        assertEquals(3, mOut.received.size());
+        assertEquals(0, mBuffer.getSkipped());
+    }
+}
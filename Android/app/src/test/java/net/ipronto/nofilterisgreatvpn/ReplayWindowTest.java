@@ -0,0 +1,68 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReplayWindowTest {
+    private final ReplayWindow mWindow = new ReplayWindow();
+
+    private boolean receive(long counter) {
+        if (!mWindow.check(counter)) {
+            return false;
+        }
+        mWindow.accept(counter);
+        return true;
+    }
+
+    @Test
+    public void takesEachCounterOnce() {
+        assertFalse(receive(0));
+        for (long i = 1; i < 3000; ++i) {
+            assertTrue(receive(i));
+            assertFalse(receive(i));
+        }
+    }
+
+    @Test
+    public void takesPacketsOutOfOrder() {
+        assertTrue(receive(100));
+        assertTrue(receive(98));
+        assertTrue(receive(99));
+        assertTrue(receive(101));
+        assertFalse(receive(98));
+        assertTrue(receive(50));
+        assertFalse(receive(100));
+    }
+
+    @Test
+    public void dropsWhatIsTooOld() {
+        assertTrue(receive(5000));
+        assertTrue(receive(5000 - ReplayWindow.SIZE + 64));
+        assertFalse(receive(5000 - ReplayWindow.SIZE));
+        assertFalse(receive(1));
+    }
+
+    @Test
+    public void forgetsWhatTheWindowSlidesOver() {
+        for (long i = 1; i <= 64; ++i) {
+            assertTrue(receive(i));
+        }
+        // The same words are used again after a jump, and must not remember the old counters.
+        assertTrue(receive(ReplayWindow.SIZE + 1));
+        for (long i = ReplayWindow.SIZE + 2; i < ReplayWindow.SIZE + 64; ++i) {
+            assertTrue(receive(i));
+        }
+        assertTrue(receive(1000000));
+        assertTrue(receive(1000000 - 1));
+        assertTrue(receive(1000000 - 64));
+    }
+
+    @Test
+    public void checkingAloneMovesNothing() {
+        assertTrue(receive(10));
+        assertTrue(mWindow.check(100000));
+        assertTrue(receive(11));
+        assertTrue(receive(9));
+    }
+}
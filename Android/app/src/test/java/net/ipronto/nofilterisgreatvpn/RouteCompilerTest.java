@@ -0,0 +1,154 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RouteCompilerTest {
+    private final RouteCompiler mCompiler = new RouteCompiler();
+
+    private List<String> compile() {
+        final List<String> routes = new ArrayList<>();
+        for (RouteCompiler.Route route : mCompiler.compile()) {
+            routes.add(route.toString());
+        }
+        return routes;
+    }
+
+    @Test
+    public void routesEverythingButTheLan() {
+        mCompiler.include("0.0.0.0", 0);
+        mCompiler.exclude("192.168.0.0", 16);
+        mCompiler.exclude("10.0.0.0", 8);
+        final List<String> routes = compile();
+        assertEquals("0.0.0.0/5", routes.get(0));
+        assertEquals("8.0.0.0/7", routes.get(1));
+        assertEquals("11.0.0.0/8", routes.get(2));
+        assertEquals("192.169.0.0/16", routes.get(routes.size() - 11));
+        assertEquals("224.0.0.0/3", routes.get(routes.size() - 1));
+        // One prefix per level down to each hole, below the first where they part.
+        assertEquals((8 - 1) + (16 - 1), routes.size());
+
+        assertFalse(mCompiler.isRouted("192.168.1.1"));
+        assertFalse(mCompiler.isRouted("10.255.255.255"));
+        assertTrue(mCompiler.isRouted("11.0.0.0"));
+        assertTrue(mCompiler.isRouted("8.8.8.8"));
+    }
+
+    @Test
+    public void mergesWhatAddsUp() {
+        mCompiler.include("10.0.0.0", 9);
+        mCompiler.include("10.128.0.0", 10);
+        mCompiler.include("10.192.0.0", 10);
+        mCompiler.include("10.1.2.0", 24);
+        assertEquals("[10.0.0.0/8]", compile().toString());
+    }
+
+    @Test
+    public void excludesWinWhateverTheOrder() {
+        mCompiler.exclude("10.0.0.0", 8);
+        mCompiler.include("10.1.0.0", 16);
+        mCompiler.include("10.0.0.0", 7);
+        assertEquals("[11.0.0.0/8]", compile().toString());
+    }
+
+    @Test
+    public void ignoresHostBitsAndKeepsFamiliesApart() {
+        mCompiler.include("10.1.2.3", 8);
+        mCompiler.include("::", 0);
+        mCompiler.exclude("fe80::", 10);
+        mCompiler.exclude("10.0.0.0", 32);
+        final List<RouteCompiler.Route> routes = mCompiler.compile();
+        assertEquals(32 - 8 + 10, routes.size());
+        assertTrue(mCompiler.isRouted("2001:db8::1"));
+        assertFalse(mCompiler.isRouted("fe80::1"));
+        assertTrue(mCompiler.isRouted("fec0::1"));
+        assertTrue(mCompiler.isRouted("10.0.0.1"));
+        assertFalse(mCompiler.isRouted("10.0.0.0"));
+    }
+
+    @Test
+    public void agreesWithCheckingEveryRangeByHand() {
+        final Random random = new Random(1);
+        for (int round = 0; round < 20; ++round) {
+            final RouteCompiler compiler = new RouteCompiler();
+            final int count = 1 + random.nextInt(40);
+            final int[] addresses = new int[count];
+            final int[] lengths = new int[count];
+            final boolean[] included = new boolean[count];
+            for (int i = 0; i < count; ++i) {
+                // Ranges within 10.0.0.0/20, so they overlap a lot.
+                lengths[i] = 20 + random.nextInt(13);
+                addresses[i] = 0x0A000000 | random.nextInt(1 << 12) & mask(lengths[i]);
+                included[i] = random.nextInt(3) != 0;
+                if (included[i]) {
+                    compiler.include(format(addresses[i]), lengths[i]);
+                } else {
+                    compiler.exclude(format(addresses[i]), lengths[i]);
+                }
+            }
+
+            final List<RouteCompiler.Route> routes = compiler.compile();
+            for (int address = 0x0A000000; address < 0x0A001000; ++address) {
+                boolean in = false;
+                boolean out = false;
+                for (int i = 0; i < count; ++i) {
+                    if ((address & mask(lengths[i])) == addresses[i]) {
+                        in |= included[i];
+                        out |= !included[i];
+                    }
+                }
+                int covering = 0;
+                for (RouteCompiler.Route route : routes) {
+                    if ((address & mask(route.prefixLength)) == parse(route.address)) {
+                        ++covering;
+                    }
+                }
+                assertEquals(in && !out, compiler.isRouted(format(address)));
+                assertEquals(in && !out ? 1 : 0, covering);
+            }
+
+            // Nothing left to merge.
+            for (RouteCompiler.Route a : routes) {
+                for (RouteCompiler.Route b : routes) {
+                    assertFalse(a.prefixLength == b.prefixLength && a.prefixLength > 0
+                            && parse(a.address) == (parse(b.address)
+                            ^ 1 << (32 - a.prefixLength)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectsWhatIsNotARange() {
+        final String[][] ranges = {{"dns.google", "32"}, {"10.0.0", "8"}, {"10.0.0.256", "8"},
+                {"10..0.1", "8"}, {"10.0.0.0", "33"}, {"::", "129"}, {"::g", "8"}};
+        for (String[] range : ranges) {
+            try {
+                mCompiler.include(range[0], Integer.parseInt(range[1]));
+                fail(range[0] + "/" + range[1]);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    private static int mask(int prefixLength) {
+        return prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+    }
+
+    private static String format(int address) {
+        return (address >>> 24) + "." + (address >>> 16 & 0xFF) + "." + (address >>> 8 & 0xFF)
+                + "." + (address & 0xFF);
+    }
+
+    private static int parse(String address) {
+        final String[] parts = address.split("\\.");
+        return Integer.parseInt(parts[0]) << 24 | Integer.parseInt(parts[1]) << 16
+                | Integer.parseInt(parts[2]) << 8 | Integer.parseInt(parts[3]);
+    }
+}
@@ -0,0 +1,110 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ServerDirectoryTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("servers", null);
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static List<ServerData> servers(String... names) {
+        final List<ServerData> servers = new ArrayList<>();
+        for (String name : names) {
+            final ServerData server = new ServerData();
+            server.name = name;
+            server.address = name.toLowerCase() + ".example.com";
+            server.port = 8000;
+            server.secret = "test";
+            servers.add(server);
+        }
+        return servers;
+    }
+
+    @Test
+    public void servesListKeptOnDisk() {
+        final long now = System.currentTimeMillis();
+        new ServerDirectory(mFile, "http://unused").store(servers("Frankfurt", "Tokyo"),
+                "\"v1\"", null, now);
+
+        final ServerDirectory directory = new ServerDirectory(mFile, "http://unused");
+        assertTrue(directory.getServers().isEmpty());
+        assertTrue(directory.load());
+        assertEquals(2, directory.getServers().size());
+        assertEquals("Tokyo", directory.getServers().get(1).name);
+        assertEquals("tokyo.example.com", directory.getServers().get(1).address);
+        assertFalse(directory.isStale(now));
+        assertTrue(directory.isStale(now + ServerDirectory.MAX_AGE_MS));
+    }
+
+    @Test
+    public void ignoresFilesOfOtherFormats() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile))) {
+            out.writeInt(-1);
+        }
+        final ServerDirectory directory = new ServerDirectory(mFile, "http://unused");
+        assertFalse(directory.load());
+        assertTrue(directory.getServers().isEmpty());
+    }
+
+    @Test
+    public void revalidatesWithConditionalRequest() throws IOException {
+        final AtomicReference<String> eTag = new AtomicReference<>();
+        final HttpServer server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/config.json", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                eTag.set(exchange.getRequestHeaders().getFirst("If-None-Match"));
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            final String url = "http://127.0.0.1:" + server.getAddress().getPort()
+                    + "/config.json";
+            final ServerDirectory directory = new ServerDirectory(mFile, url);
+            directory.store(servers("Frankfurt"), "\"v1\"", null, 0);
+            assertTrue(directory.isStale(System.currentTimeMillis()));
+
+            assertFalse(directory.revalidate());
+            assertEquals("\"v1\"", eTag.get());
+            assertEquals("Frankfurt", directory.getServers().get(0).name);
+            assertFalse(directory.isStale(System.currentTimeMillis()));
+
+            // The new fetch time made it to disk too.
+            final ServerDirectory reloaded = new ServerDirectory(mFile, url);
+            assertTrue(reloaded.load());
+            assertFalse(reloaded.isStale(System.currentTimeMillis()));
+        } finally {
+            server.stop(0);
+        }
+    }
+}
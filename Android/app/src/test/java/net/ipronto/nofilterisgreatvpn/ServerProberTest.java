@@ -0,0 +1,95 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ServerProberTest {
+    /** A server that answers pings after a delay, or never if the delay is negative. */
+    private static DatagramChannel startServer(final long delayMs) throws Exception {
+        final DatagramChannel server = DatagramChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final ByteBuffer packet = ByteBuffer.allocate(64);
+                try {
+                    while (true) {
+                        packet.clear();
+                        final SocketAddress client = server.receive(packet);
+                        packet.flip();
+                        if (delayMs < 0) {
+                            continue;
+                        }
+                        Thread.sleep(delayMs);
+                        packet.put(1, KeepaliveScheduler.CONTROL_PONG);
+                        server.send(packet, client);
+                    }
+                } catch (Exception e) {
+                    // Closed at the end of the test.
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    @Test
+    public void ranksByRoundTripTime() throws Exception {
+        final DatagramChannel silent = startServer(-1);
+        final DatagramChannel slow = startServer(100);
+        final DatagramChannel fast = startServer(0);
+        try {
+            final List<InetSocketAddress> servers = new ArrayList<>();
+            servers.add((InetSocketAddress) silent.getLocalAddress());
+            servers.add((InetSocketAddress) slow.getLocalAddress());
+            servers.add((InetSocketAddress) fast.getLocalAddress());
+
+            final ServerProber.Result[] results = new ServerProber(servers).run();
+            assertEquals(0, results[0].received);
+            assertEquals(1, results[0].getLoss(), 0);
+            assertEquals(ServerProber.ROUNDS, results[2].received);
+            assertTrue(results[1].srtt > results[2].srtt);
+            assertArrayEquals(new int[] {2, 1, 0}, ServerProber.rank(results));
+        } finally {
+            silent.close();
+            slow.close();
+            fast.close();
+        }
+    }
+
+    @Test
+    public void keepsOrderOfEqualServers() {
+        final ServerProber.Result[] results = new ServerProber.Result[3];
+        for (int i = 0; i < results.length; ++i) {
+            results[i] = new ServerProber.Result();
+            results[i].sent = ServerProber.ROUNDS;
+        }
+        results[2].srtt = 40;
+        results[2].received = ServerProber.ROUNDS;
+        assertArrayEquals(new int[] {2, 0, 1}, ServerProber.rank(results));
+    }
+
+    @Test
+    public void weighsLossAgainstLatency() {
+        final ServerProber.Result lossy = new ServerProber.Result();
+        lossy.srtt = 30;
+        lossy.sent = 5;
+        lossy.received = 2;
+        final ServerProber.Result steady = new ServerProber.Result();
+        steady.srtt = 120;
+        steady.sent = 5;
+        steady.received = 5;
+        assertArrayEquals(new int[] {1, 0},
+                ServerProber.rank(new ServerProber.Result[] {lossy, steady}));
+    }
+}
@@ -0,0 +1,43 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.*;
+
+public class SessionCacheTest {
+    @Test
+    public void reusesResolvedAddress() {
+        final SessionCache cache = new SessionCache();
+        final InetSocketAddress address = cache.resolve("localhost", 8000);
+        assertFalse(address.isUnresolved());
+        assertSame(address, cache.resolve("localhost", 8000));
+        assertNotSame(address, cache.resolve("localhost", 8001));
+    }
+
+    @Test
+    public void resolvesAgainOnceInvalidated() {
+        final SessionCache cache = new SessionCache();
+        final InetSocketAddress address = cache.resolve("localhost", 8000);
+        cache.invalidateAddress("localhost", 8000);
+        final InetSocketAddress again = cache.resolve("localhost", 8000);
+        assertNotSame(address, again);
+        assertEquals(address, again);
+    }
+
+    @Test
+    public void keepsSessionsPerServer() {
+        final SessionCache cache = new SessionCache();
+        assertNull(cache.getSession("example.com", 8000));
+
+        final SessionCache.Session session =
+                new SessionCache.Session("m,1400 a,10.0.0.2,32", "abc", 1372, 1472);
+        cache.putSession("example.com", 8000, session);
+        assertSame(session, cache.getSession("example.com", 8000));
+        assertNull(cache.getSession("example.com", 8001));
+
+        cache.putSession("example.com", 8000, null);
+        assertNull(cache.getSession("example.com", 8000));
+    }
+}
@@ -0,0 +1,104 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionParametersTest {
+    /** Records every call as one line. */
+    private static class RecordingConfigurator implements SessionParameters.Configurator {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void addAddress(String address, int prefixLength) {
+            calls.add("address " + address + "/" + prefixLength);
+        }
+
+        @Override
+        public void addRoute(String address, int prefixLength) {
+            calls.add("route " + address + "/" + prefixLength);
+        }
+
+        @Override
+        public void addDnsServer(String address) {
+            calls.add("dns " + address);
+        }
+
+        @Override
+        public void addSearchDomain(String domain) {
+            calls.add("search " + domain);
+        }
+    }
+
+    @Test
+    public void parsesEveryField() {
+        final SessionParameters parameters = SessionParameters.parse(
+                "m,1400 a,10.0.0.2,32 d,8.8.8.8 r,0.0.0.0,0 s,example.com b,5 p,8001 p,8002 t,abc"
+                        + " f,8");
+        assertEquals(1400, parameters.getMtu());
+        assertEquals(8, parameters.getParityGroupSize());
+        assertEquals(5, parameters.getBatchDeadlineMs());
+        assertEquals(Arrays.asList(8001, 8002), parameters.getStripePorts());
+        assertEquals("abc", parameters.getTicket());
+
+        final RecordingConfigurator configurator = new RecordingConfigurator();
+        parameters.configure(configurator);
+        assertEquals(Arrays.asList("address 10.0.0.2/32", "dns 8.8.8.8", "route 0.0.0.0/0",
+                "search example.com"), configurator.calls);
+    }
+
+    @Test
+    public void routesWhatIsIncludedAndNotExcluded() {
+        final RecordingConfigurator configurator = new RecordingConfigurator();
+        SessionParameters.parse("a,10.0.0.2,32 x,128.0.0.0,1 r,0.0.0.0,0 d,8.8.8.8 x,64.0.0.0,2")
+                .configure(configurator);
+        assertEquals(Arrays.asList("address 10.0.0.2/32", "route 0.0.0.0/2", "dns 8.8.8.8"),
+                configurator.calls);
+    }
+
+    @Test
+    public void lastingLeavesOutPortsAndTicket() {
+        final SessionParameters parameters =
+                SessionParameters.parse("m,1400 p,8001 a,10.0.0.2,32 t,abc");
+        assertEquals("m,1400 a,10.0.0.2,32", parameters.getLasting());
+        assertNull(SessionParameters.parse("m,1400").getTicket());
+        assertEquals(-1, SessionParameters.parse("m,1400").getBatchDeadlineMs());
+        assertEquals(0, SessionParameters.parse("m,1400").getParityGroupSize());
+    }
+
+    @Test
+    public void rejectsMalformedFields() {
+        for (String text : new String[] {"m,big", "a,10.0.0.2", "r,0.0.0.0,x", "d", "p,"}) {
+            try {
+                SessionParameters.parse(text);
+                fail(text);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void takesWhatWasAgreedOverWhatWasOffered() {
+        final SessionParameters parameters =
+                SessionParameters.parse("m,1400 b,5 z,1 h,1 f,8 p,9001 t,ticket");
+        parameters.setAgreed(new Capabilities()
+                .set(Capabilities.FIELD_FEATURES, Capabilities.FEATURE_COMPRESSION
+                        | Capabilities.FEATURE_PARITY | Capabilities.FEATURE_KEEPALIVE)
+                .set(Capabilities.FIELD_MTU, 1300)
+                .set(Capabilities.FIELD_PARITY_GROUP, 4)
+                .set(Capabilities.FIELD_IDLE_TIMEOUT_S, 60));
+        assertEquals(1300, parameters.getMtu());
+        assertEquals(-1, parameters.getBatchDeadlineMs());
+        assertEquals(PacketCompressor.CODEC_LZ4, parameters.getCompression());
+        assertEquals(0, parameters.getHeaderCompression());
+        assertEquals(4, parameters.getParityGroupSize());
+        assertEquals(60000, parameters.getIdleTimeoutMs());
+        assertTrue(parameters.getStripePorts().isEmpty());
+        assertEquals("ticket", parameters.getTicket());
+    }
+}
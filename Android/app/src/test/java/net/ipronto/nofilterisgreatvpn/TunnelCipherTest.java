@@ -0,0 +1,84 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TunnelCipherTest {
+    private static final byte[] MASTER_KEY = TunnelCipher.deriveMasterKey("secret".getBytes());
+    private static final byte[] CLIENT_RANDOM = new byte[TunnelCipher.RANDOM_SIZE];
+    private static final byte[] SERVER_RANDOM = new byte[TunnelCipher.RANDOM_SIZE];
+
+    static {
+        Arrays.fill(CLIENT_RANDOM, (byte) 1);
+        Arrays.fill(SERVER_RANDOM, (byte) 2);
+    }
+
+    private final TunnelCipher mClient =
+            TunnelCipher.forClient(MASTER_KEY, CLIENT_RANDOM, SERVER_RANDOM);
+    private final TunnelCipher mServer = new TunnelCipher(
+            TunnelCipher.deriveKey(MASTER_KEY, CLIENT_RANDOM, SERVER_RANDOM, 's'),
+            TunnelCipher.deriveKey(MASTER_KEY, CLIENT_RANDOM, SERVER_RANDOM, 'c'));
+    private final ByteBuffer mSealed = ByteBuffer.allocateDirect(1500 + TunnelCipher.OVERHEAD);
+
+    private static ByteBuffer packet(int length) {
+        final ByteBuffer packet = ByteBuffer.allocateDirect(length);
+        for (int i = 0; i < length; ++i) {
+            packet.put(i, (byte) (0x45 + i));
+        }
+        return packet;
+    }
+
+    @Test
+    public void sealsAndOpensInPlace() {
+        final ByteBuffer packet = packet(1400);
+        mClient.newSealer().seal(packet, mSealed);
+        assertEquals(0, packet.remaining());
+        assertEquals(1400 + TunnelCipher.OVERHEAD, mSealed.remaining());
+        assertTrue(TunnelCipher.isSealed(mSealed));
+
+        assertTrue(mServer.newOpener().open(mSealed));
+        assertEquals(TunnelCipher.HEADER_SIZE, mSealed.position());
+        packet.flip();
+        assertEquals(packet, mSealed);
+    }
+
+    @Test
+    public void keepsDirectionsApart() {
+        // What the client sends cannot be opened as if the server had sent it.
+        mClient.newSealer().seal(packet(100), mSealed);
+        assertFalse(mClient.newOpener().open(mSealed));
+        assertTrue(mServer.newOpener().open(mSealed));
+    }
+
+    @Test
+    public void dropsReplaysAndForgeries() {
+        final TunnelCipher.Opener opener = mServer.newOpener();
+        mClient.newSealer().seal(packet(100), mSealed);
+        final ByteBuffer copy = ByteBuffer.allocate(mSealed.remaining());
+        copy.put(mSealed.duplicate()).flip();
+
+        // A flipped bit, including one in the counter, leaves it as it was.
+        mSealed.put(50, (byte) (mSealed.get(50) ^ 1));
+        assertFalse(opener.open(mSealed));
+        assertEquals(0, mSealed.position());
+        mSealed.put(50, (byte) (mSealed.get(50) ^ 1)).put(9, (byte) 2);
+        assertFalse(opener.open(mSealed));
+        mSealed.put(9, (byte) 1);
+
+        assertTrue(opener.open(mSealed));
+        assertFalse(opener.open(copy));
+    }
+
+    @Test
+    public void leavesPlaintextAlone() {
+        assertFalse(TunnelCipher.isSealed(packet(100)));
+        assertFalse(mServer.newOpener().open(packet(100)));
+        final ByteBuffer control = ByteBuffer.allocate(TunnelCipher.OVERHEAD - 1);
+        control.put(1, TunnelCipher.CONTROL_SEALED);
+        assertFalse(TunnelCipher.isSealed(control));
+    }
+}
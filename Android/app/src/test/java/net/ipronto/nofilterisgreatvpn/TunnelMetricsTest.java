@@ -0,0 +1,55 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+
+import static org.junit.Assert.*;
+
+public class TunnelMetricsTest {
+    @Test
+    public void countsForwardedPackets() throws Exception {
+        try (DatagramChannel server = DatagramChannel.open();
+             DatagramChannel tunnel = DatagramChannel.open()) {
+            server.bind(null);
+            tunnel.connect(server.getLocalAddress());
+            server.connect(tunnel.getLocalAddress());
+
+            final Pipe out = Pipe.open();
+            out.source().configureBlocking(false);
+            final TunnelMetrics metrics = new TunnelMetrics();
+            final PacketForwarder forwarder =
+                    new PacketForwarder(null, out.sink(), tunnel, 0, "test");
+            forwarder.setMetrics(metrics);
+
+            forwarder.send(ByteBuffer.wrap(new byte[] {0x45, 1, 2, 3, 4}));
+            server.write(ByteBuffer.wrap(new byte[] {0x45, 1, 2}));
+            while (!forwarder.forwardIncomingPacket()) {
+                Thread.sleep(10);
+            }
+
+            final TunnelMetrics.Snapshot snapshot = metrics.snapshot();
+            assertEquals(1, snapshot.packetsSent);
+            assertEquals(5, snapshot.bytesSent);
+            assertEquals(1, snapshot.packetsReceived);
+            assertEquals(3, snapshot.bytesReceived);
+            assertEquals(2, snapshot.forwardingLatencyUs.getCount());
+        }
+    }
+
+    @Test
+    public void ratesComeFromTwoSnapshots() throws Exception {
+        final TunnelMetrics metrics = new TunnelMetrics();
+        final TunnelMetrics.Snapshot before = metrics.snapshot();
+        Thread.sleep(20);
+        metrics.onPacketReceived(1000);
+        final TunnelMetrics.Snapshot after = metrics.snapshot();
+
+        final long elapsed = after.time - before.time;
+        assertEquals(1000 * 1000 / elapsed, after.getReceiveRate(before));
+        assertEquals(0, after.getSendRate(before));
+        assertEquals(0, after.getReceiveRate(after));
+    }
+}
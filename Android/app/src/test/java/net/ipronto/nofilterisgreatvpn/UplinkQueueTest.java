@@ -0,0 +1,209 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UplinkQueueTest {
+    private static final long MS = 1000000;
+
+    private final UplinkQueue mQueue = new UplinkQueue(UplinkQueue.DEFAULT_CAPACITY, 1500);
+
+    /** Takes what the queue sends, as long as it has room, and keeps the ports and sizes. */
+    private static class RecordingSender implements UplinkQueue.Sender {
+        final List<Integer> ports = new ArrayList<>();
+        final List<Integer> sizes = new ArrayList<>();
+        int room = Integer.MAX_VALUE;
+        /** Writes that find the socket full although it had room before. */
+        int refusals;
+
+        @Override
+        public boolean hasRoom() {
+            return room > 0;
+        }
+
+        @Override
+        public boolean send(ByteBuffer packet) {
+            if (refusals > 0) {
+                --refusals;
+                return false;
+            }
+            ports.add(packet.getShort(packet.position() + 20) & 0xFFFF);
+            sizes.add(packet.remaining());
+            packet.position(packet.limit());
+            --room;
+            return true;
+        }
+    }
+
+    /** An IPv4 UDP packet of the given size from a port, which tells the flows apart. */
+    private static ByteBuffer packet(int port, int size) {
+        final ByteBuffer packet = ByteBuffer.allocate(size);
+        packet.putInt(0, 0x45000000 | size).putInt(8, 0x40110000)
+                .putInt(12, 0x0A000002).putInt(16, 0x08080808)
+                .putShort(20, (short) port).putShort(22, (short) 53);
+        return packet;
+    }
+
+    /** @return a port whose flow does not share a bucket with that of {@code other}. */
+    private static int portApartFrom(int other) {
+        final int bucket = FlowHash.bucket(packet(other, 100), UplinkQueue.FLOW_BUCKETS);
+        int port = other + 1;
+        while (FlowHash.bucket(packet(port, 100), UplinkQueue.FLOW_BUCKETS) == bucket) {
+            ++port;
+        }
+        return port;
+    }
+
+    @Test
+    public void servesSmallPacketsOfSparseFlowsFirst() throws Exception {
+        final int upload = 40000;
+        final int lookup = portApartFrom(upload);
+        for (int i = 0; i < 10; ++i) {
+            mQueue.offer(packet(upload, 1400), 0);
+        }
+        mQueue.offer(packet(lookup, 80), 0);
+        assertEquals(11, mQueue.size());
+
+        final RecordingSender sender = new RecordingSender();
+        assertEquals(11, mQueue.drain(sender, 0));
+        assertEquals(lookup, (int) sender.ports.get(0));
+        assertEquals(upload, (int) sender.ports.get(1));
+        assertEquals(0, mQueue.size());
+    }
+
+    @Test
+    public void keepsTheOrderOfEachFlow() throws Exception {
+        // A small packet after a large one of the same flow waits its turn.
+        mQueue.offer(packet(40000, 1400), 0);
+        mQueue.offer(packet(40000, 100), 0);
+
+        // A flow of small packets that keeps coming counts as bulk after four.
+        final int chatty = portApartFrom(40000);
+        for (int i = 0; i < 6; ++i) {
+            mQueue.offer(packet(chatty, 100 + i), 0);
+        }
+
+        final RecordingSender sender = new RecordingSender();
+        mQueue.drain(sender, 0);
+        assertEquals(Arrays.asList(100, 101, 102, 103, 1400, 100, 104, 105), sender.sizes);
+    }
+
+    @Test
+    public void stopsWhenTheSocketIsFull() throws Exception {
+        for (int i = 0; i < 5; ++i) {
+            mQueue.offer(packet(40000, 1400), 0);
+        }
+        final RecordingSender sender = new RecordingSender();
+        sender.room = 2;
+        assertEquals(2, mQueue.drain(sender, 0));
+        assertEquals(3, mQueue.size());
+    }
+
+    @Test
+    public void keepsThePacketTheSocketTurnedOutToBeFullFor() throws Exception {
+        final int upload = 40000;
+        final int lookup = portApartFrom(upload);
+        mQueue.offer(packet(upload, 1400), 0);
+        mQueue.offer(packet(lookup, 80), 0);
+
+        final RecordingSender sender = new RecordingSender();
+        sender.refusals = 1;
+        assertEquals(0, mQueue.drain(sender, 0));
+        assertEquals(2, mQueue.size());
+        assertEquals(0, mQueue.getDropped());
+
+        // Still interactive, so still first.
+        assertEquals(2, mQueue.drain(sender, 0));
+        assertEquals(Arrays.asList(lookup, upload), sender.ports);
+        assertEquals(Arrays.asList(80, 1400), sender.sizes);
+    }
+
+    @Test
+    public void takesNothingWhileTheSocketIsFull() throws Exception {
+        mQueue.offer(packet(40000, 100), 0);
+        final RecordingSender sender = new RecordingSender();
+        sender.room = 0;
+        assertEquals(0, mQueue.drain(sender, 0));
+        assertEquals(1, mQueue.size());
+        assertTrue(sender.ports.isEmpty());
+    }
+
+    /**
+     * Sends a full-size packet every {@code arrivalMs} for a while, over a link that takes one
+     * every {@code departureMs}, with room enough that only CoDel drops.
+     *
+     * @return the number of packets dropped by the end of each millisecond.
+     */
+    private static long[] overload(int arrivalMs, int departureMs, int durationMs)
+            throws Exception {
+        final UplinkQueue queue = new UplinkQueue(1024, 1500);
+        final RecordingSender sender = new RecordingSender();
+        final long[] dropped = new long[durationMs];
+        for (int ms = 0; ms < durationMs; ++ms) {
+            if (ms % arrivalMs == 0) {
+                queue.offer(packet(40000, 1400), ms * MS);
+            }
+            if (ms % departureMs == 0) {
+                sender.room = 1;
+                queue.drain(sender, ms * MS);
+            }
+            dropped[ms] = queue.getDropped();
+        }
+        return dropped;
+    }
+
+    @Test
+    public void dropsOnlyOnceTheWaitStaysAboveTarget() throws Exception {
+        // The link keeps up, so nothing waits.
+        assertEquals(0, overload(2, 1, 1000)[999]);
+
+        // Twice as much as the link takes: the wait passes the target after 10 ms, and the first
+        // drop comes an interval later.
+        final long[] dropped = overload(1, 2, 1000);
+        assertEquals(0, dropped[105]);
+        assertEquals(1, dropped[115]);
+
+        // Then CoDel drops more and more often, for as long as the sender does not slow down.
+        assertTrue(dropped[999] - dropped[499] > 2 * (dropped[499] - dropped[0]));
+    }
+
+    @Test
+    public void dropsTheOldestWhenFull() throws Exception {
+        final UplinkQueue queue = new UplinkQueue(4, 1500);
+        for (int i = 0; i < 5; ++i) {
+            queue.offer(packet(40000 + i, 1000), 0);
+        }
+        assertEquals(1, queue.getDropped());
+        final RecordingSender sender = new RecordingSender();
+        queue.drain(sender, 0);
+        assertEquals(40001, (int) sender.ports.get(0));
+    }
+
+    @Test
+    public void countsDepthAndDrops() throws Exception {
+        final TunnelMetrics metrics = new TunnelMetrics();
+        mQueue.setMetrics(metrics);
+        for (int i = 0; i < 3; ++i) {
+            mQueue.offer(packet(40000, 1400), 0);
+        }
+        assertEquals(3, metrics.snapshot().queueDepth);
+
+        final RecordingSender sender = new RecordingSender();
+        sender.room = 1;
+        mQueue.drain(sender, 2 * MS);
+        assertEquals(2, metrics.snapshot().queueDepth);
+        assertEquals(1, metrics.snapshot().queueDelayUs.getCount());
+
+        // What is left when the socket goes is dropped, and so is anything that comes later.
+        mQueue.close();
+        mQueue.offer(packet(40000, 1400), 0);
+        assertEquals(0, metrics.snapshot().queueDepth);
+        assertEquals(3, metrics.snapshot().queueDrops);
+    }
+}
@@ -0,0 +1,30 @@
+package android.util;
+
+/**
+ * Stands in for the Android logger, the only part of the platform the forwarding core uses,
+ * so it runs on a desktop JVM. Warnings and errors go to stderr; the rest would only disturb
+ * the numbers.
+ */
+public final class Log {
+    private Log() {
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        System.err.println(tag + ": " + msg + ": " + tr);
+        return 0;
+    }
+}
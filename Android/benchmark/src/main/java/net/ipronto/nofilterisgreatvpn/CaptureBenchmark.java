@@ -0,0 +1,93 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Captures the packets the forwarder would, to show what capturing adds to each of them: off,
+ * which every packet pays, a filter that turns most packets away, sampling, and everything.
+ * Compare with the per-packet time of {@link ForwardingBenchmark}, and run with {@code -prof gc}
+ * for the allocation rate, which should stay at zero per packet.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CaptureBenchmark {
+    @Param({"off", "filtered", "sampled", "all"})
+    public String mode;
+
+    @Param({"64", "1400"})
+    public int packetSize;
+
+    private PacketCapture mCapture;
+
+    /** A UDP packet to port 443, which the filter below turns away. */
+    private ByteBuffer mPacket;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mCapture = new PacketCapture(PacketCapture.DEFAULT_SLOTS,
+                PacketCapture.DEFAULT_SNAP_LENGTH);
+        mCapture.setEnabled(!mode.equals("off"));
+        if (mode.equals("filtered")) {
+            mCapture.setFilter(PacketCapture.Filter.parse("udp and port 53"));
+        } else if (mode.equals("sampled")) {
+            mCapture.setSampling(100);
+        }
+
+        mPacket = ByteBuffer.allocateDirect(packetSize);
+        mPacket.put(0, (byte) 0x45);
+        mPacket.put(9, (byte) 17);
+        mPacket.putShort(20, (short) 40000);
+        mPacket.putShort(22, (short) 443);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void capture() {
+        mCapture.capture(mPacket, PacketCapture.OUTGOING);
+    }
+
+    /** Both forwarding threads at once, contending for the ring. */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Threads(2)
+    public void captureContended() {
+        mCapture.capture(mPacket, PacketCapture.INCOMING);
+    }
+
+    /** Exports a full ring while nothing is captured, which is what a user waits for. */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int export() throws IOException {
+        return mCapture.writePcap(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+    }
+}
@@ -0,0 +1,84 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Seals and opens single packets with a {@link TunnelCipher}, which is the CPU every packet
+ * pays for in a sealed session.
+ *
+ * The budget is 12 us to seal a 1400-byte packet and as much again to open it, on one core of
+ * the desktop JVM this runs on, with no allocation at all. At that rate 100 Mbit/s of
+ * full-size packets each way costs a fifth of a core. It says nothing about phones, whose
+ * cores are slower and have not been measured. Opening cannot be measured alone, since a datagram opens
+ * only once, so {@code sealAndOpen} less {@code seal} is its cost.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherBenchmark {
+    @Param({"64", "512", "1400"})
+    public int packetSize;
+
+    private TunnelCipher.Sealer mSealer;
+    private TunnelCipher.Opener mOpener;
+    private ByteBuffer mPacket;
+    private ByteBuffer mSealed;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final byte[] key = new byte[PacketCipher.KEY_SIZE];
+        new Random(1).nextBytes(key);
+        // Both ends of the same direction.
+        mSealer = new TunnelCipher(key, key).newSealer();
+        mOpener = new TunnelCipher(key, key).newOpener();
+
+        mPacket = ByteBuffer.allocateDirect(packetSize);
+        final byte[] body = new byte[packetSize];
+        new Random(2).nextBytes(body);
+        mPacket.put(body).flip();
+        mSealed = ByteBuffer.allocateDirect(packetSize + TunnelCipher.OVERHEAD);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public ByteBuffer seal() {
+        mPacket.position(0);
+        mSealer.seal(mPacket, mSealed);
+        return mSealed;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean sealAndOpen() {
+        mPacket.position(0);
+        mSealer.seal(mPacket, mSealed);
+        return mOpener.open(mSealed);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public ByteBuffer sealLatency() {
+        mPacket.position(0);
+        mSealer.seal(mPacket, mSealed);
+        return mSealed;
+    }
+}
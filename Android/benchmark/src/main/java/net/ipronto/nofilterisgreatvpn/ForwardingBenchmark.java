@@ -0,0 +1,139 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forwards one packet at a time through a {@link PacketForwarder} between a pipe standing in
+ * for the interface and a loopback UDP peer standing in for the server, and waits for it to
+ * come out on the other side.
+ *
+ * The throughput benchmarks report packets per second, plus bytes per second as the
+ * {@code bytes} counter; the latency ones report the distribution of the time per packet. Run
+ * with {@code -prof gc} for the allocation rate, which should stay at zero per packet.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForwardingBenchmark {
+    @Param({"64", "512", "1400"})
+    public int packetSize;
+
+    /** Counts bytes alongside the operations, so JMH reports them as a rate. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    private DatagramChannel mPeer;
+    private DatagramChannel mTunnel;
+    private Pipe mInterface;
+    private PacketForwarder mForwarder;
+
+    /** A packet as the interface would hand it out. */
+    private ByteBuffer mPacket;
+    /** Where whatever comes out on the other side is read into. */
+    private ByteBuffer mReceived;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mPeer = DatagramChannel.open();
+        mPeer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mTunnel = DatagramChannel.open();
+        mTunnel.connect(mPeer.getLocalAddress());
+        mPeer.connect(mTunnel.getLocalAddress());
+
+        // Incoming packets are written to the pipe; outgoing ones are handed over directly,
+        // just like the outbound queue does.
+        mInterface = Pipe.open();
+        mForwarder = new PacketForwarder(null, mInterface.sink(), mTunnel,
+                PacketForwarder.DEFAULT_MTU, "bench");
+
+        // An IPv4 header, as far as the forwarder looks.
+        mPacket = ByteBuffer.allocateDirect(packetSize);
+        mPacket.put(0, (byte) 0x45);
+        mReceived = ByteBuffer.allocateDirect(PacketForwarder.DEFAULT_MTU);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mTunnel.close();
+        mPeer.close();
+        mInterface.sink().close();
+        mInterface.source().close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void send(Bytes bytes) throws IOException {
+        bytes.bytes += forwardOutgoing();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void receive(Bytes bytes) throws IOException {
+        bytes.bytes += forwardIncoming();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int sendLatency() throws IOException {
+        return forwardOutgoing();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int receiveLatency() throws IOException {
+        return forwardIncoming();
+    }
+
+    /** Interface to tunnel: hands a packet to the forwarder and waits for it at the peer. */
+    private int forwardOutgoing() throws IOException {
+        mPacket.clear();
+        mForwarder.send(mPacket);
+        mReceived.clear();
+        return mPeer.read(mReceived);
+    }
+
+    /** Tunnel to interface: sends a packet from the peer and waits for it at the pipe. */
+    private int forwardIncoming() throws IOException {
+        mPacket.clear();
+        mPeer.write(mPacket);
+        while (!mForwarder.forwardIncomingPacket()) {
+            Thread.yield();
+        }
+        mReceived.clear();
+        return mInterface.source().read(mReceived);
+    }
+}
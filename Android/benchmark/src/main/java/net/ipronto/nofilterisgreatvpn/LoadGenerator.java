@@ -0,0 +1,526 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs many client sessions against a VpnServer at once and reports how it holds up.
+ *
+ * Each session does what the app does: the same {@link Handshake}, the same parameters, and a
+ * {@link PacketForwarder} with the batching, striping, compression and keepalives the server
+ * asks for. What the interface would hand out is replaced by ICMP echo requests from the
+ * address the server assigned, so the kernel behind the tun device of the server answers them
+ * and every packet makes a round trip. Packet sizes follow a weighted mix.
+ *
+ * The report covers handshake latency, per-session throughput in each direction, echo round
+ * trip times and why sessions failed. Run {@link #main} on a desktop JVM:
+ *
+ *   ./gradlew :benchmark:loadgen -PloadArgs='--sessions 200 --secret testfu'
+ */
+public class LoadGenerator {
+    private static final String USAGE = "Options:\n"
+            + "  --host <host>          server to load, default 127.0.0.1\n"
+            + "  --port <port>          its port, default 8000\n"
+            + "  --secret <secret>      its shared secret, default test\n"
+            + "  --sessions <count>     sessions to run at once, default 100\n"
+            + "  --duration <seconds>   time to keep them going, default 30\n"
+            + "  --ramp <ms>            time between starting two sessions, default 10\n"
+            + "  --rate <packets/s>     packets each session sends, default 100\n"
+            + "  --mix <size:weight,..> packet sizes and how often, default 64:6,576:3,1400:1\n"
+            + "  --target <address>     where the echo requests go, by default the address\n"
+            + "                         just below the assigned one, as install.txt sets up\n"
+            + "  --seal <0|1>           seal the tunnel, default 1; 0 runs the plaintext\n"
+            + "                         handshake, to compare against\n"
+            + "  --bond <0|1|2>         bond the stripes, 2 with redundancy, default 0; all of\n"
+            + "                         them share one network here, so it only adds the work\n";
+
+    /** Smallest echo request that carries a timestamp: IPv4 and ICMP headers, then 8 bytes. */
+    private static final int MIN_PACKET_SIZE = 20 + 8 + 8;
+
+    private static final class Options {
+        String host = "127.0.0.1";
+        int port = 8000;
+        String secret = "test";
+        int sessions = 100;
+        long durationMs = TimeUnit.SECONDS.toMillis(30);
+        long rampMs = 10;
+        int rate = 100;
+        int[] sizes = {64, 576, 1400};
+        int[] weights = {6, 3, 1};
+        String target;
+        boolean seal = true;
+        int bond;
+
+        static Options parse(String[] args) {
+            final Options options = new Options();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                final String value = args[i + 1];
+                switch (args[i]) {
+                    case "--host":
+                        options.host = value;
+                        break;
+                    case "--port":
+                        options.port = Integer.parseInt(value);
+                        break;
+                    case "--secret":
+                        options.secret = value;
+                        break;
+                    case "--sessions":
+                        options.sessions = Integer.parseInt(value);
+                        break;
+                    case "--duration":
+                        options.durationMs = TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+                        break;
+                    case "--ramp":
+                        options.rampMs = Long.parseLong(value);
+                        break;
+                    case "--rate":
+                        options.rate = Integer.parseInt(value);
+                        break;
+                    case "--mix":
+                        options.parseMix(value);
+                        break;
+                    case "--target":
+                        options.target = value;
+                        break;
+                    case "--seal":
+                        options.seal = Integer.parseInt(value) != 0;
+                        break;
+                    case "--bond":
+                        options.bond = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if (args.length % 2 != 0) {
+                throw new IllegalArgumentException("Missing value for " + args[args.length - 1]);
+            }
+            return options;
+        }
+
+        private void parseMix(String mix) {
+            final String[] entries = mix.split(",");
+            sizes = new int[entries.length];
+            weights = new int[entries.length];
+            for (int i = 0; i < entries.length; ++i) {
+                final String[] fields = entries[i].split(":");
+                sizes[i] = Math.max(MIN_PACKET_SIZE, Integer.parseInt(fields[0]));
+                weights[i] = fields.length > 1 ? Integer.parseInt(fields[1]) : 1;
+            }
+        }
+    }
+
+    /** One simulated client, run on a thread of its own. */
+    private static final class Session implements Runnable, WritableByteChannel {
+        final int id;
+        final Options options;
+        final TunnelMetrics metrics = new TunnelMetrics();
+        final LatencyHistogram rtt;
+
+        /** Milliseconds, or -1 if the handshake never finished. */
+        volatile long handshakeMs = -1;
+        volatile PacketForwarder forwarder;
+        volatile long establishedTime;
+        volatile long endTime;
+        volatile String failure;
+
+        /** Echo requests are built here, by the sending thread only. */
+        final ByteBuffer packet = ByteBuffer.allocateDirect(PacketForwarder.DEFAULT_MTU);
+        final byte[] source = new byte[4];
+        final byte[] target = new byte[4];
+        int sequence;
+        long nextSendTime;
+        long echoesSent;
+        /** Written by every worker of the forwarder. */
+        final AtomicLong echoesAnswered = new AtomicLong();
+
+        Session(int id, Options options, LatencyHistogram rtt) {
+            this.id = id;
+            this.options = options;
+            this.rtt = rtt;
+        }
+
+        @Override
+        public void run() {
+            final List<DatagramChannel> tunnels = new ArrayList<>();
+            try {
+                final DatagramChannel tunnel = DatagramChannel.open();
+                tunnels.add(tunnel);
+                final InetSocketAddress server = new InetSocketAddress(options.host, options.port);
+                tunnel.connect(server);
+                tunnel.configureBlocking(false);
+
+                final long start = System.currentTimeMillis();
+                final byte[] secret = options.secret.getBytes();
+                TunnelCipher cipher = null;
+                final SessionParameters parameters;
+                if (options.seal) {
+                    final Capabilities offer = Handshake.newOffer();
+                    if (options.bond > 0) {
+                        offer.set(Capabilities.FIELD_FEATURES,
+                                offer.get(Capabilities.FIELD_FEATURES)
+                                        | Capabilities.FEATURE_BONDING | (options.bond > 1
+                                        ? Capabilities.FEATURE_REDUNDANCY : 0));
+                    }
+                    final Handshake.Result result = Handshake.performSealed(tunnel, secret, null,
+                            offer, Handshake.TIMEOUT_MS);
+                    parameters = SessionParameters.parse(result.parameters);
+                    if (result.agreed != null) {
+                        parameters.setAgreed(result.agreed);
+                    }
+                    cipher = result.cipher;
+                } else {
+                    parameters = SessionParameters.parse(Handshake.perform(tunnel, secret, null,
+                            Handshake.TIMEOUT_MS));
+                }
+                handshakeMs = System.currentTimeMillis() - start;
+                configure(parameters);
+
+                for (int port : parameters.getStripePorts()) {
+                    final DatagramChannel stripe = DatagramChannel.open();
+                    tunnels.add(stripe);
+                    stripe.connect(new InetSocketAddress(server.getAddress(), port));
+                    if (cipher != null) {
+                        Handshake.join(stripe, cipher);
+                    } else {
+                        Handshake.join(stripe, secret);
+                    }
+                }
+
+                final PacketForwarder forwarder = new PacketForwarder(null, this,
+                        tunnels.toArray(new DatagramChannel[tunnels.size()]),
+                        parameters.getMtu(), "session" + id);
+                if (parameters.getBatchDeadlineMs() >= 0) {
+                    forwarder.setBatching(parameters.getMtu(), parameters.getBatchDeadlineMs());
+                }
+                forwarder.setCompression(
+                        parameters.getCompression() == PacketCompressor.CODEC_LZ4);
+                forwarder.setHeaderCompression(
+                        parameters.getHeaderCompression() == HeaderCompressor.SCHEME_IPV4);
+                forwarder.setErrorCorrection(parameters.getParityGroupSize());
+                if (parameters.isBonded()) {
+                    forwarder.setBonding(parameters.isRedundant());
+                }
+                if (cipher != null) {
+                    forwarder.setCipher(cipher);
+                }
+                forwarder.setMetrics(metrics);
+                establishedTime = System.currentTimeMillis();
+                this.forwarder = forwarder;
+                forwarder.run();
+                failure = "Forwarding stopped";
+            } catch (InterruptedException | ClosedByInterruptException e) {
+                // The run is over.
+                if (handshakeMs < 0) {
+                    failure = "Handshake: unfinished when the run ended";
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                failure = (handshakeMs < 0 ? "Handshake: " : "Forwarding: ") + e;
+            } finally {
+                forwarder = null;
+                endTime = System.currentTimeMillis();
+                for (DatagramChannel tunnel : tunnels) {
+                    try {
+                        tunnel.close();
+                    } catch (IOException e) {
+                        // Nothing left to lose.
+                    }
+                }
+            }
+        }
+
+        /** Picks the addresses of the echo requests from the parameters. */
+        private void configure(SessionParameters parameters) throws IOException {
+            final String[] address = new String[1];
+            parameters.configure(new SessionParameters.Configurator() {
+                @Override
+                public void addAddress(String value, int prefixLength) {
+                    if (address[0] == null) {
+                        address[0] = value;
+                    }
+                }
+
+                @Override
+                public void addRoute(String value, int prefixLength) {
+                }
+
+                @Override
+                public void addDnsServer(String value) {
+                }
+
+                @Override
+                public void addSearchDomain(String domain) {
+                }
+            });
+            if (address[0] == null) {
+                throw new IOException("No address assigned");
+            }
+            System.arraycopy(InetAddress.getByName(address[0]).getAddress(), 0, source, 0, 4);
+            if (options.target != null) {
+                System.arraycopy(InetAddress.getByName(options.target).getAddress(), 0,
+                        target, 0, 4);
+            } else {
+                System.arraycopy(source, 0, target, 0, 4);
+                --target[3];
+            }
+        }
+
+        /** Sends an echo request of the given size. */
+        void send(int size) {
+            final PacketForwarder forwarder = this.forwarder;
+            if (forwarder == null) {
+                return;
+            }
+            buildEchoRequest(packet, size, source, target, id, ++sequence);
+            forwarder.send(packet);
+            ++echoesSent;
+        }
+
+        /** Stands in for the interface: takes the echo replies. */
+        @Override
+        public int write(ByteBuffer reply) {
+            final int length = reply.remaining();
+            final int start = reply.position();
+            if (length >= MIN_PACKET_SIZE && reply.get(start + 9) == 1
+                    && reply.get(start + 20) == 0
+                    && reply.getShort(start + 24) == (short) id) {
+                echoesAnswered.incrementAndGet();
+                rtt.record((System.nanoTime() - reply.getLong(start + 28)) / 1000);
+            }
+            reply.position(reply.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (Arrays.asList(args).contains("--help")) {
+            System.out.println(USAGE);
+            return;
+        }
+        final Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage() + "\n" + USAGE);
+            System.exit(1);
+            return;
+        }
+
+        final LatencyHistogram rtt = new LatencyHistogram();
+        final Session[] sessions = new Session[options.sessions];
+        final Thread[] threads = new Thread[options.sessions];
+        for (int i = 0; i < sessions.length; ++i) {
+            sessions[i] = new Session(i + 1, options, rtt);
+            threads[i] = new Thread(sessions[i], "session" + (i + 1));
+            threads[i].setDaemon(true);
+        }
+
+        // A single thread paces every session, which keeps the rates steady however many
+        // sessions there are.
+        final long end = System.currentTimeMillis() + options.durationMs;
+        final Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pace(sessions, options, end);
+            }
+        }, "sender");
+        sender.setDaemon(true);
+        sender.start();
+
+        System.out.println("Starting " + sessions.length + " sessions against " + options.host
+                + ":" + options.port);
+        for (Thread thread : threads) {
+            thread.start();
+            Thread.sleep(options.rampMs);
+        }
+
+        Thread.sleep(Math.max(0, end - System.currentTimeMillis()));
+        sender.interrupt();
+        sender.join();
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        }
+        report(sessions, rtt);
+    }
+
+    /** Body of the sender: sends every session its share of packets until {@code end}. */
+    private static void pace(Session[] sessions, Options options, long end) {
+        final Random random = new Random();
+        final long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, options.rate);
+        int totalWeight = 0;
+        for (int weight : options.weights) {
+            totalWeight += weight;
+        }
+
+        while (System.currentTimeMillis() < end && !Thread.currentThread().isInterrupted()) {
+            final long now = System.nanoTime();
+            long next = now + interval;
+            for (Session session : sessions) {
+                if (session.forwarder == null) {
+                    session.nextSendTime = now;
+                    continue;
+                }
+                // Catch up, but without flooding the server after a stall.
+                session.nextSendTime = Math.max(session.nextSendTime, now - interval * 10);
+                while (session.nextSendTime <= now) {
+                    session.send(pickSize(options, random.nextInt(totalWeight)));
+                    session.nextSendTime += interval;
+                }
+                next = Math.min(next, session.nextSendTime);
+            }
+            LockSupport.parkNanos(next - System.nanoTime());
+        }
+    }
+
+    private static int pickSize(Options options, int draw) {
+        for (int i = 0; i < options.sizes.length; ++i) {
+            draw -= options.weights[i];
+            if (draw < 0) {
+                return options.sizes[i];
+            }
+        }
+        return options.sizes[options.sizes.length - 1];
+    }
+
+    /**
+     * Builds an ICMP echo request of {@code size} bytes into {@code packet}, carrying the
+     * current {@link System#nanoTime()} so the reply tells the round trip time.
+     */
+    static void buildEchoRequest(ByteBuffer packet, int size, byte[] source, byte[] target,
+                                 int id, int sequence) {
+        packet.clear();
+        for (int i = 0; i < size; ++i) {
+            packet.put(i, (byte) 0);
+        }
+
+        // IPv4 header.
+        packet.put(0, (byte) 0x45);
+        packet.putShort(2, (short) size);
+        packet.putShort(4, (short) sequence);
+        packet.put(8, (byte) 64);
+        packet.put(9, (byte) 1);
+        for (int i = 0; i < 4; ++i) {
+            packet.put(12 + i, source[i]);
+            packet.put(16 + i, target[i]);
+        }
+        packet.putShort(10, checksum(packet, 0, 20));
+
+        // ICMP echo request.
+        packet.put(20, (byte) 8);
+        packet.putShort(24, (short) id);
+        packet.putShort(26, (short) sequence);
+        packet.putLong(28, System.nanoTime());
+        packet.putShort(22, checksum(packet, 20, size - 20));
+        packet.limit(size);
+    }
+
+    /** The Internet checksum of {@code length} bytes at {@code offset}. */
+    static short checksum(ByteBuffer packet, int offset, int length) {
+        int sum = 0;
+        for (int i = 0; i + 1 < length; i += 2) {
+            sum += packet.getShort(offset + i) & 0xFFFF;
+        }
+        if ((length & 1) != 0) {
+            sum += (packet.get(offset + length - 1) & 0xFF) << 8;
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (short) ~sum;
+    }
+
+    private static void report(Session[] sessions, LatencyHistogram rtt) {
+        final LatencyHistogram handshakes = new LatencyHistogram();
+        final Map<String, Integer> failures = new LinkedHashMap<>();
+        int failed = 0;
+        final List<Long> sendRates = new ArrayList<>();
+        final List<Long> receiveRates = new ArrayList<>();
+        long packetsSent = 0;
+        long packetsReceived = 0;
+        long dropped = 0;
+        long queueDrops = 0;
+        long recovered = 0;
+        long echoesSent = 0;
+        long echoesAnswered = 0;
+
+        for (Session session : sessions) {
+            if (session.handshakeMs >= 0) {
+                handshakes.record(session.handshakeMs);
+            }
+            if (session.failure != null) {
+                final Integer count = failures.get(session.failure);
+                failures.put(session.failure, count == null ? 1 : count + 1);
+                ++failed;
+            }
+            if (session.establishedTime == 0) {
+                continue;
+            }
+            final TunnelMetrics.Snapshot snapshot = session.metrics.snapshot();
+            final long elapsedMs = Math.max(1, session.endTime - session.establishedTime);
+            sendRates.add(snapshot.bytesSent * 8 / elapsedMs);
+            receiveRates.add(snapshot.bytesReceived * 8 / elapsedMs);
+            packetsSent += snapshot.packetsSent;
+            packetsReceived += snapshot.packetsReceived;
+            dropped += snapshot.packetsDropped;
+            recovered += snapshot.packetsRecovered;
+            queueDrops += snapshot.queueDrops;
+            echoesSent += session.echoesSent;
+            echoesAnswered += session.echoesAnswered.get();
+        }
+
+        System.out.println();
+        System.out.println("Sessions: " + sessions.length + " started, " + sendRates.size()
+                + " established, " + failed + " failed");
+        for (Map.Entry<String, Integer> failure : failures.entrySet()) {
+            System.out.println("  " + failure.getValue() + " x " + failure.getKey());
+        }
+        System.out.println("Handshake ms: " + handshakes.snapshot());
+        System.out.println("Send kbit/s per session: " + describe(sendRates));
+        System.out.println("Receive kbit/s per session: " + describe(receiveRates));
+        System.out.println("Packets: " + packetsSent + " sent, " + packetsReceived
+                + " received, " + dropped + " dropped by the client, " + queueDrops
+                + " dropped from the uplink queue, " + recovered + " rebuilt from parity");
+        System.out.println("Echoes: " + echoesSent + " sent, " + echoesAnswered + " answered");
+        System.out.println("Echo round trip us: " + rtt.snapshot());
+    }
+
+    private static String describe(List<Long> values) {
+        if (values.isEmpty()) {
+            return "none";
+        }
+        final long[] sorted = new long[values.size()];
+        for (int i = 0; i < sorted.length; ++i) {
+            sorted[i] = values.get(i);
+        }
+        Arrays.sort(sorted);
+        return "min " + sorted[0] + ", p10 " + sorted[sorted.length / 10] + ", p50 "
+                + sorted[sorted.length / 2] + ", max " + sorted[sorted.length - 1];
+    }
+}
@@ -0,0 +1,59 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiles a default route with thousands of ranges kept out of it, as a country list would,
+ * with {@link RouteCompiler}. This is paid once per connection, before the interface is up.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteBenchmark {
+    @Param({"1000", "50000"})
+    public int excludes;
+
+    private String[] mAddresses;
+    private int[] mPrefixLengths;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Random random = new Random(1);
+        mAddresses = new String[excludes];
+        mPrefixLengths = new int[excludes];
+        for (int i = 0; i < excludes; ++i) {
+            mPrefixLengths[i] = 12 + random.nextInt(13);
+            final int address = random.nextInt() & -1 << (32 - mPrefixLengths[i]);
+            mAddresses[i] = (address >>> 24) + "." + (address >>> 16 & 0xFF) + "."
+                    + (address >>> 8 & 0xFF) + "." + (address & 0xFF);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<RouteCompiler.Route> compile() {
+        final RouteCompiler compiler = new RouteCompiler();
+        compiler.include("0.0.0.0", 0);
+        for (int i = 0; i < excludes; ++i) {
+            compiler.exclude(mAddresses[i], mPrefixLengths[i]);
+        }
+        return compiler.compile();
+    }
+}
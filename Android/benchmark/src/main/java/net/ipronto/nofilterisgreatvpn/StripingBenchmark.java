@@ -0,0 +1,152 @@
+package net.ipronto.nofilterisgreatvpn;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how incoming throughput scales with the number of sockets a tunnel is striped
+ * across. Each operation sends a packet from a loopback peer on every stripe and waits till
+ * the forwarder has written them all to a channel that just counts them, so the
+ * {@code packets} counter is the rate that matters.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StripingBenchmark {
+    private static final int PACKET_SIZE = 1400;
+    /** How long to wait for packets that loopback may have dropped. */
+    private static final long LOSS_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Param({"1", "2", "4"})
+    public int stripes;
+
+    /** Counts packets alongside the operations, so JMH reports them as a rate. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Packets {
+        public long packets;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            packets = 0;
+        }
+    }
+
+    /** Stands in for the interface and counts what would have been written to it. */
+    private static class CountingChannel implements WritableByteChannel {
+        final AtomicLong packets = new AtomicLong();
+
+        @Override
+        public int write(ByteBuffer src) {
+            final int length = src.remaining();
+            src.position(src.limit());
+            packets.incrementAndGet();
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private DatagramChannel[] mTunnels;
+    private DatagramChannel[] mPeers;
+    private Pipe mIdle;
+    private final CountingChannel mOut = new CountingChannel();
+    private Thread mForwarding;
+    private ByteBuffer mPacket;
+    /** What the channel should have counted once everything sent so far is through. */
+    private long mExpected;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mTunnels = new DatagramChannel[stripes];
+        mPeers = new DatagramChannel[stripes];
+        for (int i = 0; i < stripes; ++i) {
+            mPeers[i] = DatagramChannel.open();
+            mPeers[i].bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            mTunnels[i] = DatagramChannel.open();
+            mTunnels[i].bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            mTunnels[i].connect(mPeers[i].getLocalAddress());
+            mPeers[i].connect(mTunnels[i].getLocalAddress());
+        }
+
+        // Nothing goes out; the outgoing path just blocks on an empty pipe.
+        mIdle = Pipe.open();
+        final PacketForwarder forwarder =
+                new PacketForwarder(mIdle.source(), mOut, mTunnels, PACKET_SIZE, "bench");
+        mForwarding = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    forwarder.run();
+                } catch (Exception e) {
+                    // Interrupted at the end of the trial.
+                }
+            }
+        });
+        mForwarding.start();
+
+        mPacket = ByteBuffer.allocateDirect(PACKET_SIZE);
+        mPacket.put(0, (byte) 0x45);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mForwarding.interrupt();
+        mForwarding.join();
+        for (int i = 0; i < stripes; ++i) {
+            mTunnels[i].close();
+            mPeers[i].close();
+        }
+        mIdle.source().close();
+        mIdle.sink().close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void receive(Packets packets) throws IOException {
+        for (DatagramChannel peer : mPeers) {
+            mPacket.clear();
+            peer.write(mPacket);
+        }
+        mExpected += stripes;
+        final long deadline = System.nanoTime() + LOSS_TIMEOUT_NS;
+        while (mOut.packets.get() < mExpected && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        // Whatever loopback dropped is not waited for again.
+        final long received = mOut.packets.get();
+        packets.packets += stripes - (mExpected - received);
+        mExpected = received;
+    }
+}
@@ -26,6 +26,7 @@
 #include <sys/types.h>
 #include <errno.h>
 #include <fcntl.h>
+#include <time.h>
 
 #ifdef __linux__
 
@@ -71,8 +72,9 @@ done
 // This program only handles a session at a time. To allow multiple sessions,
 // multiple servers can be created on the same port, but each of them requires
 // its own TUN interface. A short shell script will be sufficient. Since this
-// program is designed for demonstration purpose, it performs neither strong
-// authentication nor encryption. DO NOT USE IT IN PRODUCTION!
+// program is designed for demonstration purpose, its encryption derives every
+// key from the shared secret and has never been reviewed. DO NOT USE IT IN
+// PRODUCTION!
 
 #include <net/if.h>
 #include <linux/if_tun.h>
@@ -188,7 +190,731 @@ static int get_tunnel(char *port, char *secret)
 }
 #endif
 
-static int get_tunnel(char *port, char *secret)
+// Control messages start with zero. The byte after it tells them apart; an
+// empty control message is a keepalive.
+#define CONTROL_BATCH 1
+#define CONTROL_PROBE 2
+#define CONTROL_PROBE_ACK 3
+#define CONTROL_PING 4
+#define CONTROL_PONG 5
+#define CONTROL_COMPRESSED 6
+
+// Pings are this long: the type and a sequence number. Those from strangers are
+// only answered at this size, so nobody can bounce more off us than they send.
+#define PING_SIZE 6
+
+// Clients that ping learn how long the NAT in front of them keeps a binding and
+// send keepalives themselves, so we stay quiet and only give up on them after
+// this long without hearing anything.
+#define PING_SESSION_TIMEOUT_MS 600000
+
+// Sealing encrypts and authenticates every datagram of a session with
+// ChaCha20-Poly1305 (RFC 8439), the same way the client does. Both are written
+// out here, along with SHA-256, so the server needs no crypto library.
+//
+// A sealed hello is a zero byte, CONTROL_KEY_EXCHANGE, 32 random bytes of the
+// client, then its capabilities if any and the ticket, sealed with SHA-256 of
+// the secret. The first 12 random bytes are the nonce and all 32 are
+// authenticated along. The server answers with 32 random bytes of its own,
+// what was agreed on if the client said what it can do, and the parameters,
+// sealed with its sending key and counter zero. The key each side sends with
+// is SHA-256 of the master key, both random numbers and 'c' for the client or
+// 's' for the server.
+//
+// After that, every datagram on every stripe goes as a zero byte,
+// CONTROL_SEALED, a 64-bit big-endian counter, the ciphertext and the tag. The
+// counter makes up the last 8 bytes of the nonce, little-endian, and is never
+// used twice; replays are dropped by a window of REPLAY_WINDOW counters. Only
+// path MTU probes go in the clear, so they measure the path as it is.
+//
+// Plaintext hellos are still accepted unless "-e 1" is given, which servers
+// should use once every client seals.
+#define CONTROL_SEALED 9
+#define CONTROL_KEY_EXCHANGE 10
+#define KEY_SIZE 32
+#define TAG_SIZE 16
+#define RANDOM_SIZE 32
+#define SEAL_HEADER_SIZE 10
+#define REPLAY_WINDOW 1024
+
+struct sha256 {
+    unsigned int h[8];
+    unsigned char block[64];
+    int used;
+    unsigned long long length;
+};
+
+static const unsigned int SHA256_K[64] = {
+    0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1,
+    0x923f82a4, 0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
+    0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786,
+    0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+    0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147,
+    0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13,
+    0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b,
+    0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+    0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a,
+    0x5b9cca4f, 0x682e6ff3, 0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
+    0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2,
+};
+
+static unsigned int rotr(unsigned int v, int n)
+{
+    return (v >> n) | (v << (32 - n));
+}
+
+static unsigned int rotl(unsigned int v, int n)
+{
+    return (v << n) | (v >> (32 - n));
+}
+
+static void sha256_init(sha256 *s)
+{
+    static const unsigned int initial[8] = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+        0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19,
+    };
+    memcpy(s->h, initial, sizeof(initial));
+    s->used = 0;
+    s->length = 0;
+}
+
+static void sha256_block(sha256 *s)
+{
+    unsigned int w[64];
+    for (int i = 0; i < 16; ++i) {
+        w[i] = (s->block[4 * i] << 24) | (s->block[4 * i + 1] << 16) |
+                (s->block[4 * i + 2] << 8) | s->block[4 * i + 3];
+    }
+    for (int i = 16; i < 64; ++i) {
+        unsigned int s0 = rotr(w[i - 15], 7) ^ rotr(w[i - 15], 18) ^
+                (w[i - 15] >> 3);
+        unsigned int s1 = rotr(w[i - 2], 17) ^ rotr(w[i - 2], 19) ^
+                (w[i - 2] >> 10);
+        w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+    }
+    unsigned int a = s->h[0], b = s->h[1], c = s->h[2], d = s->h[3];
+    unsigned int e = s->h[4], f = s->h[5], g = s->h[6], h = s->h[7];
+    for (int i = 0; i < 64; ++i) {
+        unsigned int t1 = h + (rotr(e, 6) ^ rotr(e, 11) ^ rotr(e, 25)) +
+                ((e & f) ^ (~e & g)) + SHA256_K[i] + w[i];
+        unsigned int t2 = (rotr(a, 2) ^ rotr(a, 13) ^ rotr(a, 22)) +
+                ((a & b) ^ (a & c) ^ (b & c));
+        h = g;
+        g = f;
+        f = e;
+        e = d + t1;
+        d = c;
+        c = b;
+        b = a;
+        a = t1 + t2;
+    }
+    s->h[0] += a;
+    s->h[1] += b;
+    s->h[2] += c;
+    s->h[3] += d;
+    s->h[4] += e;
+    s->h[5] += f;
+    s->h[6] += g;
+    s->h[7] += h;
+}
+
+static void sha256_update(sha256 *s, const void *data, int length)
+{
+    const unsigned char *p = (const unsigned char *)data;
+    s->length += length;
+    while (length > 0) {
+        int n = 64 - s->used < length ? 64 - s->used : length;
+        memcpy(&s->block[s->used], p, n);
+        s->used += n;
+        p += n;
+        length -= n;
+        if (s->used == 64) {
+            sha256_block(s);
+            s->used = 0;
+        }
+    }
+}
+
+static void sha256_final(sha256 *s, unsigned char *digest)
+{
+    unsigned long long bits = s->length * 8;
+    unsigned char pad = 0x80;
+    sha256_update(s, &pad, 1);
+    pad = 0;
+    while (s->used != 56) {
+        sha256_update(s, &pad, 1);
+    }
+    unsigned char length[8];
+    for (int i = 0; i < 8; ++i) {
+        length[i] = bits >> (56 - 8 * i);
+    }
+    sha256_update(s, length, 8);
+    for (int i = 0; i < 8; ++i) {
+        digest[4 * i] = s->h[i] >> 24;
+        digest[4 * i + 1] = s->h[i] >> 16;
+        digest[4 * i + 2] = s->h[i] >> 8;
+        digest[4 * i + 3] = s->h[i];
+    }
+}
+
+static unsigned int read32le(const unsigned char *p)
+{
+    return p[0] | (p[1] << 8) | (p[2] << 16) | ((unsigned int)p[3] << 24);
+}
+
+#define CHACHA_QUARTER(a, b, c, d) \
+    a += b; d = rotl(d ^ a, 16); \
+    c += d; b = rotl(b ^ c, 12); \
+    a += b; d = rotl(d ^ a, 8); \
+    c += d; b = rotl(b ^ c, 7);
+
+// Computes the key stream block of the given counter.
+static void chacha20_block(const unsigned char *key, const unsigned char *nonce,
+        unsigned int counter, unsigned char *out)
+{
+    unsigned int state[16] = {0x61707865, 0x3320646e, 0x79622d32, 0x6b206574};
+    for (int i = 0; i < 8; ++i) {
+        state[4 + i] = read32le(&key[4 * i]);
+    }
+    state[12] = counter;
+    for (int i = 0; i < 3; ++i) {
+        state[13 + i] = read32le(&nonce[4 * i]);
+    }
+    unsigned int x[16];
+    memcpy(x, state, sizeof(x));
+    for (int i = 0; i < 10; ++i) {
+        CHACHA_QUARTER(x[0], x[4], x[8], x[12]);
+        CHACHA_QUARTER(x[1], x[5], x[9], x[13]);
+        CHACHA_QUARTER(x[2], x[6], x[10], x[14]);
+        CHACHA_QUARTER(x[3], x[7], x[11], x[15]);
+        CHACHA_QUARTER(x[0], x[5], x[10], x[15]);
+        CHACHA_QUARTER(x[1], x[6], x[11], x[12]);
+        CHACHA_QUARTER(x[2], x[7], x[8], x[13]);
+        CHACHA_QUARTER(x[3], x[4], x[9], x[14]);
+    }
+    for (int i = 0; i < 16; ++i) {
+        unsigned int v = x[i] + state[i];
+        out[4 * i] = v;
+        out[4 * i + 1] = v >> 8;
+        out[4 * i + 2] = v >> 16;
+        out[4 * i + 3] = v >> 24;
+    }
+}
+
+static void chacha20_xor(const unsigned char *key, const unsigned char *nonce,
+        const unsigned char *in, int length, unsigned char *out)
+{
+    unsigned char block[64];
+    for (int done = 0; done < length; done += 64) {
+        chacha20_block(key, nonce, 1 + done / 64, block);
+        for (int i = 0; i < 64 && done + i < length; ++i) {
+            out[done + i] = in[done + i] ^ block[i];
+        }
+    }
+}
+
+// Poly1305 in 26-bit limbs.
+struct poly1305 {
+    unsigned long long r[5];
+    unsigned long long h[5];
+    unsigned int pad[4];
+};
+
+static void poly1305_init(poly1305 *p, const unsigned char *key)
+{
+    unsigned int t0 = read32le(&key[0]), t1 = read32le(&key[4]);
+    unsigned int t2 = read32le(&key[8]), t3 = read32le(&key[12]);
+    p->r[0] = t0 & 0x3ffffff;
+    p->r[1] = ((t0 >> 26) | ((unsigned long long)t1 << 6)) & 0x3ffff03;
+    p->r[2] = ((t1 >> 20) | ((unsigned long long)t2 << 12)) & 0x3ffc0ff;
+    p->r[3] = ((t2 >> 14) | ((unsigned long long)t3 << 18)) & 0x3f03fff;
+    p->r[4] = (t3 >> 8) & 0x00fffff;
+    for (int i = 0; i < 5; ++i) {
+        p->h[i] = 0;
+    }
+    for (int i = 0; i < 4; ++i) {
+        p->pad[i] = read32le(&key[16 + 4 * i]);
+    }
+}
+
+// Absorbs the data, padding the last block with zeros.
+static void poly1305_update(poly1305 *p, const unsigned char *data, int length)
+{
+    unsigned long long r0 = p->r[0], r1 = p->r[1], r2 = p->r[2];
+    unsigned long long r3 = p->r[3], r4 = p->r[4];
+    unsigned long long s1 = r1 * 5, s2 = r2 * 5, s3 = r3 * 5, s4 = r4 * 5;
+    unsigned long long *h = p->h;
+    for (int offset = 0; offset < length; offset += 16) {
+        unsigned char block[16] = {0};
+        int n = length - offset < 16 ? length - offset : 16;
+        memcpy(block, &data[offset], n);
+        unsigned long long t0 = read32le(&block[0]), t1 = read32le(&block[4]);
+        unsigned long long t2 = read32le(&block[8]), t3 = read32le(&block[12]);
+        h[0] += t0 & 0x3ffffff;
+        h[1] += ((t0 >> 26) | (t1 << 6)) & 0x3ffffff;
+        h[2] += ((t1 >> 20) | (t2 << 12)) & 0x3ffffff;
+        h[3] += ((t2 >> 14) | (t3 << 18)) & 0x3ffffff;
+        h[4] += (t3 >> 8) | (1 << 24);
+
+        unsigned long long d0 = h[0] * r0 + h[1] * s4 + h[2] * s3 +
+                h[3] * s2 + h[4] * s1;
+        unsigned long long d1 = h[0] * r1 + h[1] * r0 + h[2] * s4 +
+                h[3] * s3 + h[4] * s2;
+        unsigned long long d2 = h[0] * r2 + h[1] * r1 + h[2] * r0 +
+                h[3] * s4 + h[4] * s3;
+        unsigned long long d3 = h[0] * r3 + h[1] * r2 + h[2] * r1 +
+                h[3] * r0 + h[4] * s4;
+        unsigned long long d4 = h[0] * r4 + h[1] * r3 + h[2] * r2 +
+                h[3] * r1 + h[4] * r0;
+        d1 += d0 >> 26;
+        h[0] = d0 & 0x3ffffff;
+        d2 += d1 >> 26;
+        h[1] = d1 & 0x3ffffff;
+        d3 += d2 >> 26;
+        h[2] = d2 & 0x3ffffff;
+        d4 += d3 >> 26;
+        h[3] = d3 & 0x3ffffff;
+        h[0] += (d4 >> 26) * 5;
+        h[4] = d4 & 0x3ffffff;
+        h[1] += h[0] >> 26;
+        h[0] &= 0x3ffffff;
+    }
+}
+
+static void poly1305_final(poly1305 *p, unsigned char *tag)
+{
+    unsigned long long h0 = p->h[0], h1 = p->h[1], h2 = p->h[2];
+    unsigned long long h3 = p->h[3], h4 = p->h[4];
+    h2 += h1 >> 26;
+    h1 &= 0x3ffffff;
+    h3 += h2 >> 26;
+    h2 &= 0x3ffffff;
+    h4 += h3 >> 26;
+    h3 &= 0x3ffffff;
+    h0 += (h4 >> 26) * 5;
+    h4 &= 0x3ffffff;
+    h1 += h0 >> 26;
+    h0 &= 0x3ffffff;
+
+    // Compute h - p and keep it unless it went negative, without branching.
+    unsigned long long g0 = h0 + 5;
+    unsigned long long g1 = h1 + (g0 >> 26);
+    g0 &= 0x3ffffff;
+    unsigned long long g2 = h2 + (g1 >> 26);
+    g1 &= 0x3ffffff;
+    unsigned long long g3 = h3 + (g2 >> 26);
+    g2 &= 0x3ffffff;
+    unsigned long long g4 = h4 + (g3 >> 26) - (1 << 26);
+    g3 &= 0x3ffffff;
+    unsigned long long keep = (unsigned long long)((long long)g4 >> 63);
+    h0 = (h0 & keep) | (g0 & ~keep);
+    h1 = (h1 & keep) | (g1 & ~keep);
+    h2 = (h2 & keep) | (g2 & ~keep);
+    h3 = (h3 & keep) | (g3 & ~keep);
+    h4 = (h4 & keep) | (g4 & ~keep);
+
+    unsigned int w[4] = {
+        (unsigned int)(h0 | (h1 << 26)),
+        (unsigned int)((h1 >> 6) | (h2 << 20)),
+        (unsigned int)((h2 >> 12) | (h3 << 14)),
+        (unsigned int)((h3 >> 18) | (h4 << 8)),
+    };
+    unsigned long long f = 0;
+    for (int i = 0; i < 4; ++i) {
+        f = (unsigned long long)w[i] + p->pad[i] + (f >> 32);
+        tag[4 * i] = f;
+        tag[4 * i + 1] = f >> 8;
+        tag[4 * i + 2] = f >> 16;
+        tag[4 * i + 3] = f >> 24;
+    }
+}
+
+// Computes the tag over the additional data and the ciphertext.
+static void aead_tag(const unsigned char *key, const unsigned char *nonce,
+        const unsigned char *aad, int aad_length,
+        const unsigned char *ciphertext, int length, unsigned char *tag)
+{
+    unsigned char block[64];
+    chacha20_block(key, nonce, 0, block);
+    poly1305 p;
+    poly1305_init(&p, block);
+    poly1305_update(&p, aad, aad_length);
+    poly1305_update(&p, ciphertext, length);
+    unsigned char lengths[16];
+    for (int i = 0; i < 8; ++i) {
+        lengths[i] = (unsigned long long)aad_length >> (8 * i);
+        lengths[8 + i] = (unsigned long long)length >> (8 * i);
+    }
+    poly1305_update(&p, lengths, 16);
+    poly1305_final(&p, tag);
+}
+
+// Encrypts length bytes of in to out, which may be the same, and appends the
+// tag.
+static void aead_seal(const unsigned char *key, const unsigned char *nonce,
+        const unsigned char *aad, int aad_length,
+        const unsigned char *in, int length, unsigned char *out)
+{
+    chacha20_xor(key, nonce, in, length, out);
+    aead_tag(key, nonce, aad, aad_length, out, length, &out[length]);
+}
+
+// Decrypts in place what aead_seal produced. Returns the length of the
+// plaintext, or -1 if it is not authentic, in which case it is left alone.
+static int aead_open(const unsigned char *key, const unsigned char *nonce,
+        const unsigned char *aad, int aad_length,
+        unsigned char *data, int length)
+{
+    if (length < TAG_SIZE) {
+        return -1;
+    }
+    length -= TAG_SIZE;
+    unsigned char tag[TAG_SIZE];
+    aead_tag(key, nonce, aad, aad_length, data, length, tag);
+
+    // Compare in constant time, so the time taken tells nothing about the tag.
+    unsigned char difference = 0;
+    for (int i = 0; i < TAG_SIZE; ++i) {
+        difference |= tag[i] ^ data[length + i];
+    }
+    if (difference) {
+        return -1;
+    }
+    chacha20_xor(key, nonce, data, length, data);
+    return length;
+}
+
+static void get_random(unsigned char *random, int size)
+{
+    int fd = open("/dev/urandom", O_RDONLY);
+    if (fd == -1 || read(fd, random, size) != size) {
+        for (int i = 0; i < size; ++i) {
+            random[i] = rand();
+        }
+    }
+    if (fd != -1) {
+        close(fd);
+    }
+}
+
+static void derive_key(const unsigned char *master_key,
+        const unsigned char *client_random, const unsigned char *server_random,
+        char label, unsigned char *key)
+{
+    sha256 s;
+    sha256_init(&s);
+    sha256_update(&s, master_key, KEY_SIZE);
+    sha256_update(&s, client_random, RANDOM_SIZE);
+    sha256_update(&s, server_random, RANDOM_SIZE);
+    sha256_update(&s, &label, 1);
+    sha256_final(&s, key);
+}
+
+// The keys of the current session, or none if it is not sealed.
+struct session_keys {
+    bool active;
+    unsigned char send_key[KEY_SIZE];
+    unsigned char receive_key[KEY_SIZE];
+    unsigned long long send_counter;
+    unsigned long long highest;
+    unsigned long long window[REPLAY_WINDOW / 64];
+};
+
+static session_keys keys;
+
+// Counter zero is left to the handshake. The window is a ring of words, so one
+// that has come round again is too old.
+static bool replay_check(unsigned long long counter)
+{
+    if (counter == 0) {
+        return false;
+    }
+    if (counter > keys.highest) {
+        return true;
+    }
+    if (keys.highest / 64 - counter / 64 >= REPLAY_WINDOW / 64) {
+        return false;
+    }
+    return !(keys.window[counter / 64 % (REPLAY_WINDOW / 64)] &
+            (1ULL << (counter & 63)));
+}
+
+static void replay_accept(unsigned long long counter)
+{
+    if (counter > keys.highest) {
+        unsigned long long from = keys.highest / 64 + 1;
+        unsigned long long to = counter / 64;
+        if (to - from >= REPLAY_WINDOW / 64) {
+            to = from + REPLAY_WINDOW / 64 - 1;
+        }
+        for (unsigned long long word = from; word <= to; ++word) {
+            keys.window[word % (REPLAY_WINDOW / 64)] = 0;
+        }
+        keys.highest = counter;
+    }
+    keys.window[counter / 64 % (REPLAY_WINDOW / 64)] |= 1ULL << (counter & 63);
+}
+
+static void counter_nonce(unsigned long long counter, unsigned char *nonce)
+{
+    memset(nonce, 0, 4);
+    for (int i = 0; i < 8; ++i) {
+        nonce[4 + i] = counter >> (8 * i);
+    }
+}
+
+// Opens a sealed datagram in place. Returns the length of what it carried,
+// which starts SEAL_HEADER_SIZE bytes in, or -1 if it is not sealed, not
+// authentic or a replay.
+static int open_sealed(char *packet, int length)
+{
+    if (length < SEAL_HEADER_SIZE + TAG_SIZE || packet[0] != 0 ||
+            packet[1] != CONTROL_SEALED) {
+        return -1;
+    }
+    unsigned long long counter = 0;
+    for (int i = 0; i < 8; ++i) {
+        counter = (counter << 8) | (unsigned char)packet[2 + i];
+    }
+    if (!replay_check(counter)) {
+        return -1;
+    }
+    unsigned char nonce[12];
+    counter_nonce(counter, nonce);
+    int n = aead_open(keys.receive_key, nonce, NULL, 0,
+            (unsigned char *)&packet[SEAL_HEADER_SIZE],
+            length - SEAL_HEADER_SIZE);
+    if (n >= 0) {
+        replay_accept(counter);
+    }
+    return n;
+}
+
+// Sends a datagram of the session, sealed if the session is.
+static void tunnel_send(int socket, const char *data, int length)
+{
+    if (!keys.active) {
+        send(socket, data, length, MSG_NOSIGNAL);
+        return;
+    }
+    static char sealed[32767 + SEAL_HEADER_SIZE + TAG_SIZE];
+    unsigned long long counter = ++keys.send_counter;
+    sealed[0] = 0;
+    sealed[1] = CONTROL_SEALED;
+    for (int i = 0; i < 8; ++i) {
+        sealed[2 + i] = counter >> (56 - 8 * i);
+    }
+    unsigned char nonce[12];
+    counter_nonce(counter, nonce);
+    aead_seal(keys.send_key, nonce, NULL, 0, (const unsigned char *)data,
+            length, (unsigned char *)&sealed[SEAL_HEADER_SIZE]);
+    send(socket, sealed, SEAL_HEADER_SIZE + length + TAG_SIZE, MSG_NOSIGNAL);
+}
+
+// Opens what arrived on a socket of the session. Returns the length of what
+// it carried and points data at it, or 0 if there is nothing left to handle.
+// Path MTU probes are answered right here, in the clear like they came, and
+// anything else that is not sealed in a sealed session is dropped.
+static int open_datagram(int socket, char *packet, int length, char **data)
+{
+    *data = packet;
+    if (!keys.active) {
+        return length;
+    }
+    int n = open_sealed(packet, length);
+    if (n >= 0) {
+        *data = &packet[SEAL_HEADER_SIZE];
+        return n;
+    }
+    if (length >= 4 && packet[0] == 0 && packet[1] == CONTROL_PROBE) {
+        packet[1] = CONTROL_PROBE_ACK;
+        send(socket, packet, length, MSG_NOSIGNAL);
+    }
+    return 0;
+}
+
+#define TICKET_LENGTH 16
+
+// Capabilities let both ends agree on what to use the tunnel for within the
+// sealed handshake. The client puts what it can do ahead of its ticket and we
+// put what both can do ahead of the parameters, which older clients never see
+// since they do not send any. It is CAPS_VERSION, the size of the fields, then
+// each field as its type, the length of its value and the value, unsigned and
+// big-endian. Unknown fields are skipped, and so are blocks of other versions,
+// which are answered as if they were not there. The client has the reference
+// codec, see Capabilities.java.
+#define CAPS_VERSION 1
+#define CAPS_BATCHING 0x1
+#define CAPS_COMPRESSION 0x2
+#define CAPS_HEADER_COMPRESSION 0x4
+#define CAPS_PARITY 0x8
+#define CAPS_STRIPING 0x10
+#define CAPS_KEEPALIVE 0x20
+#define CAPS_BONDING 0x40
+#define CAPS_REDUNDANCY 0x80
+#define CAPS_FEATURES 1
+#define CAPS_MTU 2
+#define CAPS_BATCH_DEADLINE_MS 3
+#define CAPS_IDLE_TIMEOUT_S 4
+#define CAPS_PARITY_GROUP 5
+#define CAPS_FIELDS 6
+#define CAPS_MAX_SIZE (2 + (CAPS_FIELDS - 1) * 6)
+
+struct capabilities {
+    unsigned int values[CAPS_FIELDS];
+    unsigned int present;
+};
+
+static void caps_set(capabilities *c, int field, unsigned int value)
+{
+    c->values[field] = value;
+    c->present |= 1 << field;
+}
+
+// Reads the block at the start of data into c, if there is one. Returns its
+// length, which is 0 if there is none, or -1 if it is broken. Blocks of other
+// versions leave c empty.
+static int caps_read(const unsigned char *data, int length, capabilities *c)
+{
+    memset(c, 0, sizeof(*c));
+    if (length < 2 || data[0] >= ' ') {
+        return 0;
+    }
+    int end = 2 + data[1];
+    if (end > length) {
+        return -1;
+    }
+    if (data[0] != CAPS_VERSION) {
+        return end;
+    }
+    int i = 2;
+    while (i + 2 <= end) {
+        int field = data[i];
+        int n = data[i + 1];
+        i += 2;
+        if (i + n > end || (field < CAPS_FIELDS && n > 4)) {
+            return -1;
+        }
+        if (field < CAPS_FIELDS) {
+            unsigned int value = 0;
+            for (int j = 0; j < n; ++j) {
+                value = value << 8 | data[i + j];
+            }
+            caps_set(c, field, value);
+        }
+        i += n;
+    }
+    return i == end ? end : -1;
+}
+
+// Writes c to out, which has room for CAPS_MAX_SIZE bytes, and returns the
+// length.
+static int caps_write(const capabilities *c, unsigned char *out)
+{
+    int i = 2;
+    for (int field = 1; field < CAPS_FIELDS; ++field) {
+        if (!(c->present & 1 << field)) {
+            continue;
+        }
+        unsigned int value = c->values[field];
+        int n = value < 0x100 ? 1 : value < 0x10000 ? 2 : 4;
+        out[i++] = field;
+        out[i++] = n;
+        for (int shift = 8 * (n - 1); shift >= 0; shift -= 8) {
+            out[i++] = value >> shift;
+        }
+    }
+    out[0] = CAPS_VERSION;
+    out[1] = i - 2;
+    return i;
+}
+
+// Agrees on the features both ends have, the smaller MTU, and our own settings
+// for the features that have them.
+static void caps_agree(const capabilities *offer, const capabilities *own,
+        capabilities *agreed)
+{
+    memset(agreed, 0, sizeof(*agreed));
+    unsigned int features = offer->values[CAPS_FEATURES] &
+            own->values[CAPS_FEATURES];
+    caps_set(agreed, CAPS_FEATURES, features);
+    bool offered_mtu = offer->present & 1 << CAPS_MTU;
+    bool own_mtu = own->present & 1 << CAPS_MTU;
+    if (offered_mtu && own_mtu) {
+        unsigned int a = offer->values[CAPS_MTU];
+        unsigned int b = own->values[CAPS_MTU];
+        caps_set(agreed, CAPS_MTU, a < b ? a : b);
+    } else if (offered_mtu || own_mtu) {
+        caps_set(agreed, CAPS_MTU,
+                offer->values[CAPS_MTU] | own->values[CAPS_MTU]);
+    }
+    if (features & CAPS_BATCHING) {
+        caps_set(agreed, CAPS_BATCH_DEADLINE_MS,
+                own->values[CAPS_BATCH_DEADLINE_MS]);
+    }
+    if (features & CAPS_KEEPALIVE) {
+        caps_set(agreed, CAPS_IDLE_TIMEOUT_S, own->values[CAPS_IDLE_TIMEOUT_S]);
+    }
+    if (features & CAPS_PARITY) {
+        caps_set(agreed, CAPS_PARITY_GROUP, own->values[CAPS_PARITY_GROUP]);
+    }
+}
+
+// What the client presented in its hello.
+struct hello {
+    char ticket[TICKET_LENGTH + 1];
+    unsigned char random[RANDOM_SIZE];
+    bool sealed;
+    // Whether it said what it can do, and what that is.
+    bool offered;
+    capabilities offer;
+};
+
+// Checks a hello and fills h from it. Plaintext hellos carry the secret, then
+// the resumption ticket of the last session if any, separated by another zero.
+// Sealed ones carry the capabilities of the client, if it has any, and the
+// ticket sealed instead and prove the client has the secret by opening with
+// the master key.
+static bool read_hello(char *packet, int n, char *secret,
+        const unsigned char *master_key, bool plaintext, hello *h)
+{
+    h->ticket[0] = 0;
+    h->offered = false;
+    if (n >= 2 + RANDOM_SIZE + TAG_SIZE && packet[0] == 0 &&
+            packet[1] == CONTROL_KEY_EXCHANGE) {
+        memcpy(h->random, &packet[2], RANDOM_SIZE);
+        unsigned char *sealed = (unsigned char *)&packet[2 + RANDOM_SIZE];
+        int length = aead_open(master_key, h->random, h->random, RANDOM_SIZE,
+                sealed, n - 2 - RANDOM_SIZE);
+        if (length < 0) {
+            return false;
+        }
+        int caps_length = caps_read(sealed, length, &h->offer);
+        if (caps_length < 0) {
+            return false;
+        }
+        h->offered = caps_length > 0 && sealed[0] == CAPS_VERSION;
+        snprintf(h->ticket, sizeof(h->ticket), "%.*s", length - caps_length,
+                (char *)&sealed[caps_length]);
+        h->sealed = true;
+        return true;
+    }
+    if (!plaintext || packet[0] != 0 || strcmp(secret, &packet[1])) {
+        return false;
+    }
+    int secret_length = strlen(secret);
+    if (n > 2 + secret_length) {
+        snprintf(h->ticket, sizeof(h->ticket), "%s", &packet[2 + secret_length]);
+    }
+    h->sealed = false;
+    return true;
+}
+
+// Waits for a hello that checks out, see read_hello(). Plaintext ones are only
+// accepted if plaintext is true.
+static int get_tunnel(char *port, char *secret, const unsigned char *master_key,
+        bool plaintext, hello *h)
 {
     // We use an IPv6 socket to cover both IPv4 and IPv6.
     int tunnel = socket(AF_INET6, SOCK_DGRAM, 0);
@@ -214,18 +940,27 @@ static int get_tunnel(char *port, char *secret)
 
     log_message("receiving ... \n");
 
-    // Receive packets till the secret matches.
+    // Receive packets till a hello checks out.
     char packet[1024];
     socklen_t addrlen;
+    int n;
     do {
         addrlen = sizeof(addr);
-        int n = recvfrom(tunnel, packet, sizeof(packet), 0,
+        n = recvfrom(tunnel, packet, sizeof(packet) - 1, 0,
                 (sockaddr *)&addr, &addrlen);
         if (n <= 0) {
             return -1;
         }
         packet[n] = 0;
-    } while (packet[0] != 0 || strcmp(secret, &packet[1]));
+
+        // Answer pings, so clients can tell which server is closest. Anyone can
+        // send them from any address, so the answer is never larger.
+        if (n == PING_SIZE && packet[0] == 0 && packet[1] == CONTROL_PING) {
+            packet[1] = CONTROL_PONG;
+            sendto(tunnel, packet, PING_SIZE, MSG_NOSIGNAL, (sockaddr *)&addr,
+                    addrlen);
+        }
+    } while (!read_hello(packet, n, secret, master_key, plaintext, h));
 
     log_message("connecting ... \n");
 
@@ -234,7 +969,1024 @@ static int get_tunnel(char *port, char *secret)
     return tunnel;
 }
 
-static void build_parameters(char *parameters, int size, int argc, char **argv)
+// Compression shrinks packets one at a time with the LZ4 block format. A
+// compressed packet is a zero byte, CONTROL_COMPRESSED, then the LZ4 block;
+// everything else goes as it is. It is enabled with "-z 1", which offers it to
+// the client, and the client accepts by sending an empty compressed message.
+// Packets that would not shrink go as they are, and tiny packets and those on
+// port 443, which are encrypted already, are not even tried.
+#define CODEC_LZ4 1
+#define COMPRESS_MIN_LENGTH 64
+#define LZ4_MIN_MATCH 4
+#define LZ4_LAST_LITERALS 5
+#define LZ4_MATCH_FINISH 12
+#define LZ4_HASH_BITS 12
+
+static bool is_encrypted(const char *data, int length)
+{
+    const unsigned char *p = (const unsigned char *)data;
+    int protocol, transport;
+    if (length >= 20 && (p[0] >> 4) == 4) {
+        if (((p[6] << 8) | p[7]) & 0x1FFF) {
+            return false;
+        }
+        protocol = p[9];
+        transport = (p[0] & 0x0F) * 4;
+    } else if (length >= 40 && (p[0] >> 4) == 6) {
+        protocol = p[6];
+        transport = 40;
+    } else {
+        return false;
+    }
+    if ((protocol != 6 && protocol != 17) || transport + 4 > length) {
+        return false;
+    }
+    return ((p[transport] << 8) | p[transport + 1]) == 443 ||
+            ((p[transport + 2] << 8) | p[transport + 3]) == 443;
+}
+
+static int lz4_write_length(unsigned char *dst, int o, int length)
+{
+    while (length >= 255) {
+        dst[o++] = 255;
+        length -= 255;
+    }
+    dst[o++] = length;
+    return o;
+}
+
+// Writes literals followed by a match, or only literals if offset is zero.
+// Returns where the next sequence goes, or -1 if this one does not fit.
+static int lz4_write_sequence(const unsigned char *literals, int literal_length,
+        int offset, int match_length, unsigned char *dst, int o, int max)
+{
+    int size = 1 + literal_length / 255 + 1 + literal_length +
+            (offset ? 2 + match_length / 255 + 1 : 0);
+    if (o + size > max) {
+        return -1;
+    }
+    int token = o++;
+    int value = (literal_length < 15 ? literal_length : 15) << 4;
+    if (literal_length >= 15) {
+        o = lz4_write_length(dst, o, literal_length - 15);
+    }
+    memcpy(&dst[o], literals, literal_length);
+    o += literal_length;
+    if (offset) {
+        dst[o++] = offset & 0xFF;
+        dst[o++] = offset >> 8;
+        value |= match_length < 15 ? match_length : 15;
+        if (match_length >= 15) {
+            o = lz4_write_length(dst, o, match_length - 15);
+        }
+    }
+    dst[token] = value;
+    return o;
+}
+
+// Returns the size of the block, or -1 if it would be larger than max.
+static int lz4_compress(const unsigned char *src, int length, unsigned char *dst,
+        int max)
+{
+    // Zero means empty; positions are stored plus one.
+    static int table[1 << LZ4_HASH_BITS];
+    memset(table, 0, sizeof(table));
+
+    int match_limit = length - LZ4_MATCH_FINISH;
+    int literal_limit = length - LZ4_LAST_LITERALS;
+    int anchor = 0;
+    int i = 0;
+    int o = 0;
+    while (i < match_limit) {
+        unsigned int sequence = read32le(&src[i]);
+        unsigned int hash = (sequence * 2654435761U) >> (32 - LZ4_HASH_BITS);
+        int candidate = table[hash] - 1;
+        table[hash] = i + 1;
+        if (candidate < 0 || i - candidate > 65535 ||
+                read32le(&src[candidate]) != sequence) {
+            ++i;
+            continue;
+        }
+        int match_end = i + LZ4_MIN_MATCH;
+        int reference = candidate + LZ4_MIN_MATCH;
+        while (match_end < literal_limit && src[match_end] == src[reference]) {
+            ++match_end;
+            ++reference;
+        }
+        o = lz4_write_sequence(&src[anchor], i - anchor, i - candidate,
+                match_end - i - LZ4_MIN_MATCH, dst, o, max);
+        if (o < 0) {
+            return -1;
+        }
+        i = match_end;
+        anchor = i;
+    }
+    o = lz4_write_sequence(&src[anchor], length - anchor, 0, 0, dst, o, max);
+    return o;
+}
+
+// Returns the size of the decompressed data, or -1 if the block is malformed
+// or larger than capacity.
+static int lz4_decompress(const unsigned char *src, int length, unsigned char *dst,
+        int capacity)
+{
+    int i = 0;
+    int o = 0;
+    while (i < length) {
+        int token = src[i++];
+        int literal_length = token >> 4;
+        if (literal_length == 15) {
+            int b;
+            do {
+                if (i >= length) {
+                    return -1;
+                }
+                b = src[i++];
+                literal_length += b;
+            } while (b == 255);
+        }
+        if (i + literal_length > length || o + literal_length > capacity) {
+            return -1;
+        }
+        memcpy(&dst[o], &src[i], literal_length);
+        i += literal_length;
+        o += literal_length;
+        if (i == length) {
+            return o;
+        }
+
+        if (i + 2 > length) {
+            return -1;
+        }
+        int offset = src[i] | (src[i + 1] << 8);
+        i += 2;
+        if (offset == 0 || offset > o) {
+            return -1;
+        }
+        int match_length = token & 0x0F;
+        if (match_length == 15) {
+            int b;
+            do {
+                if (i >= length) {
+                    return -1;
+                }
+                b = src[i++];
+                match_length += b;
+            } while (b == 255);
+        }
+        match_length += LZ4_MIN_MATCH;
+        if (o + match_length > capacity) {
+            return -1;
+        }
+        // Byte by byte, since the match may overlap what it produces.
+        for (int k = 0; k < match_length; ++k, ++o) {
+            dst[o] = dst[o - offset];
+        }
+    }
+    return o;
+}
+
+// Frames the packet as a compressed control message in out, which must be as
+// large as the packet. Returns its length, or 0 if it is better sent as it is.
+static int compress_packet(const char *packet, int length, char *out)
+{
+    if (length < COMPRESS_MIN_LENGTH || is_encrypted(packet, length)) {
+        return 0;
+    }
+    out[0] = 0;
+    out[1] = CONTROL_COMPRESSED;
+    int n = lz4_compress((const unsigned char *)packet, length,
+            (unsigned char *)&out[2], length - 3);
+    return n < 0 ? 0 : 2 + n;
+}
+
+// Header compression sends the IPv4 and TCP or UDP headers of small packets
+// from the client as deltas. Each flow has a context holding the header of its
+// last refresh, which is a zero byte, CONTROL_HEADER_REFRESH, the context and
+// its generation, then the whole packet. Later packets of the flow are a zero
+// byte, CONTROL_HEADER_COMPRESSED, the context, its generation in the upper
+// four bits and what changed in the lower four, then the IP ID delta, the TCP
+// sequence and acknowledgment deltas, window and flags if they changed, the
+// TCP or UDP checksum, the TCP options and the payload. Deltas are 7 bits per
+// byte, least significant first. The next few packets after a refresh repeat
+// it in case it was lost: HEADER_REPEAT is set in the generation, and the
+// reference header comes before the whole packet. Packets against a refresh
+// that never came are dropped. "-h 1" lets the client know it may compress
+// headers; they are understood either way. See HeaderCompressor in the client
+// for the rest.
+#define CONTROL_HEADER_REFRESH 7
+#define CONTROL_HEADER_COMPRESSED 8
+#define HEADER_CONTEXTS 16
+#define HEADER_MAX_LENGTH 512
+#define CHANGED_SEQUENCE 0x1
+#define CHANGED_ACKNOWLEDGMENT 0x2
+#define CHANGED_WINDOW 0x4
+#define CHANGED_FLAGS 0x8
+#define HEADER_REPEAT 0x80
+
+struct header_context {
+    unsigned char header[80];
+    int length;
+    int generation;
+    // Whether a refresh came at all.
+    bool valid;
+};
+
+static header_context header_contexts[HEADER_CONTEXTS];
+
+static void reset_header_contexts()
+{
+    memset(header_contexts, 0, sizeof(header_contexts));
+}
+
+// Returns the length of the IP and TCP or UDP headers of a packet that can be
+// compressed, or -1 if it cannot.
+static int header_length(const unsigned char *p, int length)
+{
+    if (length < 28 || length > HEADER_MAX_LENGTH || p[0] != 0x45 ||
+            ((p[2] << 8) | p[3]) != length || (((p[6] << 8) | p[7]) & 0x3FFF)) {
+        return -1;
+    }
+    if (p[9] == 6) {
+        if (length < 40) {
+            return -1;
+        }
+        int size = 20 + (p[32] >> 4) * 4;
+        return size >= 40 && size <= length ? size : -1;
+    }
+    if (p[9] == 17) {
+        return ((p[24] << 8) | p[25]) == length - 20 ? 28 : -1;
+    }
+    return -1;
+}
+
+// Returns the length of the reference header a repeat starts with, or -1 if it
+// is not one that could have been compressed against.
+static int reference_length(const unsigned char *p, int available)
+{
+    if (available < 28 || p[0] != 0x45) {
+        return -1;
+    }
+    if (p[9] == 6) {
+        if (available < 40) {
+            return -1;
+        }
+        int size = 20 + (p[32] >> 4) * 4;
+        return size >= 40 && size <= available ? size : -1;
+    }
+    return p[9] == 17 ? 28 : -1;
+}
+
+static int read_delta(const unsigned char *in, int *i, int end, unsigned int *delta)
+{
+    *delta = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+        if (*i >= end) {
+            return -1;
+        }
+        int b = in[(*i)++];
+        *delta |= (unsigned int)(b & 0x7F) << shift;
+        if (b < 0x80) {
+            return 0;
+        }
+    }
+    return -1;
+}
+
+static unsigned int read32be(const unsigned char *p)
+{
+    return ((unsigned int)p[0] << 24) | (p[1] << 16) | (p[2] << 8) | p[3];
+}
+
+static void write32be(unsigned char *p, unsigned int value)
+{
+    p[0] = value >> 24;
+    p[1] = value >> 16;
+    p[2] = value >> 8;
+    p[3] = value;
+}
+
+// Restores a refresh or a compressed header into out, which has room for
+// HEADER_MAX_LENGTH bytes. Returns the length of the packet, 0 if it has to be dropped,
+// or -1 if the message is malformed.
+static int restore_header(const unsigned char *in, int length, unsigned char *out)
+{
+    // Nothing restores to more than HEADER_MAX_LENGTH bytes.
+    if (length < 4 || length > 4 + HEADER_MAX_LENGTH || in[2] >= HEADER_CONTEXTS) {
+        return -1;
+    }
+    header_context *context = &header_contexts[in[2]];
+    int info = in[3];
+
+    if (in[1] == CONTROL_HEADER_REFRESH) {
+        // A repeat has the reference ahead of the packet; a refresh is both.
+        int offset = 4;
+        int reference = 0;
+        if (info & HEADER_REPEAT) {
+            reference = reference_length(&in[4], length - 4);
+            if (reference < 0) {
+                return -1;
+            }
+            offset += reference;
+        }
+        int size = header_length(&in[offset], length - offset);
+        if (size < 0) {
+            return -1;
+        }
+        if (reference > 0) {
+            memcpy(context->header, &in[4], reference);
+            context->length = reference;
+        } else {
+            memcpy(context->header, &in[offset], size);
+            context->length = size;
+        }
+        context->generation = info & 0x0F;
+        context->valid = true;
+        memcpy(out, &in[offset], length - offset);
+        return length - offset;
+    }
+
+    if (!context->valid || (info >> 4) != context->generation) {
+        return 0;
+    }
+    const unsigned char *reference = context->header;
+    int size = context->length;
+    memcpy(out, reference, size);
+
+    int i = 4;
+    unsigned int delta;
+    if (read_delta(in, &i, length, &delta) < 0) {
+        return -1;
+    }
+    int id = (((reference[4] << 8) | reference[5]) + delta) & 0xFFFF;
+    out[4] = id >> 8;
+    out[5] = id;
+    if (reference[9] == 6) {
+        if (info & CHANGED_SEQUENCE) {
+            if (read_delta(in, &i, length, &delta) < 0) {
+                return -1;
+            }
+            write32be(&out[24], read32be(&reference[24]) + delta);
+        }
+        if (info & CHANGED_ACKNOWLEDGMENT) {
+            if (read_delta(in, &i, length, &delta) < 0) {
+                return -1;
+            }
+            write32be(&out[28], read32be(&reference[28]) + delta);
+        }
+        int needed = ((info & CHANGED_WINDOW) ? 2 : 0) +
+                ((info & CHANGED_FLAGS) ? 1 : 0) + 2 + (size - 40);
+        if (i + needed > length) {
+            return -1;
+        }
+        if (info & CHANGED_WINDOW) {
+            memcpy(&out[34], &in[i], 2);
+            i += 2;
+        }
+        if (info & CHANGED_FLAGS) {
+            out[33] = in[i++];
+        }
+        memcpy(&out[36], &in[i], 2);
+        i += 2;
+        memcpy(&out[40], &in[i], size - 40);
+        i += size - 40;
+    } else {
+        if (i + 2 > length) {
+            return -1;
+        }
+        memcpy(&out[26], &in[i], 2);
+        i += 2;
+    }
+
+    int total = size + length - i;
+    memcpy(&out[size], &in[i], length - i);
+    if (reference[9] == 17) {
+        out[24] = (total - 20) >> 8;
+        out[25] = total - 20;
+    }
+    out[2] = total >> 8;
+    out[3] = total;
+    out[10] = out[11] = 0;
+    unsigned int sum = 0;
+    for (int k = 0; k < 20; k += 2) {
+        sum += (out[k] << 8) | out[k + 1];
+    }
+    while (sum >> 16) {
+        sum = (sum & 0xFFFF) + (sum >> 16);
+    }
+    out[10] = ~sum >> 8;
+    out[11] = ~sum;
+    return total;
+}
+
+// Writes a packet to the interface, decompressing it if needed. Empty
+// compressed messages only say that the client understands them.
+static void write_packet(int interface, const char *packet, int length)
+{
+    if (length >= 2 && packet[0] == 0 && (packet[1] == CONTROL_HEADER_REFRESH ||
+            packet[1] == CONTROL_HEADER_COMPRESSED)) {
+        static unsigned char restored[32767];
+        int n = restore_header((const unsigned char *)packet, length, restored);
+        if (n < 0) {
+            log_message("bad compressed header!\n");
+        } else if (n > 0) {
+            write(interface, restored, n);
+        }
+        return;
+    }
+    if (length >= 2 && packet[0] == 0 && packet[1] == CONTROL_COMPRESSED) {
+        static unsigned char inflated[32767];
+        if (length == 2) {
+            return;
+        }
+        int n = lz4_decompress((const unsigned char *)&packet[2], length - 2,
+                inflated, sizeof(inflated));
+        if (n < 0) {
+            log_message("bad compressed packet!\n");
+            return;
+        }
+        write(interface, inflated, n);
+        return;
+    }
+    write(interface, packet, length);
+}
+
+// Bonding spreads a session across stripes the client keeps on different
+// networks, such as Wi-Fi and cellular, and picks the one for each packet by
+// how it does. Every packet or batch of a bonded session, whatever stripe it
+// takes, is framed as a zero byte, CONTROL_BONDED, a 32-bit big-endian
+// sequence number, then the datagram, inside parity if that is on. We drop
+// the copies a number already seen by BOND_WINDOW, and send down the stripe
+// the client last sent on, which is the one it finds best. In redundant mode,
+// small packets go out on every stripe with the same number, and the client
+// keeps the copy that arrives first. Both are agreed on in the handshake by
+// clients that can bond, when striping with "-n" is on.
+#define CONTROL_BONDED 12
+#define BONDED_HEADER_SIZE 6
+#define BOND_WINDOW 64
+#define BOND_REDUNDANT_MAX_LENGTH 512
+
+struct bond {
+    bool on;
+    bool redundant;
+    unsigned int next_sequence;
+
+    // The highest number received, and a bit for it and each one before.
+    bool started;
+    unsigned int highest;
+    unsigned long long seen;
+
+    // The socket the client sent on last.
+    int last_socket;
+
+    char frame[BONDED_HEADER_SIZE + 32767];
+};
+
+static bond bonding;
+
+static void bond_reset(bool on, bool redundant, int socket)
+{
+    bonding.on = on;
+    bonding.redundant = on && redundant;
+    bonding.next_sequence = 0;
+    bonding.started = false;
+    bonding.highest = 0;
+    bonding.seen = 0;
+    bonding.last_socket = socket;
+}
+
+// Frames a datagram with a sequence number in bonding.frame and returns its
+// length.
+static int bond_frame(unsigned int sequence, const char *data, int length)
+{
+    bonding.frame[0] = 0;
+    bonding.frame[1] = CONTROL_BONDED;
+    write32be((unsigned char *)&bonding.frame[2], sequence);
+    memcpy(&bonding.frame[BONDED_HEADER_SIZE], data, length);
+    return BONDED_HEADER_SIZE + length;
+}
+
+// Returns whether a bonded datagram that arrived on a socket is the first
+// with its number, and follows the client to that socket if it is.
+static bool bond_accept(int socket, const char *packet)
+{
+    unsigned int sequence = read32be((const unsigned char *)&packet[2]);
+    if (!bonding.started) {
+        bonding.started = true;
+        bonding.highest = sequence;
+        bonding.seen = 1;
+    } else {
+        int ahead = (int)(sequence - bonding.highest);
+        if (ahead > 0) {
+            bonding.seen = ahead >= BOND_WINDOW ? 1 :
+                    bonding.seen << ahead | 1;
+            bonding.highest = sequence;
+        } else if (-ahead >= BOND_WINDOW ||
+                (bonding.seen & 1ull << -ahead)) {
+            return false;
+        } else {
+            bonding.seen |= 1ull << -ahead;
+        }
+    }
+    bonding.last_socket = socket;
+    return true;
+}
+
+// Parity protects what a stripe sends against losing a datagram. Packets and
+// batches go out in groups, each framed as a zero byte, CONTROL_FEC, the
+// 16-bit big-endian group, the index within it, then the datagram. The last
+// of a group is followed by its parity: a zero byte, CONTROL_FEC, the group,
+// FEC_INDEX_PARITY, the count, the lengths XORed as 16 bits, then every
+// datagram of the group XORed together, the shorter ones padded with zeros.
+// Whoever misses one datagram of a group rebuilds it from the rest. Each side
+// tells the other how many it loses in thousandths, as a zero byte,
+// CONTROL_FEC, a zero group, FEC_INDEX_REPORT and 16 bits, so the groups
+// shrink on lossy links and grow on clean ones. It is enabled with "-f <N>",
+// N being the group size to start with, once the client sent a report.
+#define CONTROL_FEC 11
+#define FEC_INDEX_PARITY 0xFF
+#define FEC_INDEX_REPORT 0xFE
+#define FEC_DATA_HEADER_SIZE 5
+#define FEC_PARITY_HEADER_SIZE 8
+#define FEC_MIN_GROUP 2
+#define FEC_MAX_GROUP 32
+#define FEC_MAX_LENGTH 4096
+#define FEC_SLOTS 4
+#define FEC_REPORT_INTERVAL 16
+
+struct fec_slot {
+    int group;
+    unsigned int received;
+    int count;
+    int lengths;
+    int longest;
+    bool recovered;
+    unsigned char parity[FEC_MAX_LENGTH];
+};
+
+struct fec {
+    int socket;
+
+    // The group being sent, or a group_size of 0 if parity is off.
+    int group_size;
+    int group;
+    int count;
+    int lengths;
+    int longest;
+    char frame[FEC_DATA_HEADER_SIZE + FEC_MAX_LENGTH];
+    unsigned char parity[FEC_PARITY_HEADER_SIZE + FEC_MAX_LENGTH];
+
+    // The last few groups received, and the loss they had.
+    fec_slot slots[FEC_SLOTS];
+    int loss;
+    int measured;
+};
+
+static void unbatch(int interface, const char *packet, int length);
+
+static void fec_reset(fec *f, int socket)
+{
+    memset(f, 0, sizeof(*f));
+    f->socket = socket;
+    for (int i = 0; i < FEC_SLOTS; ++i) {
+        f->slots[i].group = -1;
+        f->slots[i].count = -1;
+    }
+}
+
+// One parity for about every four datagrams the link loses on average.
+static int fec_group_size(int loss)
+{
+    if (loss <= 0) {
+        return FEC_MAX_GROUP;
+    }
+    int size = 250 / loss;
+    return size < FEC_MIN_GROUP ? FEC_MIN_GROUP :
+            size > FEC_MAX_GROUP ? FEC_MAX_GROUP : size;
+}
+
+static void fec_xor(unsigned char *dst, const unsigned char *src, int length)
+{
+    for (int i = 0; i < length; ++i) {
+        dst[i] ^= src[i];
+    }
+}
+
+// Sends the parity of the current group, if it has anything in it.
+static void fec_flush(fec *f)
+{
+    if (f->count == 0) {
+        return;
+    }
+    f->parity[0] = 0;
+    f->parity[1] = CONTROL_FEC;
+    f->parity[2] = f->group >> 8;
+    f->parity[3] = f->group;
+    f->parity[4] = FEC_INDEX_PARITY;
+    f->parity[5] = f->count;
+    f->parity[6] = f->lengths >> 8;
+    f->parity[7] = f->lengths;
+    tunnel_send(f->socket, (const char *)f->parity,
+            FEC_PARITY_HEADER_SIZE + f->longest);
+    memset(&f->parity[FEC_PARITY_HEADER_SIZE], 0, f->longest);
+    f->group = (f->group + 1) & 0xFFFF;
+    f->count = 0;
+    f->lengths = 0;
+    f->longest = 0;
+}
+
+// Sends a datagram, as part of a group if parity is on.
+static void fec_send_raw(fec *f, const char *data, int length)
+{
+    if (f->group_size == 0 || length > FEC_MAX_LENGTH) {
+        tunnel_send(f->socket, data, length);
+        return;
+    }
+    fec_xor(&f->parity[FEC_PARITY_HEADER_SIZE], (const unsigned char *)data,
+            length);
+    f->lengths ^= length;
+    if (length > f->longest) {
+        f->longest = length;
+    }
+    f->frame[0] = 0;
+    f->frame[1] = CONTROL_FEC;
+    f->frame[2] = f->group >> 8;
+    f->frame[3] = f->group;
+    f->frame[4] = f->count;
+    memcpy(&f->frame[FEC_DATA_HEADER_SIZE], data, length);
+    tunnel_send(f->socket, f->frame, FEC_DATA_HEADER_SIZE + length);
+    if (++f->count >= f->group_size) {
+        fec_flush(f);
+    }
+}
+
+// Sends a packet or a batch, numbered if the session is bonded.
+static void fec_send(fec *f, const char *data, int length)
+{
+    if (bonding.on) {
+        length = bond_frame(bonding.next_sequence++, data, length);
+        data = bonding.frame;
+    }
+    fec_send_raw(f, data, length);
+}
+
+static void fec_send_report(fec *f)
+{
+    char report[7] = {0, CONTROL_FEC, 0, 0, (char)FEC_INDEX_REPORT,
+            (char)(f->loss >> 8), (char)f->loss};
+    tunnel_send(f->socket, report, sizeof(report));
+}
+
+// Writes a packet or a batch that arrived on a stripe to the interface,
+// unless it is a bonded copy of one that arrived already.
+static void fec_deliver(fec *f, int interface, const char *data, int length)
+{
+    if (length > BONDED_HEADER_SIZE && data[0] == 0 &&
+            data[1] == CONTROL_BONDED) {
+        if (!bond_accept(f->socket, data)) {
+            return;
+        }
+        data += BONDED_HEADER_SIZE;
+        length -= BONDED_HEADER_SIZE;
+    }
+    if (length > 2 && data[0] == 0 && data[1] == CONTROL_BATCH) {
+        unbatch(interface, data, length);
+    } else if (length > 0) {
+        write_packet(interface, data, length);
+    }
+}
+
+// Measures the loss of the group in the slot and makes room for the next one.
+static void fec_slot_reset(fec *f, fec_slot *slot, int group)
+{
+    if (slot->count > 0) {
+        int lost = slot->count - __builtin_popcount(slot->received) +
+                slot->recovered;
+        // Smooth it, like TCP does its round trip time.
+        f->loss += (lost * 1000 / slot->count - f->loss) / 8;
+        ++f->measured;
+    }
+    memset(slot->parity, 0, slot->longest);
+    slot->group = group;
+    slot->received = 0;
+    slot->count = -1;
+    slot->lengths = 0;
+    slot->longest = 0;
+    slot->recovered = false;
+}
+
+// Handles whatever parity added to a datagram that arrived: writes the packet
+// or batch within to the interface, rebuilds the one a group misses once the
+// parity is in, and adapts the groups sent to the loss reported.
+static void fec_receive(fec *f, int interface, const char *packet, int length)
+{
+    if (length < FEC_DATA_HEADER_SIZE) {
+        return;
+    }
+    const unsigned char *p = (const unsigned char *)packet;
+    int group = (p[2] << 8) | p[3];
+    int index = p[4];
+    if (index == FEC_INDEX_REPORT) {
+        if (length >= 7 && f->group_size > 0) {
+            f->group_size = fec_group_size((p[5] << 8) | p[6]);
+            if (f->count >= f->group_size) {
+                fec_flush(f);
+            }
+        }
+        return;
+    }
+
+    fec_slot *slot = &f->slots[group % FEC_SLOTS];
+    if (slot->group != group) {
+        if (slot->group >= 0 && (short)(group - slot->group) < 0) {
+            // The slot moved on to a newer group, so this one is too old to
+            // track.
+            if (index < FEC_MAX_GROUP) {
+                fec_deliver(f, interface, &packet[FEC_DATA_HEADER_SIZE],
+                        length - FEC_DATA_HEADER_SIZE);
+            }
+            return;
+        }
+        fec_slot_reset(f, slot, group);
+        if (f->measured >= FEC_REPORT_INTERVAL) {
+            f->measured = 0;
+            fec_send_report(f);
+        }
+    }
+
+    if (index == FEC_INDEX_PARITY) {
+        int size = length - FEC_PARITY_HEADER_SIZE;
+        if (size < 0 || size > FEC_MAX_LENGTH || slot->count >= 0) {
+            return;
+        }
+        slot->count = p[5] < FEC_MAX_GROUP ? p[5] : FEC_MAX_GROUP;
+        slot->lengths ^= (p[6] << 8) | p[7];
+        fec_xor(slot->parity, &p[FEC_PARITY_HEADER_SIZE], size);
+        if (size > slot->longest) {
+            slot->longest = size;
+        }
+    } else if (index < FEC_MAX_GROUP) {
+        int size = length - FEC_DATA_HEADER_SIZE;
+        if (size > FEC_MAX_LENGTH || (slot->received & (1u << index))) {
+            // Rebuilt already, or a duplicate.
+            return;
+        }
+        slot->received |= 1u << index;
+        slot->lengths ^= size;
+        fec_xor(slot->parity, &p[FEC_DATA_HEADER_SIZE], size);
+        if (size > slot->longest) {
+            slot->longest = size;
+        }
+        fec_deliver(f, interface, &packet[FEC_DATA_HEADER_SIZE], size);
+    } else {
+        return;
+    }
+
+    // What is left after XORing away everything that arrived is the missing
+    // one, if only one is.
+    if (slot->count < 0 || slot->recovered) {
+        return;
+    }
+    unsigned int all = slot->count == 32 ? ~0u : (1u << slot->count) - 1;
+    unsigned int missing = all & ~slot->received;
+    if (__builtin_popcount(missing) == 1 && slot->lengths > 0 &&
+            slot->lengths <= slot->longest) {
+        slot->received |= missing;
+        slot->recovered = true;
+        fec_deliver(f, interface, (const char *)slot->parity, slot->lengths);
+    }
+}
+
+// Batching packs several small packets into one datagram: a zero byte,
+// CONTROL_BATCH, then each packet preceded by its 16-bit big-endian length.
+// It is enabled with "-b <ms>", which also tells the client to batch and how
+// long it may hold a packet. Only enable it when every client understands it.
+struct batch {
+    char data[32767];
+    int length;
+    int packets;
+    int limit;
+};
+
+static void batch_reset(batch *b)
+{
+    b->data[0] = 0;
+    b->data[1] = CONTROL_BATCH;
+    b->length = 2;
+    b->packets = 0;
+}
+
+static void batch_flush(fec *f, batch *b)
+{
+    if (b->packets == 1) {
+        // Nothing to share the datagram with, so save the framing.
+        fec_send(f, &b->data[4], b->length - 4);
+    } else if (b->packets > 1) {
+        fec_send(f, b->data, b->length);
+    }
+    batch_reset(b);
+}
+
+static void batch_send(fec *f, batch *b, const char *packet, int length)
+{
+    // Anything larger than this is better off on its own.
+    if (length > (b->limit - 2) / 2 - 2) {
+        batch_flush(f, b);
+        fec_send(f, packet, length);
+        return;
+    }
+    if (b->length + 2 + length > b->limit) {
+        batch_flush(f, b);
+    }
+    b->data[b->length] = (length >> 8) & 0xFF;
+    b->data[b->length + 1] = length & 0xFF;
+    memcpy(&b->data[b->length + 2], packet, length);
+    b->length += 2 + length;
+    ++b->packets;
+}
+
+static void unbatch(int interface, const char *packet, int length)
+{
+    int offset = 2;
+    while (offset + 2 <= length) {
+        int size = ((packet[offset] & 0xFF) << 8) | (packet[offset + 1] & 0xFF);
+        offset += 2;
+        if (offset + size > length) {
+            log_message("truncated batch!\n");
+            return;
+        }
+        write_packet(interface, &packet[offset], size);
+        offset += size;
+    }
+}
+
+// Striping spreads a session across several sockets, so the client can use a
+// core per socket and carriers that shape per flow see several flows. It is
+// enabled with "-n <count>". For each session the server opens <count> - 1
+// extra sockets on ephemeral ports and offers them as "p,<port>" parameters.
+// The client joins each one by sending the shared secret on it, like it does
+// in the handshake, or anything sealed with the keys of a sealed session.
+// Packets of a flow always use the same socket.
+#define MAX_STRIPES 8
+
+struct stripe {
+    int socket;
+    bool joined;
+};
+
+static int open_stripe(int *port)
+{
+    int stripe = socket(AF_INET6, SOCK_DGRAM, 0);
+    int flag = 0;
+    setsockopt(stripe, IPPROTO_IPV6, IPV6_V6ONLY, &flag, sizeof(flag));
+
+    sockaddr_in6 addr;
+    memset(&addr, 0, sizeof(addr));
+    addr.sin6_family = AF_INET6;
+    socklen_t addrlen = sizeof(addr);
+    if (bind(stripe, (sockaddr *)&addr, sizeof(addr)) ||
+            getsockname(stripe, (sockaddr *)&addr, &addrlen)) {
+        close(stripe);
+        return -1;
+    }
+    fcntl(stripe, F_SETFL, O_NONBLOCK);
+    *port = ntohs(addr.sin6_port);
+    return stripe;
+}
+
+// Waits for the join on a stripe that has not seen one yet, then connects it
+// to wherever the join came from.
+static void join_stripe(stripe *s, char *secret)
+{
+    char packet[1024];
+    sockaddr_in6 addr;
+    socklen_t addrlen = sizeof(addr);
+    int n = recvfrom(s->socket, packet, sizeof(packet) - 1, 0,
+            (sockaddr *)&addr, &addrlen);
+    if (n <= 0) {
+        return;
+    }
+    packet[n] = 0;
+    if (keys.active ? open_sealed(packet, n) >= 0 :
+            packet[0] == 0 && !strcmp(secret, &packet[1])) {
+        connect(s->socket, (sockaddr *)&addr, addrlen);
+        s->joined = true;
+        log_message("stripe joined\n");
+    }
+}
+
+// A symmetric hash of the addresses, protocol and ports of an IP packet, the
+// same one the client uses.
+static unsigned int mix(unsigned int h)
+{
+    h ^= h >> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >> 16;
+    return h;
+}
+
+static unsigned int read32(const unsigned char *p)
+{
+    return (p[0] << 24) | (p[1] << 16) | (p[2] << 8) | p[3];
+}
+
+static unsigned int flow_hash(const char *data, int length)
+{
+    const unsigned char *p = (const unsigned char *)data;
+    int protocol, addresses, address_length, transport;
+    if (length >= 20 && (p[0] >> 4) == 4) {
+        protocol = p[9];
+        addresses = 12;
+        address_length = 4;
+        transport = (p[0] & 0x0F) * 4;
+        // Only the first fragment carries the ports.
+        if (((p[6] << 8) | p[7]) & 0x1FFF) {
+            transport = -1;
+        }
+    } else if (length >= 40 && (p[0] >> 4) == 6) {
+        protocol = p[6];
+        addresses = 8;
+        address_length = 16;
+        transport = 40;
+    } else {
+        return 0;
+    }
+
+    unsigned int hash = protocol;
+    for (int i = 0; i < address_length; i += 4) {
+        hash += mix(read32(&p[addresses + i]));
+        hash += mix(read32(&p[addresses + address_length + i]));
+    }
+    if ((protocol == 6 || protocol == 17) && transport >= 0 &&
+            transport + 4 <= length) {
+        hash += mix((p[transport] << 8) | p[transport + 1]);
+        hash += mix((p[transport + 2] << 8) | p[transport + 3]);
+    }
+    return mix(hash);
+}
+
+// Handles a control message received on a socket of the session. Path MTU
+// probes are echoed at the same size, so the client learns what makes it both
+// ways, and pings are echoed as pongs. Replies bypass the parity of the
+// stripe. Returns the type of the message, or 0 if it was a keepalive or
+// unknown.
+static int handle_control(fec *f, int interface, char *packet, int length)
+{
+    if (length > 2 && packet[1] == CONTROL_BATCH) {
+        unbatch(interface, packet, length);
+    } else if (length >= 4 && packet[1] == CONTROL_PROBE) {
+        packet[1] = CONTROL_PROBE_ACK;
+        tunnel_send(f->socket, packet, length);
+    } else if (length >= 2 && packet[1] == CONTROL_PING) {
+        packet[1] = CONTROL_PONG;
+        tunnel_send(f->socket, packet, length);
+    } else if (length >= 2 && packet[1] == CONTROL_FEC) {
+        fec_receive(f, interface, packet, length);
+    } else if (length > BONDED_HEADER_SIZE && packet[1] == CONTROL_BONDED) {
+        fec_deliver(f, interface, packet, length);
+    } else if (length >= 2 && (packet[1] == CONTROL_COMPRESSED ||
+            packet[1] == CONTROL_HEADER_REFRESH ||
+            packet[1] == CONTROL_HEADER_COMPRESSED)) {
+        write_packet(interface, packet, length);
+    } else {
+        return 0;
+    }
+    return packet[1] == CONTROL_PONG ? CONTROL_PING : packet[1];
+}
+
+static int find_option(int argc, char **argv, const char *option)
+{
+    for (int i = 4; i < argc - 1; ++i) {
+        if (!strcmp(argv[i], option)) {
+            return atoi(argv[i + 1]);
+        }
+    }
+    return -1;
+}
+
+// Makes a resumption ticket out of size - 1 random hex digits.
+static void make_ticket(char *ticket, int size)
+{
+    unsigned char random[32];
+    int fd = open("/dev/urandom", O_RDONLY);
+    if (fd == -1 || read(fd, random, sizeof(random)) != sizeof(random)) {
+        for (int i = 0; i < (int)sizeof(random); ++i) {
+            random[i] = rand();
+        }
+    }
+    if (fd != -1) {
+        close(fd);
+    }
+    for (int i = 0; i < size - 1; ++i) {
+        ticket[i] = "0123456789abcdef"[(random[i / 2] >> (i % 2 * 4)) & 0x0F];
+    }
+    ticket[size - 1] = 0;
+}
+
+// Returns the length of the parameters, before the padding.
+static int build_parameters(char *parameters, int size, int argc, char **argv)
 {
     // Well, for simplicity, we just concatenate them (almost) blindly.
     int offset = 0;
@@ -267,6 +2019,7 @@ static void build_parameters(char *parameters, int size, int argc, char **argv)
 
     // Control messages always start with zero.
     parameters[0] = 0;
+    return offset;
 }
 
 //-----------------------------------------------------------------------------
@@ -280,8 +2033,15 @@ int main(int argc, char **argv)
                "  -m <MTU> for the maximum transmission unit\n"
                "  -a <address> <prefix-length> for the private address\n"
                "  -r <address> <prefix-length> for the forwarding route\n"
+               "  -x <address> <prefix-length> to keep a range out of the route\n"
                "  -d <address> for the domain name server\n"
                "  -s <domain> for the search domain\n"
+               "  -b <ms> to batch small packets, holding them at most <ms>\n"
+               "  -n <count> to stripe each session across <count> sockets\n"
+               "  -z 1 to offer compressing packets with LZ4\n"
+               "  -h 1 to let clients compress the headers of small packets\n"
+               "  -e 1 to only accept clients that seal the tunnel\n"
+               "  -f <N> to protect every <N> packets with a parity packet\n"
                "\n"
                "Note that TUN interface needs to be configured properly\n"
                "BEFORE running this program. For more information, please\n"
@@ -291,7 +2051,85 @@ int main(int argc, char **argv)
 
     // Parse the arguments and set the parameters.
     char parameters[1024];
-    build_parameters(parameters, sizeof(parameters), argc, argv);
+    int parameters_length =
+            build_parameters(parameters, sizeof(parameters), argc, argv);
+
+    // Clients that reconnect present the ticket of their last session and get
+    // only what changes from one session to the next. The ticket changes with
+    // every start, since the parameters may have changed too.
+    char ticket[TICKET_LENGTH + 1];
+    srand(time(NULL) ^ getpid());
+    make_ticket(ticket, sizeof(ticket));
+    int n = snprintf(&parameters[parameters_length],
+            sizeof(parameters) - parameters_length, " t,%s", ticket);
+    if (parameters_length + n >= (int)sizeof(parameters)) {
+        puts("Parameters are too large");
+        exit(1);
+    }
+    parameters_length += n;
+    parameters[parameters_length] = ' ';
+
+    // Batches fill up to the MTU, just like a single packet would.
+    static batch pending[MAX_STRIPES];
+    bool batching = find_option(argc, argv, "-b") >= 0;
+    int mtu = find_option(argc, argv, "-m");
+    if (mtu <= 0 || mtu > (int)sizeof(pending[0].data)) {
+        mtu = 1500;
+    }
+    for (int i = 0; i < MAX_STRIPES; ++i) {
+        pending[i].limit = mtu;
+    }
+
+    bool compressing = find_option(argc, argv, "-z") == CODEC_LZ4;
+
+    // Parity starts with groups of this size and adapts from there.
+    static fec fecs[MAX_STRIPES];
+    int fec_group = find_option(argc, argv, "-f");
+    if (fec_group > FEC_MAX_GROUP) {
+        fec_group = FEC_MAX_GROUP;
+    } else if (fec_group > 0 && fec_group < FEC_MIN_GROUP) {
+        fec_group = FEC_MIN_GROUP;
+    }
+
+    // The secret itself never goes on the wire of a sealed session.
+    unsigned char master_key[KEY_SIZE];
+    sha256 digest;
+    sha256_init(&digest);
+    sha256_update(&digest, argv[3], strlen(argv[3]));
+    sha256_final(&digest, master_key);
+    bool plaintext = find_option(argc, argv, "-e") != 1;
+
+    int stripe_count = find_option(argc, argv, "-n");
+    if (stripe_count < 1) {
+        stripe_count = 1;
+    } else if (stripe_count > MAX_STRIPES) {
+        stripe_count = MAX_STRIPES;
+    }
+
+    // What we can do, for clients that say what they can.
+    capabilities own;
+    memset(&own, 0, sizeof(own));
+    unsigned int features = CAPS_KEEPALIVE;
+    if (batching) {
+        features |= CAPS_BATCHING;
+        caps_set(&own, CAPS_BATCH_DEADLINE_MS, find_option(argc, argv, "-b"));
+    }
+    if (compressing) {
+        features |= CAPS_COMPRESSION;
+    }
+    if (find_option(argc, argv, "-h") == 1) {
+        features |= CAPS_HEADER_COMPRESSION;
+    }
+    if (fec_group > 0) {
+        features |= CAPS_PARITY;
+        caps_set(&own, CAPS_PARITY_GROUP, fec_group);
+    }
+    if (stripe_count > 1) {
+        features |= CAPS_STRIPING | CAPS_BONDING | CAPS_REDUNDANCY;
+    }
+    caps_set(&own, CAPS_FEATURES, features);
+    caps_set(&own, CAPS_MTU, mtu);
+    caps_set(&own, CAPS_IDLE_TIMEOUT_S, PING_SESSION_TIMEOUT_MS / 1000);
 
     // Get TUN interface.
     int interface = get_interface(argv[1]);
@@ -300,8 +2138,11 @@ int main(int argc, char **argv)
 
     // Wait for a tunnel.
     int tunnel;
-    while ((tunnel = get_tunnel(argv[2], argv[3])) != -1) {
+    hello presented;
+    while ((tunnel = get_tunnel(argv[2], argv[3], master_key, plaintext,
+            &presented)) != -1) {
         log_message2("Here comes a new tunnel: %d\n", tunnel);
+        bool resumed = !strcmp(presented.ticket, ticket);
 
         // On UN*X, there are many ways to deal with multiple file
         // descriptors, such as poll(2), select(2), epoll(7) on Linux,
@@ -312,19 +2153,135 @@ int main(int argc, char **argv)
         // Put the tunnel into non-blocking mode.
         fcntl(tunnel, F_SETFL, O_NONBLOCK);
 
-        // Send the parameters several times in case of packet loss.
-        for (int i = 0; i < 3; ++i) {
-            send(tunnel, parameters, sizeof(parameters), MSG_NOSIGNAL);
+        // Agree on what to use the tunnel for, if the client said what it can
+        // do. Otherwise we find out as it goes.
+        capabilities agreed;
+        caps_agree(&presented.offer, &own, &agreed);
+        unsigned int agreed_features = agreed.values[CAPS_FEATURES];
+        bool session_batching = batching;
+        int session_stripes = stripe_count;
+        if (presented.offered) {
+            log_message2("agreed on features: %x\n", agreed_features);
+            session_batching = agreed_features & CAPS_BATCHING;
+            if (!(agreed_features & CAPS_STRIPING)) {
+                session_stripes = 1;
+            }
+        }
+
+        // Open the extra stripes and offer them to the client.
+        char session[sizeof(parameters)];
+        int offset;
+        if (resumed) {
+            // The client still has the rest of the parameters.
+            log_message("resuming session\n");
+            memset(session, ' ', sizeof(session));
+            session[0] = 0;
+            offset = 1 + sprintf(&session[1], "t,%s", ticket);
+            session[offset] = ' ';
+        } else {
+            memcpy(session, parameters, sizeof(parameters));
+            offset = parameters_length;
+        }
+        stripe stripes[MAX_STRIPES];
+        stripes[0].socket = tunnel;
+        stripes[0].joined = true;
+        int stripes_open = 1;
+        while (stripes_open < session_stripes) {
+            int port;
+            int extra = open_stripe(&port);
+            if (extra == -1) {
+                log_message("cannot open stripe!\n");
+                break;
+            }
+            int n = snprintf(&session[offset], sizeof(session) - offset,
+                    " p,%d", port);
+            if (offset + n >= (int)sizeof(session)) {
+                close(extra);
+                break;
+            }
+            offset += n;
+            session[offset] = ' ';
+            stripes[stripes_open].socket = extra;
+            stripes[stripes_open].joined = false;
+            ++stripes_open;
+        }
+
+        // Agree on the keys of the session, unless the client cannot seal.
+        memset(&keys, 0, sizeof(keys));
+        if (presented.sealed) {
+            log_message("sealing session\n");
+            unsigned char server_random[RANDOM_SIZE];
+            get_random(server_random, RANDOM_SIZE);
+            derive_key(master_key, presented.random, server_random, 's',
+                    keys.send_key);
+            derive_key(master_key, presented.random, server_random, 'c',
+                    keys.receive_key);
+
+            // The parameters go without the padding, after what we agreed
+            // on if anything, sealed with counter zero, which no datagram of
+            // the session uses.
+            unsigned char body[CAPS_MAX_SIZE + sizeof(session)];
+            int body_length = 0;
+            if (presented.offered) {
+                body_length = caps_write(&agreed, body);
+            }
+            memcpy(&body[body_length], &session[1], offset - 1);
+            body_length += offset - 1;
+            char reply[2 + RANDOM_SIZE + sizeof(body) + TAG_SIZE];
+            reply[0] = 0;
+            reply[1] = CONTROL_KEY_EXCHANGE;
+            memcpy(&reply[2], server_random, RANDOM_SIZE);
+            unsigned char nonce[12];
+            counter_nonce(0, nonce);
+            aead_seal(keys.send_key, nonce, server_random, RANDOM_SIZE, body,
+                    body_length, (unsigned char *)&reply[2 + RANDOM_SIZE]);
+
+            // Send the parameters several times in case of packet loss.
+            for (int i = 0; i < 3; ++i) {
+                send(tunnel, reply, 2 + RANDOM_SIZE + body_length + TAG_SIZE,
+                        MSG_NOSIGNAL);
+            }
+            keys.active = true;
+        } else {
+            // Send the parameters several times in case of packet loss.
+            for (int i = 0; i < 3; ++i) {
+                send(tunnel, session, sizeof(session), MSG_NOSIGNAL);
+            }
         }
 
         // Allocate the buffer for a single packet.
         char packet[32767];
+        char compressed[32767];
+        for (int i = 0; i < stripes_open; ++i) {
+            batch_reset(&pending[i]);
+            fec_reset(&fecs[i], stripes[i].socket);
+        }
+        reset_header_contexts();
+        bond_reset(presented.offered && stripes_open > 1 &&
+                (agreed_features & CAPS_BONDING),
+                agreed_features & CAPS_REDUNDANCY, tunnel);
+        if (bonding.on) {
+            log_message("bonding session\n");
+        }
 
         // We use a timer to determine the status of the tunnel. It
         // works on both sides. A positive value means sending, and
         // any other means receiving. We start with receiving.
         int timer = 0;
 
+        // Time since anything arrived, and whether the client keeps the
+        // tunnel alive by itself.
+        int silent = 0;
+        bool client_pings = false;
+
+        // Whether the client said it understands compressed packets.
+        bool client_compresses = presented.offered &&
+                (agreed_features & CAPS_COMPRESSION);
+
+        // Whether the client said it understands parity.
+        bool client_protects = presented.offered &&
+                (agreed_features & CAPS_PARITY);
+
         // We keep forwarding packets till something goes wrong.
         while (true) {
             // Assume that we did not make any progress in this iteration.
@@ -333,9 +2290,51 @@ int main(int argc, char **argv)
             // Read the outgoing packet from the input stream.
             int length = read(interface, packet, sizeof(packet));
             if (length > 0) {
+                // Pick the stripe of the flow among the joined ones.
+                int joined[MAX_STRIPES];
+                int joined_count = 0;
+                for (int i = 0; i < stripes_open; ++i) {
+                    if (stripes[i].joined) {
+                        joined[joined_count++] = i;
+                    }
+                }
+                int s = joined[flow_hash(packet, length) % joined_count];
+                if (bonding.on) {
+                    // Follow the client to the stripe it finds best.
+                    for (int i = 0; i < joined_count; ++i) {
+                        if (stripes[joined[i]].socket == bonding.last_socket) {
+                            s = joined[i];
+                        }
+                    }
+                }
+
+                // Compress it if the client agreed and it is worth it.
+                char *out = packet;
+                if (compressing && client_compresses) {
+                    int n = compress_packet(packet, length, compressed);
+                    if (n > 0) {
+                        out = compressed;
+                        length = n;
+                    }
+                }
+
                 // Write the outgoing packet to the tunnel.
                 // printf("read %d bytes from interface, sending to tunnel\n", length);
-                send(tunnel, packet, length, MSG_NOSIGNAL);
+                if (bonding.redundant && joined_count > 1 &&
+                        length <= BOND_REDUNDANT_MAX_LENGTH) {
+                    // Send it down every stripe, behind what was batched.
+                    for (int i = 0; i < joined_count; ++i) {
+                        batch_flush(&fecs[joined[i]], &pending[joined[i]]);
+                    }
+                    int n = bond_frame(bonding.next_sequence++, out, length);
+                    for (int i = 0; i < joined_count; ++i) {
+                        fec_send_raw(&fecs[joined[i]], bonding.frame, n);
+                    }
+                } else if (session_batching) {
+                    batch_send(&fecs[s], &pending[s], out, length);
+                } else {
+                    fec_send(&fecs[s], out, length);
+                }
 
                 // There might be more outgoing packets.
                 idle = false;
@@ -344,6 +2343,41 @@ int main(int argc, char **argv)
                 if (timer < 1) {
                     timer = 1;
                 }
+            } else {
+                // The interface is drained, so nothing else will join the batch.
+                for (int i = 0; i < stripes_open; ++i) {
+                    batch_flush(&fecs[i], &pending[i]);
+                }
+            }
+
+            // Read the incoming packet from every stripe.
+            for (int i = 1; i < stripes_open; ++i) {
+                if (!stripes[i].joined) {
+                    join_stripe(&stripes[i], argv[3]);
+                    continue;
+                }
+                length = recv(stripes[i].socket, packet, sizeof(packet), 0);
+                char *data;
+                if (length > 0) {
+                    length = open_datagram(stripes[i].socket, packet, length,
+                            &data);
+                }
+                if (length > 0) {
+                    if (data[0] != 0) {
+                        write(interface, data, length);
+                    } else {
+                        int type = handle_control(&fecs[i], interface, data,
+                                length);
+                        client_pings |= type == CONTROL_PING;
+                        client_compresses |= type == CONTROL_COMPRESSED;
+                        client_protects |= type == CONTROL_FEC;
+                    }
+                    idle = false;
+                    silent = 0;
+                    if (timer > 0) {
+                        timer = 0;
+                    }
+                }
             }
 
             // Read the incoming packet from the tunnel.
@@ -352,21 +2386,32 @@ int main(int argc, char **argv)
 		        log_message("recv failed!\n");
                 break;
             }
+            char *data;
+            if (length > 0) {
+                // Whatever did not open is gone, so it does not count.
+                length = open_datagram(tunnel, packet, length, &data);
+            }
 	    if (length > 0) 
             // printf("recv %d bytes from tunnel\n", length);
 
             if (length > 0) {
                 // Ignore control messages, which start with zero.
-                if (packet[0] != 0) {
+                if (data[0] != 0) {
                     // Write the incoming packet to the output stream.
-                    write(interface, packet, length);
+                    write(interface, data, length);
                     // printf("write %d bytes to interface\n", length);
                 } else {
-                    // printf("ignoring control packaet: %d bytes\n", length);
+                    // printf("handling control packaet: %d bytes\n", length);
+                    int type = handle_control(&fecs[0], interface, data,
+                            length);
+                    client_pings |= type == CONTROL_PING;
+                    client_compresses |= type == CONTROL_COMPRESSED;
+                    client_protects |= type == CONTROL_FEC;
 		        }
 
                 // There might be more incoming packets.
                 idle = false;
+                silent = 0;
 
                 // If we were sending, switch to receiving.
                 if (timer > 0) {
@@ -374,14 +2419,38 @@ int main(int argc, char **argv)
                 }
             }
 
+            // Protect what we send once the client understands it.
+            if (fec_group > 0 && client_protects) {
+                for (int i = 0; i < stripes_open; ++i) {
+                    if (fecs[i].group_size == 0) {
+                        fecs[i].group_size = fec_group;
+                    }
+                }
+            }
+
             // If we are idle or waiting for the network, sleep for a
             // fraction of time to avoid busy looping.
             if (idle) {
+                // Nothing else will join the groups for a while.
+                for (int i = 0; i < stripes_open; ++i) {
+                    fec_flush(&fecs[i]);
+                }
                 usleep(100000);
 
                 // Increase the timer. This is inaccurate but good enough,
                 // since everything is operated in non-blocking mode.
                 timer += (timer > 0) ? 100 : -100;
+                silent += 100;
+
+                if (client_pings) {
+                    // The client sends keepalives and notices a dead
+                    // tunnel by itself; ours would only wake its radio.
+                    if (silent > PING_SESSION_TIMEOUT_MS) {
+                        log_message("client silent for too long!\n");
+                        break;
+                    }
+                    continue;
+                }
 
                 // We are receiving for a long time but not sending.
                 // Can you figure out why we use a different value? :)
@@ -390,7 +2459,11 @@ int main(int argc, char **argv)
                     packet[0] = 0;
                     for (int i = 0; i < 3; ++i) {
 			            log_message("seding no signal message to tunnel\n");
-                        send(tunnel, packet, 1, MSG_NOSIGNAL);
+                        for (int j = 0; j < stripes_open; ++j) {
+                            if (stripes[j].joined) {
+                                tunnel_send(stripes[j].socket, packet, 1);
+                            }
+                        }
                     }
 
                     // Switch to sending.
@@ -405,6 +2478,9 @@ int main(int argc, char **argv)
             }
         }
         log_message("The tunnel is broken\n");
+        for (int i = 1; i < stripes_open; ++i) {
+            close(stripes[i].socket);
+        }
         close(tunnel);
     }
     perror("Cannot create tunnels");